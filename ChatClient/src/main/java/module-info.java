@@ -1,6 +1,7 @@
 module org.example.chatclient {
     requires javafx.controls;
     requires javafx.fxml;
+    requires org.example.chatprotocol;
     requires java.xml.crypto;
 
     opens org.example.chatclient.Client to javafx.graphics;
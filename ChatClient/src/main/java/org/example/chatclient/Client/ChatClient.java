@@ -6,7 +6,7 @@ import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
-import javafx.scene.control.TextArea;
+import javafx.scene.control.ListView;
 import javafx.scene.control.TextField;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
@@ -19,7 +19,11 @@ import javafx.scene.paint.Color;
 import javafx.scene.text.TextFlow;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
+import org.example.chatprotocol.FrameCodec;
+import org.example.chatprotocol.ImageChunk;
+import org.example.chatprotocol.Opcode;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.*;
@@ -27,7 +31,6 @@ import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Scanner;
-import java.util.Base64;
 
 /**
  * Esta clase representa el cliente de chat de la aplicacion. Extiende la clase Application de JavaFX
@@ -40,15 +43,20 @@ public class ChatClient extends Application {
     // Declara un objeto DatagramSocket para la comunicacion con el servidor
     private static final DatagramSocket socket;
 
-    // Puerto del servidor
-    private static final int SERVER_PORT = 5010;
+    // Puerto del servidor. Con varios servidores federados, cada cliente puede conectarse a cualquiera
+    // (-Dchat.port y -Dchat.host)
+    private static final int SERVER_PORT = Integer.getInteger("chat.port", 5010);
 
     // Puerto del cliente
     private static final int CLIENT_PORT = 6010;
 
+    // Mensajes anteriores de la sala que se piden por defecto al entrar (-Dchat.history.join) y con "/history"
+    private static final int DEFAULT_HISTORY = 20;
+
     static {
         try {
             socket = new DatagramSocket(); // Crea un nuevo socket DatagramSocket
+            socket.setReceiveBufferSize(4 * 1024 * 1024); // Absorbe las rafagas de fragmentos de imagen
             //socket = new DatagramSocket(CLIENT_PORT);
         } catch (SocketException e) {
             throw new RuntimeException(e);
@@ -63,14 +71,35 @@ public class ChatClient extends Application {
 
             // Direccion IP del servidor
             //address = InetAddress.getByName("13.80.252.23");
-            address = InetAddress.getByName("localhost");
+            address = InetAddress.getByName(System.getProperty("chat.host", "localhost"));
         } catch (UnknownHostException e) {
             throw new RuntimeException(e);
         }
     }
 
-    // Declara un area de texto para mensajes
-    private static final TextArea messageArea = new TextArea();
+    // Conexion con el servidor: protocolo acordado y entrega fiable
+    private static final ServerConnection connection = new ServerConnection(socket, address, SERVER_PORT);
+
+    // Mensajes del chat: historial acotado que se muestra en una lista virtualizada
+    private static final MessageView messages = new MessageView(
+            Integer.getInteger("chat.history", MessageView.DEFAULT_CAPACITY));
+
+    // Muestra la ultima imagen enviada o recibida
+    private static final ImageView imageView = new ImageView();
+
+    // Reune las imagenes que envian los demas usuarios y las muestra al terminar
+    private static final ImageReceiver images = new ImageReceiver(new ImageReceiver.Listener() {
+        @Override
+        public void imageReceived(String sender, Image image) {
+            Platform.runLater(() -> imageView.setImage(image));
+            messages.append(sender + " ha enviado una imagen");
+        }
+
+        @Override
+        public void imageFailed(String sender) {
+            messages.append("No se ha podido recibir la imagen de " + sender);
+        }
+    });
 
     // Declara un campo de texto para entrada de usuario
     private static final TextField inputBox = new TextField();
@@ -85,6 +114,7 @@ public class ChatClient extends Application {
     private static String username;
 
 
+
     /**
      * Metodo principal para iniciar la aplicacion del cliente de chat.
      * @param args Los argumentos de la linea de comandos.
@@ -92,70 +122,61 @@ public class ChatClient extends Application {
      */
     public static void main(String[] args) throws IOException {
 
+        // Se acuerda con el servidor el protocolo que se va a utilizar y si la entrega es fiable
+        connection.negotiate(Boolean.parseBoolean(System.getProperty("chat.reliable", "true")),
+                Boolean.parseBoolean(System.getProperty("chat.compress", "true")));
+
         Scanner sc = new Scanner(System.in);
         System.out.println("Introduce el nombre de usuario: ");
 
         username = sc.nextLine();
 
-        // Continua solicitando un nombre de usuario hasta que sea valido
-        while (!validateUsername(username)) {
+        // Entra al chat con el nombre (y arranca los latidos y el hilo de envio). Continua solicitando un nombre
+        // de usuario hasta que sea valido
+        while (!join(username, sc)) {
             System.out.println("El nombre de usuario ya está en uso. Por favor, elija otro nombre.");
             username = sc.nextLine();
         }
 
+        // Los avisos de la conexion se muestran en el chat, como los mensajes recibidos
+        connection.showNotices(messages::append);
+
         // Hilo para recibir mensajes
-        ClientThread clientThread = new ClientThread(socket, messageArea);
+        ClientThread clientThread = new ClientThread(connection, messages, images);
 
         // Inicia el hilo de cliente para recibir mensajes
         clientThread.start();
 
-        // Enviar mensaje de inicializacion al servidor
-        byte[] uuid = ("init;" + username).getBytes();
-
-        // Convierte el nombre de usuario en bytes
-        DatagramPacket initialize = new DatagramPacket(uuid, uuid.length, address, SERVER_PORT);
-
-        // Envia el paquete de inicializacion al servidor
-        socket.send(initialize);
+        // Se piden los ultimos mensajes de la sala, que el servidor envia si guarda historial
+        int history = Integer.getInteger("chat.history.join", DEFAULT_HISTORY);
+        if (history > 0) {
+            connection.requestHistory(username, FrameCodec.HISTORY_LAST, history);
+        }
 
         launch();
 
     }
 
     /**
-     * Valida el nombre de usuario consultando al servidor.
-     * @param username El nombre de usuario a validar.
-     * @return true si el nombre de usuario es valido, false de lo contrario.
+     * Entra al chat con un nombre de usuario. Si el servidor no responde tras los reintentos de la conexión,
+     * se pregunta al usuario si quiere volver a intentarlo; si no, se cierra el cliente con un error.
+     * @param username Nombre de usuario solicitado.
+     * @param sc Entrada donde el usuario responde si se vuelve a intentar.
+     * @return true si se ha entrado, false si el nombre esta en uso.
+     * @throws IOException Si ocurre un error de entrada/salida al interactuar con el socket.
      */
-    private static boolean validateUsername(String username) {
-
-        // Convierte el nombre de usuario en bytes
-        byte[] validationRequest = ("validate;" + username).getBytes();
-
-        // Crea un nuevo paquete DatagramPacket para la validacion
-        DatagramPacket validationPacket = new DatagramPacket(validationRequest, validationRequest.length, address, SERVER_PORT);
-
-        try {
-
-            // Envía el paquete de validación al servidor
-            socket.send(validationPacket);
-
-            // Crea un bufer para almacenar la respuesta del servidor
-            byte[] responseBuffer = new byte[1024];
-
-            // Crea un nuevo paquete DatagramPacket para la respuesta del servidor
-            DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
-
-            // Recibe la respuesta del servidor
-            socket.receive(responsePacket);
-
-            // Convierte la respuesta del servidor en una cadena
-            String responseMessage = new String(responsePacket.getData(), 0, responsePacket.getLength());
-
-            // Devuelve true si el nombre de usuario es válido según la respuesta del servidor
-            return responseMessage.equals("valid");
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    private static boolean join(String username, Scanner sc) throws IOException {
+        while (true) {
+            try {
+                return connection.join(username);
+            } catch (SocketTimeoutException e) {
+                System.out.println("El servidor no responde. ¿Volver a intentarlo? (s/n)");
+                if (!sc.hasNextLine() || !sc.nextLine().trim().equalsIgnoreCase("s")) {
+                    System.err.println("No se ha podido conectar con el servidor");
+                    connection.close();
+                    System.exit(1);
+                }
+            }
         }
     }
 
@@ -168,12 +189,12 @@ public class ChatClient extends Application {
     @Override
     public void start(Stage primaryStage) {
 
+        // Crea la lista de mensajes, que solo dibuja las lineas visibles
+        ListView<String> messageArea = messages.createList();
+
         // Establece el ancho maximo del area de mensajes
         messageArea.setMaxWidth(500);
 
-        // Hace que el area de mensajes no sea editable
-        messageArea.setEditable(false);
-
         // Establece el color de fondo del area de mensajes
         messageArea.setStyle("-fx-control-inner-background: #0FC2C0;");
 
@@ -211,6 +232,14 @@ public class ChatClient extends Application {
         // Define un evento al hacer clic en el boton "Enviar" para llamar al metodo sendMessage()
         sendButton.setOnAction(event -> sendMessage());
 
+        // Define un evento al hacer clic en el boton "Enviar Foto" para elegir una imagen y enviarla
+        sendPhotoButton.setOnAction(event -> sendPhoto(primaryStage));
+
+        // Ajusta las imagenes al ancho del area de mensajes sin deformarlas
+        imageView.setFitWidth(500);
+        imageView.setFitHeight(200);
+        imageView.setPreserveRatio(true);
+
         // Crea un contenedor HBox para organizar el campo de entrada de texto y los botones horizontalmente
         HBox inputContainer = new HBox(10, inputBox, sendButton, sendPhotoButton);
 
@@ -224,7 +253,7 @@ public class ChatClient extends Application {
         BorderPane root = new BorderPane();
 
         // Crea un contenedor VBox para organizar verticalmente el área de mensajes y el contenedor de entrada
-        root.setCenter(new VBox(35, messageArea, inputContainer));
+        root.setCenter(new VBox(20, messageArea, imageView, inputContainer));
 
         // Establece los margenes del contenedor BorderPane
         root.setPadding(new Insets(20));
@@ -233,7 +262,7 @@ public class ChatClient extends Application {
         root.setStyle("-fx-background-color: #015958;");
 
         // Crea una escena con el contenedor BorderPane y el tamaño especificado
-        Scene scene = new Scene(root, 550, 300);
+        Scene scene = new Scene(root, 550, 520);
 
         // Establece la escena en el escenario principal
         primaryStage.setScene(scene);
@@ -245,58 +274,156 @@ public class ChatClient extends Application {
     /**
      * Envia un mensaje al servidor.
      * El mensaje se recupera del campo de entrada de texto, se formatea agregando el nombre de usuario
-     * y luego se muestra en el area de mensajes. Luego, el mensaje se convierte en un arreglo de bytes
-     * y se envia al servidor a traves de un DatagramPacket.
+     * y luego se muestra en el area de mensajes. Luego se envia al servidor en una trama CHAT, o como
+     * texto si el servidor solo entiende el protocolo antiguo.
      */
     private void sendMessage() {
 
         // Obtiene el texto del campo de entrada y elimina los espacios en blanco al principio y al final
         String messageText = inputBox.getText().trim();
 
+        // Las ordenes "/join sala" y "/leave" cambian de sala en lugar de enviar una linea
+        if (messageText.startsWith("/join ") || messageText.equals("/leave")) {
+            inputBox.clear();
+            changeRoom(messageText.equals("/leave") ? null : messageText.substring("/join ".length()).trim());
+            return;
+        }
+
+        // La orden "/history N" pide los ultimos N mensajes de la sala
+        if (messageText.equals("/history") || messageText.startsWith("/history ")) {
+            inputBox.clear();
+            requestHistory(messageText.substring("/history".length()).trim());
+            return;
+        }
+
         // Verifica si el mensaje no esta vacio
         if (!messageText.isEmpty()) {
 
-            // Formatea el mensaje con el nombre de usuario y lo muestra en el area de mensajes
+            // Formatea el mensaje con el nombre de usuario
             String formattedMessage = username + ": " + messageText;
-            messageArea.appendText(formattedMessage + "\n");
 
-            // Convierte el mensaje en un arreglo de bytes
-            byte[] msg = (username + ": " + messageText).getBytes();
+            // Si no cabe en un datagrama se deja en el campo de entrada para que el usuario lo acorte
+            if (!connection.fits(username, messageText, formattedMessage)) {
+                messages.append("El mensaje es demasiado largo para enviarlo: divídelo en varios");
+                return;
+            }
+
+            // Lo muestra en el area de mensajes
+            messages.append(formattedMessage);
 
             // Limpia el campo de entrada de texto después de enviar el mensaje
             inputBox.clear();
 
-            // Crea un DatagramPacket con el mensaje y lo envía al servidor
-            DatagramPacket send = new DatagramPacket(msg, msg.length, address, SERVER_PORT);
+            // El texto "STOP" es la orden para detener el servidor y viaja con su propio codigo de operacion
+            byte opcode = messageText.equals("STOP") ? Opcode.STOP : Opcode.CHAT;
 
-            try {
-                // Envía el paquete a través del socket
-                socket.send(send);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+            // Deja el mensaje en la cola de la conexion, que lo envia desde su propio hilo
+            if (!connection.send(opcode, username, messageText, formattedMessage)) {
+                messages.append("No se ha podido enviar el mensaje: no hay conexión con el servidor");
             }
         }
     }
 
     /**
-     * Envia un mensaje de desconexion al servidor.
-     * Crea un mensaje de desconexion concatenando "disconnect;" con el nombre de usuario,
-     * lo convierte en un arreglo de bytes y lo envia al servidor a traves de un DatagramPacket.
-     * Este mensaje se utiliza para notificar al servidor que el usuario se esta desconectando.
+     * Pide al servidor los últimos mensajes de la sala actual.
+     * @param count Número de mensajes, o vacío para el valor por defecto.
      */
-    private void sendDisconnectMessage() {
-        // Crea un mensaje de desconexión concatenando "disconnect;" con el nombre de usuario
-        byte[] disconnectMessage = ("disconnect;" + username).getBytes();
+    private void requestHistory(String count) {
+        if (connection.isLegacy()) {
+            messages.append("El servidor no guarda historial");
+            return;
+        }
+        int requested;
+        try {
+            requested = count.isEmpty() ? DEFAULT_HISTORY : Integer.parseInt(count);
+        } catch (NumberFormatException e) {
+            messages.append("Uso: /history [número de mensajes]");
+            return;
+        }
+        if (!connection.requestHistory(username, FrameCodec.HISTORY_LAST, requested)) {
+            messages.append("No se ha podido pedir el historial: no hay conexión con el servidor");
+        }
+    }
+
+    /**
+     * Pide al servidor entrar en una sala o volver a la sala general. El servidor confirma la sala con una
+     * trama ROOM, que se muestra al llegar.
+     * @param room Nombre de la sala, o null para volver a la sala general.
+     */
+    private void changeRoom(String room) {
+        // El protocolo de texto antiguo no tiene salas
+        if (connection.isLegacy()) {
+            messages.append("El servidor no admite salas");
+            return;
+        }
+        boolean queued = room == null
+                ? connection.send(Opcode.ROOM_LEAVE, username, null, null)
+                : connection.send(Opcode.ROOM_JOIN, username, room, null);
+        if (!queued) {
+            messages.append("No se ha podido cambiar de sala: no hay conexión con el servidor");
+        }
+    }
 
-        // Crea un DatagramPacket con el mensaje de desconexión y la dirección del servidor
-        DatagramPacket disconnectPacket = new DatagramPacket(disconnectMessage, disconnectMessage.length, address, SERVER_PORT);
+    /**
+     * Envia una foto al resto de usuarios.
+     * Se elige la imagen con un dialogo, se muestra en la ventana y se envia al servidor en fragmentos
+     * desde un hilo aparte para no bloquear la interfaz.
+     * @param owner Ventana sobre la que se abre el dialogo.
+     */
+    private void sendPhoto(Stage owner) {
 
+        // El protocolo de texto antiguo no puede transportar imagenes
+        if (connection.isLegacy()) {
+            messages.append("El servidor no admite imágenes");
+            return;
+        }
+
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Enviar Foto");
+        chooser.getExtensionFilters().add(
+                new FileChooser.ExtensionFilter("Imágenes", "*.png", "*.jpg", "*.jpeg", "*.gif", "*.bmp"));
+        File file = chooser.showOpenDialog(owner);
+        if (file == null) {
+            return;
+        }
+
+        byte[] image;
         try {
-            // Envía el paquete al servidor
-            socket.send(disconnectPacket);
+            if (file.length() > ImageChunk.MAX_IMAGE_SIZE) {
+                messages.append("La imagen es demasiado grande (máximo "
+                        + ImageChunk.MAX_IMAGE_SIZE / (1024 * 1024) + " MB)");
+                return;
+            }
+            image = Files.readAllBytes(file.toPath());
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            messages.append("No se ha podido leer la imagen");
+            return;
         }
+
+        // Se muestra la imagen propia igual que las recibidas
+        imageView.setImage(new Image(new ByteArrayInputStream(image)));
+        messages.append(username + " ha enviado una imagen");
+
+        Thread sender = new Thread(() -> {
+            try {
+                connection.sendImage(username, image);
+            } catch (IOException e) {
+                messages.append("No se ha podido enviar la imagen");
+            }
+        }, "chat-image-send");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Envia un mensaje de desconexion al servidor.
+     * Envia una trama DISCONNECT con el nombre de usuario, o "disconnect;" seguido del nombre si el
+     * servidor solo entiende el protocolo antiguo.
+     * Este mensaje se utiliza para notificar al servidor que el usuario se esta desconectando.
+     */
+    private void sendDisconnectMessage() {
+        // Deja el mensaje de desconexión en la cola; close() espera a que se envíe
+        connection.send(Opcode.DISCONNECT, username, null, "disconnect;" + username);
     }
 
     /**
@@ -309,6 +436,9 @@ public class ChatClient extends Application {
         // Envía un mensaje de desconexión al servidor
         sendDisconnectMessage();
 
+        // Envia lo que queda en la cola y cierra la conexion, lo que termina tambien el hilo que recibe
+        connection.close();
+
         // Cierra la plataforma JavaFX
         Platform.exit();
     }
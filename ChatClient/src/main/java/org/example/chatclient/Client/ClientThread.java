@@ -1,67 +1,160 @@
 package org.example.chatclient.Client;
 
-import javafx.scene.control.TextArea;
+import org.example.chatprotocol.Frame;
+import org.example.chatprotocol.FrameCodec;
+import org.example.chatprotocol.Opcode;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
 
 /**
- * Esta clase representa un hilo de cliente que recibe mensajes del servidor y los muestra en un TextArea.
+ * Esta clase representa un hilo de cliente que recibe mensajes del servidor y los muestra en la
+ * {@link MessageView} del chat.
+ * Los mensajes llegan como tramas binarias, o como texto si el servidor solo entiende el protocolo antiguo.
+ * Las tramas pasan antes por la {@link ServerConnection}, que las confirma y descarta las duplicadas.
+ * Si el servidor agrupa varias tramas en un datagrama BATCH, la conexión las desempaqueta y cada una se
+ * muestra por separado.
+ * Los textos solo se decodifican para las tramas que se muestran.
+ * El hilo nunca toca la interfaz: deja las líneas en la cola sin bloqueos de la vista, que las muestra en el
+ * siguiente pulso de JavaFX. Si la conexión falla, avisa en el chat y reconecta en lugar de terminar.
  *
  * @author Alejandro Ramírez
  */
 public class ClientThread extends Thread {
 
-    // Socket para la comunicación con el servidor
-    private DatagramSocket socket;
+    // Conexión con el servidor
+    private final ServerConnection connection;
 
-    // Almacena los datos recibidos del servidor en bytes
-    private byte[] incoming = new byte[256];
+    // Vista donde se mostrarán los mensajes recibidos
+    private final MessageView messages;
+
+    // Reúne los fragmentos de las imágenes recibidas
+    private final ImageReceiver images;
+
+    // Muestra cada trama entregada. Se crea una sola vez para no crear un objeto por datagrama
+    private final Consumer<Frame> display = this::deliver;
 
-    // TextArea donde se mostrarán los mensajes recibidos
-    private TextArea textArea;
 
     /**
      * Constructor de la clase ClientThread.
      *
-     * @param socket   Socket para la comunicación con el servidor.
-     * @param textArea TextArea donde se mostrarán los mensajes recibidos.
+     * @param connection Conexión con el servidor.
+     * @param messages   Vista donde se mostrarán los mensajes recibidos.
+     * @param images     Receptor de las imágenes que envían los demás usuarios.
      */
-    public ClientThread(DatagramSocket socket, TextArea textArea) {
-        this.socket = socket;
-        this.textArea = textArea;
+    public ClientThread(ServerConnection connection, MessageView messages, ImageReceiver images) {
+        this.connection = connection;
+        this.messages = messages;
+        this.images = images;
     }
 
     /**
      * Método que se ejecuta cuando se inicia el hilo.
-     * Este método recibe continuamente mensajes del servidor y los muestra en el TextArea.
+     * Este método recibe continuamente mensajes del servidor y los muestra en el chat.
      */
     @Override
     public void run() {
         System.out.println("starting thread");
 
-        // Bucle infinito para recibir mensajes continuamente
+        // Bucle para recibir mensajes continuamente hasta que se cierre la conexion
         while (true) {
 
-            // Crea un nuevo paquete DatagramPacket para recibir datos
-            DatagramPacket packet = new DatagramPacket(incoming, incoming.length);
+            DatagramPacket packet;
             try {
-                // Recibe un paquete del servidor
-                socket.receive(packet);
+                // Recibe un paquete del servidor en uno de los paquetes de la conexion
+                packet = connection.receive();
             } catch (IOException e) {
-                throw new RuntimeException(e);
+                if (!reconnect()) {
+                    return;
+                }
+                continue;
             }
 
-            // Filtra los mensajes de inicialización para que no se muestren en la interfaz del usuario
-            // Convierte los datos recibidos en una cadena de texto
-            String message = new String(packet.getData(), 0, packet.getLength());
+            try {
+                if (connection.isLegacy()) {
+                    show(new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8));
+                } else {
+                    // Cada trama, suelta o dentro de un lote, llega aqui una sola vez y en el orden en que se envio
+                    connection.process(packet, display);
+                }
+            } catch (IOException e) {
+                // No se ha podido enviar la confirmacion: el socket ha fallado
+                connection.release(packet);
+                if (!reconnect()) {
+                    return;
+                }
+                continue;
+            }
+            connection.release(packet);
+        }
+    }
+
+    /**
+     * Vuelve a conectar con el servidor después de un error del socket, avisando en el chat. Los mensajes
+     * que se escriban mientras tanto esperan en la cola de la conexión.
+     *
+     * @return true si se ha reconectado, false si la conexión se ha cerrado y el hilo debe terminar.
+     */
+    private boolean reconnect() {
+        if (connection.isClosed()) {
+            return false;
+        }
+        show("Se ha perdido la conexión con el servidor, reconectando...");
+        if (!connection.reconnect()) {
+            return false;
+        }
+        show("Conectado de nuevo al servidor");
+        return true;
+    }
 
-            // Obtiene el texto actual del TextArea
-            String current = textArea.getText();
+    /**
+     * Muestra una trama que ya ha pasado por la conexión: las líneas de chat y los avisos se añaden a la
+     * vista y los fragmentos de imagen van al receptor de imágenes.
+     *
+     * @param frame Trama entregada por la conexión.
+     */
+    public void deliver(Frame frame) {
+        show(render(frame));
+    }
 
-            // Agrega el mensaje al TextArea y lo muestra
-            textArea.setText(current + message + "\n");
+    /**
+     * Agrega una línea al chat. La vista la mostrará en el siguiente pulso de JavaFX.
+     *
+     * @param message Línea a mostrar, o null si no hay nada que mostrar.
+     */
+    private void show(String message) {
+        // Los mensajes de control no se muestran en la interfaz del usuario
+        if (message == null) {
+            return;
         }
+
+        messages.append(message);
+    }
+
+    /**
+     * Convierte una trama recibida en la línea que se muestra en el chat.
+     *
+     * @param frame Trama recibida.
+     * @return La línea a mostrar, o null si la trama no se muestra.
+     */
+    private String render(Frame frame) {
+        return switch (frame.opcode()) {
+            case Opcode.CHAT -> ((frame.flags() & FrameCodec.FLAG_HISTORY) != 0 ? "[historial] " : "")
+                    + (frame.senderLength() == 0 ? frame.text() : frame.sender() + ": " + frame.text());
+            // Si el aviso lleva una sala, el usuario no entra o sale del chat sino que cambia de sala
+            case Opcode.PRESENCE_JOIN -> frame.payloadLength() == 0 ? frame.sender() + " ha entrado al chat!"
+                    : frame.sender() + " ha entrado en la sala " + frame.text();
+            case Opcode.PRESENCE_LEAVE -> frame.payloadLength() == 0 ? frame.sender() + " ha abandonado el chat!"
+                    : frame.sender() + " ha abandonado la sala " + frame.text();
+            case Opcode.ROOM -> "Estás en la sala " + frame.text();
+            case Opcode.IMAGE -> {
+                // Los fragmentos de imagen no se muestran como texto: se reúnen y se decodifican aparte
+                images.accept(frame);
+                yield null;
+            }
+            default -> null;
+        };
     }
 }
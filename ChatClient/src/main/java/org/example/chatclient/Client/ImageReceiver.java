@@ -0,0 +1,128 @@
+package org.example.chatclient.Client;
+
+import javafx.scene.image.Image;
+import org.example.chatprotocol.Frame;
+import org.example.chatprotocol.ImageChunk;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Esta clase reune los fragmentos de las imagenes que envian los demas usuarios. Cada imagen tiene su
+ * propio buffer ({@link ImageTransfer}) y un hilo que la decodifica mientras llegan los fragmentos.
+ *
+ * La memoria esta limitada: si los buffers de las imagenes en curso superan {@link #MAX_BUFFERED_BYTES},
+ * las imagenes nuevas se descartan hasta que terminen las anteriores.
+ *
+ * @author Alejandro Ramírez
+ */
+public class ImageReceiver {
+
+    // Memoria maxima ocupada por las imagenes que se estan recibiendo
+    static final long MAX_BUFFERED_BYTES = 32L * 1024 * 1024;
+
+    // Tiempo maximo sin recibir fragmentos de una imagen, en milisegundos
+    static final long TRANSFER_TIMEOUT_MILLIS = 10_000;
+
+    // Transferencias terminadas que se recuerdan para ignorar sus fragmentos duplicados
+    private static final int RECENTLY_FINISHED = 64;
+
+    /**
+     * Acciones que se ejecutan cuando termina una imagen. Se llaman desde el hilo que la decodifica.
+     */
+    public interface Listener {
+
+        /**
+         * La imagen se ha recibido y decodificado.
+         *
+         * @param sender Usuario que la envió.
+         * @param image Imagen decodificada.
+         */
+        void imageReceived(String sender, Image image);
+
+        /**
+         * La imagen no ha llegado completa o no se ha podido decodificar.
+         *
+         * @param sender Usuario que la envió.
+         */
+        void imageFailed(String sender);
+    }
+
+    private final Listener listener;
+
+    // Imagenes en curso, indexadas por remitente e identificador de transferencia
+    private final Map<String, ImageTransfer> transfers = new HashMap<>();
+
+    // Transferencias terminadas hace poco
+    private final Map<String, Boolean> finished = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > RECENTLY_FINISHED;
+        }
+    };
+
+    // Bytes reservados por las imagenes en curso
+    private long bufferedBytes;
+
+    /**
+     * Constructor de la clase ImageReceiver.
+     *
+     * @param listener Acciones que se ejecutan cuando termina una imagen.
+     */
+    public ImageReceiver(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Procesa un fragmento de imagen recibido.
+     *
+     * @param frame Trama IMAGE.
+     */
+    public void accept(Frame frame) {
+        if (!ImageChunk.isValid(frame)) {
+            return;
+        }
+
+        String key = frame.sender() + "#" + ImageChunk.transferId(frame);
+        ImageTransfer transfer;
+        synchronized (this) {
+            transfer = transfers.get(key);
+            if (transfer == null) {
+                if (finished.containsKey(key) || bufferedBytes + ImageChunk.totalLength(frame) > MAX_BUFFERED_BYTES) {
+                    return;
+                }
+                transfer = new ImageTransfer(frame.sender(), frame, TRANSFER_TIMEOUT_MILLIS);
+                transfers.put(key, transfer);
+                bufferedBytes += transfer.size();
+                startDecoder(key, transfer);
+            }
+        }
+        transfer.accept(frame);
+    }
+
+    /**
+     * Arranca el hilo que decodifica una imagen a medida que llegan sus fragmentos.
+     */
+    private void startDecoder(String key, ImageTransfer transfer) {
+        Thread decoder = new Thread(() -> {
+            // Image lee el flujo hasta el final; si la transferencia caduca, la lectura falla y la imagen queda con error
+            Image image = new Image(transfer.stream());
+            finish(key, transfer);
+
+            if (image.isError()) {
+                listener.imageFailed(transfer.sender());
+            } else {
+                listener.imageReceived(transfer.sender(), image);
+            }
+        }, "chat-image-decode");
+        decoder.setDaemon(true);
+        decoder.start();
+    }
+
+    private synchronized void finish(String key, ImageTransfer transfer) {
+        transfers.remove(key);
+        finished.put(key, Boolean.TRUE);
+        bufferedBytes -= transfer.size();
+    }
+}
@@ -0,0 +1,158 @@
+package org.example.chatclient.Client;
+
+import org.example.chatprotocol.Frame;
+import org.example.chatprotocol.ImageChunk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Esta clase representa una imagen que se esta recibiendo. Los fragmentos se copian en su posicion
+ * del buffer segun llegan, aunque lleguen desordenados, y la imagen se puede leer como un
+ * {@link InputStream} mientras tanto: la lectura avanza hasta donde los fragmentos ya son contiguos
+ * y espera a que llegue el siguiente. Asi la imagen se decodifica a la vez que se recibe.
+ *
+ * Si pasa demasiado tiempo sin que llegue el fragmento que falta, la lectura falla y la imagen se
+ * da por incompleta.
+ *
+ * @author Alejandro Ramírez
+ */
+public class ImageTransfer {
+
+    // Nombre del usuario que envia la imagen
+    private final String sender;
+
+    // Imagen que se va reconstruyendo
+    private final byte[] data;
+
+    private final int chunkSize;
+    private final int chunkCount;
+
+    // Tiempo maximo sin recibir fragmentos, en nanosegundos
+    private final long timeoutNanos;
+
+    // Un bit por fragmento recibido
+    private final BitSet received;
+    private int receivedCount;
+
+    // Primer fragmento que aun no ha llegado: todos los anteriores ya se pueden leer
+    private int contiguous;
+
+    // Momento en el que llego el ultimo fragmento
+    private long lastActivity = System.nanoTime();
+
+    /**
+     * Constructor de la clase ImageTransfer a partir del primer fragmento recibido.
+     *
+     * @param sender Usuario que envía la imagen.
+     * @param frame Primer fragmento recibido, ya validado.
+     * @param timeoutMillis Tiempo máximo sin recibir fragmentos.
+     */
+    public ImageTransfer(String sender, Frame frame, long timeoutMillis) {
+        this.sender = sender;
+        this.data = new byte[ImageChunk.totalLength(frame)];
+        this.chunkSize = ImageChunk.chunkSize(frame);
+        this.chunkCount = ImageChunk.chunkCount(data.length, chunkSize);
+        this.received = new BitSet(chunkCount);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    public String sender() {
+        return sender;
+    }
+
+    /**
+     * Tamaño de la imagen en bytes.
+     *
+     * @return Bytes que ocupa el buffer de la transferencia.
+     */
+    public int size() {
+        return data.length;
+    }
+
+    /**
+     * Copia un fragmento en su posición y despierta al lector si completa un tramo contiguo.
+     *
+     * @param frame Fragmento recibido, ya validado.
+     */
+    public synchronized void accept(Frame frame) {
+        int index = ImageChunk.index(frame);
+        if (ImageChunk.totalLength(frame) != data.length || ImageChunk.chunkSize(frame) != chunkSize
+                || received.get(index)) {
+            return;
+        }
+
+        System.arraycopy(frame.buffer(), ImageChunk.dataOffset(frame), data, index * chunkSize,
+                ImageChunk.dataLength(frame));
+        received.set(index);
+        receivedCount++;
+        lastActivity = System.nanoTime();
+
+        while (contiguous < chunkCount && received.get(contiguous)) {
+            contiguous++;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Flujo de lectura de la imagen. Solo debe leerlo un hilo.
+     *
+     * @return Flujo que entrega los bytes de la imagen según llegan.
+     */
+    public InputStream stream() {
+        return new InputStream() {
+
+            // Siguiente byte que se va a leer
+            private int position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                int available = awaitData(position);
+                if (available < 0) {
+                    return -1;
+                }
+                int count = Math.min(length, available);
+                System.arraycopy(data, position, buffer, offset, count);
+                position += count;
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Espera a que haya bytes contiguos a partir de una posición.
+     *
+     * @return Bytes que se pueden leer, o -1 si se ha llegado al final de la imagen.
+     * @throws IOException Si la transferencia caduca antes de que llegue el fragmento que falta.
+     */
+    private synchronized int awaitData(int position) throws IOException {
+        if (position >= data.length) {
+            return -1;
+        }
+        try {
+            int readable;
+            while ((readable = Math.min(contiguous * chunkSize, data.length)) <= position) {
+                long remaining = lastActivity + timeoutNanos - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new IOException("Imagen incompleta: faltan " + (chunkCount - receivedCount) + " fragmentos");
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return readable - position;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Recepción de la imagen interrumpida", e);
+        }
+    }
+}
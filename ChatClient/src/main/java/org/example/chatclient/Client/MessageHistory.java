@@ -0,0 +1,88 @@
+package org.example.chatclient.Client;
+
+import javafx.collections.ObservableListBase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Historial de mensajes del chat con un número máximo de líneas, guardado en un buffer circular.
+ *
+ * Es la lista que muestra el {@link javafx.scene.control.ListView} del cliente: al añadir un lote se
+ * notifica un único cambio, y cuando el historial está lleno las líneas más antiguas se descartan moviendo
+ * el inicio del buffer, sin desplazar el resto como haría un ArrayList. Solo debe modificarse desde el
+ * hilo de JavaFX.
+ *
+ * @author Alejandro Ramírez
+ */
+public class MessageHistory extends ObservableListBase<String> {
+
+    private final String[] lines;
+
+    // Posicion de la linea mas antigua y numero de lineas guardadas
+    private int head;
+    private int size;
+
+    /**
+     * Constructor de la clase MessageHistory.
+     *
+     * @param capacity Número máximo de líneas que se conservan.
+     */
+    public MessageHistory(int capacity) {
+        this.lines = new String[Math.max(1, capacity)];
+    }
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return lines[(head + index) % lines.length];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return lines.length;
+    }
+
+    /**
+     * Añade un lote de líneas al final y descarta las más antiguas que dejan de caber.
+     *
+     * @param batch Líneas nuevas, en orden.
+     */
+    public void append(List<String> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        // Si el lote no cabe entero, solo se conservan sus ultimas lineas
+        int skip = Math.max(0, batch.size() - lines.length);
+        int added = batch.size() - skip;
+        int evicted = Math.max(0, size + added - lines.length);
+
+        beginChange();
+        if (evicted > 0) {
+            List<String> removed = new ArrayList<>(evicted);
+            for (int i = 0; i < evicted; i++) {
+                int slot = (head + i) % lines.length;
+                removed.add(lines[slot]);
+                lines[slot] = null;
+            }
+            head = (head + evicted) % lines.length;
+            size -= evicted;
+            nextRemove(0, removed);
+        }
+
+        int from = size;
+        for (int i = skip; i < batch.size(); i++) {
+            lines[(head + size) % lines.length] = batch.get(i);
+            size++;
+        }
+        nextAdd(from, size);
+        endChange();
+    }
+}
@@ -0,0 +1,106 @@
+package org.example.chatclient.Client;
+
+import javafx.animation.AnimationTimer;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Vista de los mensajes del chat. Cualquier hilo puede añadir líneas con {@link #append(String)}: se dejan
+ * en una cola sin bloqueos y un {@link AnimationTimer} las pasa al {@link MessageHistory} como mucho una vez
+ * por pulso de JavaFX, en un único cambio.
+ *
+ * Las líneas se muestran en un {@link ListView}, que solo crea y coloca las celdas visibles, así que el
+ * coste de pintar no depende de cuántos mensajes haya en el historial.
+ *
+ * @author Alejandro Ramírez
+ */
+public class MessageView {
+
+    // Lineas que se conservan por defecto
+    static final int DEFAULT_CAPACITY = 5000;
+
+    // Lineas que esperan al siguiente pulso
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+
+    private final MessageHistory history;
+
+    private ListView<String> list;
+
+    /**
+     * Constructor de la clase MessageView. Se puede crear antes de arrancar JavaFX.
+     *
+     * @param capacity Número máximo de líneas que se conservan.
+     */
+    public MessageView(int capacity) {
+        this.history = new MessageHistory(capacity);
+    }
+
+    /**
+     * Añade una línea al chat. Se puede llamar desde cualquier hilo.
+     *
+     * @param line Línea a mostrar.
+     */
+    public void append(String line) {
+        pending.add(line);
+    }
+
+    /**
+     * Crea la lista que muestra los mensajes y empieza a actualizarla en cada pulso. Debe llamarse desde
+     * el hilo de JavaFX.
+     *
+     * @return La lista, para colocarla en la ventana.
+     */
+    public ListView<String> createList() {
+        list = new ListView<>(history);
+        list.setFocusTraversable(false);
+
+        // Las lineas largas se parten al ancho de la lista en lugar de desbordarla
+        list.setCellFactory(view -> {
+            ListCell<String> cell = new ListCell<>() {
+                @Override
+                protected void updateItem(String item, boolean empty) {
+                    super.updateItem(item, empty);
+                    setText(empty ? null : item);
+                }
+            };
+            cell.setWrapText(true);
+            cell.prefWidthProperty().bind(view.widthProperty().subtract(20));
+            return cell;
+        });
+
+        new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                flush();
+            }
+        }.start();
+        return list;
+    }
+
+    public MessageHistory history() {
+        return history;
+    }
+
+    /**
+     * Pasa las líneas pendientes al historial y muestra la última. Se ejecuta en el hilo de JavaFX en
+     * cada pulso; si no se ha creado la lista, puede llamarlo un único hilo cualquiera.
+     */
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<String> batch = new ArrayList<>();
+        String line;
+        while ((line = pending.poll()) != null) {
+            batch.add(line);
+        }
+        history.append(batch);
+        if (list != null) {
+            list.scrollTo(history.size() - 1);
+        }
+    }
+}
@@ -0,0 +1,1032 @@
+package org.example.chatclient.Client;
+
+import org.example.chatprotocol.Frame;
+import org.example.chatprotocol.FrameCodec;
+import org.example.chatprotocol.ImageChunk;
+import org.example.chatprotocol.Opcode;
+import org.example.chatprotocol.PacketPool;
+import org.example.chatprotocol.PayloadCompressor;
+import org.example.chatprotocol.ReceiveWindow;
+import org.example.chatprotocol.ReliabilityStats;
+import org.example.chatprotocol.ReliableLink;
+import org.example.chatprotocol.ReliableSender;
+import org.example.chatprotocol.TimerWheel;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Esta clase representa la conexion del cliente con el servidor: acuerda el protocolo en el saludo,
+ * envia los mensajes en el protocolo acordado y procesa las tramas recibidas.
+ *
+ * Si el servidor ofrece la entrega fiable, los mensajes de control y las lineas de chat se numeran y se
+ * reenvian hasta que el servidor los confirma, y las tramas recibidas se confirman, se descartan si
+ * llegan duplicadas y se reordenan antes de entregarlas a la interfaz.
+ *
+ * Los datagramas se reciben en paquetes de una {@link PacketPool} del tamaño maximo de datagrama acordado
+ * en el saludo, y las confirmaciones se escriben siempre en el mismo paquete, asi que recibir no reserva
+ * memoria: solo se crean textos para las tramas que llegan a mostrarse.
+ *
+ * Si el servidor acepta los latidos en el saludo, se le envia uno cada {@link #HEARTBEAT_INTERVAL} ms
+ * para que no desconecte al usuario aunque no escriba nada.
+ *
+ * Si el servidor acepta la compresion en el saludo, las lineas de chat largas se envian comprimidas con el
+ * diccionario compartido ({@link PayloadCompressor}) y las que llegan comprimidas se descomprimen antes de
+ * entregarlas. Si el servidor da un identificador de sesion en VALID, las lineas de chat y los latidos lo
+ * llevan como remitente en lugar del nombre de usuario.
+ *
+ * Si el servidor acepta en el saludo la entrada en un solo viaje, el cliente entra con JOIN en lugar de
+ * VALIDATE seguido de INIT, repitiendo la peticion si no llega respuesta, y guarda el testigo de sesion que
+ * recibe en JOINED. Al reconectar presenta el testigo con RESUME y recupera su nombre y su sala sin volver a
+ * validarlos, y el servidor le reenvia lo que se ha dicho en la sala mientras tanto.
+ *
+ * El cliente acepta siempre que el servidor le agrupe varias tramas en un datagrama BATCH: se procesan una
+ * a una como si hubieran llegado solas y se confirman con una sola confirmacion.
+ *
+ * Los mensajes del usuario no se envian en el hilo que los escribe (el de JavaFX): {@link #send} los deja en
+ * una cola acotada y vuelve enseguida, y un hilo de envio los codifica, los comprime y los escribe en el
+ * socket en orden. Si el socket falla, o el servidor deja de confirmar, la conexion se da por perdida: el
+ * hilo que recibe llama a {@link #reconnect()}, que abre otro socket, repite el saludo, reanuda la sesion o
+ * vuelve a entrar con el mismo nombre y en la misma sala, y solo entonces el hilo de envio continua con lo que
+ * quedaba en la cola.
+ *
+ * @author Alejandro Ramírez
+ */
+public class ServerConnection {
+
+    // Tiempo maximo que se espera la respuesta del servidor al saludo inicial, en milisegundos
+    private static final int HELLO_TIMEOUT = 2000;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // Fragmentos de imagen que se envian seguidos antes de hacer una pausa
+    private static final int IMAGE_BURST = 16;
+
+    // Pausa entre rafagas de fragmentos, para no desbordar los buffers del servidor ni pasar de los 2000
+    // fragmentos por segundo que admite de cada usuario
+    private static final long IMAGE_BURST_PAUSE_NANOS = 8_000_000;
+
+    // Tiempo entre latidos, en milisegundos. Muy por debajo del plazo de inactividad del servidor
+    static final long HEARTBEAT_INTERVAL = 5000;
+
+    // Paquetes de recepcion que se guardan. Solo recibe un hilo a la vez, con uno o dos basta
+    private static final int PACKET_POOL_CAPACITY = 4;
+
+    // Mensajes que pueden esperar al hilo de envio. Un usuario no escribe tan rapido; si se llena es que no
+    // hay conexion, y los mensajes nuevos se rechazan en lugar de bloquear la interfaz
+    static final int SEND_QUEUE_CAPACITY = 256;
+
+    // Tiempo que se espera a que el hilo de envio vacie la cola al cerrar, en milisegundos
+    private static final long CLOSE_TIMEOUT = 1000;
+
+    // Espera entre intentos de reconexion: empieza en el minimo y se duplica hasta el maximo, en milisegundos
+    private static final long RECONNECT_MIN_DELAY = 250;
+    private static final long RECONNECT_MAX_DELAY = 8000;
+
+    // Tiempo que se espera la respuesta a JOIN o RESUME antes de repetir la peticion, en milisegundos, y
+    // peticiones que se envian antes de darse por vencido
+    private static final int JOIN_TIMEOUT = 1000;
+    private static final int JOIN_ATTEMPTS = 4;
+
+    // Socket para la comunicacion con el servidor. Se sustituye por otro al reconectar
+    private volatile DatagramSocket socket;
+
+    // Buffer de recepcion del socket original, que se repite en los siguientes, o 0 si se desconoce
+    private final int receiveBufferSize;
+
+    // Direccion IP y puerto del servidor
+    private final InetAddress address;
+    private final int port;
+
+    // Numero de secuencia de las tramas que no van por el enlace fiable
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    // Contadores de retransmisiones, duplicados y tiempos de ida y vuelta
+    private final ReliabilityStats stats = new ReliabilityStats();
+
+    // Lector de tramas del hilo que recibe
+    private final Frame frame = new Frame();
+
+    // Paquetes de recepcion. Hasta el saludo tienen el tamaño maximo del protocolo, despues el acordado
+    private volatile PacketPool packets = new PacketPool(FrameCodec.MAX_DATAGRAM_SIZE, PACKET_POOL_CAPACITY);
+
+    // Paquete reutilizado para las confirmaciones, que solo envia el hilo que recibe
+    private final byte[] ackBuffer = new byte[FrameCodec.ACK_FRAME_LENGTH];
+    private final DatagramPacket ackPacket;
+
+    // Indica si el servidor solo entiende el protocolo de texto antiguo
+    private volatile boolean legacy;
+
+    // Enlace fiable con el servidor, o null si no se ha negociado
+    private volatile ReliableLink<byte[]> link;
+
+    // Indica si el servidor acepta los latidos
+    private volatile boolean heartbeats;
+
+    // Rueda donde se programan los reenvios del enlace fiable y los latidos, o null si no hace falta
+    private TimerWheel timers;
+
+    // Latido que se envia siempre igual, codificado una sola vez por conexion
+    private volatile DatagramPacket heartbeatPacket;
+
+    // Indica si ya se han programado los latidos, que siguen de una conexion a la siguiente
+    private boolean beating;
+
+    // Indica si el servidor acepta las cargas comprimidas
+    private volatile boolean compress;
+
+    // Indica si el servidor acepta la entrada con JOIN y la reanudacion con RESUME
+    private volatile boolean resumable;
+
+    // Testigo de sesion que el servidor dio en JOINED, o 0 si no dio ninguno
+    private volatile long token;
+
+    // Lo que se pidio en el saludo, para repetirlo al reconectar
+    private boolean reliableRequested;
+    private boolean compressRequested;
+
+    // Comprime las lineas que se envian. Solo comprime el hilo de envio
+    private final PayloadCompressor outgoing = new PayloadCompressor();
+
+    // Descomprime las tramas recibidas, en el hilo que recibe
+    private final PayloadCompressor incoming = new PayloadCompressor();
+
+    // Copia descomprimida de la ultima trama comprimida recibida y su lector
+    private final byte[] expanded =
+            new byte[FrameCodec.encodedLength(FrameCodec.MAX_SENDER_LENGTH, FrameCodec.MAX_PAYLOAD_LENGTH)];
+    private final Frame plain = new Frame();
+
+    // Identificador de sesion que el servidor dio en VALID, ya codificado, o null si no dio ninguno
+    private volatile byte[] senderId;
+
+    // Mensajes del usuario que esperan al hilo de envio, y el hilo, que se arranca al entrar al chat
+    private final BlockingQueue<Outgoing> outbound = new ArrayBlockingQueue<>(SEND_QUEUE_CAPACITY);
+    private Thread sendThread;
+
+    // Indica si el hilo de envio puede escribir en el socket. Es false hasta entrar y mientras se reconecta
+    private boolean connected;
+
+    private volatile boolean closed;
+
+    // Nombre con el que se ha entrado al chat y ultima sala que confirmo el servidor, para volver a ellos
+    private volatile String username;
+    private volatile String room;
+
+    // Donde se muestran los avisos de la conexion al usuario. Sin vista no se muestran
+    private volatile Consumer<String> notices = notice -> { };
+
+    /**
+     * Constructor de la clase ServerConnection.
+     *
+     * @param socket Socket para la comunicación con el servidor.
+     * @param address Dirección IP del servidor.
+     * @param port Puerto del servidor.
+     */
+    public ServerConnection(DatagramSocket socket, InetAddress address, int port) {
+        this.socket = socket;
+        this.address = address;
+        this.port = port;
+        this.receiveBufferSize = receiveBufferSize(socket);
+        this.ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length, address, port);
+    }
+
+    /**
+     * Indica dónde mostrar los avisos de la conexión, como un mensaje que no se ha podido entregar.
+     *
+     * @param notices Acción que muestra cada aviso en el chat, por ejemplo {@link MessageView#append}.
+     */
+    public void showNotices(Consumer<String> notices) {
+        this.notices = notices;
+    }
+
+    /**
+     * Saluda al servidor indicando la versión del protocolo binario que entiende el cliente, si quiere
+     * entrega fiable, si enviará latidos, que acepta lotes, si quiere compresión, que sabe entrar con JOIN y
+     * reanudar la sesión, y el datagrama más grande
+     * que acepta. Si el servidor no responde con otro saludo, se asume que es un servidor antiguo y se
+     * utiliza el protocolo de texto.
+     *
+     * @param reliable true para pedir entrega fiable.
+     * @param compress true para pedir las cargas comprimidas con el diccionario compartido.
+     * @return true si el servidor entiende las tramas binarias.
+     * @throws IOException Si no se puede enviar el saludo o el socket falla.
+     */
+    public boolean negotiate(boolean reliable, boolean compress) throws IOException {
+        reliableRequested = reliable;
+        compressRequested = compress;
+        try {
+            if (hello(reliable, compress)) {
+                return true;
+            }
+        } catch (SocketTimeoutException e) {
+            System.out.println("El servidor no ha respondido al saludo, se utiliza el protocolo de texto");
+        }
+        legacy = true;
+        return false;
+    }
+
+    /**
+     * Envía el saludo y aplica lo que el servidor acepta en su respuesta.
+     *
+     * @return true si el servidor ha respondido con otro saludo, false si ha respondido otra cosa.
+     * @throws SocketTimeoutException Si el servidor no responde a tiempo.
+     * @throws IOException Si el socket falla.
+     */
+    private boolean hello(boolean reliable, boolean compress) throws IOException {
+        int requested = FrameCodec.FEATURE_HEARTBEAT | FrameCodec.FEATURE_BATCH | FrameCodec.FEATURE_RESUME
+                | (reliable ? FrameCodec.FEATURE_RELIABLE : 0) | (compress ? FrameCodec.FEATURE_COMPRESS : 0);
+        byte[] features = FrameCodec.helloPayload(FrameCodec.VERSION, requested, FrameCodec.MAX_DATAGRAM_SIZE);
+        byte[] hello = FrameCodec.encode(Opcode.HELLO, (byte) 0, sequence.incrementAndGet(),
+                EMPTY, features, 0, features.length);
+
+        DatagramPacket responsePacket = packets.acquire();
+        try {
+            socket.send(new DatagramPacket(hello, hello.length, address, port));
+
+            // Se espera la respuesta un tiempo limitado para no bloquear el arranque con un servidor antiguo
+            socket.setSoTimeout(HELLO_TIMEOUT);
+            socket.receive(responsePacket);
+
+            if (!frame.wrap(responsePacket.getData(), 0, responsePacket.getLength())
+                    || frame.opcode() != Opcode.HELLO) {
+                return false;
+            }
+
+            // El servidor indica en el segundo byte las funcionalidades que acepta
+            int accepted = frame.payloadLength() > 1 ? frame.buffer()[frame.payloadOffset() + 1] : 0;
+            if ((accepted & FrameCodec.FEATURE_RELIABLE) != 0) {
+                openLink();
+            }
+            heartbeats = (accepted & FrameCodec.FEATURE_HEARTBEAT) != 0;
+            this.compress = (accepted & FrameCodec.FEATURE_COMPRESS) != 0;
+            resumable = (accepted & FrameCodec.FEATURE_RESUME) != 0;
+
+            // Y a continuacion el datagrama mas grande que va a enviar, al que se ajustan los paquetes
+            int maxDatagram = FrameCodec.helloMaxDatagram(frame);
+            if (maxDatagram != packets.bufferSize()) {
+                packets = new PacketPool(maxDatagram, PACKET_POOL_CAPACITY);
+            }
+            return true;
+        } finally {
+            packets.release(responsePacket);
+            resetTimeout();
+        }
+    }
+
+    /**
+     * Pide al servidor un nombre de usuario y espera su respuesta. Las demás tramas que lleguen mientras
+     * tanto se procesan (y se confirman) pero no se muestran. Debe llamarse desde el hilo que recibe, o
+     * antes de arrancarlo.
+     *
+     * @param username Nombre de usuario solicitado.
+     * @param timeout Tiempo máximo de espera de la respuesta en milisegundos, o 0 para esperar sin límite.
+     * @return true si el nombre está libre.
+     * @throws SocketTimeoutException Si el servidor no responde a tiempo.
+     * @throws IOException Si no se puede enviar la solicitud o el socket falla.
+     */
+    public boolean validate(String username, int timeout) throws IOException {
+        if (legacy) {
+            sendLegacy("validate;" + username);
+        } else {
+            sendFrame(Opcode.VALIDATE, (byte) 0, bytes(username), EMPTY);
+        }
+
+        socket.setSoTimeout(timeout);
+        try {
+            if (legacy) {
+                DatagramPacket responsePacket = receive();
+                String responseMessage = new String(responsePacket.getData(), 0, responsePacket.getLength(),
+                        StandardCharsets.UTF_8);
+                release(responsePacket);
+                return responseMessage.equals("valid");
+            }
+
+            // Se procesan las tramas que llegan (confirmaciones incluidas) hasta recibir la respuesta
+            byte[] response = new byte[1];
+            while (response[0] == 0) {
+                DatagramPacket responsePacket = receive();
+                try {
+                    process(responsePacket, frame -> {
+                        if (frame.opcode() == Opcode.VALID || frame.opcode() == Opcode.INVALID) {
+                            response[0] = frame.opcode();
+                        }
+                    });
+                } finally {
+                    release(responsePacket);
+                }
+            }
+            return response[0] == Opcode.VALID;
+        } finally {
+            resetTimeout();
+        }
+    }
+
+    /**
+     * Entra al chat con un nombre ya validado: envía INIT, empieza a enviar latidos, vuelve a la última sala
+     * si se está reconectando y deja que el hilo de envío escriba los mensajes de la cola.
+     *
+     * @param username Nombre de usuario validado.
+     * @throws IOException Si no se puede enviar la entrada.
+     */
+    public void enter(String username) throws IOException {
+        this.username = username;
+        if (legacy) {
+            sendLegacy("init;" + username);
+        } else {
+            sendFrame(Opcode.INIT, (byte) 0, bytes(username), EMPTY);
+            String current = room;
+            if (current != null) {
+                sendFrame(Opcode.ROOM_JOIN, (byte) 0, bytes(username), bytes(current));
+            }
+        }
+
+        started(username);
+    }
+
+    /**
+     * Entra al chat con un nombre de usuario. Si el servidor lo acepta, se valida y se entra en un solo viaje
+     * con JOIN, que se repite si no llega la respuesta; si no, se valida y se entra como con
+     * {@link #validate} y {@link #enter}. Debe llamarse desde el hilo que recibe, o antes de arrancarlo.
+     *
+     * @param username Nombre de usuario solicitado.
+     * @return true si se ha entrado, false si el nombre está en uso.
+     * @throws SocketTimeoutException Si el servidor no responde después de varios intentos.
+     * @throws IOException Si no se puede enviar la petición o el socket falla.
+     */
+    public boolean join(String username) throws IOException {
+        if (legacy || !resumable) {
+            if (!validate(username, JOIN_TIMEOUT * JOIN_ATTEMPTS)) {
+                return false;
+            }
+            enter(username);
+            return true;
+        }
+        if (request(Opcode.JOIN, bytes(username), EMPTY) != Opcode.JOINED) {
+            return false;
+        }
+        this.username = username;
+        String current = room;
+        if (current != null) {
+            sendFrame(Opcode.ROOM_JOIN, (byte) 0, bytes(username), bytes(current));
+        }
+        started(username);
+        return true;
+    }
+
+    /**
+     * Reanuda una sesión presentando el testigo que el servidor dio al entrar. El servidor conserva el
+     * nombre y la sala y reenvía lo que se ha dicho en ella desde la última vez que supo del cliente, así que
+     * no hace falta validar ni volver a la sala. Debe llamarse desde el hilo que recibe, o antes de
+     * arrancarlo.
+     *
+     * @param username Nombre con el que se entró.
+     * @param token Testigo recibido en JOINED.
+     * @return true si se ha reanudado, false si el servidor no lo admite o ya no conserva la sesión.
+     * @throws SocketTimeoutException Si el servidor no responde después de varios intentos.
+     * @throws IOException Si no se puede enviar la petición o el socket falla.
+     */
+    public boolean resume(String username, long token) throws IOException {
+        if (legacy || !resumable || token == 0) {
+            return false;
+        }
+        if (request(Opcode.RESUME, bytes(username), FrameCodec.tokenPayload(token)) != Opcode.JOINED) {
+            this.token = 0;
+            return false;
+        }
+        this.username = username;
+        started(username);
+        return true;
+    }
+
+    /**
+     * Testigo de la sesión actual.
+     *
+     * @return El testigo que dio el servidor en JOINED, o 0 si no se ha entrado con JOIN.
+     */
+    public long token() {
+        return token;
+    }
+
+    /**
+     * Envía JOIN o RESUME y espera JOINED o INVALID. Las demás tramas que lleguen mientras tanto se procesan
+     * pero no se muestran. Sin enlace fiable la petición se repite cada {@link #JOIN_TIMEOUT} ms; con él ya la
+     * reenvía el enlace, y repetirla solo haría que el servidor respondiera dos veces.
+     *
+     * @return {@link Opcode#JOINED} o {@link Opcode#INVALID}.
+     * @throws SocketTimeoutException Si no llega respuesta en {@link #JOIN_ATTEMPTS} intentos.
+     */
+    private byte request(byte opcode, byte[] sender, byte[] payload) throws IOException {
+        byte[] response = new byte[1];
+        for (int attempt = 0; attempt < JOIN_ATTEMPTS; attempt++) {
+            if (attempt == 0 || link == null) {
+                sendFrame(opcode, (byte) 0, sender, payload);
+            }
+            socket.setSoTimeout(JOIN_TIMEOUT);
+            try {
+                while (response[0] == 0) {
+                    DatagramPacket responsePacket = receive();
+                    try {
+                        process(responsePacket, frame -> {
+                            if (frame.opcode() == Opcode.JOINED || frame.opcode() == Opcode.INVALID) {
+                                response[0] = frame.opcode();
+                            }
+                        });
+                    } finally {
+                        release(responsePacket);
+                    }
+                }
+                return response[0];
+            } catch (SocketTimeoutException e) {
+                // Se ha perdido la peticion o la respuesta: se vuelve a intentar
+            } finally {
+                resetTimeout();
+            }
+        }
+        throw new SocketTimeoutException("El servidor no ha respondido a " + Opcode.name(opcode));
+    }
+
+    /**
+     * Empieza a enviar latidos, si el servidor los admite, para que no nos desconecte por inactividad, y deja
+     * que el hilo de envío escriba los mensajes de la cola.
+     */
+    private void started(String username) {
+        startHeartbeats(username);
+
+        synchronized (this) {
+            connected = true;
+            notifyAll();
+            if (sendThread == null) {
+                sendThread = new Thread(this::drain, "chat-client-send");
+                sendThread.setDaemon(true);
+                sendThread.start();
+            }
+        }
+    }
+
+    /**
+     * Vuelve a conectar con el servidor después de perder la conexión: abre otro socket, repite el saludo y,
+     * si se tiene un testigo de sesión, reanuda la sesión con él. Si no, o si el servidor ya no la conserva,
+     * vuelve a entrar con el nombre con el que se entró. Reintenta con esperas crecientes hasta conseguirlo.
+     * Mientras el servidor no dé por desconectada la sesión anterior, el nombre sigue ocupado y la entrada se
+     * rechaza, así que se sigue reintentando.
+     *
+     * Debe llamarse desde el hilo que recibe, que es el único que lee del socket.
+     *
+     * @return true si se ha vuelto a entrar, false si la conexión se ha cerrado mientras tanto.
+     */
+    public boolean reconnect() {
+        long delay = RECONNECT_MIN_DELAY;
+        while (!closed) {
+            try {
+                reopen();
+
+                // Un servidor que no responde al saludo esta caido: no se pasa al protocolo de texto
+                if ((legacy || hello(reliableRequested, compressRequested))
+                        && (resume(username, token) || join(username))) {
+                    return true;
+                }
+            } catch (IOException e) {
+                // Sin respuesta o sin red: se vuelve a intentar despues de la espera
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(delay));
+            delay = Math.min(delay * 2, RECONNECT_MAX_DELAY);
+        }
+        return false;
+    }
+
+    /**
+     * Indica si la conexión se ha cerrado con {@link #close()}.
+     *
+     * @return true si ya no se va a reconectar.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Indica si el servidor solo entiende el protocolo de texto antiguo.
+     *
+     * @return true si se usa el protocolo de texto.
+     */
+    public boolean isLegacy() {
+        return legacy;
+    }
+
+    /**
+     * Contadores de la entrega fiable.
+     *
+     * @return Retransmisiones, duplicados y tiempos de ida y vuelta del enlace.
+     */
+    public ReliabilityStats stats() {
+        return stats;
+    }
+
+    /**
+     * Envía un mensaje al servidor en el protocolo acordado. No bloquea: el mensaje se deja en la cola y lo
+     * envía el hilo de envío, así que se puede llamar desde el hilo de JavaFX.
+     *
+     * @param opcode Código de operación de la trama binaria.
+     * @param sender Remitente de la trama, o null si no hay.
+     * @param text Texto de la trama, o null si no hay.
+     * @param legacyMessage Mensaje equivalente en el protocolo de texto antiguo.
+     * @return false si el mensaje no cabe en un datagrama ({@link #fits}), la cola está llena o la conexión
+     *         cerrada y el mensaje no se va a enviar.
+     */
+    public boolean send(byte opcode, String sender, String text, String legacyMessage) {
+        byte[] payload = bytes(text);
+        if (!fits(bytes(sender), payload, legacyMessage)) {
+            return false;
+        }
+        return !closed && outbound.offer(new Outgoing(opcode, sender, payload, legacyMessage));
+    }
+
+    /**
+     * Indica si un mensaje cabe en un datagrama del tamaño acordado en el saludo. Las tramas se miden con el
+     * nombre del remitente y sin comprimir, que es como las reenvía el servidor; un datagrama más grande lo
+     * cortaría el servidor al recibirlo.
+     *
+     * @param sender Remitente de la trama, o null si no hay.
+     * @param text Texto de la trama, o null si no hay.
+     * @param legacyMessage Mensaje equivalente en el protocolo de texto antiguo.
+     * @return true si se puede enviar.
+     */
+    public boolean fits(String sender, String text, String legacyMessage) {
+        return fits(bytes(sender), bytes(text), legacyMessage);
+    }
+
+    private boolean fits(byte[] sender, byte[] payload, String legacyMessage) {
+        int maxDatagram = packets.bufferSize();
+        if (legacy) {
+            return legacyMessage == null || bytes(legacyMessage).length <= maxDatagram;
+        }
+        return FrameCodec.encodedLength(sender.length, payload.length) <= maxDatagram;
+    }
+
+    /**
+     * Pide al servidor mensajes anteriores de la sala. Llegan como tramas CHAT con el indicador
+     * {@link FrameCodec#FLAG_HISTORY}. El protocolo de texto antiguo no tiene historial. No bloquea, igual
+     * que {@link #send}.
+     *
+     * @param sender Nombre del usuario conectado.
+     * @param mode {@link FrameCodec#HISTORY_LAST} o {@link FrameCodec#HISTORY_SINCE}.
+     * @param value Número de mensajes, o secuencia del historial a partir de la cual se piden.
+     * @return false si la cola está llena o la conexión cerrada y la petición no se va a enviar.
+     */
+    public boolean requestHistory(String sender, byte mode, long value) {
+        if (legacy) {
+            return true;
+        }
+        return !closed && outbound.offer(new Outgoing(Opcode.HISTORY, sender, FrameCodec.historyPayload(mode, value),
+                null));
+    }
+
+    /**
+     * Bucle del hilo de envío: saca los mensajes de la cola en orden y los escribe en el socket. Si el envío
+     * falla, da la conexión por perdida y repite el mismo mensaje cuando se haya reconectado, codificado
+     * de nuevo para la conexión nueva.
+     */
+    private void drain() {
+        Outgoing message = null;
+        try {
+            while (true) {
+                if (message == null) {
+                    message = outbound.take();
+                    if (message == Outgoing.END) {
+                        return;
+                    }
+                }
+
+                // Se escribe con el bloqueo para que la reconexion no cambie el socket a mitad de un envio. El
+                // hilo de JavaFX nunca lo toma: solo deja los mensajes en la cola
+                synchronized (this) {
+                    while (!connected && !closed) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    try {
+                        write(message);
+                        message = null;
+                    } catch (IOException e) {
+                        connectionLost();
+                    } catch (RuntimeException e) {
+                        // Un mensaje que no se puede codificar se descarta: el hilo de envio sigue con el resto
+                        message = null;
+                        notices.accept("No se ha podido enviar un mensaje: " + e.getMessage());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // La conexion se ha cerrado sin poder vaciar la cola
+        }
+    }
+
+    /**
+     * Da por perdida la conexión: el hilo de envío se detiene y, al cerrar el socket, el hilo que recibe
+     * sale de la espera y reconecta.
+     */
+    private synchronized void connectionLost() {
+        if (connected) {
+            connected = false;
+            socket.close();
+        }
+    }
+
+    /**
+     * Codifica y envía un mensaje de la cola. Se ejecuta en el hilo de envío.
+     */
+    private void write(Outgoing message) throws IOException {
+        if (legacy) {
+            if (message.legacyMessage() != null) {
+                sendLegacy(message.legacyMessage());
+            }
+            return;
+        }
+
+        // Las lineas de chat llevan el identificador de sesion, si el servidor lo dio, en lugar del nombre
+        byte[] id = senderId;
+        if (message.opcode() == Opcode.CHAT && id != null) {
+            sendFrame(message.opcode(), FrameCodec.FLAG_SENDER_ID, id, message.payload());
+        } else {
+            sendFrame(message.opcode(), (byte) 0, bytes(message.sender()), message.payload());
+        }
+    }
+
+    /**
+     * Envía un mensaje del protocolo de texto antiguo.
+     */
+    private void sendLegacy(String message) throws IOException {
+        byte[] data = message.getBytes(StandardCharsets.UTF_8);
+        socket.send(new DatagramPacket(data, data.length, address, port));
+    }
+
+    /**
+     * Envía una trama binaria. Los mensajes de control y de chat se numeran en el enlace fiable y se
+     * guardan para reenviarlos. Las líneas de chat se comprimen si el servidor lo aceptó y compensa; solo
+     * las envía el hilo de envío, así que el compresor no necesita bloqueo.
+     */
+    private void sendFrame(byte opcode, byte flags, byte[] sender, byte[] payload) throws IOException {
+        ReliableLink<byte[]> link = this.link;
+        boolean reliable = link != null && Opcode.isReliable(opcode);
+        if (reliable) {
+            flags |= FrameCodec.FLAG_RELIABLE;
+        }
+        int number = reliable ? 0 : sequence.incrementAndGet();
+
+        byte[] data = null;
+        if (compress && opcode == Opcode.CHAT) {
+            data = outgoing.encode(opcode, flags, number, sender, payload, 0, payload.length);
+        }
+        if (data == null) {
+            data = FrameCodec.encode(opcode, flags, number, sender, payload, 0, payload.length);
+        }
+
+        if (reliable) {
+            transmit(data, link.sender().register(data));
+        } else {
+            socket.send(new DatagramPacket(data, data.length, address, port));
+        }
+    }
+
+    /**
+     * Empieza a enviar latidos periódicos al servidor, si los aceptó en el saludo. Los servidores
+     * antiguos no los entienden y los reenviarían como líneas de chat, así que con ellos no se envían.
+     * Al reconectar solo se cambia el latido, que lleva el identificador de la sesión nueva.
+     *
+     * @param sender Nombre del usuario conectado.
+     */
+    private synchronized void startHeartbeats(String sender) {
+        if (!heartbeats) {
+            heartbeatPacket = null;
+            return;
+        }
+        byte[] id = senderId;
+        byte[] data = id != null
+                ? FrameCodec.encode(Opcode.HEARTBEAT, FrameCodec.FLAG_SENDER_ID, 0, id, EMPTY, 0, 0)
+                : FrameCodec.encode(Opcode.HEARTBEAT, 0, sender, null);
+        heartbeatPacket = new DatagramPacket(data, data.length, address, port);
+        if (!beating) {
+            beating = true;
+            timers().schedule(this::heartbeat, HEARTBEAT_INTERVAL);
+        }
+    }
+
+    /**
+     * Envía un latido y programa el siguiente. Se ejecuta en el hilo de la rueda.
+     */
+    private void heartbeat() {
+        try {
+            DatagramPacket packet = heartbeatPacket;
+            if (packet != null) {
+                socket.send(packet);
+            }
+        } catch (IOException e) {
+            // Si el socket se ha cerrado la rueda tambien se detiene; si no, el siguiente latido lo reintenta
+        }
+        timers.schedule(this::heartbeat, HEARTBEAT_INTERVAL);
+    }
+
+    /**
+     * Envía una imagen dividida en fragmentos que caben en un datagrama. Los fragmentos se envían sin
+     * entrega fiable y en ráfagas cortas; quien los recibe descarta la imagen si le falta alguno.
+     * Puede tardar, por lo que no debe llamarse desde el hilo de la interfaz.
+     *
+     * @param sender Nombre del usuario que envía la imagen.
+     * @param image Bytes de la imagen, como máximo {@link ImageChunk#MAX_IMAGE_SIZE}.
+     * @throws IOException Si no se puede enviar algún fragmento.
+     */
+    public void sendImage(String sender, byte[] image) throws IOException {
+        byte[] senderBytes = bytes(sender);
+        int chunkSize = ImageChunk.chunkSize(senderBytes.length);
+        int chunkCount = ImageChunk.chunkCount(image.length, chunkSize);
+        int transferId = ThreadLocalRandom.current().nextInt();
+
+        for (int index = 0; index < chunkCount; index++) {
+            byte[] data = ImageChunk.encode(sequence.incrementAndGet(), senderBytes, transferId, image, index, chunkSize);
+            socket.send(new DatagramPacket(data, data.length, address, port));
+
+            if ((index + 1) % IMAGE_BURST == 0) {
+                LockSupport.parkNanos(IMAGE_BURST_PAUSE_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Recibe el siguiente datagrama del servidor en un paquete de la reserva. Bloquea hasta que llega.
+     *
+     * @return Paquete con el datagrama, que debe devolverse con {@link #release(DatagramPacket)}.
+     * @throws IOException Si el socket se cierra o falla.
+     */
+    public DatagramPacket receive() throws IOException {
+        DatagramPacket packet = packets.acquire();
+        try {
+            socket.receive(packet);
+        } catch (IOException e) {
+            packets.release(packet);
+            throw e;
+        }
+        return packet;
+    }
+
+    /**
+     * Devuelve a la reserva un paquete obtenido con {@link #receive()}.
+     *
+     * @param packet Paquete que ya no se va a usar.
+     */
+    public void release(DatagramPacket packet) {
+        packets.release(packet);
+    }
+
+    /**
+     * Procesa un datagrama recibido. Las confirmaciones se consumen aquí; las tramas fiables se confirman y
+     * pasan por la ventana de recepción, por lo que el manejador recibe cada trama una sola vez y en orden.
+     * Un datagrama BATCH se desempaqueta y cada trama que lleva se procesa igual que si hubiera llegado sola.
+     * Solo debe llamarse desde un hilo a la vez.
+     *
+     * @param packet Paquete recibido.
+     * @param handler Acción que procesa cada trama que debe mostrarse.
+     * @throws IOException Si no se puede enviar la confirmación.
+     */
+    public void process(DatagramPacket packet, Consumer<Frame> handler) throws IOException {
+        byte[] data = packet.getData();
+        if (!frame.wrap(data, packet.getOffset(), packet.getLength())) {
+            return;
+        }
+        if (frame.opcode() != Opcode.BATCH) {
+            if (accept(handler)) {
+                acknowledge();
+            }
+            return;
+        }
+
+        // La carga son tramas completas seguidas. La posicion se avanza antes de procesar cada una, porque
+        // la ventana puede volver a apuntar el lector a las tramas que tenia guardadas
+        int position = frame.payloadOffset();
+        int end = position + frame.payloadLength();
+        boolean acknowledge = false;
+        while (position < end && frame.wrap(data, position, end - position)) {
+            position += frame.length();
+            acknowledge |= accept(handler);
+        }
+
+        // Una sola confirmacion acumulada para todas las tramas fiables del lote
+        if (acknowledge) {
+            acknowledge();
+        }
+    }
+
+    /**
+     * Procesa la trama a la que apunta el lector.
+     *
+     * @return true si era una trama fiable y hay que confirmarla.
+     */
+    private boolean accept(Consumer<Frame> handler) {
+        if (frame.opcode() == Opcode.ACK) {
+            if (link != null) {
+                link.sender().acknowledge(frame.sequence(), frame.ackMask());
+            }
+            return false;
+        }
+
+        if (link == null || !frame.isReliable()) {
+            deliver(handler);
+            return false;
+        }
+
+        ReceiveWindow window = link.window();
+        if (window.accept(frame) == ReceiveWindow.Verdict.DELIVER) {
+            deliver(handler);
+            while (window.poll(frame)) {
+                deliver(handler);
+            }
+        }
+
+        // Se confirma siempre, tambien los duplicados, por si se perdio la confirmacion anterior
+        return true;
+    }
+
+    /**
+     * Entrega al manejador la trama a la que apunta el lector, descomprimida si llega comprimida. De VALID
+     * se guarda antes el identificador de sesión, de JOINED también el testigo y de ROOM la sala, para
+     * volver a ella al reconectar.
+     */
+    private void deliver(Consumer<Frame> handler) {
+        if (frame.opcode() == Opcode.VALID && frame.payloadLength() > 0) {
+            int id = FrameCodec.readId(frame.buffer(), frame.payloadOffset(), frame.payloadLength());
+            senderId = id > 0 ? FrameCodec.idBytes(id) : null;
+        } else if (frame.opcode() == Opcode.JOINED) {
+            int id = FrameCodec.joinedId(frame);
+            senderId = id > 0 ? FrameCodec.idBytes(id) : null;
+            token = id < 0 ? 0 : FrameCodec.joinedToken(frame);
+        } else if (frame.opcode() == Opcode.ROOM) {
+            room = frame.text();
+        }
+        if ((frame.flags() & FrameCodec.FLAG_COMPRESSED) == 0) {
+            handler.accept(frame);
+            return;
+        }
+
+        // Una carga comprimida que no se puede descomprimir se descarta, como una trama no valida
+        int length = incoming.expand(frame, expanded);
+        if (length > 0 && plain.wrap(expanded, 0, length)) {
+            handler.accept(plain);
+        }
+    }
+
+    /**
+     * Envía la confirmación acumulada y selectiva de la ventana de recepción.
+     */
+    private void acknowledge() throws IOException {
+        link.window().ack(ackBuffer, 0);
+        socket.send(ackPacket);
+    }
+
+    /**
+     * Cierra la conexión: espera un tiempo limitado a que el hilo de envío escriba lo que queda en la cola
+     * (la desconexión incluida), detiene los reenvíos y los latidos y cierra el socket, lo que termina
+     * también el hilo que recibe.
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            thread = sendThread;
+        }
+        if (thread != null && outbound.offer(Outgoing.END)) {
+            try {
+                thread.join(CLOSE_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+        ReliableLink<byte[]> current = link;
+        if (current != null) {
+            current.close();
+        }
+        if (timers != null) {
+            timers.close();
+        }
+        socket.close();
+    }
+
+    /**
+     * Sustituye el socket por otro nuevo con el mismo buffer de recepción y olvida lo acordado con la
+     * sesión anterior: su enlace fiable y su identificador.
+     */
+    private void reopen() throws IOException {
+        DatagramSocket replacement = new DatagramSocket();
+        if (receiveBufferSize > 0) {
+            replacement.setReceiveBufferSize(receiveBufferSize);
+        }
+        synchronized (this) {
+            connected = false;
+            socket.close();
+            socket = replacement;
+        }
+        ReliableLink<byte[]> previous = link;
+        link = null;
+        if (previous != null) {
+            previous.close();
+        }
+        senderId = null;
+    }
+
+    /**
+     * Quita el tiempo máximo de espera de las recepciones.
+     */
+    private void resetTimeout() {
+        try {
+            socket.setSoTimeout(0);
+        } catch (SocketException e) {
+            // El socket se ha cerrado, el siguiente envio lo notificara
+        }
+    }
+
+    /**
+     * Rueda de temporizadores de la conexión. Se crea al primer uso, porque sin enlace fiable ni latidos
+     * no hace falta su hilo.
+     */
+    private TimerWheel timers() {
+        if (timers == null) {
+            timers = new TimerWheel("chat-timers", 10, 256);
+        }
+        return timers;
+    }
+
+    /**
+     * Crea el enlace fiable con el servidor.
+     */
+    private void openLink() {
+        link = new ReliableLink<>(timers(), new ReliableSender.Transmitter<>() {
+            @Override
+            public void retransmit(byte[] data, int sequence) {
+                try {
+                    transmit(data, sequence);
+                } catch (IOException e) {
+                    // El siguiente reenvio lo volvera a intentar
+                }
+            }
+
+            @Override
+            public void abandon(byte[] data, int sequence) {
+                // El servidor ha dejado de confirmar: se reconecta como si hubiera fallado el socket
+                notices.accept("No se ha podido entregar un mensaje al servidor");
+                connectionLost();
+            }
+        }, stats);
+    }
+
+    /**
+     * Escribe el número de secuencia en una trama fiable y la envía.
+     */
+    private void transmit(byte[] data, int sequence) throws IOException {
+        FrameCodec.putSequence(data, 0, sequence);
+        socket.send(new DatagramPacket(data, data.length, address, port));
+    }
+
+    private static int receiveBufferSize(DatagramSocket socket) {
+        try {
+            return socket.getReceiveBufferSize();
+        } catch (SocketException e) {
+            return 0;
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text == null ? EMPTY : text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Mensaje del usuario que espera al hilo de envío. Se codifica al enviarlo, con el identificador y el
+     * enlace de la conexión que haya en ese momento.
+     *
+     * @param opcode Código de operación de la trama binaria.
+     * @param sender Remitente de la trama, o null si no hay.
+     * @param payload Carga de la trama.
+     * @param legacyMessage Mensaje equivalente en el protocolo de texto antiguo, o null si no tiene.
+     */
+    private record Outgoing(byte opcode, String sender, byte[] payload, String legacyMessage) {
+
+        // Marca que deja close() al final de la cola para que el hilo de envio termine tras vaciarla
+        static final Outgoing END = new Outgoing((byte) 0, null, EMPTY, null);
+    }
+}
@@ -0,0 +1,3 @@
+module org.example.chatprotocol {
+    exports org.example.chatprotocol;
+}
@@ -0,0 +1,199 @@
+package org.example.chatprotocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Lector de tramas binarias sin copias. Un mismo objeto se reutiliza para leer trama tras trama: el
+ * método {@link #wrap} solo valida las longitudes y guarda posiciones dentro del array recibido, y los
+ * campos se leen directamente de ese array.
+ *
+ * Solo {@link #sender()} y {@link #text()} crean objetos, y se usan únicamente cuando hace falta el texto.
+ * El objeto no es seguro entre hilos; cada hilo que recibe debe tener el suyo.
+ *
+ * @author Alejandro Ramírez
+ */
+public final class Frame {
+
+    // Array que contiene la trama
+    private byte[] buffer;
+
+    // Posicion en la que empieza la trama
+    private int offset;
+
+    // Longitud del remitente en bytes
+    private int senderLength;
+
+    // Posicion y longitud de la carga
+    private int payloadOffset;
+    private int payloadLength;
+
+    /**
+     * Indica si un datagrama es una trama binaria mirando solo su primer byte.
+     *
+     * @param firstByte Primer byte del datagrama.
+     * @return true si el byte tiene la marca de versión del protocolo binario.
+     */
+    public static boolean isFrame(byte firstByte) {
+        return (firstByte & 0xFE) == FrameCodec.VERSION_MARKER;
+    }
+
+    /**
+     * Asocia el lector con una trama y valida su estructura.
+     *
+     * @param buffer Array que contiene la trama.
+     * @param offset Posición en la que empieza la trama.
+     * @param length Número de bytes disponibles.
+     * @return true si la trama está completa y es de una versión conocida.
+     */
+    public boolean wrap(byte[] buffer, int offset, int length) {
+        if (length < FrameCodec.OVERHEAD || !isFrame(buffer[offset])) {
+            return false;
+        }
+        if (buffer[offset] != FrameCodec.versionByte()) {
+            return false;
+        }
+
+        int senderLength = buffer[offset + 7] & 0xFF;
+        int payloadLengthOffset = offset + 8 + senderLength;
+        if (payloadLengthOffset + 2 > offset + length) {
+            return false;
+        }
+        int payloadLength = (buffer[payloadLengthOffset] & 0xFF) << 8 | (buffer[payloadLengthOffset + 1] & 0xFF);
+        if (FrameCodec.encodedLength(senderLength, payloadLength) > length) {
+            return false;
+        }
+
+        this.buffer = buffer;
+        this.offset = offset;
+        this.senderLength = senderLength;
+        this.payloadOffset = payloadLengthOffset + 2;
+        this.payloadLength = payloadLength;
+        return true;
+    }
+
+    public int version() {
+        return buffer[offset] & 0x01;
+    }
+
+    public byte opcode() {
+        return buffer[offset + 1];
+    }
+
+    public byte flags() {
+        return buffer[offset + 2];
+    }
+
+    public int sequence() {
+        return FrameCodec.getInt(buffer, offset + FrameCodec.SEQUENCE_OFFSET);
+    }
+
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int offset() {
+        return offset;
+    }
+
+    /**
+     * Número total de bytes de la trama.
+     *
+     * @return Longitud de la trama.
+     */
+    public int length() {
+        return FrameCodec.encodedLength(senderLength, payloadLength);
+    }
+
+    public int senderOffset() {
+        return offset + 8;
+    }
+
+    public int senderLength() {
+        return senderLength;
+    }
+
+    public int payloadOffset() {
+        return payloadOffset;
+    }
+
+    public int payloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * Indica si la trama pide confirmación de entrega.
+     *
+     * @return true si tiene el indicador {@link FrameCodec#FLAG_RELIABLE}.
+     */
+    public boolean isReliable() {
+        return (flags() & FrameCodec.FLAG_RELIABLE) != 0;
+    }
+
+    /**
+     * Lee la máscara de confirmaciones selectivas de una trama ACK.
+     *
+     * @return La máscara, o 0 si la trama no la lleva.
+     */
+    public long ackMask() {
+        if (payloadLength < FrameCodec.ACK_PAYLOAD_LENGTH) {
+            return 0;
+        }
+        long high = FrameCodec.getInt(buffer, payloadOffset) & 0xFFFFFFFFL;
+        long low = FrameCodec.getInt(buffer, payloadOffset + 4) & 0xFFFFFFFFL;
+        return high << 32 | low;
+    }
+
+    /**
+     * Compara el remitente con un nombre ya codificado sin crear ningún objeto.
+     *
+     * @param nickname Nombre de usuario en UTF-8.
+     * @return true si el remitente coincide.
+     */
+    public boolean senderEquals(byte[] nickname) {
+        if (nickname.length != senderLength) {
+            return false;
+        }
+        int start = senderOffset();
+        for (int i = 0; i < senderLength; i++) {
+            if (buffer[start + i] != nickname[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Identificador de sesión del remitente, en las tramas con {@link FrameCodec#FLAG_SENDER_ID}.
+     *
+     * @return El identificador, o -1 si la trama no lo lleva.
+     */
+    public int senderId() {
+        if ((flags() & FrameCodec.FLAG_SENDER_ID) == 0) {
+            return -1;
+        }
+        return FrameCodec.readId(buffer, senderOffset(), senderLength);
+    }
+
+    /**
+     * Decodifica el remitente.
+     *
+     * @return El remitente como texto.
+     */
+    public String sender() {
+        return new String(buffer, senderOffset(), senderLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodifica la carga como texto UTF-8.
+     *
+     * @return La carga como texto.
+     */
+    public String text() {
+        return new String(buffer, payloadOffset, payloadLength, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return Opcode.name(opcode()) + "#" + sequence() + " (" + length() + " bytes)";
+    }
+}
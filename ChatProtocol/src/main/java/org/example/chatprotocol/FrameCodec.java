@@ -0,0 +1,433 @@
+package org.example.chatprotocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Codificación de las tramas binarias del chat.
+ *
+ * Formato de una trama (enteros en orden big-endian):
+ * <pre>
+ *   0      versión   (0xC0 | VERSION)
+ *   1      opcode    (ver {@link Opcode})
+ *   2      flags
+ *   3..6   número de secuencia
+ *   7      longitud del remitente (n, 0..255)
+ *   8      remitente en UTF-8 (n bytes)
+ *   8+n    longitud de la carga (m, 0..65535, 2 bytes)
+ *   10+n   carga (m bytes)
+ * </pre>
+ *
+ * Los bytes 0xC0 y 0xC1 nunca aparecen en un texto UTF-8 válido, así que el primer byte basta para
+ * distinguir una trama de un mensaje del protocolo de texto antiguo.
+ *
+ * @author Alejandro Ramírez
+ */
+public final class FrameCodec {
+
+    // Version del protocolo binario que implementa este codigo
+    public static final int VERSION = 1;
+
+    // Base del byte de version. 0xC0 y 0xC1 son los unicos bytes de esa zona que no aparecen en UTF-8
+    public static final int VERSION_MARKER = 0xC0;
+
+    // Bytes fijos de una trama: version, opcode, flags, secuencia y las dos longitudes
+    public static final int OVERHEAD = 10;
+
+    // Posicion de los indicadores dentro de la trama
+    public static final int FLAGS_OFFSET = 2;
+
+    // Posicion del numero de secuencia dentro de la trama
+    public static final int SEQUENCE_OFFSET = 3;
+
+    // Longitud maxima del remitente en bytes
+    public static final int MAX_SENDER_LENGTH = 255;
+
+    // Longitud maxima de la carga en bytes
+    public static final int MAX_PAYLOAD_LENGTH = 65535;
+
+    // Tamaño maximo de un datagrama que cabe en una trama Ethernet (1500 bytes) sin fragmentarse en IP
+    public static final int MAX_DATAGRAM_SIZE = 1472;
+
+    // Indicador: la trama lleva un numero de secuencia del enlace fiable y el receptor debe confirmarla
+    public static final byte FLAG_RELIABLE = 0x01;
+
+    // Indicador: la trama es un mensaje anterior del historial, con su numero de secuencia del historial
+    public static final byte FLAG_HISTORY = 0x02;
+
+    // Indicador: la carga esta comprimida con el diccionario compartido (vease PayloadCompressor)
+    public static final byte FLAG_COMPRESSED = 0x04;
+
+    // Indicador: el remitente es el identificador de sesion que el servidor dio al cliente en VALID, no su nombre
+    public static final byte FLAG_SENDER_ID = 0x08;
+
+    // Funcionalidad que se ofrece en el saludo: entrega fiable y ordenada
+    public static final byte FEATURE_RELIABLE = 0x01;
+
+    // Funcionalidad que se ofrece en el saludo: latidos del cliente y desconexion por inactividad
+    public static final byte FEATURE_HEARTBEAT = 0x02;
+
+    // Funcionalidad que se ofrece en el saludo: el servidor agrupa varias tramas en un datagrama BATCH
+    public static final byte FEATURE_BATCH = 0x04;
+
+    // Funcionalidad que se ofrece en el saludo: cargas comprimidas con el diccionario compartido
+    public static final byte FEATURE_COMPRESS = 0x08;
+
+    // Funcionalidad que se ofrece en el saludo: entrada al chat en un solo viaje con JOIN y reanudacion de la
+    // sesion con RESUME
+    public static final byte FEATURE_RESUME = 0x10;
+
+    // Bytes de la carga de una confirmacion: mascara de confirmaciones selectivas
+    public static final int ACK_PAYLOAD_LENGTH = 8;
+
+    // Longitud total de una trama ACK
+    public static final int ACK_FRAME_LENGTH = OVERHEAD + ACK_PAYLOAD_LENGTH;
+
+    // Bytes de la carga de un saludo: version, funcionalidades y tamaño maximo de datagrama (2 bytes)
+    public static final int HELLO_PAYLOAD_LENGTH = 4;
+
+    // Modos de una peticion HISTORY: los ultimos N mensajes o los posteriores a una secuencia
+    public static final byte HISTORY_LAST = 0;
+    public static final byte HISTORY_SINCE = 1;
+
+    // Bytes de la carga de una peticion HISTORY: modo y valor (8 bytes)
+    public static final int HISTORY_PAYLOAD_LENGTH = 9;
+
+    // Bytes del testigo de sesion que el servidor da en JOINED y el cliente presenta en RESUME
+    public static final int TOKEN_LENGTH = 8;
+
+    // Bytes de la carga de JOINED: identificador de sesion (4 bytes) y testigo
+    public static final int JOINED_PAYLOAD_LENGTH = 4 + TOKEN_LENGTH;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Byte de versión que se escribe al principio de cada trama.
+     *
+     * @return El byte de versión.
+     */
+    public static byte versionByte() {
+        return (byte) (VERSION_MARKER | VERSION);
+    }
+
+    /**
+     * Tamaño que ocupa una trama.
+     *
+     * @param senderLength Longitud del remitente en bytes.
+     * @param payloadLength Longitud de la carga en bytes.
+     * @return Número total de bytes de la trama.
+     */
+    public static int encodedLength(int senderLength, int payloadLength) {
+        return OVERHEAD + senderLength + payloadLength;
+    }
+
+    /**
+     * Escribe una trama en un array existente sin reservar memoria.
+     *
+     * @param dst Array de destino.
+     * @param offset Posición de dst en la que empieza la trama.
+     * @param opcode Código de operación.
+     * @param flags Flags de la trama.
+     * @param sequence Número de secuencia.
+     * @param sender Remitente codificado en UTF-8.
+     * @param payload Array que contiene la carga.
+     * @param payloadOffset Posición del primer byte de la carga.
+     * @param payloadLength Número de bytes de la carga.
+     * @return Número de bytes escritos.
+     * @throws IllegalArgumentException Si el remitente o la carga superan su longitud máxima.
+     */
+    public static int encode(byte[] dst, int offset, byte opcode, byte flags, int sequence,
+                             byte[] sender, byte[] payload, int payloadOffset, int payloadLength) {
+        if (sender.length > MAX_SENDER_LENGTH) {
+            throw new IllegalArgumentException("Remitente demasiado largo: " + sender.length + " bytes");
+        }
+        if (payloadLength > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Carga demasiado larga: " + payloadLength + " bytes");
+        }
+
+        int position = offset;
+        dst[position++] = versionByte();
+        dst[position++] = opcode;
+        dst[position++] = flags;
+        putInt(dst, position, sequence);
+        position += 4;
+
+        dst[position++] = (byte) sender.length;
+        System.arraycopy(sender, 0, dst, position, sender.length);
+        position += sender.length;
+
+        dst[position++] = (byte) (payloadLength >>> 8);
+        dst[position++] = (byte) payloadLength;
+        System.arraycopy(payload, payloadOffset, dst, position, payloadLength);
+        position += payloadLength;
+
+        return position - offset;
+    }
+
+    /**
+     * Codifica una trama en un array nuevo del tamaño exacto.
+     *
+     * @param opcode Código de operación.
+     * @param flags Flags de la trama.
+     * @param sequence Número de secuencia.
+     * @param sender Remitente codificado en UTF-8.
+     * @param payload Array que contiene la carga.
+     * @param payloadOffset Posición del primer byte de la carga.
+     * @param payloadLength Número de bytes de la carga.
+     * @return La trama codificada.
+     */
+    public static byte[] encode(byte opcode, byte flags, int sequence,
+                                byte[] sender, byte[] payload, int payloadOffset, int payloadLength) {
+        byte[] frame = new byte[encodedLength(sender.length, payloadLength)];
+        encode(frame, 0, opcode, flags, sequence, sender, payload, payloadOffset, payloadLength);
+        return frame;
+    }
+
+    /**
+     * Codifica una trama a partir de textos. Pensado para mensajes de control, no para el camino de
+     * reenvío.
+     *
+     * @param opcode Código de operación.
+     * @param sequence Número de secuencia.
+     * @param sender Remitente, o null si no hay.
+     * @param text Carga de texto, o null si no hay.
+     * @return La trama codificada.
+     */
+    public static byte[] encode(byte opcode, int sequence, String sender, String text) {
+        byte[] senderBytes = sender == null ? EMPTY : sender.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = text == null ? EMPTY : text.getBytes(StandardCharsets.UTF_8);
+        return encode(opcode, (byte) 0, sequence, senderBytes, payload, 0, payload.length);
+    }
+
+    /**
+     * Codifica una confirmación de entrega.
+     *
+     * @param cumulative Última secuencia recibida en orden; todas las anteriores también se han recibido.
+     * @param mask Confirmaciones selectivas: el bit i indica que se ha recibido la secuencia cumulative + 1 + i.
+     * @return La trama codificada.
+     */
+    public static byte[] encodeAck(int cumulative, long mask) {
+        byte[] frame = new byte[ACK_FRAME_LENGTH];
+        encodeAck(frame, 0, cumulative, mask);
+        return frame;
+    }
+
+    /**
+     * Codifica una confirmación de entrega en un array existente, sin crear objetos.
+     *
+     * @param dst Array de destino, con al menos {@link #ACK_FRAME_LENGTH} bytes desde offset.
+     * @param offset Posición de dst en la que empieza la trama.
+     * @param cumulative Última secuencia recibida en orden.
+     * @param mask Confirmaciones selectivas de las secuencias posteriores.
+     * @return Número de bytes escritos.
+     */
+    public static int encodeAck(byte[] dst, int offset, int cumulative, long mask) {
+        int position = offset;
+        dst[position++] = versionByte();
+        dst[position++] = Opcode.ACK;
+        dst[position++] = 0;
+        putInt(dst, position, cumulative);
+        position += 4;
+
+        // Sin remitente y con la mascara de 64 bits como carga
+        dst[position++] = 0;
+        dst[position++] = 0;
+        dst[position++] = ACK_PAYLOAD_LENGTH;
+        putInt(dst, position, (int) (mask >>> 32));
+        putInt(dst, position + 4, (int) mask);
+        return ACK_FRAME_LENGTH;
+    }
+
+    /**
+     * Carga de un saludo.
+     *
+     * @param version Versión del protocolo binario.
+     * @param features Funcionalidades que se piden o se aceptan.
+     * @param maxDatagram Tamaño máximo de datagrama que se pide o se acuerda, en bytes.
+     * @return Los {@link #HELLO_PAYLOAD_LENGTH} bytes de la carga.
+     */
+    public static byte[] helloPayload(int version, int features, int maxDatagram) {
+        return new byte[]{(byte) version, (byte) features, (byte) (maxDatagram >>> 8), (byte) maxDatagram};
+    }
+
+    /**
+     * Tamaño máximo de datagrama de un saludo. Los saludos anteriores no lo llevan: se supone
+     * {@link #MAX_DATAGRAM_SIZE}.
+     *
+     * @param hello Trama HELLO recibida.
+     * @return El tamaño indicado en el saludo, como mucho {@link #MAX_DATAGRAM_SIZE}.
+     */
+    public static int helloMaxDatagram(Frame hello) {
+        if (hello.payloadLength() < HELLO_PAYLOAD_LENGTH) {
+            return MAX_DATAGRAM_SIZE;
+        }
+        byte[] buffer = hello.buffer();
+        int offset = hello.payloadOffset();
+        int size = (buffer[offset + 2] & 0xFF) << 8 | buffer[offset + 3] & 0xFF;
+        return size == 0 ? MAX_DATAGRAM_SIZE : Math.min(size, MAX_DATAGRAM_SIZE);
+    }
+
+    /**
+     * Carga de una petición de historial.
+     *
+     * @param mode {@link #HISTORY_LAST} o {@link #HISTORY_SINCE}.
+     * @param value Número de mensajes, o secuencia del historial a partir de la cual se piden.
+     * @return Los {@link #HISTORY_PAYLOAD_LENGTH} bytes de la carga.
+     */
+    public static byte[] historyPayload(byte mode, long value) {
+        byte[] payload = new byte[HISTORY_PAYLOAD_LENGTH];
+        payload[0] = mode;
+        putInt(payload, 1, (int) (value >>> 32));
+        putInt(payload, 5, (int) value);
+        return payload;
+    }
+
+    /**
+     * Modo de una petición de historial.
+     *
+     * @param history Trama HISTORY recibida.
+     * @return {@link #HISTORY_LAST} o {@link #HISTORY_SINCE}, o -1 si la carga no es válida.
+     */
+    public static int historyMode(Frame history) {
+        return history.payloadLength() < HISTORY_PAYLOAD_LENGTH ? -1 : history.buffer()[history.payloadOffset()];
+    }
+
+    /**
+     * Valor de una petición de historial: número de mensajes o secuencia, según el modo.
+     *
+     * @param history Trama HISTORY recibida, con una carga válida.
+     * @return El valor de la petición.
+     */
+    public static long historyValue(Frame history) {
+        byte[] buffer = history.buffer();
+        int offset = history.payloadOffset();
+        return (long) getInt(buffer, offset + 1) << 32 | getInt(buffer, offset + 5) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Carga de la respuesta JOINED.
+     *
+     * @param id Identificador de sesión.
+     * @param token Testigo con el que el cliente puede reanudar la sesión.
+     * @return Los {@link #JOINED_PAYLOAD_LENGTH} bytes de la carga.
+     */
+    public static byte[] joinedPayload(int id, long token) {
+        byte[] payload = new byte[JOINED_PAYLOAD_LENGTH];
+        putInt(payload, 0, id);
+        putLong(payload, 4, token);
+        return payload;
+    }
+
+    /**
+     * Identificador de sesión de una respuesta JOINED.
+     *
+     * @param joined Trama JOINED recibida.
+     * @return El identificador, o -1 si la carga no es válida.
+     */
+    public static int joinedId(Frame joined) {
+        return joined.payloadLength() < JOINED_PAYLOAD_LENGTH ? -1 : getInt(joined.buffer(), joined.payloadOffset());
+    }
+
+    /**
+     * Testigo de sesión de una respuesta JOINED.
+     *
+     * @param joined Trama JOINED recibida, con una carga válida.
+     * @return El testigo.
+     */
+    public static long joinedToken(Frame joined) {
+        return getLong(joined.buffer(), joined.payloadOffset() + 4);
+    }
+
+    /**
+     * Carga de una petición RESUME.
+     *
+     * @param token Testigo que el servidor dio en JOINED.
+     * @return Los {@link #TOKEN_LENGTH} bytes de la carga.
+     */
+    public static byte[] tokenPayload(long token) {
+        byte[] payload = new byte[TOKEN_LENGTH];
+        putLong(payload, 0, token);
+        return payload;
+    }
+
+    /**
+     * Testigo de una petición RESUME.
+     *
+     * @param resume Trama RESUME recibida.
+     * @return El testigo, o 0 (que nunca se da) si la carga no es válida.
+     */
+    public static long resumeToken(Frame resume) {
+        return resume.payloadLength() != TOKEN_LENGTH ? 0 : getLong(resume.buffer(), resume.payloadOffset());
+    }
+
+    /**
+     * Identificador de sesión en el menor número de bytes, tal como va en la carga de VALID y como remitente
+     * de las tramas con {@link #FLAG_SENDER_ID}.
+     *
+     * @param id Identificador de sesión, positivo.
+     * @return De 1 a 4 bytes en orden big-endian.
+     */
+    public static byte[] idBytes(int id) {
+        int length = Math.max(1, 4 - Integer.numberOfLeadingZeros(id) / 8);
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (id >>> 8 * (length - 1 - i));
+        }
+        return bytes;
+    }
+
+    /**
+     * Lee un identificador de sesión escrito con {@link #idBytes(int)}.
+     *
+     * @param src Array que lo contiene.
+     * @param offset Posición del primer byte.
+     * @param length Número de bytes, de 1 a 4.
+     * @return El identificador, o -1 si la longitud no es válida.
+     */
+    public static int readId(byte[] src, int offset, int length) {
+        if (length < 1 || length > 4) {
+            return -1;
+        }
+        int id = 0;
+        for (int i = 0; i < length; i++) {
+            id = id << 8 | src[offset + i] & 0xFF;
+        }
+        return id;
+    }
+
+    /**
+     * Sobrescribe el número de secuencia de una trama ya codificada.
+     *
+     * @param frame Array que contiene la trama.
+     * @param offset Posición en la que empieza la trama.
+     * @param sequence Nuevo número de secuencia.
+     */
+    public static void putSequence(byte[] frame, int offset, int sequence) {
+        putInt(frame, offset + SEQUENCE_OFFSET, sequence);
+    }
+
+    static void putInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value >>> 24);
+        dst[offset + 1] = (byte) (value >>> 16);
+        dst[offset + 2] = (byte) (value >>> 8);
+        dst[offset + 3] = (byte) value;
+    }
+
+    static int getInt(byte[] src, int offset) {
+        return (src[offset] & 0xFF) << 24
+                | (src[offset + 1] & 0xFF) << 16
+                | (src[offset + 2] & 0xFF) << 8
+                | (src[offset + 3] & 0xFF);
+    }
+
+    private static void putLong(byte[] dst, int offset, long value) {
+        putInt(dst, offset, (int) (value >>> 32));
+        putInt(dst, offset + 4, (int) value);
+    }
+
+    private static long getLong(byte[] src, int offset) {
+        return (long) getInt(src, offset) << 32 | getInt(src, offset + 4) & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,127 @@
+package org.example.chatprotocol;
+
+/**
+ * Formato de los fragmentos de imagen. Una imagen se divide en fragmentos que caben en un datagrama de
+ * {@link FrameCodec#MAX_DATAGRAM_SIZE} bytes y cada uno viaja en una trama {@link Opcode#IMAGE} cuya
+ * carga empieza con esta cabecera (enteros en orden big-endian):
+ * <pre>
+ *   0..3    identificador de la transferencia (lo elige quien envía la imagen)
+ *   4..7    tamaño total de la imagen en bytes
+ *   8..11   índice del fragmento
+ *   12..13  tamaño de los fragmentos (todos menos el último)
+ *   14      datos del fragmento
+ * </pre>
+ *
+ * Los métodos de lectura trabajan directamente sobre el buffer de un {@link Frame}, sin copias.
+ *
+ * @author Alejandro Ramírez
+ */
+public final class ImageChunk {
+
+    // Bytes de la cabecera de cada fragmento
+    public static final int HEADER_LENGTH = 14;
+
+    // Tamaño maximo de una imagen
+    public static final int MAX_IMAGE_SIZE = 8 * 1024 * 1024;
+
+    private ImageChunk() {
+    }
+
+    /**
+     * Bytes de imagen que caben en cada fragmento para un remitente.
+     *
+     * @param senderLength Longitud del nombre del remitente en UTF-8.
+     * @return Tamaño de los datos de cada fragmento.
+     */
+    public static int chunkSize(int senderLength) {
+        return FrameCodec.MAX_DATAGRAM_SIZE - FrameCodec.encodedLength(senderLength, HEADER_LENGTH);
+    }
+
+    /**
+     * Número de fragmentos de una imagen.
+     *
+     * @param totalLength Tamaño de la imagen.
+     * @param chunkSize Tamaño de los fragmentos.
+     * @return Número de fragmentos.
+     */
+    public static int chunkCount(int totalLength, int chunkSize) {
+        return (totalLength + chunkSize - 1) / chunkSize;
+    }
+
+    /**
+     * Codifica un fragmento de una imagen.
+     *
+     * @param sequence Número de secuencia de la trama.
+     * @param sender Remitente en UTF-8.
+     * @param transferId Identificador de la transferencia.
+     * @param image Imagen completa.
+     * @param index Índice del fragmento.
+     * @param chunkSize Tamaño de los fragmentos.
+     * @return La trama codificada.
+     */
+    public static byte[] encode(int sequence, byte[] sender, int transferId, byte[] image, int index, int chunkSize) {
+        int offset = index * chunkSize;
+        int length = Math.min(chunkSize, image.length - offset);
+
+        byte[] payload = new byte[HEADER_LENGTH + length];
+        FrameCodec.putInt(payload, 0, transferId);
+        FrameCodec.putInt(payload, 4, image.length);
+        FrameCodec.putInt(payload, 8, index);
+        payload[12] = (byte) (chunkSize >>> 8);
+        payload[13] = (byte) chunkSize;
+        System.arraycopy(image, offset, payload, HEADER_LENGTH, length);
+
+        return FrameCodec.encode(Opcode.IMAGE, (byte) 0, sequence, sender, payload, 0, payload.length);
+    }
+
+    /**
+     * Comprueba que la cabecera de un fragmento es coherente: el tamaño está dentro del límite, los
+     * fragmentos llenan el datagrama ({@link #chunkSize(int)}), el índice existe y los datos tienen la
+     * longitud que les corresponde. Así nadie puede partir una imagen en millones de fragmentos diminutos.
+     *
+     * @param frame Trama IMAGE.
+     * @return true si el fragmento es válido.
+     */
+    public static boolean isValid(Frame frame) {
+        if (frame.payloadLength() < HEADER_LENGTH) {
+            return false;
+        }
+        int total = totalLength(frame);
+        int chunkSize = chunkSize(frame);
+        if (total <= 0 || total > MAX_IMAGE_SIZE || chunkSize != chunkSize(frame.senderLength())) {
+            return false;
+        }
+        int index = index(frame);
+        if (index < 0 || index >= chunkCount(total, chunkSize)) {
+            return false;
+        }
+        long offset = (long) index * chunkSize;
+        return dataLength(frame) == Math.min(chunkSize, total - offset);
+    }
+
+    public static int transferId(Frame frame) {
+        return FrameCodec.getInt(frame.buffer(), frame.payloadOffset());
+    }
+
+    public static int totalLength(Frame frame) {
+        return FrameCodec.getInt(frame.buffer(), frame.payloadOffset() + 4);
+    }
+
+    public static int index(Frame frame) {
+        return FrameCodec.getInt(frame.buffer(), frame.payloadOffset() + 8);
+    }
+
+    public static int chunkSize(Frame frame) {
+        byte[] buffer = frame.buffer();
+        int offset = frame.payloadOffset() + 12;
+        return (buffer[offset] & 0xFF) << 8 | (buffer[offset + 1] & 0xFF);
+    }
+
+    public static int dataOffset(Frame frame) {
+        return frame.payloadOffset() + HEADER_LENGTH;
+    }
+
+    public static int dataLength(Frame frame) {
+        return frame.payloadLength() - HEADER_LENGTH;
+    }
+}
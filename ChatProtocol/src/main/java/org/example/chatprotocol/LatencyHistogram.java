@@ -0,0 +1,159 @@
+package org.example.chatprotocol;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de latencias con precisión relativa fija, al estilo de HdrHistogram.
+ *
+ * Los valores se agrupan en intervalos logarítmicos (potencias de dos) y cada intervalo se divide en
+ * {@link #SUB_BUCKETS} partes iguales, de modo que el error de cualquier percentil es menor que el 1 %
+ * del valor, tanto para microsegundos como para segundos. Los valores menores que
+ * 2 * {@link #SUB_BUCKETS} se guardan exactos.
+ *
+ * Registrar un valor es un incremento atómico en un array fijo: varios hilos pueden registrar a la vez
+ * sin bloqueos y sin reservar memoria. Las lecturas recorren los contadores mientras se siguen
+ * registrando valores, así que son una foto aproximada del instante en que se hacen.
+ *
+ * @author Alejandro Ramírez
+ */
+public final class LatencyHistogram {
+
+    // Bits de cada intervalo: 128 partes por potencia de dos, un error relativo menor que 1/128
+    private static final int SUB_BUCKET_BITS = 7;
+
+    // Partes en que se divide cada intervalo
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Valor mas alto que se distingue. Los mayores se guardan en el ultimo contador (unos 18 minutos en ns)
+    public static final long MAX_VALUE = (1L << 40) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+
+    private final LongAdder total = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Registra un valor. Los negativos cuentan como 0 y los que superan {@link #MAX_VALUE} como el máximo.
+     *
+     * @param value Valor a registrar, normalmente una latencia en nanosegundos.
+     */
+    public void record(long value) {
+        long clamped = Math.min(Math.max(value, 0), MAX_VALUE);
+        counts.incrementAndGet(index(clamped));
+        total.increment();
+        max.accumulate(clamped);
+    }
+
+    /**
+     * Número de valores registrados.
+     *
+     * @return Total de valores.
+     */
+    public long count() {
+        return total.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Valor por debajo del cual queda un porcentaje de las muestras.
+     *
+     * @param percentile Percentil entre 0 y 100, por ejemplo 99.9.
+     * @return El límite superior del intervalo que contiene el percentil, o 0 si no hay muestras.
+     */
+    public long valueAtPercentile(double percentile) {
+        long count = count();
+        if (count == 0) {
+            return 0;
+        }
+
+        // Posicion de la muestra buscada, al menos la primera
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestEquivalentValue(i), max());
+            }
+        }
+        return max();
+    }
+
+    /**
+     * Media de los valores registrados, con la precisión de los intervalos.
+     *
+     * @return Media aproximada, o 0 si no hay muestras.
+     */
+    public double mean() {
+        long count = 0;
+        double sum = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long bucket = counts.get(i);
+            if (bucket != 0) {
+                count += bucket;
+                sum += bucket * (double) ((lowestEquivalentValue(i) + highestEquivalentValue(i)) / 2);
+            }
+        }
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * Suma los valores de otro histograma a este.
+     *
+     * @param other Histograma cuyos valores se añaden.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long bucket = other.counts.get(i);
+            if (bucket != 0) {
+                counts.addAndGet(i, bucket);
+                total.add(bucket);
+            }
+        }
+        max.accumulate(other.max());
+    }
+
+    /**
+     * Borra todos los valores. Los que se registren a la vez pueden perderse.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        max.reset();
+    }
+
+    /**
+     * Contador en el que cae un valor. Los valores pequeños tienen su propio contador; a partir de ahí
+     * cada potencia de dos ocupa {@link #SUB_BUCKETS} contadores consecutivos.
+     */
+    static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (exponent << SUB_BUCKET_BITS) + (int) (value >>> exponent);
+    }
+
+    static long lowestEquivalentValue(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - SUB_BUCKETS) >>> SUB_BUCKET_BITS;
+        return (long) (index - (exponent << SUB_BUCKET_BITS)) << exponent;
+    }
+
+    static long highestEquivalentValue(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - SUB_BUCKETS) >>> SUB_BUCKET_BITS;
+        return lowestEquivalentValue(index) + (1L << exponent) - 1;
+    }
+}
@@ -0,0 +1,158 @@
+package org.example.chatprotocol;
+
+/**
+ * Códigos de operación de las tramas binarias. Son constantes byte para que el servidor y el cliente
+ * puedan despachar cada trama con un único switch sobre el byte, sin crear ningún String.
+ *
+ * @author Alejandro Ramírez
+ */
+public final class Opcode {
+
+    // Negociacion de la version del protocolo. La carga lleva la version maxima que admite quien la envia
+    public static final byte HELLO = 0x01;
+
+    // El cliente pide un nombre de usuario (remitente = nombre solicitado)
+    public static final byte VALIDATE = 0x02;
+
+    // Respuesta del servidor: el nombre de usuario esta disponible (carga = identificador de sesion, vease
+    // FrameCodec.idBytes)
+    public static final byte VALID = 0x03;
+
+    // Respuesta del servidor: el nombre de usuario ya esta en uso
+    public static final byte INVALID = 0x04;
+
+    // El cliente entra al chat con el nombre validado
+    public static final byte INIT = 0x05;
+
+    // El cliente abandona el chat
+    public static final byte DISCONNECT = 0x06;
+
+    // Linea de chat (remitente = nombre de usuario, o su identificador con FLAG_SENDER_ID; carga = texto en UTF-8,
+    // comprimido con FLAG_COMPRESSED)
+    public static final byte CHAT = 0x07;
+
+    // Fragmento de una imagen enviada por un usuario (remitente = nombre de usuario, carga = ver ImageChunk)
+    public static final byte IMAGE = 0x08;
+
+    // Solicitud de parada del servidor
+    public static final byte STOP = 0x09;
+
+    // Aviso del servidor: un usuario ha entrado al chat (remitente = nombre del usuario). Si cambia de sala, la
+    // carga lleva el nombre de la sala
+    public static final byte PRESENCE_JOIN = 0x0A;
+
+    // Aviso del servidor: un usuario ha abandonado el chat (remitente = nombre del usuario). Si cambia de sala,
+    // la carga lleva el nombre de la sala que deja
+    public static final byte PRESENCE_LEAVE = 0x0B;
+
+    // Confirmacion de entrega (secuencia = ultima trama recibida en orden, carga = confirmaciones selectivas)
+    public static final byte ACK = 0x0C;
+
+    // El cliente entra en una sala y sale de la que estaba (remitente = nombre de usuario, carga = nombre de la sala)
+    public static final byte ROOM_JOIN = 0x0D;
+
+    // El cliente sale de su sala y vuelve a la sala general (remitente = nombre de usuario)
+    public static final byte ROOM_LEAVE = 0x0E;
+
+    // Respuesta del servidor: sala en la que esta ahora el cliente (carga = nombre de la sala)
+    public static final byte ROOM = 0x0F;
+
+    // Latido del cliente: sigue vivo aunque no escriba (remitente = nombre de usuario)
+    public static final byte HEARTBEAT = 0x10;
+
+    // El cliente pide mensajes anteriores de su sala (carga = modo y valor, vease FrameCodec.historyPayload)
+    public static final byte HISTORY = 0x11;
+
+    // Varias tramas del servidor para el mismo cliente en un solo datagrama (carga = las tramas seguidas,
+    // cada una completa con su cabecera). Solo a los clientes que lo aceptan en el saludo
+    public static final byte BATCH = 0x12;
+
+    // Latido entre servidores de una federacion (remitente = nombre del nodo, carga = encarnacion y
+    // generacion, vease el servidor). No llega nunca a los clientes
+    public static final byte PEER_HELLO = 0x13;
+
+    // Replica entre servidores: un usuario del nodo remitente esta en una sala (remitente = nombre del usuario,
+    // carga = nombre de la sala)
+    public static final byte PEER_JOIN = 0x14;
+
+    // Replica entre servidores: un usuario del nodo remitente ha abandonado el chat (remitente = nombre del usuario)
+    public static final byte PEER_LEAVE = 0x15;
+
+    // Linea de chat de un usuario del nodo remitente, una por nodo (remitente = nombre del usuario, carga =
+    // longitud del nombre de la sala, la sala y el texto)
+    public static final byte PEER_CHAT = 0x16;
+
+    // El cliente pide un nombre de usuario y entra al chat con el en un solo viaje (remitente = nombre
+    // solicitado). Si esta en uso, el servidor responde INVALID
+    public static final byte JOIN = 0x17;
+
+    // Respuesta del servidor a JOIN o RESUME: el cliente esta en el chat (remitente = nombre de usuario, carga =
+    // identificador y testigo de sesion, vease FrameCodec.joinedPayload)
+    public static final byte JOINED = 0x18;
+
+    // El cliente recupera su sesion desde otra direccion sin volver a validar el nombre (remitente = nombre de
+    // usuario, carga = testigo de JOINED). Si la sesion ya no existe, el servidor responde INVALID
+    public static final byte RESUME = 0x19;
+
+    private Opcode() {
+    }
+
+    /**
+     * Nombre legible de un código de operación, para los registros.
+     *
+     * @param opcode Código de operación.
+     * @return Nombre del código, o su valor hexadecimal si no es conocido.
+     */
+    public static String name(byte opcode) {
+        return switch (opcode) {
+            case HELLO -> "HELLO";
+            case VALIDATE -> "VALIDATE";
+            case VALID -> "VALID";
+            case INVALID -> "INVALID";
+            case INIT -> "INIT";
+            case DISCONNECT -> "DISCONNECT";
+            case CHAT -> "CHAT";
+            case IMAGE -> "IMAGE";
+            case STOP -> "STOP";
+            case PRESENCE_JOIN -> "PRESENCE_JOIN";
+            case PRESENCE_LEAVE -> "PRESENCE_LEAVE";
+            case ACK -> "ACK";
+            case ROOM_JOIN -> "ROOM_JOIN";
+            case ROOM_LEAVE -> "ROOM_LEAVE";
+            case ROOM -> "ROOM";
+            case HEARTBEAT -> "HEARTBEAT";
+            case HISTORY -> "HISTORY";
+            case BATCH -> "BATCH";
+            case PEER_HELLO -> "PEER_HELLO";
+            case PEER_JOIN -> "PEER_JOIN";
+            case PEER_LEAVE -> "PEER_LEAVE";
+            case PEER_CHAT -> "PEER_CHAT";
+            case JOIN -> "JOIN";
+            case JOINED -> "JOINED";
+            case RESUME -> "RESUME";
+            default -> String.format("0x%02X", opcode);
+        };
+    }
+
+    /**
+     * Clase de entrega de cada código de operación. Los mensajes de control y las líneas de chat se
+     * envían con entrega fiable y ordenada; los avisos de presencia, el saludo y las propias
+     * confirmaciones se envían sin garantías, porque perder uno no deja al cliente en un estado incorrecto.
+     *
+     * Los fragmentos de imagen tampoco son fiables: una imagen son miles de datagramas que desbordarían
+     * la ventana de reenvíos, así que se controlan por transferencia y una imagen incompleta caduca.
+     *
+     * Entre los servidores de una federación, la réplica de los usuarios y las líneas de chat van por un
+     * enlace fiable con cada nodo; sus latidos no.
+     *
+     * @param opcode Código de operación.
+     * @return true si las tramas con este código deben enviarse con entrega fiable.
+     */
+    public static boolean isReliable(byte opcode) {
+        return switch (opcode) {
+            case VALIDATE, VALID, INVALID, INIT, DISCONNECT, CHAT, STOP, ROOM_JOIN, ROOM_LEAVE, ROOM, HISTORY,
+                 PEER_JOIN, PEER_LEAVE, PEER_CHAT, JOIN, JOINED, RESUME -> true;
+            default -> false;
+        };
+    }
+}
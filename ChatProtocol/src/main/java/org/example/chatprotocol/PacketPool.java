@@ -0,0 +1,140 @@
+package org.example.chatprotocol;
+
+import java.net.DatagramPacket;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Reserva de paquetes de recepción que comparten el cliente y el servidor. Cada paquete lleva un buffer
+ * del tamaño máximo de datagrama acordado en el saludo, de modo que ningún mensaje se trunca y, una vez
+ * que la reserva se ha llenado, recibir no crea ningún objeto.
+ *
+ * Los paquetes se guardan en una cola circular sin bloqueos con un número de secuencia por casilla:
+ * varios hilos pueden tomar y devolver paquetes a la vez con un único compare-and-set. Si la reserva está
+ * vacía se crea un paquete nuevo (y se cuenta como fallo); si está llena, el paquete devuelto se descarta.
+ *
+ * @author Alejandro Ramírez
+ */
+public final class PacketPool {
+
+    // Paquetes que se guardan por defecto
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final int bufferSize;
+
+    private final int mask;
+
+    private final AtomicReferenceArray<DatagramPacket> packets;
+
+    // Secuencia de cada casilla: posicion si esta libre para devolver, posicion + 1 si tiene un paquete
+    private final AtomicLongArray sequences;
+
+    // Siguiente posicion de la que se toma y en la que se devuelve un paquete
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // Paquetes creados porque la reserva estaba vacia
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructor de la clase PacketPool con la capacidad por defecto.
+     *
+     * @param bufferSize Tamaño del buffer de cada paquete: el máximo de datagrama acordado.
+     */
+    public PacketPool(int bufferSize) {
+        this(bufferSize, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor de la clase PacketPool. Los paquetes se crean a medida que se necesitan.
+     *
+     * @param bufferSize Tamaño del buffer de cada paquete: el máximo de datagrama acordado.
+     * @param capacity Paquetes que se guardan como máximo, potencia de dos.
+     */
+    public PacketPool(int bufferSize, int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("La capacidad debe ser una potencia de dos: " + capacity);
+        }
+        this.bufferSize = bufferSize;
+        this.mask = capacity - 1;
+        this.packets = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Toma un paquete de la reserva, listo para recibir un datagrama completo.
+     *
+     * @return Un paquete con su longitud restablecida al tamaño del buffer.
+     */
+    public DatagramPacket acquire() {
+        long position = head.get();
+        while (true) {
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    DatagramPacket packet = packets.get(slot);
+                    packets.set(slot, null);
+                    sequences.set(slot, position + mask + 1);
+                    packet.setLength(bufferSize);
+                    return packet;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                // La reserva esta vacia
+                misses.incrementAndGet();
+                return new DatagramPacket(new byte[bufferSize], bufferSize);
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * Devuelve un paquete a la reserva. Quien lo devuelve no debe volver a usarlo.
+     *
+     * @param packet Paquete tomado con {@link #acquire()}.
+     */
+    public void release(DatagramPacket packet) {
+        // Los paquetes de otro tamaño (de una reserva anterior al saludo) no se guardan
+        if (packet.getData().length != bufferSize || packet.getOffset() != 0) {
+            return;
+        }
+
+        long position = tail.get();
+        while (true) {
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    packets.set(slot, packet);
+                    sequences.set(slot, position + 1);
+                    return;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // La reserva esta llena: el paquete se deja para el recolector
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Número de paquetes creados porque la reserva estaba vacía. En régimen estable no debería crecer.
+     *
+     * @return Paquetes creados desde el arranque.
+     */
+    public long misses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,175 @@
+package org.example.chatprotocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresión de la carga de las tramas con un diccionario compartido. Una línea de chat son unas decenas de
+ * bytes: comprimida sola, Deflate no tiene de dónde sacar repeticiones y apenas gana nada. Con un
+ * diccionario de frases y palabras habituales del chat, que el cliente y el servidor conocen de antemano,
+ * las repeticiones se buscan también en él y las líneas normales se quedan en algo más de la mitad.
+ *
+ * Las tramas comprimidas llevan el indicador {@link FrameCodec#FLAG_COMPRESSED} y su carga es el flujo
+ * Deflate sin cabecera ni suma de comprobación (eso ya lo cubre UDP), empezado con {@link #DICTIONARY}.
+ * Solo se envían a quien ha aceptado {@link FrameCodec#FEATURE_COMPRESS} en el saludo. Las cargas de menos
+ * de {@link #MIN_LENGTH} bytes, y las que no se reducen, se envían tal cual: con ellas la compresión cuesta
+ * más de lo que ahorra.
+ *
+ * El diccionario forma parte del protocolo: si se cambia, el cliente y el servidor dejan de entenderse, así
+ * que un diccionario nuevo necesita su propia funcionalidad en el saludo.
+ *
+ * Reutiliza el mismo compresor y los mismos buffers para todas las tramas. No es seguro entre hilos: cada
+ * hilo que comprime debe tener el suyo.
+ *
+ * @author Alejandro Ramírez
+ */
+public final class PayloadCompressor {
+
+    // Cargas mas cortas que esto se envian sin comprimir
+    public static final int MIN_LENGTH = 32;
+
+    // Nivel de compresion. Con cargas tan cortas casi todo el tiempo se va en reiniciar el compresor y cargar el
+    // diccionario, que no depende del nivel, asi que se usa el nivel por defecto
+    static final int LEVEL = 6;
+
+    /**
+     * Diccionario compartido. Deflate prefiere las coincidencias cercanas, así que lo más habitual va al final.
+     */
+    static final byte[] DICTIONARY = (
+            "imagen foto enviar recibir archivo servidor cliente conectado desconectado usuario nombre "
+                    + "ha entrado en la sala ha abandonado la sala ha entrado al chat! ha abandonado el chat! "
+                    + "buenos días buenas tardes buenas noches hasta luego hasta mañana nos vemos un saludo "
+                    + "muchas gracias de nada perdona lo siento no pasa nada claro que sí por supuesto "
+                    + "estoy de acuerdo no estoy seguro creo que no lo sé ni idea me parece bien "
+                    + "alguien sabe cómo se hace esto? alguien está por aquí? qué hora es? "
+                    + "ahora mismo dentro de un rato esta tarde esta noche el fin de semana la semana que viene "
+                    + "ya lo he visto lo miro y te digo luego te cuento vale, perfecto genial "
+                    + "qué tal estáis? cómo estás? qué tal todo? qué haces? dónde estás? "
+                    + "porque también pero entonces además todavía siempre nunca mucho poco nada todo "
+                    + "tengo que hacer tienes que ver hay que estar está estoy estamos están es son "
+                    + "bien mal mejor peor bueno pues vale sí no jajaja jajajaja jeje xd :) :( :D ;) "
+                    + "hola a todos! hola, qué tal? ").getBytes(StandardCharsets.UTF_8);
+
+    private final Deflater deflater = new Deflater(LEVEL, true);
+
+    private final Inflater inflater = new Inflater(true);
+
+    // Carga comprimida o descomprimida de la ultima trama
+    private final byte[] buffer = new byte[FrameCodec.MAX_PAYLOAD_LENGTH];
+
+    /**
+     * Comprime una carga en un array existente.
+     *
+     * @param src Array que contiene la carga.
+     * @param offset Posición del primer byte de la carga.
+     * @param length Número de bytes de la carga.
+     * @param dst Array de destino.
+     * @param dstOffset Posición de dst en la que se escribe.
+     * @return Bytes escritos, o -1 si la carga es demasiado corta o no se reduce.
+     */
+    public int compress(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        if (length < MIN_LENGTH) {
+            return -1;
+        }
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(src, offset, length);
+        deflater.finish();
+
+        // Si no cabe en menos bytes que la carga original no compensa
+        int limit = Math.min(length - 1, dst.length - dstOffset);
+        int written = deflater.deflate(dst, dstOffset, limit);
+        return deflater.finished() ? written : -1;
+    }
+
+    /**
+     * Descomprime una carga en un array existente.
+     *
+     * @param src Array que contiene la carga comprimida.
+     * @param offset Posición del primer byte de la carga.
+     * @param length Número de bytes de la carga.
+     * @param dst Array de destino.
+     * @param dstOffset Posición de dst en la que se escribe.
+     * @return Bytes escritos, o -1 si la carga no es válida o no cabe en dst.
+     */
+    public int inflate(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(src, offset, length);
+        try {
+            int written = inflater.inflate(dst, dstOffset, dst.length - dstOffset);
+            return inflater.finished() ? written : -1;
+        } catch (DataFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Descomprime la carga de una trama en el buffer del compresor, sin reservar memoria.
+     *
+     * @param frame Trama con la carga comprimida.
+     * @return Bytes de la carga descomprimida, que empieza en la posición 0 de {@link #buffer()}, o -1 si no
+     *         es válida.
+     */
+    public int inflate(Frame frame) {
+        return inflate(frame.buffer(), frame.payloadOffset(), frame.payloadLength(), buffer, 0);
+    }
+
+    /**
+     * Buffer del compresor. Su contenido solo es válido hasta la siguiente llamada.
+     *
+     * @return El buffer donde {@link #inflate(Frame)} deja la carga.
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * Codifica una trama con la carga comprimida, si compensa.
+     *
+     * @param opcode Código de operación.
+     * @param flags Flags de la trama, sin {@link FrameCodec#FLAG_COMPRESSED}.
+     * @param sequence Número de secuencia.
+     * @param sender Remitente codificado en UTF-8.
+     * @param payload Array que contiene la carga.
+     * @param payloadOffset Posición del primer byte de la carga.
+     * @param payloadLength Número de bytes de la carga.
+     * @return La trama codificada con la carga comprimida, o null si no compensa comprimirla.
+     */
+    public byte[] encode(byte opcode, byte flags, int sequence, byte[] sender, byte[] payload, int payloadOffset,
+                         int payloadLength) {
+        int compressed = compress(payload, payloadOffset, payloadLength, buffer, 0);
+        if (compressed < 0) {
+            return null;
+        }
+        return FrameCodec.encode(opcode, (byte) (flags | FrameCodec.FLAG_COMPRESSED), sequence, sender, buffer, 0,
+                compressed);
+    }
+
+    /**
+     * Escribe una copia de una trama comprimida con la carga ya descomprimida y sin el indicador
+     * {@link FrameCodec#FLAG_COMPRESSED}, para procesarla como cualquier otra.
+     *
+     * @param frame Trama con la carga comprimida.
+     * @param dst Array de destino, con sitio para la trama completa.
+     * @return Bytes escritos, o -1 si la carga no es válida o la trama no cabe en dst.
+     */
+    public int expand(Frame frame, byte[] dst) {
+        int length = inflate(frame);
+        int senderLength = frame.senderLength();
+        if (length < 0 || FrameCodec.encodedLength(senderLength, length) > dst.length) {
+            return -1;
+        }
+
+        // La cabecera y el remitente se copian tal cual; solo cambian el indicador y la carga
+        int header = FrameCodec.encodedLength(senderLength, 0) - 2;
+        System.arraycopy(frame.buffer(), frame.offset(), dst, 0, header);
+        dst[FrameCodec.FLAGS_OFFSET] &= (byte) ~FrameCodec.FLAG_COMPRESSED;
+        dst[header] = (byte) (length >>> 8);
+        dst[header + 1] = (byte) length;
+        System.arraycopy(buffer, 0, dst, header + 2, length);
+        return header + 2 + length;
+    }
+}
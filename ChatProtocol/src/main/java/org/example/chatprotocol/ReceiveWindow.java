@@ -0,0 +1,148 @@
+package org.example.chatprotocol;
+
+/**
+ * Ventana de recepción de un enlace fiable. Descarta las tramas duplicadas y guarda las que llegan
+ * adelantadas hasta que llegan las que faltan, de modo que quien recibe las procesa exactamente una vez
+ * y en el orden en que se enviaron.
+ *
+ * Las tramas adelantadas se copian, porque el buffer de recepción se reutiliza para el siguiente
+ * datagrama. Solo se guardan las {@link #SIZE} secuencias siguientes a la última recibida en orden; las
+ * que llegan más adelantadas se descartan y el emisor las reenviará.
+ *
+ * No es segura entre hilos: la usa solo el hilo que procesa los mensajes del otro extremo.
+ *
+ * @author Alejandro Ramírez
+ */
+public final class ReceiveWindow {
+
+    // Numero de secuencias que se pueden guardar por delante de la esperada. Coincide con los bits de un ACK
+    public static final int SIZE = 64;
+
+    private static final int MASK = SIZE - 1;
+
+    /**
+     * Resultado de recibir una trama.
+     */
+    public enum Verdict {
+        // Es la trama esperada: debe procesarse y a continuacion las guardadas con poll()
+        DELIVER,
+        // Ya se habia recibido
+        DUPLICATE,
+        // Ha llegado adelantada y se ha guardado
+        BUFFERED,
+        // Ha llegado demasiado adelantada y se ha descartado
+        REJECTED
+    }
+
+    // Copias de las tramas adelantadas, en la casilla de su secuencia
+    private final byte[][] buffered = new byte[SIZE][];
+
+    // Siguiente secuencia que se espera recibir. Las secuencias empiezan en 1
+    private int expected = 1;
+
+    private final ReliabilityStats stats;
+
+    /**
+     * Constructor de la clase ReceiveWindow.
+     *
+     * @param stats Contadores donde se anotan los duplicados y las tramas desordenadas.
+     */
+    public ReceiveWindow(ReliabilityStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Clasifica una trama fiable recibida.
+     *
+     * @param frame Trama recibida.
+     * @return Qué debe hacer quien recibe con la trama.
+     */
+    public Verdict accept(Frame frame) {
+        int distance = frame.sequence() - expected;
+        if (distance < 0) {
+            stats.recordDuplicate();
+            return Verdict.DUPLICATE;
+        }
+        if (distance == 0) {
+            expected++;
+            return Verdict.DELIVER;
+        }
+        if (distance >= SIZE) {
+            stats.recordRejected();
+            return Verdict.REJECTED;
+        }
+
+        int slot = frame.sequence() & MASK;
+        if (buffered[slot] != null) {
+            stats.recordDuplicate();
+            return Verdict.DUPLICATE;
+        }
+        byte[] copy = new byte[frame.length()];
+        System.arraycopy(frame.buffer(), frame.offset(), copy, 0, copy.length);
+        buffered[slot] = copy;
+        stats.recordReordered();
+        return Verdict.BUFFERED;
+    }
+
+    /**
+     * Saca la siguiente trama guardada si ya es la esperada.
+     *
+     * @param frame Lector que se asocia con la trama guardada.
+     * @return true si había una trama en orden; false si falta alguna anterior.
+     */
+    public boolean poll(Frame frame) {
+        int slot = expected & MASK;
+        byte[] next = buffered[slot];
+        if (next == null) {
+            return false;
+        }
+        buffered[slot] = null;
+        expected++;
+        return frame.wrap(next, 0, next.length);
+    }
+
+    /**
+     * Última secuencia recibida en orden.
+     *
+     * @return La secuencia, o 0 si aún no se ha recibido ninguna.
+     */
+    public int cumulative() {
+        return expected - 1;
+    }
+
+    /**
+     * Confirmaciones selectivas de las tramas guardadas: el bit i indica que se ha recibido la secuencia
+     * {@code cumulative() + 1 + i}.
+     *
+     * @return La máscara de confirmaciones selectivas.
+     */
+    public long selectiveMask() {
+        long mask = 0;
+        for (int i = 1; i < SIZE; i++) {
+            if (buffered[(expected + i) & MASK] != null) {
+                mask |= 1L << i;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Codifica la confirmación del estado actual de la ventana.
+     *
+     * @return Trama ACK lista para enviarse.
+     */
+    public byte[] ack() {
+        return FrameCodec.encodeAck(cumulative(), selectiveMask());
+    }
+
+    /**
+     * Codifica la confirmación del estado actual de la ventana en un array existente.
+     *
+     * @param dst Array de destino, con al menos {@link FrameCodec#ACK_FRAME_LENGTH} bytes desde offset.
+     * @param offset Posición de dst en la que empieza la trama.
+     * @return Número de bytes escritos.
+     */
+    public int ack(byte[] dst, int offset) {
+        return FrameCodec.encodeAck(dst, offset, cumulative(), selectiveMask());
+    }
+}
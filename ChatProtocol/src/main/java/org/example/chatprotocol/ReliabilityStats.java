@@ -0,0 +1,105 @@
+package org.example.chatprotocol;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contadores de la capa de entrega fiable. Un mismo objeto puede compartirse entre todos los enlaces de
+ * un servidor; los contadores admiten escrituras concurrentes sin bloqueos.
+ *
+ * @author Alejandro Ramírez
+ */
+public final class ReliabilityStats {
+
+    // Tramas reenviadas porque no llego su confirmacion a tiempo
+    private final LongAdder retransmits = new LongAdder();
+
+    // Tramas que se dejaron de reenviar tras agotar los intentos
+    private final LongAdder abandoned = new LongAdder();
+
+    // Tramas recibidas por duplicado y descartadas
+    private final LongAdder duplicates = new LongAdder();
+
+    // Tramas recibidas fuera de orden y guardadas hasta que llegan las anteriores
+    private final LongAdder reordered = new LongAdder();
+
+    // Tramas recibidas demasiado adelantadas para guardarlas
+    private final LongAdder rejected = new LongAdder();
+
+    // Muestras de tiempo de ida y vuelta, en microsegundos
+    private final LongAdder rttSamples = new LongAdder();
+    private final LongAdder rttTotalMicros = new LongAdder();
+    private final LongAccumulator rttMaxMicros = new LongAccumulator(Math::max, 0);
+
+    void recordRetransmit() {
+        retransmits.increment();
+    }
+
+    void recordAbandoned() {
+        abandoned.increment();
+    }
+
+    void recordDuplicate() {
+        duplicates.increment();
+    }
+
+    void recordReordered() {
+        reordered.increment();
+    }
+
+    void recordRejected() {
+        rejected.increment();
+    }
+
+    void recordRtt(long micros) {
+        rttSamples.increment();
+        rttTotalMicros.add(micros);
+        rttMaxMicros.accumulate(micros);
+    }
+
+    public long retransmits() {
+        return retransmits.sum();
+    }
+
+    public long abandoned() {
+        return abandoned.sum();
+    }
+
+    public long duplicates() {
+        return duplicates.sum();
+    }
+
+    public long reordered() {
+        return reordered.sum();
+    }
+
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    public long rttSamples() {
+        return rttSamples.sum();
+    }
+
+    /**
+     * Tiempo medio de ida y vuelta de las tramas confirmadas sin retransmisión.
+     *
+     * @return Media en microsegundos, o 0 si aún no hay muestras.
+     */
+    public long averageRttMicros() {
+        long samples = rttSamples.sum();
+        return samples == 0 ? 0 : rttTotalMicros.sum() / samples;
+    }
+
+    public long maxRttMicros() {
+        return rttMaxMicros.get();
+    }
+
+    @Override
+    public String toString() {
+        return "retransmisiones=" + retransmits() + ", abandonadas=" + abandoned()
+                + ", duplicadas=" + duplicates() + ", desordenadas=" + reordered()
+                + ", rechazadas=" + rejected()
+                + ", rtt medio=" + averageRttMicros() + "us, rtt max=" + maxRttMicros() + "us";
+    }
+}
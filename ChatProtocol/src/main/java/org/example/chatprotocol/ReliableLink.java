@@ -0,0 +1,43 @@
+package org.example.chatprotocol;
+
+/**
+ * Enlace fiable con el otro extremo de la comunicación: reúne el lado emisor ({@link ReliableSender})
+ * y el receptor ({@link ReceiveWindow}). El servidor tiene un enlace por cada cliente que lo ha
+ * negociado en el saludo, y el cliente uno con el servidor.
+ *
+ * @param <T> Tipo del mensaje que el emisor guarda para reenviarlo.
+ * @author Alejandro Ramírez
+ */
+public final class ReliableLink<T> {
+
+    private final ReliableSender<T> sender;
+
+    private final ReceiveWindow window;
+
+    /**
+     * Constructor de la clase ReliableLink.
+     *
+     * @param timers Rueda donde se programan los reenvíos.
+     * @param transmitter Operaciones de envío de quien usa el enlace.
+     * @param stats Contadores del enlace. Pueden compartirse entre varios enlaces.
+     */
+    public ReliableLink(TimerWheel timers, ReliableSender.Transmitter<T> transmitter, ReliabilityStats stats) {
+        this.sender = new ReliableSender<>(timers, transmitter, stats);
+        this.window = new ReceiveWindow(stats);
+    }
+
+    public ReliableSender<T> sender() {
+        return sender;
+    }
+
+    public ReceiveWindow window() {
+        return window;
+    }
+
+    /**
+     * Cancela los reenvíos pendientes.
+     */
+    public void close() {
+        sender.close();
+    }
+}
@@ -0,0 +1,279 @@
+package org.example.chatprotocol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lado emisor de un enlace fiable. Numera las tramas que se envían a un destinatario, las guarda hasta
+ * que llega su confirmación y las reenvía si la confirmación no llega a tiempo.
+ *
+ * El plazo de reenvío se calcula a partir del tiempo de ida y vuelta medido (RFC 6298): se mantiene una
+ * media suavizada y su variación, y cada reenvío duplica el plazo. Solo se toman muestras de las tramas
+ * confirmadas sin reenvío, porque de las reenviadas no se sabe a qué envío corresponde la confirmación.
+ *
+ * Lo que se guarda es el mensaje tal como lo entrega quien llama (por ejemplo, una trama compartida por
+ * todos los destinatarios de un reenvío); el número de secuencia se escribe en el momento de enviarlo.
+ *
+ * @param <T> Tipo del mensaje que se guarda para reenviarlo.
+ * @author Alejandro Ramírez
+ */
+public final class ReliableSender<T> {
+
+    // Tramas sin confirmar que se pueden guardar. Si se supera, la mas antigua se da por perdida
+    public static final int CAPACITY = 1024;
+
+    // Plazo de reenvio inicial y sus limites, en milisegundos
+    public static final long INITIAL_RTO_MILLIS = 200;
+    public static final long MIN_RTO_MILLIS = 20;
+    public static final long MAX_RTO_MILLIS = 2000;
+
+    // Reenvios de una trama antes de darla por perdida
+    public static final int MAX_RETRANSMITS = 8;
+
+    private static final int MASK = CAPACITY - 1;
+
+    /**
+     * Operaciones que el enlace necesita de quien lo usa para enviar.
+     *
+     * @param <T> Tipo del mensaje.
+     */
+    public interface Transmitter<T> {
+
+        /**
+         * Reenvía un mensaje con su número de secuencia. Se llama desde el hilo de la rueda de temporizadores.
+         *
+         * @param message Mensaje guardado.
+         * @param sequence Número de secuencia que debe llevar.
+         */
+        void retransmit(T message, int sequence);
+
+        /**
+         * Avisa de que un mensaje no se ha confirmado tras agotar los reenvíos.
+         *
+         * @param message Mensaje perdido.
+         * @param sequence Número de secuencia que llevaba.
+         */
+        void abandon(T message, int sequence);
+    }
+
+    private final TimerWheel timers;
+
+    private final Transmitter<T> transmitter;
+
+    private final ReliabilityStats stats;
+
+    // Tramas sin confirmar, en la casilla de su secuencia
+    @SuppressWarnings("unchecked")
+    private final Pending<T>[] pending = (Pending<T>[]) new Pending<?>[CAPACITY];
+
+    // Siguiente secuencia que se asignara y la mas antigua que puede seguir sin confirmar
+    private int nextSequence = 1;
+    private int oldest = 1;
+
+    // Tiempo de ida y vuelta suavizado, su variacion y el plazo de reenvio, en microsegundos
+    private long smoothedRtt;
+    private long rttVariation;
+    private long rto = TimeUnit.MILLISECONDS.toMicros(INITIAL_RTO_MILLIS);
+
+    private boolean closed;
+
+    /**
+     * Constructor de la clase ReliableSender.
+     *
+     * @param timers Rueda donde se programan los reenvíos.
+     * @param transmitter Operaciones de envío de quien usa el enlace.
+     * @param stats Contadores donde se anotan los reenvíos y las muestras de tiempo de ida y vuelta.
+     */
+    public ReliableSender(TimerWheel timers, Transmitter<T> transmitter, ReliabilityStats stats) {
+        this.timers = timers;
+        this.transmitter = transmitter;
+        this.stats = stats;
+    }
+
+    /**
+     * Asigna un número de secuencia a un mensaje y programa su reenvío. Quien llama debe hacer el primer
+     * envío con la secuencia devuelta.
+     *
+     * @param message Mensaje a enviar.
+     * @return Número de secuencia asignado.
+     */
+    public int register(T message) {
+        Pending<T> evicted;
+        int sequence;
+        synchronized (this) {
+            sequence = nextSequence++;
+            int slot = sequence & MASK;
+
+            // Si la casilla sigue ocupada, el destinatario lleva CAPACITY tramas sin confirmar
+            evicted = pending[slot];
+            if (evicted != null) {
+                evicted.cancel();
+                oldest = evicted.sequence + 1;
+            }
+
+            Pending<T> entry = new Pending<>(message, sequence, System.nanoTime());
+            pending[slot] = entry;
+            if (!closed) {
+                entry.timeout = timers.schedule(() -> expire(entry), TimeUnit.MICROSECONDS.toMillis(rto));
+            }
+        }
+        if (evicted != null) {
+            stats.recordAbandoned();
+            transmitter.abandon(evicted.message, evicted.sequence);
+        }
+        return sequence;
+    }
+
+    /**
+     * Procesa una confirmación recibida.
+     *
+     * @param cumulative Última secuencia que el destinatario ha recibido en orden.
+     * @param mask Confirmaciones selectivas de las secuencias posteriores.
+     */
+    public synchronized void acknowledge(int cumulative, long mask) {
+        long now = System.nanoTime();
+
+        // Una confirmacion de secuencias que aun no se han enviado no es valida
+        int last = Math.min(cumulative, nextSequence - 1);
+        for (int sequence = oldest; sequence - last <= 0; sequence++) {
+            complete(sequence, now);
+        }
+        if (last - oldest >= 0) {
+            oldest = last + 1;
+        }
+
+        for (int i = 1; mask != 0 && i < Long.SIZE; i++) {
+            if ((mask & (1L << i)) != 0) {
+                complete(cumulative + 1 + i, now);
+            }
+        }
+    }
+
+    /**
+     * Número de tramas enviadas pendientes de confirmar.
+     *
+     * @return Tramas en vuelo.
+     */
+    public synchronized int inFlight() {
+        int count = 0;
+        for (Pending<T> entry : pending) {
+            if (entry != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Tiempo de ida y vuelta suavizado del enlace.
+     *
+     * @return Tiempo en microsegundos, o 0 si aún no hay muestras.
+     */
+    public synchronized long smoothedRttMicros() {
+        return smoothedRtt;
+    }
+
+    /**
+     * Cancela todos los reenvíos pendientes. Se llama cuando el otro extremo abandona el chat.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (int i = 0; i < CAPACITY; i++) {
+            if (pending[i] != null) {
+                pending[i].cancel();
+                pending[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Marca una secuencia como confirmada.
+     */
+    private void complete(int sequence, long now) {
+        int slot = sequence & MASK;
+        Pending<T> entry = pending[slot];
+        if (entry == null || entry.sequence != sequence) {
+            return;
+        }
+        pending[slot] = null;
+        entry.cancel();
+        if (entry.attempts == 0) {
+            sampleRtt(TimeUnit.NANOSECONDS.toMicros(now - entry.sentAt));
+        }
+    }
+
+    /**
+     * Actualiza el plazo de reenvío con una nueva muestra (RFC 6298).
+     */
+    private void sampleRtt(long rtt) {
+        stats.recordRtt(rtt);
+        if (smoothedRtt == 0) {
+            smoothedRtt = rtt;
+            rttVariation = rtt / 2;
+        } else {
+            rttVariation = (3 * rttVariation + Math.abs(smoothedRtt - rtt)) / 4;
+            smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+        }
+        long min = TimeUnit.MILLISECONDS.toMicros(MIN_RTO_MILLIS);
+        long max = TimeUnit.MILLISECONDS.toMicros(MAX_RTO_MILLIS);
+        rto = Math.max(min, Math.min(smoothedRtt + 4 * rttVariation, max));
+    }
+
+    /**
+     * Vence el plazo de una trama: se reenvía o, si ya se ha reenviado demasiadas veces, se da por perdida.
+     */
+    private void expire(Pending<T> entry) {
+        boolean abandon;
+        synchronized (this) {
+            int slot = entry.sequence & MASK;
+            if (closed || pending[slot] != entry) {
+                return;
+            }
+            abandon = entry.attempts >= MAX_RETRANSMITS;
+            if (abandon) {
+                pending[slot] = null;
+            } else {
+                entry.attempts++;
+                long backoff = Math.min(TimeUnit.MICROSECONDS.toMillis(rto) << entry.attempts, MAX_RTO_MILLIS);
+                entry.timeout = timers.schedule(() -> expire(entry), backoff);
+            }
+        }
+
+        // El envio se hace fuera del bloqueo para no frenar las confirmaciones
+        if (abandon) {
+            stats.recordAbandoned();
+            transmitter.abandon(entry.message, entry.sequence);
+        } else {
+            stats.recordRetransmit();
+            transmitter.retransmit(entry.message, entry.sequence);
+        }
+    }
+
+    /**
+     * Trama enviada pendiente de confirmar.
+     */
+    private static final class Pending<T> {
+
+        private final T message;
+        private final int sequence;
+
+        // Momento del primer envio, para medir el tiempo de ida y vuelta
+        private final long sentAt;
+
+        // Reenvios realizados
+        private int attempts;
+
+        private TimerWheel.Timeout timeout;
+
+        private Pending(T message, int sequence, long sentAt) {
+            this.message = message;
+            this.sequence = sequence;
+            this.sentAt = sentAt;
+        }
+
+        private void cancel() {
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+    }
+}
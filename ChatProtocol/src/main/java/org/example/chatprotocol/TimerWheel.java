@@ -0,0 +1,201 @@
+package org.example.chatprotocol;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Rueda de temporizadores (hashed timing wheel). Sirve para programar muchos plazos cortos, como las
+ * retransmisiones de cada mensaje pendiente de confirmar, sin crear un hilo ni una tarea de un
+ * ScheduledExecutorService por plazo.
+ *
+ * La rueda tiene un número fijo de casillas y avanza una casilla por tick. Programar y cancelar un plazo
+ * cuesta O(1): los plazos nuevos se dejan en una cola sin bloqueos y el hilo de la rueda los coloca en su
+ * casilla en el siguiente tick; los cancelados solo se marcan y se descartan cuando la rueda pasa por su
+ * casilla. La precisión es la de un tick, suficiente para plazos de decenas de milisegundos.
+ *
+ * Las tareas se ejecutan en el hilo de la rueda, por lo que deben ser breves.
+ *
+ * @author Alejandro Ramírez
+ */
+public final class TimerWheel implements AutoCloseable {
+
+    // Duracion de un tick en nanosegundos
+    private final long tickNanos;
+
+    // Casillas de la rueda. Cada una es una lista enlazada de plazos
+    private final Timeout[] wheel;
+
+    // Mascara para calcular la casilla de un tick. El numero de casillas es potencia de dos
+    private final int mask;
+
+    // Plazos programados que el hilo de la rueda aun no ha colocado en su casilla
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    // Momento en el que arranco la rueda; los plazos se miden en ticks desde aqui
+    private final long startTime;
+
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    // Tick que esta procesando la rueda. Solo lo usa el hilo de la rueda
+    private long currentTick;
+
+    /**
+     * Constructor de la clase TimerWheel. Arranca el hilo de la rueda.
+     *
+     * @param name Nombre del hilo.
+     * @param tickMillis Duración de un tick en milisegundos.
+     * @param slots Número de casillas. Se redondea a la siguiente potencia de dos.
+     */
+    public TimerWheel(String name, long tickMillis, int slots) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(Math.max(slots, 2) - 1) << 1;
+        this.wheel = new Timeout[size];
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Programa una tarea.
+     *
+     * @param task Tarea que se ejecuta cuando vence el plazo.
+     * @param delayMillis Plazo en milisegundos.
+     * @return El plazo, que se puede cancelar.
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        Timeout timeout = new Timeout(task, deadline);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Detiene el hilo de la rueda. Los plazos pendientes no se ejecutan.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Bucle del hilo de la rueda: espera al siguiente tick, coloca los plazos nuevos y ejecuta los vencidos.
+     */
+    private void run() {
+        while (running) {
+            long tickEnd = (currentTick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime() - startTime) < tickEnd && running) {
+                LockSupport.parkNanos(this, tickEnd - now);
+            }
+            transferPending();
+            expire(wheel[(int) (currentTick & mask)], now);
+            currentTick++;
+        }
+    }
+
+    /**
+     * Coloca en su casilla los plazos programados desde el último tick.
+     */
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // Un plazo que ya ha vencido se coloca en la casilla actual para ejecutarse en este tick
+            long tick = Math.max(timeout.deadline / tickNanos, currentTick);
+            timeout.rounds = (tick - currentTick) / wheel.length;
+            int slot = (int) (tick & mask);
+
+            timeout.next = wheel[slot];
+            if (timeout.next != null) {
+                timeout.next.previous = timeout;
+            }
+            wheel[slot] = timeout;
+        }
+    }
+
+    /**
+     * Recorre una casilla: descarta los plazos cancelados, ejecuta los vencidos y al resto les resta una vuelta.
+     */
+    private void expire(Timeout head, long now) {
+        Timeout timeout = head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.cancelled) {
+                remove(timeout);
+            } else if (timeout.rounds <= 0 && timeout.deadline <= now) {
+                remove(timeout);
+                runTask(timeout.task);
+            } else {
+                timeout.rounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    private void remove(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            wheel[(int) (currentTick & mask)] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.next = null;
+        timeout.previous = null;
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            // Una tarea que falla no debe detener la rueda
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+
+    /**
+     * Plazo programado en la rueda.
+     */
+    public static final class Timeout {
+
+        private final Runnable task;
+
+        // Momento de vencimiento en nanosegundos desde el arranque de la rueda
+        private final long deadline;
+
+        // Vueltas completas de la rueda que faltan para el vencimiento
+        private long rounds;
+
+        // Enlaces de la lista de la casilla. Solo los usa el hilo de la rueda
+        private Timeout next;
+        private Timeout previous;
+
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancela el plazo. Si la tarea ya se está ejecutando, no se interrumpe.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
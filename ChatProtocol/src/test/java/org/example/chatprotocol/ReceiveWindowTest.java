@@ -0,0 +1,95 @@
+package org.example.chatprotocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Pruebas de la ventana de recepción: entrega en orden, duplicados, tramas adelantadas y la confirmación
+ * acumulada y selectiva que resulta de ellas.
+ *
+ * @author Alejandro Ramírez
+ */
+class ReceiveWindowTest {
+
+    private final ReliabilityStats stats = new ReliabilityStats();
+
+    private final ReceiveWindow window = new ReceiveWindow(stats);
+
+    @Test
+    void deliversInOrderAndAdvancesTheCumulativeAck() {
+        assertEquals(0, window.cumulative());
+        for (int sequence = 1; sequence <= 3; sequence++) {
+            assertEquals(ReceiveWindow.Verdict.DELIVER, window.accept(frame(sequence)));
+        }
+        assertEquals(3, window.cumulative());
+        assertEquals(0, window.selectiveMask());
+    }
+
+    @Test
+    void dropsDuplicatesBeforeAndAfterTheCumulativeAck() {
+        window.accept(frame(1));
+        window.accept(frame(3));
+
+        assertEquals(ReceiveWindow.Verdict.DUPLICATE, window.accept(frame(1)));
+        assertEquals(ReceiveWindow.Verdict.DUPLICATE, window.accept(frame(3)));
+        assertEquals(2, stats.duplicates());
+    }
+
+    @Test
+    void buffersReorderedFramesUntilTheGapIsFilled() {
+        assertEquals(ReceiveWindow.Verdict.BUFFERED, window.accept(frame(3)));
+        assertEquals(ReceiveWindow.Verdict.BUFFERED, window.accept(frame(2)));
+        assertEquals(0, window.cumulative());
+        assertEquals(2, stats.reordered());
+
+        Frame next = new Frame();
+        assertFalse(window.poll(next));
+        assertEquals(ReceiveWindow.Verdict.DELIVER, window.accept(frame(1)));
+        assertTrue(window.poll(next));
+        assertEquals(2, next.sequence());
+        assertEquals("línea 2", next.text());
+        assertTrue(window.poll(next));
+        assertEquals(3, next.sequence());
+        assertFalse(window.poll(next));
+        assertEquals(3, window.cumulative());
+    }
+
+    @Test
+    void selectiveMaskMarksTheBufferedSequences() {
+        window.accept(frame(1));
+        window.accept(frame(3));
+        window.accept(frame(5));
+
+        // El bit i es la secuencia cumulative + 1 + i: 3 es el bit 1 y 5 el bit 3
+        assertEquals(1, window.cumulative());
+        assertEquals(1L << 1 | 1L << 3, window.selectiveMask());
+
+        Frame ack = new Frame();
+        byte[] encoded = window.ack();
+        assertTrue(ack.wrap(encoded, 0, encoded.length));
+        assertEquals(Opcode.ACK, ack.opcode());
+        assertEquals(1, ack.sequence());
+        assertEquals(1L << 1 | 1L << 3, ack.ackMask());
+    }
+
+    @Test
+    void rejectsFramesBeyondTheWindow() {
+        assertEquals(ReceiveWindow.Verdict.BUFFERED, window.accept(frame(ReceiveWindow.SIZE)));
+        assertEquals(ReceiveWindow.Verdict.REJECTED, window.accept(frame(ReceiveWindow.SIZE + 1)));
+        assertEquals(1, stats.rejected());
+    }
+
+    private static Frame frame(int sequence) {
+        byte[] sender = "ana".getBytes(StandardCharsets.UTF_8);
+        byte[] text = ("línea " + sequence).getBytes(StandardCharsets.UTF_8);
+        byte[] data = FrameCodec.encode(Opcode.CHAT, FrameCodec.FLAG_RELIABLE, sequence, sender, text, 0, text.length);
+        Frame frame = new Frame();
+        assertTrue(frame.wrap(data, 0, data.length));
+        return frame;
+    }
+}
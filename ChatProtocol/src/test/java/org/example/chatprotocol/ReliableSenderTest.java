@@ -0,0 +1,146 @@
+package org.example.chatprotocol;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Pruebas del lado emisor del enlace fiable: confirmaciones acumuladas y selectivas, reenvío cuando vence
+ * el plazo y abandono de las tramas que no se confirman.
+ *
+ * @author Alejandro Ramírez
+ */
+class ReliableSenderTest {
+
+    private final TimerWheel timers = new TimerWheel("test-retransmit", 1, 512);
+
+    private final ReliabilityStats stats = new ReliabilityStats();
+
+    private final Recorder recorder = new Recorder();
+
+    private final ReliableSender<String> sender = new ReliableSender<>(timers, recorder, stats);
+
+    @AfterEach
+    void close() {
+        sender.close();
+        timers.close();
+    }
+
+    @Test
+    void assignsConsecutiveSequences() {
+        assertEquals(1, sender.register("a"));
+        assertEquals(2, sender.register("b"));
+        assertEquals(3, sender.register("c"));
+        assertEquals(3, sender.inFlight());
+    }
+
+    @Test
+    void cumulativeAckCompletesEverythingUpToIt() {
+        register(5);
+        sender.acknowledge(3, 0);
+        assertEquals(2, sender.inFlight());
+        assertEquals(3, stats.rttSamples());
+    }
+
+    @Test
+    void selectiveAckCompletesOnlyTheMarkedSequences() {
+        register(6);
+
+        // Se recibio la 1 en orden y, por delante, la 3 (bit 1) y la 5 (bit 3)
+        sender.acknowledge(1, 1L << 1 | 1L << 3);
+        assertEquals(3, sender.inFlight());
+
+        // Al llegar la 2, la 4 sigue faltando: el acumulado llega a 3 y la 5 sigue confirmada
+        sender.acknowledge(3, 1L << 1);
+        assertEquals(2, sender.inFlight());
+        sender.acknowledge(6, 0);
+        assertEquals(0, sender.inFlight());
+    }
+
+    @Test
+    void ignoresAcksOfSequencesNotYetSent() {
+        register(2);
+        sender.acknowledge(10, -1L);
+        assertEquals(0, sender.inFlight());
+        assertEquals(3, sender.register("c"));
+        assertEquals(1, sender.inFlight());
+    }
+
+    @Test
+    void retransmitsWhenTheTimeoutExpires() throws InterruptedException {
+        recorder.retransmits = new CountDownLatch(1);
+        long start = System.nanoTime();
+        int sequence = sender.register("hola");
+
+        assertTrue(recorder.retransmits.await(2, TimeUnit.SECONDS), "No se ha reenviado");
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(ReliableSender.INITIAL_RTO_MILLIS),
+                "Se ha reenviado antes del plazo inicial");
+        assertEquals(List.of("hola#" + sequence), recorder.retransmitted.subList(0, 1));
+        assertTrue(stats.retransmits() >= 1);
+    }
+
+    @Test
+    void acknowledgedFramesAreNotRetransmitted() throws InterruptedException {
+        sender.acknowledge(sender.register("hola"), 0);
+        Thread.sleep(ReliableSender.INITIAL_RTO_MILLIS * 2);
+        assertTrue(recorder.retransmitted.isEmpty());
+    }
+
+    @Test
+    void abandonsAfterTheLastRetransmit() throws InterruptedException {
+        // Una muestra de ida y vuelta casi nula deja el plazo en el minimo, para no esperar segundos de mas
+        sender.acknowledge(sender.register("muestra"), 0);
+        recorder.abandons = new CountDownLatch(1);
+        int sequence = sender.register("perdido");
+
+        assertTrue(recorder.abandons.await(20, TimeUnit.SECONDS), "No se ha abandonado");
+        assertEquals(List.of("perdido#" + sequence), recorder.abandoned);
+        assertEquals(ReliableSender.MAX_RETRANSMITS, recorder.retransmitted.size());
+        assertEquals(0, sender.inFlight());
+        assertEquals(1, stats.abandoned());
+    }
+
+    @Test
+    void abandonsTheOldestWhenTheWindowIsFull() {
+        register(ReliableSender.CAPACITY + 1);
+        assertEquals(List.of("1#1"), recorder.abandoned);
+        assertEquals(ReliableSender.CAPACITY, sender.inFlight());
+    }
+
+    private void register(int count) {
+        for (int i = 1; i <= count; i++) {
+            sender.register(String.valueOf(i));
+        }
+    }
+
+    /**
+     * Anota los reenvíos y abandonos que pide el emisor.
+     */
+    private static final class Recorder implements ReliableSender.Transmitter<String> {
+
+        private final List<String> retransmitted = new CopyOnWriteArrayList<>();
+        private final List<String> abandoned = new CopyOnWriteArrayList<>();
+
+        private volatile CountDownLatch retransmits = new CountDownLatch(0);
+        private volatile CountDownLatch abandons = new CountDownLatch(0);
+
+        @Override
+        public void retransmit(String message, int sequence) {
+            retransmitted.add(message + "#" + sequence);
+            retransmits.countDown();
+        }
+
+        @Override
+        public void abandon(String message, int sequence) {
+            abandoned.add(message + "#" + sequence);
+            abandons.countDown();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.example.chatprotocol;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Pruebas de la rueda de temporizadores: plazos cortos, plazos de más de una vuelta y cancelación.
+ *
+ * @author Alejandro Ramírez
+ */
+class TimerWheelTest {
+
+    // Rueda de 8 casillas de 1 ms: un plazo de mas de 8 ms da mas de una vuelta
+    private final TimerWheel timers = new TimerWheel("test-timers", 1, 8);
+
+    @AfterEach
+    void close() {
+        timers.close();
+    }
+
+    @Test
+    void runsTheTaskNotBeforeItsDeadline() throws InterruptedException {
+        assertRunsAfter(20);
+    }
+
+    @Test
+    void runsTasksThatNeedMoreThanOneRound() throws InterruptedException {
+        assertRunsAfter(50);
+    }
+
+    @Test
+    void cancelledTasksDoNotRun() throws InterruptedException {
+        AtomicBoolean ran = new AtomicBoolean();
+        TimerWheel.Timeout timeout = timers.schedule(() -> ran.set(true), 10);
+        timeout.cancel();
+        assertTrue(timeout.isCancelled());
+
+        // Un plazo posterior que si se ejecuta garantiza que la rueda ya ha pasado por el cancelado
+        CountDownLatch later = new CountDownLatch(1);
+        timers.schedule(later::countDown, 30);
+        assertTrue(later.await(2, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+    }
+
+    private void assertRunsAfter(long delayMillis) throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        long start = System.nanoTime();
+        long[] elapsed = new long[1];
+        timers.schedule(() -> {
+            elapsed[0] = System.nanoTime() - start;
+            ran.countDown();
+        }, delayMillis);
+
+        assertTrue(ran.await(2, TimeUnit.SECONDS), "La tarea no se ha ejecutado");
+        assertTrue(elapsed[0] >= TimeUnit.MILLISECONDS.toNanos(delayMillis),
+                "La tarea se ha ejecutado a los " + TimeUnit.NANOSECONDS.toMillis(elapsed[0]) + " ms");
+    }
+}
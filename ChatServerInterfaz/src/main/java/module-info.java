@@ -1,8 +1,14 @@
 module org.example.chatserverinterfaz {
-    requires javafx.controls;
-    requires javafx.fxml;
+    // JavaFX solo lo necesita la ventana del servidor: el modo sin pantalla arranca sin estos modulos
+    requires static javafx.controls;
+    requires static javafx.fxml;
+    requires org.example.chatprotocol;
+
+    // Metricas por JMX y en texto por HTTP
+    requires java.management;
+    requires jdk.httpserver;
 
 
     opens org.example.chatserverinterfaz to javafx.fxml;
     exports org.example.chatserverinterfaz;
-}
\ No newline at end of file
+}
@@ -0,0 +1,57 @@
+package org.example.chatserverinterfaz;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Caché de direcciones de los clientes que envían datagramas.
+ *
+ * {@link java.net.DatagramPacket#getSocketAddress()} crea una dirección nueva en cada llamada. Esta caché
+ * guarda la última dirección vista en cada casilla de una tabla de acceso directo, de modo que los
+ * datagramas de un cliente que ya ha enviado otros reutilizan la misma dirección, que además es la clave
+ * con la que se le busca en el registro. Una colisión solo hace que se cree una dirección nueva.
+ *
+ * No es segura para varios hilos: la usa únicamente el hilo que entrega los datagramas al dispatcher.
+ *
+ * @author Alejandro Ramírez
+ */
+public final class AddressCache {
+
+    // Casillas de la tabla, potencia de dos
+    public static final int DEFAULT_SLOTS = 1024;
+
+    private final InetSocketAddress[] slots;
+
+    /**
+     * Constructor de la clase AddressCache.
+     *
+     * @param slots Número de casillas, potencia de dos.
+     */
+    public AddressCache(int slots) {
+        if (slots <= 0 || Integer.bitCount(slots) != 1) {
+            throw new IllegalArgumentException("El número de casillas debe ser una potencia de dos: " + slots);
+        }
+        this.slots = new InetSocketAddress[slots];
+    }
+
+    /**
+     * Devuelve la dirección de un cliente, reutilizando la guardada si coincide.
+     *
+     * @param address Dirección IP del cliente.
+     * @param port Puerto del cliente.
+     * @return La dirección y el puerto del cliente.
+     */
+    public InetSocketAddress resolve(InetAddress address, int port) {
+        // Se mezclan los bits altos con los bajos, que son los que eligen la casilla
+        int hash = address.hashCode() * 31 + port;
+        int slot = (hash ^ hash >>> 16) & slots.length - 1;
+
+        InetSocketAddress cached = slots[slot];
+        if (cached != null && cached.getPort() == port && address.equals(cached.getAddress())) {
+            return cached;
+        }
+        InetSocketAddress resolved = new InetSocketAddress(address, port);
+        slots[slot] = resolved;
+        return resolved;
+    }
+}
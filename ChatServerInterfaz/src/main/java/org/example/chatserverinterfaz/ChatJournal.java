@@ -0,0 +1,581 @@
+package org.example.chatserverinterfaz;
+
+import org.example.chatprotocol.FrameCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Historial de las líneas de chat del servidor. Cada línea reenviada se añade al final de un diario en
+ * disco, y un usuario que acaba de entrar puede pedir los últimos mensajes de su sala o los posteriores a
+ * una secuencia.
+ *
+ * El diario está dividido en segmentos de tamaño fijo que se proyectan en memoria: añadir un mensaje es
+ * copiarlo al segmento activo, sin llamadas al sistema, y un hilo propio fuerza lo escrito a disco cada
+ * {@link #FLUSH_INTERVAL_MILLIS} ms o cada {@link #FLUSH_BATCH} mensajes, lo que ocurra antes. Si el
+ * servidor se cae se pierden como mucho los mensajes de ese intervalo.
+ *
+ * Cada registro guarda la trama CHAT tal y como se envía al reproducirla, con el indicador
+ * {@link FrameCodec#FLAG_HISTORY} y la secuencia del historial ya escritos. Reproducir un mensaje no
+ * decodifica ni copia nada: se entrega una porción de solo lectura del segmento, que el motor NIO escribe
+ * directamente en el socket.
+ *
+ * Un índice en memoria por segmento guarda la posición de cada secuencia, así que localizar un mensaje
+ * cuesta una búsqueda binaria entre segmentos y un acceso a un array. Los segmentos más antiguos se
+ * borran cuando el diario supera el tamaño máximo o cuando su último mensaje es más viejo que la edad
+ * máxima; el segmento activo no se borra nunca. Al arrancar se recorren los segmentos que haya en el
+ * directorio para reconstruir el índice y continuar la numeración.
+ *
+ * Formato de cada registro: longitud total (4 bytes), secuencia (8), instante en milisegundos (8), longitud
+ * y nombre de la sala, y la trama. La longitud se escribe la última, así que un registro a medias tiene
+ * longitud 0 y marca el final del segmento.
+ *
+ * @author Alejandro Ramírez
+ */
+public class ChatJournal implements AutoCloseable {
+
+    // Tamaño de cada segmento por defecto, en bytes
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    // Tamaño maximo del diario por defecto, en bytes
+    public static final int DEFAULT_MAX_BYTES = 256 * 1024 * 1024;
+
+    // Edad maxima de los mensajes por defecto, en segundos (una semana)
+    public static final int DEFAULT_MAX_AGE_SECONDS = 7 * 24 * 3600;
+
+    // Mensajes que se reproducen como mucho en una peticion
+    public static final int MAX_REPLAY = 500;
+
+    // Registros que se recorren como mucho buscando los de una sala, para acotar las peticiones
+    static final int MAX_SCAN = 100_000;
+
+    // Tiempo maximo que lo escrito espera a forzarse a disco
+    static final long FLUSH_INTERVAL_MILLIS = 100;
+
+    // Mensajes escritos que adelantan el forzado a disco
+    static final int FLUSH_BATCH = 256;
+
+    // Cada cuantos forzados se comprueba la edad de los segmentos
+    private static final int RETENTION_CHECK_FLUSHES = 50;
+
+    // Bytes de la cabecera de un registro: longitud, secuencia, instante y longitud del nombre de la sala
+    static final int HEADER_LENGTH = 4 + 8 + 8 + 1;
+
+    private static final String SUFFIX = ".seg";
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final long maxBytes;
+
+    private final long maxAgeMillis;
+
+    // Escribe los mensajes en el registro del servidor
+    private final Consumer<String> log;
+
+    // Segmentos del mas antiguo al mas reciente; el ultimo es el activo. El array se sustituye entero
+    private volatile Segment[] segments;
+
+    // Ultima secuencia escrita, visible para las lecturas. 0 si el diario esta vacio
+    private volatile long lastSequence;
+
+    // Siguiente secuencia que se asigna. Solo se usa con el diario bloqueado
+    private long nextSequence;
+
+    // Mensajes escritos desde el ultimo forzado a disco
+    private int unflushed;
+
+    private final Thread flusher;
+
+    private volatile boolean running = true;
+
+    /**
+     * Constructor de la clase ChatJournal. Abre los segmentos que haya en el directorio, o crea el
+     * primero, y arranca el hilo que fuerza lo escrito a disco.
+     *
+     * @param directory Directorio de los segmentos. Se crea si no existe.
+     * @param segmentSize Tamaño de cada segmento en bytes.
+     * @param maxBytes Tamaño máximo del diario en bytes.
+     * @param maxAgeSeconds Edad máxima de los mensajes en segundos.
+     * @param log Destino de los mensajes del registro del servidor.
+     * @throws IOException Si no se puede crear el directorio o abrir algún segmento.
+     */
+    public ChatJournal(Path directory, int segmentSize, long maxBytes, long maxAgeSeconds, Consumer<String> log)
+            throws IOException {
+        if (segmentSize < HEADER_LENGTH + RoomDirectory.MAX_NAME_LENGTH
+                + FrameCodec.encodedLength(FrameCodec.MAX_SENDER_LENGTH, FrameCodec.MAX_PAYLOAD_LENGTH)) {
+            throw new IllegalArgumentException("El segmento del historial es demasiado pequeño: " + segmentSize);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = TimeUnit.SECONDS.toMillis(maxAgeSeconds);
+        this.log = log;
+
+        Files.createDirectories(directory);
+        this.segments = recover();
+        Segment active = active();
+        this.nextSequence = active.baseSequence + active.count;
+        this.lastSequence = nextSequence - 1;
+
+        flusher = new Thread(this::runFlusher, "chat-journal-flush");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Añade una línea de chat al final del diario.
+     *
+     * @param room Nombre de la sala en UTF-8.
+     * @param frame Trama CHAT que se ha reenviado a la sala.
+     * @return La secuencia asignada en el historial.
+     */
+    public synchronized long append(byte[] room, byte[] frame) {
+        int length = HEADER_LENGTH + room.length + frame.length;
+        Segment segment = active();
+        if (segment.position + length > segment.capacity()) {
+            segment = roll();
+        }
+
+        long sequence = nextSequence++;
+        int position = segment.position;
+        int frameStart = position + HEADER_LENGTH + room.length;
+        long now = System.currentTimeMillis();
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.putLong(position + 4, sequence)
+                .putLong(position + 12, now)
+                .put(position + 20, (byte) room.length)
+                .put(position + HEADER_LENGTH, room)
+                .put(frameStart, frame);
+
+        // La copia guardada es la trama que se reproduce: del historial, no fiable y con su secuencia
+        buffer.put(frameStart + FrameCodec.FLAGS_OFFSET, FrameCodec.FLAG_HISTORY)
+                .putInt(frameStart + FrameCodec.SEQUENCE_OFFSET, (int) sequence);
+
+        // La longitud va la ultima: hasta aqui el registro no existe para quien recorra el segmento
+        buffer.putInt(position, length);
+        segment.position += length;
+        segment.index(position, now);
+        lastSequence = sequence;
+
+        if (++unflushed >= FLUSH_BATCH) {
+            LockSupport.unpark(flusher);
+        }
+        return sequence;
+    }
+
+    /**
+     * Reproduce los últimos mensajes de una sala, del más antiguo al más reciente.
+     *
+     * @param room Nombre de la sala en UTF-8.
+     * @param count Número de mensajes, como mucho {@link #MAX_REPLAY}.
+     * @param sink Recibe cada trama como una porción de solo lectura del segmento.
+     * @return Número de mensajes reproducidos.
+     */
+    public int replayLast(byte[] room, int count, Consumer<ByteBuffer> sink) {
+        Segment[] current = segments;
+        long first = current[0].baseSequence;
+        long last = lastSequence;
+        long[] found = new long[Math.max(0, Math.min(count, MAX_REPLAY))];
+        int matches = 0;
+
+        // Se recorre hacia atras hasta reunir los mensajes pedidos
+        for (long sequence = last; sequence >= first && matches < found.length && last - sequence < MAX_SCAN;
+             sequence--) {
+            Segment segment = find(current, sequence);
+            if (segment != null && segment.inRoom(segment.offset(sequence), room)) {
+                found[found.length - ++matches] = sequence;
+            }
+        }
+        // Los segmentos de la foto siguen proyectados aunque la retencion los haya borrado mientras tanto
+        for (int i = found.length - matches; i < found.length; i++) {
+            Segment segment = find(current, found[i]);
+            sink.accept(segment.frame(segment.offset(found[i])));
+        }
+        return matches;
+    }
+
+    /**
+     * Reproduce los mensajes de una sala posteriores a una secuencia, del más antiguo al más reciente.
+     *
+     * @param room Nombre de la sala en UTF-8.
+     * @param since Secuencia del historial del último mensaje que ya tiene el cliente.
+     * @param sink Recibe cada trama como una porción de solo lectura del segmento.
+     * @return Número de mensajes reproducidos, como mucho {@link #MAX_REPLAY}.
+     */
+    public int replaySince(byte[] room, long since, Consumer<ByteBuffer> sink) {
+        Segment[] current = segments;
+        long last = lastSequence;
+        long start = Math.max(since + 1, current[0].baseSequence);
+        int matches = 0;
+        for (long sequence = start; sequence <= last && matches < MAX_REPLAY && sequence - start < MAX_SCAN;
+             sequence++) {
+            Segment segment = find(current, sequence);
+            if (segment == null) {
+                continue;
+            }
+            int offset = segment.offset(sequence);
+            if (segment.inRoom(offset, room)) {
+                sink.accept(segment.frame(offset));
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Última secuencia escrita en el historial.
+     *
+     * @return La secuencia, o 0 si el historial está vacío.
+     */
+    public long lastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Número de segmentos del historial.
+     *
+     * @return Segmentos en disco, incluido el activo.
+     */
+    public int segmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * Fuerza a disco lo pendiente, detiene el hilo de forzado y cierra los segmentos.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    /**
+     * Segmento en el que se escribe.
+     */
+    private Segment active() {
+        Segment[] current = segments;
+        return current[current.length - 1];
+    }
+
+    /**
+     * Cierra el segmento activo, abre uno nuevo a continuación y aplica la retención. Se llama con el
+     * diario bloqueado.
+     */
+    private Segment roll() {
+        Segment previous = active();
+        previous.force();
+        try {
+            Segment next = Segment.create(directory.resolve(fileName(nextSequence)), nextSequence, segmentSize);
+            Segment[] current = segments;
+            Segment[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = next;
+            segments = updated;
+            unflushed = 0;
+            retain();
+            return next;
+        } catch (IOException e) {
+            // Sin segmento nuevo no se puede seguir escribiendo
+            throw new IllegalStateException("No se puede crear un segmento del historial en " + directory, e);
+        }
+    }
+
+    /**
+     * Borra los segmentos más antiguos mientras el diario supere el tamaño o la edad máximos. Se llama
+     * con el diario bloqueado.
+     */
+    private void retain() {
+        Segment[] current = segments;
+        long total = 0;
+        for (Segment segment : current) {
+            total += segment.capacity();
+        }
+        long oldest = System.currentTimeMillis() - maxAgeMillis;
+
+        int dropped = 0;
+        while (dropped < current.length - 1
+                && (total > maxBytes || current[dropped].lastTimestamp < oldest)) {
+            total -= current[dropped].capacity();
+            dropped++;
+        }
+        if (dropped == 0) {
+            return;
+        }
+
+        // Primero se publica el array sin ellos, para que las lecturas nuevas ya no los usen
+        segments = Arrays.copyOfRange(current, dropped, current.length);
+        for (int i = 0; i < dropped; i++) {
+            current[i].close();
+            try {
+                Files.deleteIfExists(current[i].path);
+            } catch (IOException e) {
+                log.accept("No se puede borrar el segmento del historial " + current[i].path + ": " + e.getMessage());
+            }
+        }
+        log.accept("Historial: " + dropped + " segmentos antiguos borrados");
+    }
+
+    /**
+     * Bucle del hilo que fuerza lo escrito a disco.
+     */
+    private void runFlusher() {
+        int flushes = 0;
+        while (running) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS));
+            flush();
+            if (++flushes % RETENTION_CHECK_FLUSHES == 0) {
+                synchronized (this) {
+                    retain();
+                }
+            }
+        }
+    }
+
+    /**
+     * Fuerza a disco lo escrito en el segmento activo desde el último forzado. La escritura en disco se
+     * hace sin bloquear el diario, así que los mensajes siguen entrando mientras tanto.
+     */
+    private void flush() {
+        Segment segment;
+        int from;
+        int to;
+        synchronized (this) {
+            segment = active();
+            from = segment.flushed;
+            to = segment.position;
+            unflushed = 0;
+        }
+        if (to > from) {
+            segment.buffer.force(from, to - from);
+            synchronized (this) {
+                segment.flushed = Math.max(segment.flushed, to);
+            }
+        }
+    }
+
+    /**
+     * Abre los segmentos del directorio en orden y reconstruye su índice. Si no hay ninguno, crea el primero.
+     */
+    private Segment[] recover() throws IOException {
+        List<Path> paths;
+        try (Stream<Path> files = Files.list(directory)) {
+            paths = files.filter(path -> path.getFileName().toString().endsWith(SUFFIX)).sorted().toList();
+        }
+
+        List<Segment> recovered = new ArrayList<>();
+        long expected = -1;
+        for (int i = 0; i < paths.size(); i++) {
+            boolean last = i == paths.size() - 1;
+            Segment segment = Segment.open(paths.get(i), last ? segmentSize : 0);
+
+            // Un segmento que no continua la numeracion del anterior deja fuera a los anteriores
+            if (expected != -1 && segment.baseSequence != expected) {
+                recovered.forEach(Segment::close);
+                recovered.clear();
+            }
+            recovered.add(segment);
+            expected = segment.baseSequence + segment.count;
+        }
+        if (recovered.isEmpty()) {
+            recovered.add(Segment.create(directory.resolve(fileName(1)), 1, segmentSize));
+        } else {
+            Segment active = recovered.get(recovered.size() - 1);
+            log.accept("Historial recuperado: " + recovered.size() + " segmentos, último mensaje "
+                    + (active.baseSequence + active.count - 1));
+        }
+        return recovered.toArray(new Segment[0]);
+    }
+
+    /**
+     * Busca el segmento que contiene una secuencia.
+     *
+     * @return El segmento, o null si la secuencia ya se ha borrado o aún no se ha escrito.
+     */
+    private static Segment find(Segment[] current, long sequence) {
+        int low = 0;
+        int high = current.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            Segment segment = current[middle];
+            if (sequence < segment.baseSequence) {
+                high = middle - 1;
+            } else if (sequence >= segment.baseSequence + segment.count) {
+                low = middle + 1;
+            } else {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Nombre del fichero de un segmento: su primera secuencia con ceros a la izquierda, para que el
+     * orden alfabético sea el de la numeración.
+     */
+    private static String fileName(long baseSequence) {
+        return String.format("%020d%s", baseSequence, SUFFIX);
+    }
+
+    /**
+     * Segmento del diario: un fichero proyectado en memoria y la posición de cada uno de sus registros.
+     */
+    private static final class Segment {
+
+        private final Path path;
+
+        private final FileChannel channel;
+
+        private final MappedByteBuffer buffer;
+
+        // Vista de solo lectura del segmento, de la que se sacan las porciones que se reproducen
+        private final ByteBuffer readOnly;
+
+        // Secuencia del primer registro del segmento
+        private final long baseSequence;
+
+        // Posicion de cada registro, por su secuencia menos la del primero. Crece copiandose
+        private int[] offsets = new int[1024];
+
+        // Registros visibles. Se publica despues de escribir su posicion en offsets
+        private volatile int count;
+
+        // Siguiente byte libre. Solo se usa con el diario bloqueado
+        private int position;
+
+        // Bytes ya forzados a disco
+        private int flushed;
+
+        // Instante del ultimo registro, para la retencion por edad
+        private long lastTimestamp;
+
+        private Segment(Path path, FileChannel channel, MappedByteBuffer buffer, long baseSequence) {
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.readOnly = buffer.asReadOnlyBuffer();
+            this.baseSequence = baseSequence;
+            this.lastTimestamp = System.currentTimeMillis();
+        }
+
+        /**
+         * Crea un segmento vacío.
+         */
+        static Segment create(Path path, long baseSequence, int size) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            return new Segment(path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size), baseSequence);
+        }
+
+        /**
+         * Abre un segmento existente y recorre sus registros hasta el primero incompleto.
+         *
+         * @param size Tamaño con el que se proyecta si se va a seguir escribiendo en él, o 0 si no.
+         */
+        static Segment open(Path path, int size) throws IOException {
+            String name = path.getFileName().toString();
+            long baseSequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long length = Math.max(channel.size(), size);
+            Segment segment = new Segment(path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, length),
+                    baseSequence);
+            segment.scan();
+            return segment;
+        }
+
+        private void scan() {
+            int limit = buffer.capacity();
+            while (position + HEADER_LENGTH <= limit) {
+                int length = buffer.getInt(position);
+                if (length < HEADER_LENGTH || position + length > limit
+                        || buffer.getLong(position + 4) != baseSequence + count) {
+                    break;
+                }
+                index(position, buffer.getLong(position + 12));
+                position += length;
+            }
+            flushed = position;
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        /**
+         * Añade al índice el registro que empieza en una posición.
+         */
+        void index(int offset, long timestamp) {
+            int next = count;
+            if (next == offsets.length) {
+                offsets = Arrays.copyOf(offsets, next * 2);
+            }
+            offsets[next] = offset;
+            lastTimestamp = timestamp;
+            count = next + 1;
+        }
+
+        int offset(long sequence) {
+            return offsets[(int) (sequence - baseSequence)];
+        }
+
+        /**
+         * Indica si un registro es de una sala, comparando el nombre sobre el propio segmento.
+         */
+        boolean inRoom(int offset, byte[] room) {
+            if ((buffer.get(offset + 20) & 0xFF) != room.length) {
+                return false;
+            }
+            for (int i = 0; i < room.length; i++) {
+                if (buffer.get(offset + HEADER_LENGTH + i) != room[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Trama de un registro, como porción de solo lectura del segmento.
+         */
+        ByteBuffer frame(int offset) {
+            int roomLength = buffer.get(offset + 20) & 0xFF;
+            int start = offset + HEADER_LENGTH + roomLength;
+            return readOnly.slice(start, buffer.getInt(offset) - HEADER_LENGTH - roomLength);
+        }
+
+        void force() {
+            if (position > flushed) {
+                buffer.force(flushed, position - flushed);
+                flushed = position;
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // El fichero ya no se va a usar
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package org.example.chatserverinterfaz;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Núcleo del servidor de chat, sin ninguna dependencia de JavaFX. Reúne el registro de usuarios, la lógica
+ * del chat ({@link MessageDispatcher}), el motor de entrada/salida y el registro del servidor, y los
+ * arranca y detiene juntos según una {@link ServerConfig}.
+ *
+ * Se puede ejecutar sin pantalla desde {@link HeadlessServer}, o con la ventana de {@link Server}, que solo
+ * añade un destino más al registro.
+ *
+ * @author Alejandro Ramírez
+ */
+public class ChatServer {
+
+    private final ServerConfig config;
+
+    // Registro asincrono: los hilos del servidor escriben sin bloquearse
+    private final ServerLog log = new ServerLog();
+
+    // Se ejecuta cuando un cliente pide detener el servidor, despues de detenerlo
+    private final Runnable stopRequest;
+
+    // Se abre cuando el servidor se ha detenido
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    // Logica del chat y motor de entrada/salida del servidor en marcha
+    private MessageDispatcher dispatcher;
+    private ServerEngine engine;
+
+    // Nombre con el que se registran las metricas en JMX y punto de consulta en texto, si se ha pedido
+    private ObjectName metricsName;
+
+    // Historial de mensajes, o null si no se ha indicado "journal-dir"
+    private ChatJournal journal;
+    private MetricsEndpoint metricsEndpoint;
+
+    /**
+     * Constructor de la clase ChatServer.
+     *
+     * @param config Configuración del servidor.
+     * @param stopRequest Acción adicional cuando un cliente envía "STOP" (por ejemplo, cerrar la ventana).
+     */
+    public ChatServer(ServerConfig config, Runnable stopRequest) {
+        this.config = config;
+        this.stopRequest = stopRequest;
+    }
+
+    public ServerConfig config() {
+        return config;
+    }
+
+    /**
+     * Registro del servidor. Los destinos deben añadirse antes de {@link #start()}.
+     *
+     * @return El registro del servidor.
+     */
+    public ServerLog log() {
+        return log;
+    }
+
+    /**
+     * Arranca el registro, la lógica del chat y el motor en el puerto configurado.
+     *
+     * @throws IOException Si no se puede abrir el socket.
+     */
+    public void start() throws IOException {
+        if (config.logFile() != null) {
+            try {
+                log.addSink(new RollingFileSink(Path.of(config.logFile()), RollingFileSink.DEFAULT_MAX_BYTES,
+                        RollingFileSink.DEFAULT_MAX_FILES));
+            } catch (IOException e) {
+                System.out.println("No se puede abrir el fichero de registro " + config.logFile() + ": " + e.getMessage());
+            }
+        }
+        log.start();
+
+        // La logica del chat es comun a todos los motores
+        dispatcher = new MessageDispatcher(new SessionRegistry(), log, this::requestStop, config);
+        openJournal();
+        if (config.ratePolicy() != RatePolicy.OFF) {
+            dispatcher.attach(new RateLimiter(config.rateLimit(), config.rateBurst(), config.globalRate(),
+                    config.ratePolicy()));
+            if (config.ratePolicy() == RatePolicy.DELAY && config.dispatch() != DispatchMode.VIRTUAL) {
+                log.accept("El retraso de mensajes necesita el despacho virtual: se descartarán");
+            }
+        }
+        if (!config.peers().isEmpty()) {
+            dispatcher.attach(new Federation(config.peers(), config.peerTimeout() * 1000L, log));
+            log.accept("Federación con " + config.peers().size() + " nodos: " + config.peers());
+        }
+        engine = config.engine().create(config);
+
+        try {
+            engine.start(config.port(), dispatcher);
+        } catch (IOException e) {
+            log.accept("Error al iniciar el servidor en el puerto " + config.port());
+            dispatcher.close();
+            closeJournal();
+            log.close();
+            stopped.countDown();
+            throw e;
+        }
+
+        log.accept("Servidor iniciado en el puerto " + config.port() + " (motor " + config.engine().name().toLowerCase()
+                + ", despacho " + config.dispatch().name().toLowerCase() + ")");
+        publishMetrics();
+    }
+
+    /**
+     * Métricas del servidor en marcha.
+     *
+     * @return Las métricas, o null si el servidor no se ha arrancado.
+     */
+    public ServerMetrics metrics() {
+        return dispatcher != null ? dispatcher.metrics() : null;
+    }
+
+    /**
+     * Abre el historial de mensajes si se ha indicado "journal-dir". Si no se puede abrir, el servidor
+     * funciona sin historial.
+     */
+    private void openJournal() {
+        if (config.journalDir() == null) {
+            return;
+        }
+        try {
+            journal = new ChatJournal(Path.of(config.journalDir()), config.journalSegment(),
+                    config.journalMaxBytes(), config.journalMaxAge(), log);
+            dispatcher.attach(journal);
+            log.accept("Historial en " + config.journalDir() + " (último mensaje " + journal.lastSequence() + ")");
+        } catch (IOException | RuntimeException e) {
+            log.accept("No se puede abrir el historial en " + config.journalDir() + ": " + e.getMessage());
+        }
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * Registra las métricas en JMX y, si se ha indicado "metrics-port", abre el punto de consulta en texto.
+     * Si alguno falla el servidor sigue funcionando sin él.
+     */
+    private void publishMetrics() {
+        try {
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("org.example.chat:type=ServerMetrics,port=" + config.port());
+            mbeans.registerMBean(dispatcher.metrics(), name);
+            metricsName = name;
+        } catch (JMException e) {
+            log.accept("No se pueden registrar las métricas en JMX: " + e.getMessage());
+        }
+
+        if (config.metricsPort() > 0) {
+            MetricsEndpoint endpoint = new MetricsEndpoint(dispatcher.metrics());
+            try {
+                endpoint.start(config.metricsPort());
+                metricsEndpoint = endpoint;
+                log.accept("Métricas en http://127.0.0.1:" + config.metricsPort() + "/metrics");
+            } catch (IOException e) {
+                log.accept("No se puede abrir el puerto de métricas " + config.metricsPort() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Retira las métricas de JMX y cierra el punto de consulta.
+     */
+    private void unpublishMetrics() {
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+            metricsEndpoint = null;
+        }
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                // Ya no estaba registrado
+            }
+            metricsName = null;
+        }
+    }
+
+    /**
+     * Detiene el motor y la lógica del chat, entrega las líneas pendientes del registro y cierra sus
+     * destinos. Puede llamarse varias veces.
+     */
+    public synchronized void stop() {
+        if (stopped.getCount() == 0) {
+            return;
+        }
+        unpublishMetrics();
+        if (engine != null) {
+            engine.stop();
+        }
+        if (dispatcher != null) {
+            // Resumen de la entrega fiable durante la sesion del servidor
+            dispatcher.log("Entrega fiable: " + dispatcher.reliabilityStats());
+            dispatcher.close();
+        }
+        closeJournal();
+        log.close();
+        stopped.countDown();
+    }
+
+    public boolean isRunning() {
+        return engine != null && engine.isRunning();
+    }
+
+    /**
+     * Espera a que el servidor se detenga.
+     *
+     * @throws InterruptedException Si se interrumpe la espera.
+     */
+    public void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    /**
+     * Atiende la petición de parada enviada por un cliente.
+     */
+    private void requestStop() {
+        stop();
+        stopRequest.run();
+    }
+}
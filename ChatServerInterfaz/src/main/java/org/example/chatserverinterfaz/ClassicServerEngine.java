@@ -0,0 +1,124 @@
+package org.example.chatserverinterfaz;
+
+import org.example.chatprotocol.PacketPool;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+
+/**
+ * Motor clásico del servidor. Un único hilo bloqueado en {@link DatagramSocket#receive} recibe cada
+ * datagrama y lo procesa antes de volver a escuchar. Las respuestas se escriben en el socket desde la
+ * {@link SendPipeline}.
+ *
+ * @author Alejandro Ramírez
+ */
+public class ClassicServerEngine implements ServerEngine {
+
+    // Se utiliza para la comunicacion a traves de datagramas. Envia o recibe paquetes de datos a traves de UDP
+    private DatagramSocket socket;
+
+    // Etapa de envio que escribe las respuestas en el socket
+    private SendPipeline pipeline;
+
+    // Tamaño del buffer de recepcion del socket y de la cola de la etapa de envio
+    private final int receiveBufferSize;
+    private final int sendQueueCapacity;
+
+    /**
+     * Constructor de la clase ClassicServerEngine con los tamaños por defecto.
+     */
+    public ClassicServerEngine() {
+        this(NioServerEngine.SOCKET_RECEIVE_BUFFER, SendPipeline.QUEUE_CAPACITY);
+    }
+
+    /**
+     * Constructor de la clase ClassicServerEngine.
+     *
+     * @param receiveBufferSize Buffer de recepción del socket en el sistema operativo, en bytes.
+     * @param sendQueueCapacity Trabajos que pueden esperar a la etapa de envío.
+     */
+    public ClassicServerEngine(int receiveBufferSize, int sendQueueCapacity) {
+        this.receiveBufferSize = receiveBufferSize;
+        this.sendQueueCapacity = sendQueueCapacity;
+    }
+
+    /**
+     * Abre el socket y arranca el hilo que escucha los mensajes de los clientes.
+     *
+     * @param port Puerto en el que escucha el servidor.
+     * @param dispatcher Lógica del chat que procesa cada datagrama recibido.
+     * @throws IOException Si no se puede abrir el socket.
+     */
+    @Override
+    public void start(int port, MessageDispatcher dispatcher) throws IOException {
+        // Se crea un nuevo DatagramSocket que escuche por el puerto indicado
+        socket = new DatagramSocket(port);
+
+        // Las imagenes llegan en rafagas de fragmentos: el buffer del sistema las absorbe mientras se despachan
+        socket.setReceiveBufferSize(receiveBufferSize);
+
+        // Las respuestas se encolan y las escribe en el socket el hilo de envio
+        pipeline = new SendPipeline(new SocketSender(socket), sendQueueCapacity, 1);
+        dispatcher.attach(pipeline);
+        pipeline.start();
+
+        // Se ejecuta un hilo para poder atender a multiples clientes simultaneamente sin bloquearse
+        Thread serverThread = new Thread(() -> runServer(dispatcher), "chat-classic");
+
+        // Permite cerrar la aplicacion sin que los hilos finalicen
+        serverThread.setDaemon(true);
+
+        // Inicia el hilo
+        serverThread.start();
+    }
+
+    /**
+     * Cierra el socket, lo que desbloquea el hilo que está esperando datagramas.
+     */
+    @Override
+    public void stop() {
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+        if (socket != null && !socket.isClosed()) {
+            socket.close();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return socket != null && !socket.isClosed();
+    }
+
+    /**
+     * Bucle principal del servidor que escucha por mensajes de los clientes.
+     *
+     * @param dispatcher Lógica del chat que procesa cada datagrama recibido.
+     */
+    private void runServer(MessageDispatcher dispatcher) {
+        // Los paquetes salen de la reserva del dispatcher, con capacidad para el datagrama mas grande que
+        // envian los clientes. El dispatcher los devuelve al terminar, asi que se reutiliza siempre el mismo
+        PacketPool packets = dispatcher.packets();
+
+        while (!socket.isClosed()) {
+            DatagramPacket packet = packets.acquire();
+
+            try {
+                // Se intenta recibir el paquete del cliente a través del socket del servidor
+                socket.receive(packet);
+            } catch (IOException e) {
+                packets.release(packet);
+
+                // Si el socket se ha cerrado el servidor se esta deteniendo
+                if (socket.isClosed()) {
+                    return;
+                }
+                dispatcher.log("Error al recibir datos: " + e.getMessage());
+                continue;
+            }
+
+            dispatcher.dispatch(packet);
+        }
+    }
+}
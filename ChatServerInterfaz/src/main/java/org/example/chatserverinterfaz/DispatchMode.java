@@ -0,0 +1,32 @@
+package org.example.chatserverinterfaz;
+
+import java.util.Locale;
+
+/**
+ * Modos de despacho que se pueden seleccionar al arrancar el servidor. Deciden en qué hilo se ejecuta
+ * la lógica del chat para cada datagrama recibido, con independencia del motor de entrada/salida.
+ *
+ * @author Alejandro Ramírez
+ */
+public enum DispatchMode {
+
+    // Un único hilo procesa todos los datagramas en el orden en que llegan
+    SINGLE,
+
+    // Cada usuario tiene su propia cola, vaciada por hilos virtuales: los usuarios se procesan en paralelo
+    VIRTUAL;
+
+    /**
+     * Obtiene el modo de despacho a partir de su nombre, sin distinguir mayúsculas.
+     *
+     * @param name Nombre del modo ("single" o "virtual"). Si es null se usa el modo de un solo hilo.
+     * @return El modo de despacho.
+     * @throws IllegalArgumentException Si el nombre no corresponde a ningún modo.
+     */
+    public static DispatchMode parse(String name) {
+        if (name == null || name.isBlank()) {
+            return SINGLE;
+        }
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+}
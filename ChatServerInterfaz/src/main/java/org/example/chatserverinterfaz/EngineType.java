@@ -0,0 +1,61 @@
+package org.example.chatserverinterfaz;
+
+import java.util.Locale;
+
+/**
+ * Motores de entrada/salida que se pueden seleccionar al arrancar el servidor.
+ *
+ * @author Alejandro Ramírez
+ */
+public enum EngineType {
+
+    // Bucle bloqueante original sobre DatagramSocket: recibe, procesa y envía en el mismo hilo
+    CLASSIC,
+
+    // DatagramChannel no bloqueante con Selector y etapas separadas de recepción, despacho y envío
+    NIO,
+
+    // Varios DatagramSocket en el mismo puerto con SO_REUSEPORT, cada uno con su hilo de recepción
+    SHARDED;
+
+    /**
+     * Crea una nueva instancia del motor.
+     *
+     * @return El motor correspondiente a este tipo.
+     */
+    public ServerEngine create() {
+        return switch (this) {
+            case CLASSIC -> new ClassicServerEngine();
+            case NIO -> new NioServerEngine();
+            case SHARDED -> new ShardedServerEngine();
+        };
+    }
+
+    /**
+     * Crea una nueva instancia del motor con los tamaños de buffer y de cola de la configuración.
+     *
+     * @param config Configuración del servidor.
+     * @return El motor correspondiente a este tipo.
+     */
+    public ServerEngine create(ServerConfig config) {
+        return switch (this) {
+            case CLASSIC -> new ClassicServerEngine(config.receiveBuffer(), config.sendQueue());
+            case NIO -> new NioServerEngine(config.receiveBuffer(), config.dispatchQueue(), config.sendQueue());
+            case SHARDED -> new ShardedServerEngine(config.receiveBuffer(), config.sendQueue(), config.shards());
+        };
+    }
+
+    /**
+     * Obtiene el tipo de motor a partir de su nombre, sin distinguir mayúsculas.
+     *
+     * @param name Nombre del motor ("classic", "nio" o "sharded"). Si es null se usa el motor NIO.
+     * @return El tipo de motor.
+     * @throws IllegalArgumentException Si el nombre no corresponde a ningún motor.
+     */
+    public static EngineType parse(String name) {
+        if (name == null || name.isBlank()) {
+            return NIO;
+        }
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,639 @@
+package org.example.chatserverinterfaz;
+
+import org.example.chatprotocol.Frame;
+import org.example.chatprotocol.FrameCodec;
+import org.example.chatprotocol.Opcode;
+import org.example.chatprotocol.ReliabilityStats;
+import org.example.chatprotocol.ReliableLink;
+import org.example.chatprotocol.ReliableSender;
+import org.example.chatprotocol.TimerWheel;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Federación de varios servidores de chat. Cada nodo tiene sus propios usuarios y les reenvía sus mensajes
+ * como siempre; con la federación, además, replica a los demás nodos quién está conectado y en qué sala
+ * (PEER_JOIN y PEER_LEAVE), y les envía cada línea de chat una sola vez por nodo (PEER_CHAT), no una vez por
+ * usuario remoto. Cada nodo la reparte después entre sus usuarios de esa sala, así que el tráfico entre
+ * nodos crece con los nodos y no con los usuarios.
+ *
+ * Los nodos se hablan con tramas del mismo protocolo por el mismo puerto que los clientes, y solo se aceptan
+ * de las direcciones configuradas. La réplica y las líneas van por un {@link ReliableLink} con cada nodo,
+ * igual que con los clientes, con su propia rueda de temporizadores.
+ *
+ * Cada segundo se envía a cada nodo un latido PEER_HELLO con la encarnación de este nodo (un número al azar
+ * que cambia en cada arranque), la generación del enlace con él y la encarnación que se conoce del otro. Un
+ * nodo del que no se oye nada durante el plazo, o que no confirma una trama tras agotar los reenvíos, se da
+ * por caído: se avisa a los usuarios locales de que sus usuarios han salido y la generación sube. Un enlace
+ * está en marcha cuando ambos lados tienen la misma generación y conocen la encarnación del otro; cada vez
+ * que cambia la generación (un nodo caído, uno que se reinicia o uno que vuelve) los dos lados empiezan un
+ * enlace nuevo y se envían otra vez la lista completa de sus usuarios. La generación solo crece y cada lado
+ * adopta la mayor, así que los dos acaban de acuerdo sin ir y volver.
+ *
+ * Los nombres de usuario se comprueban contra los usuarios remotos conocidos, pero no hay un acuerdo entre
+ * nodos: si dos usuarios piden el mismo nombre en dos nodos a la vez, cada nodo se queda con el suyo.
+ *
+ * @author Alejandro Ramírez
+ */
+public class Federation implements AutoCloseable {
+
+    /**
+     * Entrega a los usuarios locales lo que llega de otros nodos. La implementa el dispatcher.
+     */
+    interface Delivery {
+
+        /**
+         * Avisa a los usuarios locales de una sala de que un usuario remoto ha entrado o salido.
+         *
+         * @param opcode PRESENCE_JOIN o PRESENCE_LEAVE.
+         * @param nickname Nombre del usuario remoto en UTF-8.
+         * @param room Sala en la que entra o de la que sale.
+         * @param roomChange true si cambia de sala; false si entra o sale del chat.
+         */
+        void presence(byte opcode, byte[] nickname, String room, boolean roomChange);
+
+        /**
+         * Reparte una línea de chat de otro nodo entre los usuarios locales de su sala.
+         *
+         * @param nickname Nombre del remitente en UTF-8.
+         * @param room Sala del remitente.
+         * @param text Array que contiene el texto.
+         * @param offset Posición del primer byte del texto.
+         * @param length Número de bytes del texto.
+         * @param peer Dirección del nodo del que llega.
+         * @return Usuarios locales a los que se ha enviado.
+         */
+        int chat(byte[] nickname, String room, byte[] text, int offset, int length, InetSocketAddress peer);
+    }
+
+    // Plazo sin oir a un nodo tras el que se le da por caido, por defecto
+    public static final int DEFAULT_PEER_TIMEOUT_SECONDS = 5;
+
+    // Intervalo entre latidos a cada nodo
+    static final long HEARTBEAT_MILLIS = 1000;
+
+    // Carga de PEER_HELLO: encarnacion, generacion y encarnacion que se conoce del destinatario
+    static final int HELLO_PAYLOAD_LENGTH = 20;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // Numero al azar que distingue este arranque del nodo de los anteriores
+    private final long incarnation = ThreadLocalRandom.current().nextLong() | 1;
+
+    // Nodos configurados, indexados por su direccion
+    private final Map<InetSocketAddress, Peer> peers;
+
+    // Usuarios de los demas nodos, indexados por su nombre
+    private final ConcurrentHashMap<String, Remote> users = new ConcurrentHashMap<>();
+
+    private final long timeoutNanos;
+
+    private final Consumer<String> log;
+
+    // Rueda de los reenvios entre nodos y de los latidos
+    private final TimerWheel timers = new TimerWheel("chat-federation", 10, 512);
+
+    private final ReliabilityStats stats = new ReliabilityStats();
+
+    private SendPipeline sender;
+
+    private Delivery delivery;
+
+    // Usuarios conectados a este nodo, para enviarlos al empezar un enlace
+    private SessionRegistry registry;
+
+    private volatile boolean closed;
+
+    /**
+     * Constructor de la clase Federation.
+     *
+     * @param peers Direcciones de los demás nodos.
+     * @param timeoutMillis Plazo sin oír a un nodo tras el que se le da por caído.
+     * @param log Destino de los mensajes del registro del servidor.
+     */
+    public Federation(List<InetSocketAddress> peers, long timeoutMillis, Consumer<String> log) {
+        Map<InetSocketAddress, Peer> byAddress = new LinkedHashMap<>();
+        for (InetSocketAddress address : peers) {
+            byAddress.put(address, new Peer(address));
+        }
+        this.peers = Collections.unmodifiableMap(byAddress);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.log = log;
+    }
+
+    /**
+     * Lee la lista de nodos de la opción "peers": direcciones "host:puerto" separadas por comas.
+     *
+     * @param value Valor de la opción, o null si no se ha indicado.
+     * @return Direcciones de los nodos, vacía si no hay ninguno.
+     * @throws IllegalArgumentException Si alguna dirección no es válida.
+     */
+    public static List<InetSocketAddress> parsePeers(String value) {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        if (value == null || value.isBlank()) {
+            return peers;
+        }
+        for (String entry : value.split(",")) {
+            String peer = entry.trim();
+            int colon = peer.lastIndexOf(':');
+            try {
+                InetSocketAddress address = new InetSocketAddress(peer.substring(0, colon),
+                        Integer.parseInt(peer.substring(colon + 1)));
+                if (address.isUnresolved()) {
+                    throw new IllegalArgumentException("No se puede resolver el nodo " + peer);
+                }
+                peers.add(address);
+            } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IllegalArgumentException("Nodo no válido en la opción peers: " + peer, e);
+            }
+        }
+        return peers;
+    }
+
+    /**
+     * Empieza a enviar latidos a los nodos. Lo llama el dispatcher cuando el motor le da su etapa de envío.
+     *
+     * @param sender Etapa de envío del motor.
+     * @param registry Registro de los usuarios locales.
+     * @param delivery Entrega a los usuarios locales.
+     */
+    void start(SendPipeline sender, SessionRegistry registry, Delivery delivery) {
+        this.sender = sender;
+        this.registry = registry;
+        this.delivery = delivery;
+        for (Peer peer : peers.values()) {
+            peer.link = newLink(peer);
+        }
+        timers.schedule(this::heartbeat, 0);
+    }
+
+    /**
+     * Indica si una dirección es la de un nodo de la federación.
+     *
+     * @param address Dirección del remitente de un datagrama.
+     * @return true si es un nodo configurado.
+     */
+    boolean isPeer(InetSocketAddress address) {
+        return peers.containsKey(address);
+    }
+
+    /**
+     * Indica si un nombre de usuario lo tiene un usuario de otro nodo.
+     *
+     * @param nickname Nombre de usuario.
+     * @return true si está en uso en otro nodo.
+     */
+    boolean isRemote(String nickname) {
+        return users.containsKey(nickname);
+    }
+
+    /**
+     * Enlace fiable con un nodo en marcha, para la ventana de recepción y las confirmaciones.
+     *
+     * @param address Dirección del nodo.
+     * @return El enlace, o null si la dirección no es un nodo o su enlace no está en marcha.
+     */
+    ReliableLink<SharedPayload> link(InetSocketAddress address) {
+        Peer peer = peers.get(address);
+        return peer != null && peer.up ? peer.link : null;
+    }
+
+    /**
+     * Procesa una trama de otro nodo, ya ordenada por la ventana de su enlace si es fiable.
+     *
+     * @param frame Trama PEER_HELLO, PEER_JOIN, PEER_LEAVE o PEER_CHAT.
+     * @param source Dirección del remitente. Las tramas que no vienen de un nodo configurado se ignoran.
+     */
+    void receive(Frame frame, InetSocketAddress source) {
+        Peer peer = peers.get(source);
+        if (peer == null || closed) {
+            return;
+        }
+        peer.lastHeard = System.nanoTime();
+        if (frame.opcode() == Opcode.PEER_HELLO) {
+            handleHello(frame, peer);
+            return;
+        }
+
+        synchronized (peer) {
+            // Lo que llega de un enlace que no esta en marcha es de una generacion anterior
+            if (!peer.up) {
+                return;
+            }
+            switch (frame.opcode()) {
+                case Opcode.PEER_JOIN -> remoteJoin(peer, frame.sender(), frame.text());
+                case Opcode.PEER_LEAVE -> remoteLeave(peer, frame.sender());
+                case Opcode.PEER_CHAT -> remoteChat(peer, frame);
+                default -> {
+                }
+            }
+        }
+    }
+
+    /**
+     * Replica a los demás nodos que un usuario local está en una sala, al conectarse o al cambiar de sala.
+     *
+     * @param session Usuario local.
+     */
+    void joined(Session session) {
+        Room room = session.room();
+        if (room != null) {
+            sendAll(FrameCodec.encode(Opcode.PEER_JOIN, FrameCodec.FLAG_RELIABLE, 0, session.nicknameBytes(),
+                    room.nameBytes(), 0, room.nameBytes().length), false);
+        }
+    }
+
+    /**
+     * Replica a los demás nodos que un usuario local ha abandonado el chat.
+     *
+     * @param session Usuario local.
+     */
+    void left(Session session) {
+        sendAll(FrameCodec.encode(Opcode.PEER_LEAVE, FrameCodec.FLAG_RELIABLE, 0, session.nicknameBytes(),
+                EMPTY, 0, 0), false);
+    }
+
+    /**
+     * Envía una línea de chat de un usuario local a cada nodo, una sola vez por nodo.
+     *
+     * @param nickname Nombre del remitente en UTF-8.
+     * @param room Nombre de la sala en UTF-8.
+     * @param text Array que contiene el texto.
+     * @param offset Posición del primer byte del texto.
+     * @param length Número de bytes del texto.
+     */
+    void forward(byte[] nickname, byte[] room, byte[] text, int offset, int length) {
+        byte[] payload = new byte[1 + room.length + length];
+        payload[0] = (byte) room.length;
+        System.arraycopy(room, 0, payload, 1, room.length);
+        System.arraycopy(text, offset, payload, 1 + room.length, length);
+        sendAll(FrameCodec.encode(Opcode.PEER_CHAT, FrameCodec.FLAG_RELIABLE, 0, nickname, payload, 0,
+                payload.length), true);
+    }
+
+    /**
+     * Nodos configurados, para las métricas.
+     *
+     * @return Los nodos.
+     */
+    Collection<Peer> peers() {
+        return peers.values();
+    }
+
+    /**
+     * Número de usuarios conectados a otros nodos.
+     *
+     * @return Usuarios remotos conocidos.
+     */
+    int remoteUsers() {
+        return users.size();
+    }
+
+    /**
+     * Contadores de los enlaces entre nodos.
+     *
+     * @return Retransmisiones, duplicados y tiempos de ida y vuelta de los enlaces con los nodos.
+     */
+    ReliabilityStats reliabilityStats() {
+        return stats;
+    }
+
+    /**
+     * Deja de enviar latidos y cancela los reenvíos pendientes.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Peer peer : peers.values()) {
+            ReliableLink<SharedPayload> link = peer.link;
+            if (link != null) {
+                link.close();
+            }
+        }
+        timers.close();
+    }
+
+    /**
+     * Envía una trama a todos los nodos en marcha por su enlace. La trama se codifica una sola vez y cada
+     * envío lleva la secuencia de su enlace.
+     */
+    private void sendAll(byte[] frame, boolean chat) {
+        SharedPayload payload = SharedPayload.wrap(frame);
+        for (Peer peer : peers.values()) {
+            // Con el monitor del nodo, lo que se envia no se cruza con la lista completa de un enlace nuevo
+            synchronized (peer) {
+                if (peer.up) {
+                    send(peer, payload);
+                    if (chat) {
+                        peer.linesOut.increment();
+                    }
+                }
+            }
+        }
+    }
+
+    private void send(Peer peer, SharedPayload payload) {
+        sender.send(payload, peer.link.sender().register(payload), peer.address);
+    }
+
+    /**
+     * Latido periódico: envía PEER_HELLO a cada nodo y da por caídos los que llevan el plazo sin responder.
+     * Se ejecuta en el hilo de la rueda y se vuelve a programar.
+     */
+    private void heartbeat() {
+        if (closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (Peer peer : peers.values()) {
+            if (peer.up && now - peer.lastHeard > timeoutNanos) {
+                peerLost(peer, "no responde");
+            }
+            hello(peer);
+        }
+        timers.schedule(this::heartbeat, HEARTBEAT_MILLIS);
+    }
+
+    private void hello(Peer peer) {
+        byte[] payload = new byte[HELLO_PAYLOAD_LENGTH];
+        synchronized (peer) {
+            putLong(payload, 0, incarnation);
+            putInt(payload, 8, peer.generation);
+            putLong(payload, 12, peer.incarnation);
+        }
+        sender.send(SharedPayload.wrap(FrameCodec.encode(Opcode.PEER_HELLO, (byte) 0, 0, EMPTY, payload, 0,
+                payload.length)), peer.address);
+    }
+
+    /**
+     * Procesa el latido de un nodo. Si se ha reiniciado o propone una generación mayor se empieza un enlace
+     * nuevo, y cuando ambos lados están de acuerdo el enlace se pone en marcha y se le envían los usuarios
+     * locales.
+     */
+    private void handleHello(Frame frame, Peer peer) {
+        if (frame.payloadLength() < HELLO_PAYLOAD_LENGTH) {
+            return;
+        }
+        byte[] buffer = frame.buffer();
+        int offset = frame.payloadOffset();
+        long peerIncarnation = getLong(buffer, offset);
+        int generation = getInt(buffer, offset + 8);
+        long known = getLong(buffer, offset + 12);
+
+        boolean started = false;
+        synchronized (peer) {
+            if (peer.incarnation != peerIncarnation) {
+                // Un nodo reiniciado no recuerda nada: se empieza de cero en una generacion que no haya usado
+                boolean restarted = peer.incarnation != 0;
+                peer.incarnation = peerIncarnation;
+                if (restarted) {
+                    log.accept("El nodo " + peer.label + " se ha reiniciado");
+                    reset(peer, Math.max(peer.generation, generation) + 1);
+                }
+            }
+            if (generation > peer.generation) {
+                reset(peer, generation);
+            }
+            if (!peer.up && generation == peer.generation && known == incarnation) {
+                peer.up = true;
+                started = true;
+
+                // El otro nodo ya no sabe nada de los usuarios de este: se le envian todos
+                for (Session session : registry.snapshot()) {
+                    Room room = session.room();
+                    if (room != null) {
+                        send(peer, SharedPayload.wrap(FrameCodec.encode(Opcode.PEER_JOIN, FrameCodec.FLAG_RELIABLE,
+                                0, session.nicknameBytes(), room.nameBytes(), 0, room.nameBytes().length)));
+                    }
+                }
+            }
+        }
+        if (started) {
+            log.accept("Nodo " + peer.label + " conectado (generación " + generation + ")");
+            hello(peer);
+        }
+    }
+
+    /**
+     * Da por caído a un nodo: sus usuarios salen del chat y la generación sube para empezar un enlace nuevo
+     * cuando vuelva.
+     */
+    private void peerLost(Peer peer, String reason) {
+        synchronized (peer) {
+            if (!peer.up) {
+                return;
+            }
+            peer.failures.increment();
+            reset(peer, peer.generation + 1);
+        }
+        log.accept("Nodo " + peer.label + " caído: " + reason);
+    }
+
+    /**
+     * Cambia la generación del enlace con un nodo: descarta el enlace anterior con sus reenvíos y su ventana
+     * y los usuarios que se conocían de él. Se llama con el monitor del nodo.
+     */
+    private void reset(Peer peer, int generation) {
+        peer.generation = generation;
+        peer.up = false;
+        ReliableLink<SharedPayload> previous = peer.link;
+        peer.link = newLink(peer);
+        if (previous != null) {
+            previous.close();
+        }
+        for (Map.Entry<String, Remote> entry : users.entrySet()) {
+            Remote remote = entry.getValue();
+            if (remote.peer == peer && users.remove(entry.getKey(), remote)) {
+                peer.users.decrementAndGet();
+                delivery.presence(Opcode.PRESENCE_LEAVE, entry.getKey().getBytes(StandardCharsets.UTF_8),
+                        remote.room, false);
+            }
+        }
+    }
+
+    private ReliableLink<SharedPayload> newLink(Peer peer) {
+        AtomicReference<ReliableLink<SharedPayload>> created = new AtomicReference<>();
+        created.set(new ReliableLink<>(timers, new ReliableSender.Transmitter<>() {
+            @Override
+            public void retransmit(SharedPayload payload, int sequence) {
+                sender.send(payload, sequence, peer.address);
+            }
+
+            @Override
+            public void abandon(SharedPayload payload, int sequence) {
+                // Solo cuenta si el enlace que pierde la trama sigue siendo el actual
+                if (peer.link == created.get()) {
+                    peerLost(peer, "no confirma los mensajes");
+                }
+            }
+        }, stats));
+        return created.get();
+    }
+
+    /**
+     * Un usuario de otro nodo está en una sala: entra al chat o cambia de sala.
+     */
+    private void remoteJoin(Peer peer, String nickname, String room) {
+        if (!RoomDirectory.isValidName(room)) {
+            return;
+        }
+        Session local = registry.lookup(nickname);
+        if (local != null) {
+            log.accept("Nick de usuario en uso en este nodo y en " + peer.label + ": " + nickname);
+            return;
+        }
+
+        Remote previous = users.put(nickname, new Remote(peer, room));
+        byte[] name = nickname.getBytes(StandardCharsets.UTF_8);
+        if (previous == null || previous.peer != peer) {
+            if (previous != null) {
+                previous.peer.users.decrementAndGet();
+            }
+            peer.users.incrementAndGet();
+            delivery.presence(Opcode.PRESENCE_JOIN, name, room, false);
+        } else if (!previous.room.equals(room)) {
+            delivery.presence(Opcode.PRESENCE_LEAVE, name, previous.room, true);
+            delivery.presence(Opcode.PRESENCE_JOIN, name, room, true);
+        }
+    }
+
+    /**
+     * Un usuario de otro nodo ha abandonado el chat.
+     */
+    private void remoteLeave(Peer peer, String nickname) {
+        Remote remote = users.get(nickname);
+        if (remote != null && remote.peer == peer && users.remove(nickname, remote)) {
+            peer.users.decrementAndGet();
+            delivery.presence(Opcode.PRESENCE_LEAVE, nickname.getBytes(StandardCharsets.UTF_8), remote.room, false);
+        }
+    }
+
+    /**
+     * Reparte una línea de otro nodo entre los usuarios locales de su sala.
+     */
+    private void remoteChat(Peer peer, Frame frame) {
+        byte[] buffer = frame.buffer();
+        int offset = frame.payloadOffset();
+        int length = frame.payloadLength();
+        int roomLength = length > 0 ? buffer[offset] & 0xFF : 0;
+        if (roomLength == 0 || 1 + roomLength > length) {
+            return;
+        }
+        String room = new String(buffer, offset + 1, roomLength, StandardCharsets.UTF_8);
+        int textOffset = offset + 1 + roomLength;
+        byte[] nickname = Arrays.copyOfRange(buffer, frame.senderOffset(),
+                frame.senderOffset() + frame.senderLength());
+        int delivered = delivery.chat(nickname, room, buffer, textOffset, length - 1 - roomLength, peer.address);
+        peer.linesIn.increment();
+        peer.deliveries.add(delivered);
+    }
+
+    private static void putLong(byte[] dst, int offset, long value) {
+        putInt(dst, offset, (int) (value >>> 32));
+        putInt(dst, offset + 4, (int) value);
+    }
+
+    private static void putInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value >>> 24);
+        dst[offset + 1] = (byte) (value >>> 16);
+        dst[offset + 2] = (byte) (value >>> 8);
+        dst[offset + 3] = (byte) value;
+    }
+
+    private static long getLong(byte[] src, int offset) {
+        return (long) getInt(src, offset) << 32 | getInt(src, offset + 4) & 0xFFFFFFFFL;
+    }
+
+    private static int getInt(byte[] src, int offset) {
+        return (src[offset] & 0xFF) << 24 | (src[offset + 1] & 0xFF) << 16 | (src[offset + 2] & 0xFF) << 8
+                | src[offset + 3] & 0xFF;
+    }
+
+    /**
+     * Usuario de otro nodo: el nodo al que está conectado y su sala.
+     */
+    private record Remote(Peer peer, String room) {
+    }
+
+    /**
+     * Otro nodo de la federación, con el estado de su enlace y sus contadores.
+     */
+    static final class Peer {
+
+        private final InetSocketAddress address;
+
+        // Direccion del nodo como "host:puerto", para el registro y las metricas
+        private final String label;
+
+        // Encarnacion conocida del nodo (0 = ninguna todavia) y generacion del enlace. Con el monitor del nodo
+        private long incarnation;
+        private int generation;
+
+        // Si el enlace de la generacion actual esta en marcha
+        private volatile boolean up;
+
+        // Instante de System.nanoTime() del ultimo datagrama recibido del nodo
+        private volatile long lastHeard;
+
+        private volatile ReliableLink<SharedPayload> link;
+
+        // Lineas enviadas al nodo, lineas recibidas de el y entregas locales de esas lineas
+        private final LongAdder linesOut = new LongAdder();
+        private final LongAdder linesIn = new LongAdder();
+        private final LongAdder deliveries = new LongAdder();
+
+        // Veces que se ha dado por caido
+        private final LongAdder failures = new LongAdder();
+
+        // Usuarios conectados al nodo
+        private final AtomicInteger users = new AtomicInteger();
+
+        private Peer(InetSocketAddress address) {
+            this.address = address;
+            this.label = address.getHostString() + ":" + address.getPort();
+        }
+
+        String label() {
+            return label;
+        }
+
+        boolean isUp() {
+            return up;
+        }
+
+        long linesOut() {
+            return linesOut.sum();
+        }
+
+        long linesIn() {
+            return linesIn.sum();
+        }
+
+        long deliveries() {
+            return deliveries.sum();
+        }
+
+        long failures() {
+            return failures.sum();
+        }
+
+        int users() {
+            return users.get();
+        }
+    }
+}
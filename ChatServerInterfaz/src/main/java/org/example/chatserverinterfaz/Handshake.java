@@ -0,0 +1,32 @@
+package org.example.chatserverinterfaz;
+
+import org.example.chatprotocol.ReliableLink;
+
+/**
+ * Lo que un cliente acordó con el servidor en el saludo (HELLO). El dispatcher guarda uno por dirección
+ * desde el saludo y la {@link Session} del cliente lo comparte al entrar, así que no se copia nada a mano
+ * entre los dos. Cada saludo crea uno nuevo.
+ *
+ * @param link Enlace fiable con el cliente, o null si no lo negoció.
+ * @param batchLimit Tamaño máximo de los datagramas BATCH que acepta, o 0 si no los acepta.
+ * @param compressed true si acepta las cargas comprimidas con el diccionario compartido.
+ * @param heartbeat true si envía latidos, y se le vigila desde que entra.
+ *
+ * @author Alejandro Ramírez
+ */
+record Handshake(ReliableLink<SharedPayload> link, int batchLimit, boolean compressed, boolean heartbeat) {
+
+    /**
+     * Lo que tienen los clientes que no han saludado, como los del protocolo antiguo: nada.
+     */
+    static final Handshake NONE = new Handshake(null, 0, false, false);
+
+    /**
+     * Cancela los reenvíos pendientes del enlace fiable, si lo hay.
+     */
+    void close() {
+        if (link != null) {
+            link.close();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.example.chatserverinterfaz;
+
+import java.io.IOException;
+
+/**
+ * Punto de entrada del servidor sin interfaz gráfica, para máquinas sin pantalla y contenedores. No carga
+ * ninguna clase de JavaFX: el registro se escribe en la salida estándar (y en el fichero de "--log-file",
+ * si se indica).
+ *
+ * Admite las mismas opciones que {@link ServerConfig}. El servidor se detiene cuando un cliente envía
+ * "STOP" o cuando el proceso recibe la señal de terminación.
+ *
+ * @author Alejandro Ramírez
+ */
+public class HeadlessServer {
+
+    /**
+     * Método principal que inicia el servidor sin ventana.
+     *
+     * @param args Opciones "--nombre=valor" de {@link ServerConfig}.
+     */
+    public static void main(String[] args) {
+        ServerConfig config;
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        ChatServer server = new ChatServer(config, () -> { });
+
+        // Cada lote del registro se escribe en la consola de una sola vez
+        server.log().addSink((batch, count) -> {
+            StringBuilder lines = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                lines.append(batch[i]).append('\n');
+            }
+            System.out.print(lines);
+        });
+
+        try {
+            server.start();
+        } catch (IOException e) {
+            System.out.println("Error al iniciar el servidor en el puerto " + config.port() + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        // Ctrl+C o la parada del contenedor detienen el servidor de forma ordenada
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "chat-shutdown"));
+
+        try {
+            server.awaitStop();
+        } catch (InterruptedException e) {
+            server.stop();
+        }
+    }
+}
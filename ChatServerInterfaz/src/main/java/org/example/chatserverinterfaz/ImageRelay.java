@@ -0,0 +1,151 @@
+package org.example.chatserverinterfaz;
+
+import org.example.chatprotocol.Frame;
+import org.example.chatprotocol.ImageChunk;
+
+import java.net.InetSocketAddress;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Control de las imágenes que se están reenviando. El servidor no reconstruye las imágenes: reenvía
+ * cada fragmento al resto de usuarios en cuanto llega, y aquí solo se lleva la cuenta de qué fragmentos
+ * de cada transferencia se han visto, para descartar duplicados y saber cuándo ha terminado.
+ *
+ * Así la memoria que ocupa una imagen en el servidor no depende de su tamaño (un bit por fragmento), y
+ * se limita el número de transferencias simultáneas por usuario y en total. Una transferencia que deja
+ * de recibir fragmentos caduca a los {@link #TRANSFER_TIMEOUT_MILLIS} milisegundos.
+ *
+ * Los fragmentos de un mismo usuario deben procesarse de uno en uno, como ocurre en los dos modos de
+ * despacho; los de usuarios distintos pueden llegar a la vez.
+ *
+ * @author Alejandro Ramírez
+ */
+public class ImageRelay {
+
+    // Transferencias simultaneas por usuario y en todo el servidor
+    static final int MAX_TRANSFERS_PER_SESSION = 4;
+    static final int MAX_TRANSFERS = 256;
+
+    // Tiempo sin recibir fragmentos tras el que una transferencia se da por abandonada
+    static final long TRANSFER_TIMEOUT_MILLIS = 10_000;
+
+    /**
+     * Qué hacer con un fragmento recibido.
+     */
+    public enum Outcome {
+        // Primer fragmento de una transferencia nueva: se reenvia
+        STARTED,
+        // Fragmento nuevo de una transferencia en curso: se reenvia
+        FORWARDED,
+        // Ultimo fragmento que faltaba: se reenvia y la transferencia termina
+        COMPLETED,
+        // Duplicado, incoherente o por encima de los limites: se descarta
+        DROPPED
+    }
+
+    // Transferencias en curso, indexadas por el usuario que envia y el identificador que eligio
+    private final ConcurrentHashMap<TransferKey, Transfer> transfers = new ConcurrentHashMap<>();
+
+    /**
+     * Registra un fragmento de imagen.
+     *
+     * @param source Dirección del usuario que envía la imagen.
+     * @param frame Trama IMAGE recibida.
+     * @return Qué hacer con el fragmento.
+     */
+    public Outcome accept(InetSocketAddress source, Frame frame) {
+        if (!ImageChunk.isValid(frame)) {
+            return Outcome.DROPPED;
+        }
+
+        TransferKey key = new TransferKey(source, ImageChunk.transferId(frame));
+        Transfer transfer = transfers.get(key);
+        boolean started = false;
+        if (transfer == null) {
+            if (!hasRoomFor(source)) {
+                return Outcome.DROPPED;
+            }
+            transfer = new Transfer(ImageChunk.totalLength(frame), ImageChunk.chunkSize(frame));
+            transfers.put(key, transfer);
+            started = true;
+        }
+
+        // Todos los fragmentos de una transferencia deben describir la misma imagen
+        if (transfer.totalLength != ImageChunk.totalLength(frame) || transfer.chunkSize != ImageChunk.chunkSize(frame)) {
+            return Outcome.DROPPED;
+        }
+
+        int index = ImageChunk.index(frame);
+        if (transfer.received.get(index)) {
+            return Outcome.DROPPED;
+        }
+        transfer.received.set(index);
+        transfer.lastActivity = System.nanoTime();
+
+        if (++transfer.receivedCount == transfer.chunkCount) {
+            transfers.remove(key);
+            return Outcome.COMPLETED;
+        }
+        return started ? Outcome.STARTED : Outcome.FORWARDED;
+    }
+
+    /**
+     * Olvida las transferencias de un usuario que abandona el chat.
+     *
+     * @param source Dirección del usuario.
+     */
+    public void release(InetSocketAddress source) {
+        transfers.keySet().removeIf(key -> key.source().equals(source));
+    }
+
+    /**
+     * Número de transferencias en curso.
+     *
+     * @return Transferencias en curso.
+     */
+    public int activeTransfers() {
+        return transfers.size();
+    }
+
+    /**
+     * Comprueba los límites antes de empezar una transferencia. Se descartan antes las caducadas.
+     */
+    private boolean hasRoomFor(InetSocketAddress source) {
+        long deadline = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(TRANSFER_TIMEOUT_MILLIS);
+        transfers.values().removeIf(transfer -> transfer.lastActivity - deadline < 0);
+
+        if (transfers.size() >= MAX_TRANSFERS) {
+            return false;
+        }
+        long own = transfers.keySet().stream().filter(key -> key.source().equals(source)).count();
+        return own < MAX_TRANSFERS_PER_SESSION;
+    }
+
+    private record TransferKey(InetSocketAddress source, int transferId) {
+    }
+
+    /**
+     * Estado de una transferencia: qué fragmentos se han reenviado ya.
+     */
+    private static final class Transfer {
+
+        private final int totalLength;
+        private final int chunkSize;
+        private final int chunkCount;
+
+        // Un bit por fragmento reenviado
+        private final BitSet received;
+        private int receivedCount;
+
+        private volatile long lastActivity = System.nanoTime();
+
+        private Transfer(int totalLength, int chunkSize) {
+            this.totalLength = totalLength;
+            this.chunkSize = chunkSize;
+            this.chunkCount = ImageChunk.chunkCount(totalLength, chunkSize);
+            this.received = new BitSet(chunkCount);
+        }
+    }
+}
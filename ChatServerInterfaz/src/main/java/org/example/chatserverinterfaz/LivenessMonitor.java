@@ -0,0 +1,135 @@
+package org.example.chatserverinterfaz;
+
+import org.example.chatprotocol.TimerWheel;
+
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Detecta a los usuarios que han dejado de dar señales de vida. Un cliente que se cierra sin enviar
+ * DISCONNECT (se cuelga, pierde la red, se suspende el equipo) se quedaría para siempre en el registro y
+ * en su sala; con los latidos el servidor lo da por desconectado pasado un plazo sin recibir nada de él.
+ *
+ * Cada usuario vigilado guarda el momento en el que se le oyó por última vez. Anotarlo es una escritura en
+ * la sesión con un reloj grueso que avanza cada {@link #TICK_MILLIS} ms, sin leer el reloj del sistema ni
+ * reservar memoria por datagrama. La comprobación no recorre a todos los usuarios en cada tick: cada uno
+ * tiene un único plazo en la rueda de temporizadores, que al vencer lo desconecta si sigue callado o se
+ * vuelve a programar para lo que le falta. Cada usuario vigilado se comprueba y se reprograma (con una tarea
+ * nueva) una vez por plazo aunque esté activo, así que el trabajo es del orden de los usuarios vigilados
+ * dividido por el plazo, repartido entre los ticks, y no de los datagramas recibidos.
+ *
+ * La vigilancia empieza al entrar si el cliente aceptó los latidos en el saludo, y si no con su primer latido,
+ * si llega a enviarlo: los clientes que no los envían no se desconectan nunca por inactividad, igual que antes.
+ *
+ * @author Alejandro Ramírez
+ */
+public class LivenessMonitor implements AutoCloseable {
+
+    // Plazo sin recibir nada de un usuario tras el cual se le desconecta, por defecto
+    public static final int DEFAULT_TIMEOUT_SECONDS = 30;
+
+    // Precision del reloj y de los plazos, en milisegundos
+    static final long TICK_MILLIS = 250;
+
+    // Casillas de la rueda: una vuelta dura 64 s, mas que los plazos habituales
+    static final int SLOTS = 256;
+
+    private final TimerWheel wheel;
+
+    private final long timeoutMillis;
+
+    // Indica si la sesion sigue conectada; los plazos de las que ya se han ido se descartan
+    private final Predicate<Session> connected;
+
+    // Desconecta a un usuario que ha superado el plazo
+    private final Consumer<Session> evict;
+
+    private final long startTime = System.nanoTime();
+
+    // Milisegundos desde el arranque, con la precision de un tick. Solo lo escribe el hilo de la rueda
+    private volatile long clock;
+
+    /**
+     * Constructor de la clase LivenessMonitor. Arranca el hilo de su rueda de temporizadores.
+     *
+     * @param timeoutMillis Plazo sin recibir nada de un usuario tras el cual se le desconecta.
+     * @param connected Indica si una sesión sigue conectada.
+     * @param evict Acción que desconecta a un usuario inactivo. Se ejecuta en el hilo de la rueda.
+     */
+    public LivenessMonitor(long timeoutMillis, Predicate<Session> connected, Consumer<Session> evict) {
+        this.timeoutMillis = timeoutMillis;
+        this.connected = connected;
+        this.evict = evict;
+        this.wheel = new TimerWheel("chat-liveness", TICK_MILLIS, SLOTS);
+        wheel.schedule(this::tick, TICK_MILLIS);
+    }
+
+    public long timeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Anota que se ha recibido algo de un usuario. No empieza a vigilarlo.
+     *
+     * @param session Usuario del que se ha recibido un mensaje.
+     */
+    public void seen(Session session) {
+        session.touch(clock);
+    }
+
+    /**
+     * Anota que se ha recibido algo de un usuario y empieza a vigilarlo, si no se le vigilaba ya. Se usa
+     * con cada latido y al entrar los clientes que han aceptado los latidos en el saludo, para no esperar a
+     * su primer latido.
+     *
+     * @param session Usuario que se empieza a vigilar.
+     */
+    public void watch(Session session) {
+        session.touch(clock);
+        if (session.startWatching()) {
+            wheel.schedule(() -> check(session), timeoutMillis);
+        }
+    }
+
+    /**
+     * Programa una tarea para cuando venza el plazo de inactividad, por ejemplo liberar un nombre reservado
+     * que nunca llegó a conectarse.
+     *
+     * @param task Tarea que se ejecuta en el hilo de la rueda.
+     */
+    public void afterTimeout(Runnable task) {
+        wheel.schedule(task, timeoutMillis);
+    }
+
+    /**
+     * Comprueba un usuario vigilado cuando vence su plazo.
+     */
+    private void check(Session session) {
+        if (!connected.test(session)) {
+            return;
+        }
+        long idle = clock - session.lastSeen();
+        if (idle >= timeoutMillis) {
+            evict.accept(session);
+        } else {
+            // Se ha oido al usuario desde que se programo el plazo: se espera solo lo que le falta
+            wheel.schedule(() -> check(session), timeoutMillis - idle);
+        }
+    }
+
+    /**
+     * Avanza el reloj grueso y se vuelve a programar para el siguiente tick.
+     */
+    private void tick() {
+        clock = (System.nanoTime() - startTime) / 1_000_000;
+        wheel.schedule(this::tick, TICK_MILLIS);
+    }
+
+    /**
+     * Detiene la rueda. Los usuarios vigilados ya no se desconectan.
+     */
+    @Override
+    public void close() {
+        wheel.close();
+    }
+}
@@ -0,0 +1,114 @@
+package org.example.chatserverinterfaz;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Cola circular acotada y sin bloqueos para las entradas del registro del servidor. Varios hilos
+ * escriben (los de red, despacho y reenvío) y un único hilo lee.
+ *
+ * Cada casilla lleva un número de secuencia que indica si está libre para la siguiente vuelta de los
+ * escritores o lista para el lector. Un escritor reserva su casilla con un único compare-and-set sobre la
+ * cola y nunca espera: si la cola está llena la entrada se descarta y se cuenta, porque es preferible
+ * perder una línea del registro a frenar la red.
+ *
+ * @author Alejandro Ramírez
+ */
+public final class LogRing {
+
+    private final int mask;
+
+    private final AtomicReferenceArray<String> entries;
+
+    // Secuencia de cada casilla: igual a la posicion si esta libre, posicion + 1 si tiene una entrada
+    private final AtomicLongArray sequences;
+
+    // Siguiente posicion que reservara un escritor
+    private final AtomicLong tail = new AtomicLong();
+
+    // Siguiente posicion que leera el lector. Solo la toca el hilo lector
+    private long head;
+
+    // Entradas descartadas por cola llena
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Constructor de la clase LogRing.
+     *
+     * @param capacity Número de entradas, potencia de dos.
+     */
+    public LogRing(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("La capacidad debe ser una potencia de dos: " + capacity);
+        }
+        this.mask = capacity - 1;
+        this.entries = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Añade una entrada sin bloquear.
+     *
+     * @param entry Línea del registro.
+     * @return false si la cola estaba llena y la entrada se ha descartado.
+     */
+    public boolean offer(String entry) {
+        long position = tail.get();
+        while (true) {
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                // La casilla esta libre: se reserva avanzando la cola
+                if (tail.compareAndSet(position, position + 1)) {
+                    entries.set(slot, entry);
+                    sequences.set(slot, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // El lector no ha liberado aun la casilla de la vuelta anterior: la cola esta llena
+                dropped.incrementAndGet();
+                return false;
+            } else {
+                // Otro escritor ha reservado la casilla primero
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Saca las entradas disponibles, en orden, hasta llenar el array. Solo debe llamarla el hilo lector.
+     *
+     * @param batch Array donde se copian las entradas.
+     * @return Número de entradas copiadas.
+     */
+    public int drain(String[] batch) {
+        int count = 0;
+        while (count < batch.length) {
+            int slot = (int) head & mask;
+
+            // Si el escritor aun no ha publicado la entrada, se deja para la siguiente vez
+            if (sequences.get(slot) != head + 1) {
+                break;
+            }
+            batch[count++] = entries.get(slot);
+            entries.set(slot, null);
+            sequences.set(slot, head + mask + 1);
+            head++;
+        }
+        return count;
+    }
+
+    /**
+     * Número de entradas descartadas desde el arranque.
+     *
+     * @return Entradas descartadas por cola llena.
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+}
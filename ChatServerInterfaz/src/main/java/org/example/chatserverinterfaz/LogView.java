@@ -0,0 +1,107 @@
+package org.example.chatserverinterfaz;
+
+import javafx.animation.AnimationTimer;
+import javafx.scene.control.TextArea;
+
+import java.util.ArrayDeque;
+
+/**
+ * Destino del registro que muestra las líneas en el TextArea de la ventana del servidor.
+ *
+ * El hilo del registro deja las líneas en una lista pendiente y un {@link AnimationTimer} las añade al
+ * TextArea como mucho una vez por fotograma, de una sola vez, en lugar de encolar un
+ * {@code Platform.runLater} por línea. El área conserva solo las últimas líneas: al superar el máximo se
+ * borran las más antiguas, y si entre dos fotogramas llegan más líneas de las que caben, las que no se
+ * llegarían a ver se descartan antes de tocar la interfaz.
+ *
+ * @author Alejandro Ramírez
+ */
+public class LogView implements ServerLog.Sink {
+
+    private final TextArea textArea;
+
+    private final int maxLines;
+
+    // Lineas pendientes de mostrar. Las comparten el hilo del registro y el de JavaFX
+    private ArrayDeque<String> pending = new ArrayDeque<>();
+
+    // Longitud de cada linea mostrada, para borrar las mas antiguas sin recorrer el texto. Solo la usa JavaFX
+    private final ArrayDeque<Integer> shown = new ArrayDeque<>();
+
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            flush();
+        }
+    };
+
+    /**
+     * Constructor de la clase LogView.
+     *
+     * @param textArea Área donde se muestran las líneas.
+     * @param maxLines Líneas que se conservan en el área.
+     */
+    public LogView(TextArea textArea, int maxLines) {
+        this.textArea = textArea;
+        this.maxLines = Math.max(1, maxLines);
+    }
+
+    /**
+     * Empieza a actualizar el área en cada fotograma. Debe llamarse desde el hilo de JavaFX.
+     */
+    public void start() {
+        timer.start();
+    }
+
+    @Override
+    public synchronized void write(String[] batch, int count) {
+        for (int i = 0; i < count; i++) {
+            pending.add(batch[i]);
+        }
+        // Lo que no cabe en la ventana no se llegaria a ver
+        while (pending.size() > maxLines) {
+            pending.poll();
+        }
+    }
+
+    @Override
+    public void close() {
+        timer.stop();
+    }
+
+    /**
+     * Añade al área las líneas pendientes y borra las que sobran. Se ejecuta en el hilo de JavaFX.
+     */
+    private void flush() {
+        ArrayDeque<String> lines;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            lines = pending;
+            pending = new ArrayDeque<>();
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append('\n');
+            shown.add(line.length() + 1);
+        }
+
+        // Se borran primero las lineas antiguas que dejaran de caber, para no mover texto que se va a borrar
+        int remove = 0;
+        while (shown.size() > maxLines) {
+            remove += shown.poll();
+        }
+        int current = textArea.getLength();
+        if (remove > current) {
+            // Parte de lo que sobra es del lote nuevo: se descarta antes de añadirlo
+            text.delete(0, remove - current);
+            remove = current;
+        }
+        if (remove > 0) {
+            textArea.deleteText(0, remove);
+        }
+        textArea.appendText(text.toString());
+    }
+}
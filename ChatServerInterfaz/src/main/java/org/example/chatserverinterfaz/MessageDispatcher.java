@@ -0,0 +1,1497 @@
+package org.example.chatserverinterfaz;
+
+import org.example.chatprotocol.Frame;
+import org.example.chatprotocol.FrameCodec;
+import org.example.chatprotocol.ImageChunk;
+import org.example.chatprotocol.Opcode;
+import org.example.chatprotocol.PacketPool;
+import org.example.chatprotocol.PayloadCompressor;
+import org.example.chatprotocol.ReceiveWindow;
+import org.example.chatprotocol.ReliabilityStats;
+import org.example.chatprotocol.ReliableLink;
+import org.example.chatprotocol.ReliableSender;
+import org.example.chatprotocol.TimerWheel;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Contiene la lógica del chat: clasifica cada datagrama recibido, gestiona la validación de nombres de
+ * usuario y reenvía los mensajes al resto de clientes conectados.
+ *
+ * No sabe nada del socket: los motores ({@link ServerEngine}) le entregan los datagramas recibidos y le
+ * proporcionan una {@link SendPipeline} para responder. Así la misma lógica funciona con el bucle
+ * bloqueante clásico y con el motor NIO.
+ *
+ * Los clientes actuales hablan con tramas binarias ({@link FrameCodec}) y cada trama se despacha con un
+ * switch sobre su código de operación. Si el modo de compatibilidad está activo, también se aceptan los
+ * mensajes de texto del protocolo antiguo ("validate;", "init;", "disconnect;"...). El primer byte de
+ * cada datagrama indica de qué protocolo se trata, y cada usuario recibe los mensajes en el protocolo
+ * con el que se conectó.
+ *
+ * Lo que cada cliente acuerda en el saludo se guarda por dirección en un {@link Handshake} que su sesión
+ * comparte al entrar.
+ *
+ * Los clientes que lo piden en el saludo tienen además un enlace fiable ({@link ReliableLink}): los
+ * mensajes de control y las líneas de chat se numeran por usuario, se confirman y se reenvían si se
+ * pierden, y las tramas duplicadas o desordenadas se reordenan antes de procesarlas. Los avisos de
+ * presencia siguen siendo de entrega no garantizada.
+ *
+ * Los usuarios están repartidos en salas ({@link Room}): las líneas de chat, los avisos de presencia y las
+ * imágenes solo se reenvían a la sala del remitente. Con ROOM_JOIN un cliente cambia de sala y con
+ * ROOM_LEAVE vuelve a la sala general; los clientes del protocolo antiguo se quedan siempre en ella.
+ *
+ * Los clientes que lo acuerdan en el saludo envían un latido (HEARTBEAT, o "heartbeat;usuario" en el
+ * protocolo antiguo) cada pocos segundos. Desde que entran (o, si no lo acordaron, desde su primer latido),
+ * el {@link LivenessMonitor} desconecta al usuario si pasa el plazo de inactividad sin recibir nada de él, y
+ * se avisa a su sala como si hubiera salido.
+ *
+ * Si el servidor tiene historial ({@link ChatJournal}), cada línea de chat se guarda en él y un cliente puede
+ * pedir con HISTORY los últimos mensajes de su sala o los posteriores a una secuencia. Las peticiones se
+ * reproducen en un hilo aparte ("chat-history"), porque recorrer el diario de una sala tranquila junto a
+ * otra con mucho tráfico puede llevar mucho más que despachar un datagrama; con límite de mensajes cada
+ * cliente tiene además un cubo propio y pequeño para ellas ({@link RateLimiter#HISTORY}).
+ *
+ * Si el servidor agrupa los envíos ({@link ServerConfig#batchWindow()}), a los clientes que lo aceptan en el saludo se les
+ * envían las tramas de cada ventana juntas en un datagrama BATCH ({@link OutboundBatcher}).
+ *
+ * Si el servidor comprime ({@link ServerConfig#compress()}), las líneas de chat largas se comprimen una vez con
+ * el diccionario compartido ({@link PayloadCompressor}) y los clientes que lo aceptan en el saludo reciben
+ * esa versión; también pueden enviar sus líneas comprimidas. Cada cliente recibe en VALID un identificador
+ * de sesión que puede enviar como remitente en lugar de su nombre.
+ *
+ * Los clientes que lo acuerdan en el saludo entran con JOIN, que valida el nombre, registra la sesión y
+ * responde JOINED con su identificador y un testigo, en un solo viaje. Si el cliente cambia de dirección (se
+ * reinicia o pierde la red), presenta el testigo con RESUME y recupera su sesión en la misma sala sin validar
+ * otra vez el nombre ni avisar a nadie, y se le reenvía del historial lo que se ha dicho en su sala desde el
+ * último datagrama que se recibió de él.
+ *
+ * Con un {@link RateLimiter}, cada datagrama pasa por el límite de mensajes de su usuario y del servidor
+ * antes de leerlo, con solo su dirección. Lo que supera el límite se descarta, se retrasa en la cola del
+ * usuario o hace que se le desconecte, según la {@link RatePolicy}.
+ *
+ * Con una {@link Federation}, el servidor es un nodo de varios: replica a los demás nodos las entradas,
+ * salidas y cambios de sala de sus usuarios y les envía cada línea de chat una vez por nodo, y reparte entre
+ * sus usuarios las que llegan de ellos. Las tramas de los nodos no pasan por el límite de mensajes.
+ *
+ * Por defecto todo se procesa en el hilo que entrega los datagramas. En el modo
+ * {@link DispatchMode#VIRTUAL} cada usuario tiene su propia cola en un {@link SessionExecutor}: los
+ * mensajes de un usuario se procesan en orden y los de usuarios distintos en paralelo, por lo que el
+ * estado compartido (registro, enlaces, imágenes) vive en estructuras concurrentes.
+ *
+ * Los motores reciben en paquetes de la {@link PacketPool} del dispatcher y se los entregan con
+ * {@link #dispatch(DatagramPacket)}, que los devuelve a la reserva al terminar. Las tramas se leen sobre
+ * el propio buffer y los textos solo se decodifican cuando se van a registrar o reenviar al protocolo
+ * antiguo, así que recibir y clasificar un datagrama no reserva memoria.
+ *
+ * @author Alejandro Ramírez
+ */
+public class MessageDispatcher {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // Paquetes de recepcion que se guardan para reutilizarlos
+    static final int PACKET_POOL_CAPACITY = 1024;
+
+    // Peticiones de historial que pueden esperar a que el hilo del historial las reproduzca
+    static final int REPLAY_QUEUE_CAPACITY = 64;
+
+    // Prefijos de los mensajes del protocolo antiguo, y texto de la orden que detiene el servidor
+    private static final byte[] LEGACY_VALIDATE = "validate;".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LEGACY_DISCONNECT = "disconnect;".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LEGACY_INIT = "init;".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LEGACY_IMAGE = "img;".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LEGACY_HEARTBEAT = "heartbeat;".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LEGACY_STOP = "STOP".getBytes(StandardCharsets.UTF_8);
+
+    // Separador entre el nombre de usuario y el texto en el protocolo antiguo
+    private static final byte[] LEGACY_SEPARATOR = ": ".getBytes(StandardCharsets.UTF_8);
+
+    // Usuarios validados y conectados al servidor
+    private final SessionRegistry registry;
+
+    // Escribe los mensajes en el registro del servidor
+    private final Consumer<String> log;
+
+    // Se ejecuta cuando un cliente solicita detener el servidor
+    private final Runnable stopRequest;
+
+    // Indica si se aceptan los mensajes de texto del protocolo antiguo
+    private final boolean legacyEnabled;
+
+    // Indica si se ofrece la entrega fiable a los clientes que la piden en el saludo
+    private final boolean reliableEnabled;
+
+    // Lo que cada cliente ha acordado en el saludo, indexado por su direccion
+    private final ConcurrentHashMap<InetSocketAddress, Handshake> handshakes = new ConcurrentHashMap<>();
+
+    // Compresores libres. Cada uno reserva memoria nativa, asi que se reutilizan entre hilos en lugar de
+    // crear uno por hilo virtual
+    private final ConcurrentLinkedQueue<PayloadCompressor> compressors = new ConcurrentLinkedQueue<>();
+
+    // Contadores de retransmisiones, duplicados y tiempos de ida y vuelta de todos los enlaces
+    private final ReliabilityStats reliabilityStats = new ReliabilityStats();
+
+    // Rueda donde se programan los reenvios de todos los enlaces
+    private final TimerWheel timers;
+
+    // Transferencias de imagenes que se estan reenviando
+    private final ImageRelay images = new ImageRelay();
+
+    // Lector de tramas de cada hilo que despacha. Se reutiliza para no crear objetos por datagrama
+    private final ThreadLocal<Frame> frames = ThreadLocal.withInitial(Frame::new);
+
+    // Numero de secuencia de las tramas que envia el servidor
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    // Paquetes en los que reciben los motores, del tamaño maximo de datagrama
+    private final PacketPool packets = new PacketPool(FrameCodec.MAX_DATAGRAM_SIZE, PACKET_POOL_CAPACITY);
+
+    // Colas por usuario sobre hilos virtuales, o null si se despacha en el hilo que recibe
+    private final SessionExecutor sessions;
+
+    // Contadores y latencias del servidor
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    // Desconecta a los usuarios que dejan de enviar latidos
+    private final LivenessMonitor liveness;
+
+    // Etapa de envio del motor que esta en marcha
+    private SendPipeline sender;
+
+    // Ventana de los lotes por destinatario en nanosegundos, o 0 si no se agrupa
+    private final long batchWindowNanos;
+
+    // Indica si se ofrece la compresion a los clientes que la piden en el saludo
+    private final boolean compressionEnabled;
+
+    // Limite de mensajes por usuario y del servidor, o null si no hay limite
+    private RateLimiter limiter;
+
+    // Entrada de los motores que reciben en un solo hilo
+    private final Inlet inlet = new Inlet(null);
+
+    // Historial donde se guardan las lineas de chat, o null si el servidor no lo tiene
+    private volatile ChatJournal journal;
+
+    // Hilo que reproduce el historial a los clientes, con su cola de peticiones, o null si no hay historial
+    private ThreadPoolExecutor replays;
+
+    // Los demas nodos de la federacion, o null si el servidor va solo
+    private Federation federation;
+
+    /**
+     * Constructor de la clase MessageDispatcher con la configuración por defecto.
+     *
+     * @param registry Registro de los usuarios del chat.
+     * @param log Destino de los mensajes del registro del servidor.
+     * @param stopRequest Acción que detiene el servidor cuando un usuario conectado desde la
+     *                    misma máquina envía "STOP".
+     */
+    public MessageDispatcher(SessionRegistry registry, Consumer<String> log, Runnable stopRequest) {
+        this(registry, log, stopRequest, ServerConfig.defaults());
+    }
+
+    /**
+     * Constructor de la clase MessageDispatcher. De la configuración toma los protocolos y funcionalidades
+     * que se ofrecen, el modo de despacho, el plazo de inactividad y la ventana de los lotes.
+     *
+     * @param registry Registro de los usuarios del chat.
+     * @param log Destino de los mensajes del registro del servidor.
+     * @param stopRequest Acción que detiene el servidor cuando un usuario conectado desde la
+     *                    misma máquina envía "STOP".
+     * @param config Configuración del servidor.
+     */
+    public MessageDispatcher(SessionRegistry registry, Consumer<String> log, Runnable stopRequest,
+                             ServerConfig config) {
+        this.registry = registry;
+        this.log = log;
+        this.stopRequest = stopRequest;
+        this.legacyEnabled = config.legacy();
+        this.reliableEnabled = config.reliable();
+        this.compressionEnabled = config.compress();
+        this.batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(config.batchWindow());
+        this.timers = reliableEnabled ? new TimerWheel("chat-retransmit", 10, 512) : null;
+        this.sessions = config.dispatch() == DispatchMode.VIRTUAL
+                ? new SessionExecutor(this::process, packets, log) : null;
+        this.liveness = new LivenessMonitor(TimeUnit.SECONDS.toMillis(config.idleTimeout()),
+                session -> registry.lookup(session.address()) == session, this::evictIdle);
+        metrics.bindSessions(registry::size, registry.rooms()::size);
+    }
+
+    /**
+     * Asocia el dispatcher con la etapa de envío del motor. Los motores la llaman al arrancar, antes de
+     * arrancar la etapa, para que registre sus envíos en las métricas del dispatcher.
+     *
+     * @param sender Etapa de envío del motor.
+     */
+    public void attach(SendPipeline sender) {
+        this.sender = sender;
+        sender.instrument(metrics);
+        sender.batch(batchWindowNanos);
+        metrics.bindSendPipeline(sender);
+        if (federation != null) {
+            federation.start(sender, registry, new Federation.Delivery() {
+                @Override
+                public void presence(byte opcode, byte[] nickname, String room, boolean roomChange) {
+                    remotePresence(opcode, nickname, room, roomChange);
+                }
+
+                @Override
+                public int chat(byte[] nickname, String room, byte[] text, int offset, int length,
+                                InetSocketAddress peer) {
+                    return deliverTextMessage(nickname, text, offset, length, registry.rooms().lookup(room), peer);
+                }
+            });
+        }
+    }
+
+    /**
+     * Asocia el dispatcher con el historial de mensajes. Debe llamarse antes de arrancar el motor.
+     *
+     * @param journal Historial donde se guardan las líneas de chat.
+     */
+    public void attach(ChatJournal journal) {
+        // Si la cola se llena se descartan las peticiones nuevas: el cliente puede volver a pedirlas
+        this.replays = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(REPLAY_QUEUE_CAPACITY), runnable -> {
+                    Thread thread = new Thread(runnable, "chat-history");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        this.journal = journal;
+    }
+
+    /**
+     * Asocia el dispatcher con los demás nodos de una federación. Debe llamarse antes de arrancar el motor;
+     * los latidos a los nodos empiezan cuando el motor le da su etapa de envío.
+     *
+     * @param federation Nodos de la federación.
+     */
+    public void attach(Federation federation) {
+        this.federation = federation;
+        metrics.bindFederation(federation);
+    }
+
+    /**
+     * Asocia el dispatcher con un límite de mensajes. Debe llamarse antes de arrancar el motor. El retraso
+     * ({@link RatePolicy#DELAY}) necesita las colas por usuario del modo {@link DispatchMode#VIRTUAL}; en el
+     * modo de un solo hilo los datagramas que habría que retrasar se descartan.
+     *
+     * @param limiter Límite de mensajes por usuario y del servidor.
+     */
+    public void attach(RateLimiter limiter) {
+        this.limiter = limiter;
+        inlet.limiter = limiter;
+    }
+
+    /**
+     * Métricas del servidor. Los motores registran en ellas su cola de despacho.
+     *
+     * @return Las métricas del dispatcher.
+     */
+    public ServerMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Reserva de paquetes en la que deben recibir los motores.
+     *
+     * @return La reserva del dispatcher.
+     */
+    public PacketPool packets() {
+        return packets;
+    }
+
+    /**
+     * Cancela los reenvíos pendientes y detiene la rueda de temporizadores.
+     */
+    public void close() {
+        if (sessions != null) {
+            sessions.shutdown();
+        }
+        handshakes.values().forEach(Handshake::close);
+        handshakes.clear();
+        liveness.close();
+        if (replays != null) {
+            replays.shutdownNow();
+        }
+        if (federation != null) {
+            federation.close();
+        }
+        if (timers != null) {
+            timers.close();
+        }
+    }
+
+    /**
+     * Contadores de la entrega fiable.
+     *
+     * @return Retransmisiones, duplicados y tiempos de ida y vuelta de todos los enlaces.
+     */
+    public ReliabilityStats reliabilityStats() {
+        return reliabilityStats;
+    }
+
+    /**
+     * Registra un mensaje en el área de registro del servidor.
+     *
+     * @param message El mensaje a registrar.
+     */
+    public void log(String message) {
+        log.accept(message);
+    }
+
+    /**
+     * Procesa un datagrama recibido por un motor, en el hilo que llama o en la cola del usuario según el
+     * modo de despacho. Debe llamarse siempre desde el mismo hilo; los motores que reciben en varios hilos
+     * usan una {@link Inlet} en cada uno.
+     *
+     * @param packet Paquete tomado de {@link #packets()} con el datagrama y su remitente. El dispatcher lo
+     *               devuelve a la reserva; quien llama no debe reutilizarlo.
+     */
+    public void dispatch(DatagramPacket packet) {
+        inlet.dispatch(packet);
+    }
+
+    /**
+     * Procesa un datagrama recibido de un cliente, en el hilo que llama o en la cola del usuario según
+     * el modo de despacho.
+     *
+     * @param data Array que contiene los bytes recibidos. Se puede reutilizar al volver.
+     * @param length Número de bytes válidos en data.
+     * @param source Dirección y puerto del cliente que envió el datagrama.
+     */
+    public void dispatch(byte[] data, int length, InetSocketAddress source) {
+        inlet.dispatch(data, length, source);
+    }
+
+    /**
+     * Crea una entrada para uno de los hilos que reciben de un motor con varios. Cada entrada tiene su caché
+     * de direcciones y su parte del límite de mensajes, así que los hilos no comparten nada por datagrama.
+     * Debe llamarse después de {@link #attach(RateLimiter)}.
+     *
+     * @param receivers Hilos que reciben, para repartir entre ellos el límite total de mensajes.
+     * @return Una entrada nueva.
+     */
+    public Inlet inlet(int receivers) {
+        return new Inlet(limiter != null ? limiter.share(receivers) : null);
+    }
+
+    /**
+     * Clasifica y procesa un datagrama.
+     *
+     * @param data Array que contiene los bytes recibidos.
+     * @param length Número de bytes válidos en data.
+     * @param source Dirección y puerto del cliente que envió el datagrama.
+     */
+    private void process(byte[] data, int length, InetSocketAddress source) {
+        long start = metrics.startDispatch();
+
+        // El primer byte basta para saber si es una trama binaria o un mensaje de texto
+        if (Frame.isFrame(data[0])) {
+            Frame frame = frames.get();
+            if (frame.wrap(data, 0, length)) {
+                metrics.recordInbound(frame.opcode(), length);
+                dispatchFrame(frame, source);
+            } else {
+                metrics.recordInvalid(length);
+                log.accept("Trama no válida recibida de " + source);
+            }
+        } else if (legacyEnabled) {
+            metrics.recordLegacyInbound(length);
+            dispatchLegacy(data, length, source);
+        }
+
+        metrics.endDispatch(start);
+    }
+
+    /**
+     * Despacha una trama binaria. Las tramas fiables de un cliente con enlace pasan antes por su
+     * ventana de recepción, que descarta los duplicados y las entrega en orden.
+     *
+     * @param frame Trama recibida.
+     * @param source Dirección y puerto del cliente.
+     */
+    private void dispatchFrame(Frame frame, InetSocketAddress source) {
+        ReliableLink<SharedPayload> link = frame.isReliable() ? linkTo(source) : null;
+        if (link == null) {
+            handleFrame(frame, source);
+            return;
+        }
+
+        ReceiveWindow window = link.window();
+        if (window.accept(frame) == ReceiveWindow.Verdict.DELIVER) {
+            handleFrame(frame, source);
+
+            // La trama recibida puede completar un hueco: se procesan las que esperaban detras
+            while (window.poll(frame)) {
+                handleFrame(frame, source);
+            }
+        }
+
+        // Se confirma siempre, tambien los duplicados, por si se perdio la confirmacion anterior
+        sender.send(SharedPayload.wrap(window.ack()), source);
+    }
+
+    /**
+     * Enlace fiable con un cliente o, si no lo es, con un nodo de la federación.
+     *
+     * @param source Dirección del remitente.
+     * @return El enlace, o null si no tiene.
+     */
+    private ReliableLink<SharedPayload> linkTo(InetSocketAddress source) {
+        ReliableLink<SharedPayload> link = handshake(source).link();
+        return link == null && federation != null ? federation.link(source) : link;
+    }
+
+    /**
+     * Procesa una trama binaria según su código de operación.
+     *
+     * @param frame Trama recibida.
+     * @param source Dirección y puerto del cliente.
+     */
+    private void handleFrame(Frame frame, InetSocketAddress source) {
+        switch (frame.opcode()) {
+            case Opcode.CHAT -> {
+                // Solo se reenvian los mensajes de usuarios conectados, con el nombre que tienen registrado
+                Session session = registry.lookup(source);
+                if (session != null) {
+                    seen(session);
+                    handleChat(frame, session, source);
+                }
+            }
+            case Opcode.HEARTBEAT -> handleHeartbeat(source);
+            case Opcode.HELLO -> handleHello(frame, source);
+            case Opcode.ACK -> {
+                ReliableLink<SharedPayload> link = linkTo(source);
+                if (link != null) {
+                    link.sender().acknowledge(frame.sequence(), frame.ackMask());
+                }
+            }
+            case Opcode.VALIDATE -> handleValidation(frame.sender(), source, false);
+            case Opcode.INIT -> handleJoin(frame.sender(), source, false);
+            case Opcode.JOIN -> handleJoinRequest(frame.sender(), source);
+            case Opcode.RESUME -> handleResume(frame, source);
+            case Opcode.DISCONNECT -> handleLeave(frame.sender(), source);
+            case Opcode.IMAGE -> relayImage(frame, source);
+            case Opcode.STOP -> {
+                Session session = registry.lookup(source);
+                if (session != null && frame.senderEquals(session.nicknameBytes())) {
+                    handleStop(session);
+                }
+            }
+            case Opcode.ROOM_JOIN -> handleRoomChange(frame.text(), source);
+            case Opcode.ROOM_LEAVE -> handleRoomChange(RoomDirectory.DEFAULT_ROOM, source);
+            case Opcode.HISTORY -> handleHistory(frame, source);
+            case Opcode.PEER_HELLO, Opcode.PEER_JOIN, Opcode.PEER_LEAVE, Opcode.PEER_CHAT -> {
+                if (federation != null) {
+                    federation.receive(frame, source);
+                }
+            }
+            default -> log.accept("Trama desconocida recibida de " + source + ": " + frame);
+        }
+    }
+
+    /**
+     * Reenvía la línea de chat de un usuario conectado con el nombre que tiene registrado. Si la envía con su
+     * identificador de sesión, debe ser el suyo; si la envía comprimida, se descomprime antes.
+     *
+     * @param frame Trama CHAT.
+     * @param session Usuario que la envía.
+     * @param source Dirección y puerto del cliente.
+     */
+    private void handleChat(Frame frame, Session session, InetSocketAddress source) {
+        if ((frame.flags() & FrameCodec.FLAG_SENDER_ID) != 0 && frame.senderId() != session.id()) {
+            return;
+        }
+        if ((frame.flags() & FrameCodec.FLAG_COMPRESSED) == 0) {
+            forwardTextMessage(session.nicknameBytes(), frame.buffer(), frame.payloadOffset(), frame.payloadLength(),
+                    session.room(), source);
+            return;
+        }
+
+        PayloadCompressor compressor = acquireCompressor();
+        try {
+            int length = compressor.inflate(frame);
+            if (length < 0) {
+                log.accept("Línea comprimida no válida de " + session.nickname());
+                return;
+            }
+            forwardTextMessage(session.nicknameBytes(), compressor.buffer(), 0, length, session.room(), source);
+        } finally {
+            compressors.offer(compressor);
+        }
+    }
+
+    private PayloadCompressor acquireCompressor() {
+        PayloadCompressor compressor = compressors.poll();
+        return compressor != null ? compressor : new PayloadCompressor();
+    }
+
+    /**
+     * Responde al saludo de un cliente con la versión y las funcionalidades que se usarán, y guarda lo
+     * acordado. Si ambas partes admiten la entrega fiable, se crea el enlace del cliente; si ya tenía uno (el
+     * cliente se ha reiniciado con la misma dirección), se descarta junto con sus reenvíos pendientes. Si el
+     * cliente no llega a entrar dentro del plazo de inactividad, lo acordado se olvida.
+     *
+     * @param frame Trama HELLO. La carga lleva la versión, las funcionalidades y el tamaño máximo de
+     *              datagrama que pide el cliente.
+     * @param source Dirección y puerto del cliente.
+     */
+    private void handleHello(Frame frame, InetSocketAddress source) {
+        byte[] buffer = frame.buffer();
+        int offset = frame.payloadOffset();
+
+        // Se acepta la version mas alta que entienden ambas partes
+        int requested = frame.payloadLength() > 0 ? buffer[offset] : 1;
+        int features = frame.payloadLength() > 1 ? buffer[offset + 1] : 0;
+        int accepted = reliableEnabled ? features & FrameCodec.FEATURE_RELIABLE : 0;
+
+        // Los latidos y la entrada con JOIN se aceptan siempre: el servidor no necesita nada para atenderlos
+        accepted |= features & (FrameCodec.FEATURE_HEARTBEAT | FrameCodec.FEATURE_RESUME);
+
+        // El datagrama mas grande que se enviara al cliente, si el lo pide menor que el del servidor
+        int maxDatagram = FrameCodec.helloMaxDatagram(frame);
+
+        // Los lotes se llenan hasta ese mismo tamaño
+        if (batchWindowNanos > 0 && (features & FrameCodec.FEATURE_BATCH) != 0) {
+            accepted |= FrameCodec.FEATURE_BATCH;
+        }
+
+        // Las cargas comprimidas solo se envian a quien las pide; el servidor las acepta de quien las ofrece
+        if (compressionEnabled && (features & FrameCodec.FEATURE_COMPRESS) != 0) {
+            accepted |= FrameCodec.FEATURE_COMPRESS;
+        }
+
+        Handshake handshake = new Handshake(
+                (accepted & FrameCodec.FEATURE_RELIABLE) != 0 ? openLink(source) : null,
+                (accepted & FrameCodec.FEATURE_BATCH) != 0 ? maxDatagram : 0,
+                (accepted & FrameCodec.FEATURE_COMPRESS) != 0,
+                (accepted & FrameCodec.FEATURE_HEARTBEAT) != 0);
+        Handshake previous = handshakes.put(source, handshake);
+        if (previous != null) {
+            previous.close();
+        }
+
+        Session session = registry.lookup(source);
+        if (session != null) {
+            session.attach(handshake);
+            watchIfBeating(session);
+        } else {
+            // Quien saluda y no entra (un intento de reconexion fallido, un nombre rechazado, una direccion
+            // falsa) no debe dejar su enlace para siempre
+            liveness.afterTimeout(() -> expire(source, handshake));
+        }
+
+        byte[] reply = FrameCodec.helloPayload(Math.min(requested, FrameCodec.VERSION), accepted, maxDatagram);
+        sendFrame(Opcode.HELLO, EMPTY, reply, source);
+    }
+
+    /**
+     * Crea el enlace fiable de un cliente.
+     *
+     * @param source Dirección y puerto del cliente.
+     * @return El enlace nuevo.
+     */
+    private ReliableLink<SharedPayload> openLink(InetSocketAddress source) {
+        return new ReliableLink<>(timers, new ReliableSender.Transmitter<>() {
+            @Override
+            public void retransmit(SharedPayload payload, int sequence) {
+                sender.send(payload, sequence, source);
+            }
+
+            @Override
+            public void abandon(SharedPayload payload, int sequence) {
+                linkLost(source);
+            }
+        }, reliabilityStats);
+    }
+
+    /**
+     * Lo que un cliente acordó en el saludo.
+     *
+     * @param source Dirección y puerto del cliente.
+     * @return Lo acordado, o {@link Handshake#NONE} si no ha saludado.
+     */
+    private Handshake handshake(InetSocketAddress source) {
+        Handshake handshake = handshakes.get(source);
+        return handshake != null ? handshake : Handshake.NONE;
+    }
+
+    /**
+     * Olvida lo que un cliente acordó en un saludo si sigue sin usuario conectado desde su dirección y no ha
+     * vuelto a saludar. Se ejecuta en el hilo del {@link LivenessMonitor}.
+     *
+     * @param source Dirección y puerto del cliente.
+     * @param handshake Lo acordado en ese saludo.
+     */
+    private void expire(InetSocketAddress source, Handshake handshake) {
+        if (registry.lookup(source) == null && handshakes.remove(source, handshake)) {
+            handshake.close();
+        }
+    }
+
+    /**
+     * Olvida lo que un cliente acordó en el saludo y cierra su enlace fiable.
+     *
+     * @param source Dirección y puerto del cliente.
+     */
+    private void closeLink(InetSocketAddress source) {
+        Handshake handshake = handshakes.remove(source);
+        if (handshake != null) {
+            handshake.close();
+        }
+    }
+
+    /**
+     * Se llama cuando un cliente no confirma una trama tras agotar los reenvíos. Se da por
+     * desconectado y se avisa al resto de usuarios.
+     *
+     * @param source Dirección y puerto del cliente.
+     */
+    private void linkLost(InetSocketAddress source) {
+        log.accept("Se ha perdido la conexión con " + source);
+        closeLink(source);
+        images.release(source);
+
+        Session session = registry.leave(source);
+        if (session != null) {
+            notifyPresence(Opcode.PRESENCE_LEAVE, session, " ha abandonado el chat!", session.room(), EMPTY);
+            replicateLeave(session);
+        }
+    }
+
+    /**
+     * Anota el latido de un usuario conectado. Los latidos de direcciones sin usuario se ignoran.
+     *
+     * @param source Dirección y puerto del cliente.
+     */
+    private void handleHeartbeat(InetSocketAddress source) {
+        Session session = registry.lookup(source);
+        if (session != null) {
+            liveness.watch(session);
+            markHistory(session);
+        }
+    }
+
+    /**
+     * Anota que se ha recibido algo de un usuario, para el {@link LivenessMonitor} y para saber desde dónde
+     * reenviarle el historial si reanuda la sesión.
+     *
+     * @param session Usuario conectado.
+     */
+    private void seen(Session session) {
+        liveness.seen(session);
+        markHistory(session);
+    }
+
+    /**
+     * Empieza a vigilar a un usuario que acaba de entrar si su cliente aceptó los latidos en el saludo. Los
+     * clientes que no los negociaron se vigilan desde su primer latido, si llegan a enviarlo.
+     *
+     * @param session Usuario conectado.
+     */
+    private void watchIfBeating(Session session) {
+        if (session.handshake().heartbeat()) {
+            liveness.watch(session);
+        }
+    }
+
+    private void markHistory(Session session) {
+        ChatJournal history = journal;
+        if (history != null) {
+            session.markHistory(history.lastSequence());
+        }
+    }
+
+    /**
+     * Desconecta a un usuario que ha superado el plazo de inactividad, igual que si hubiera enviado
+     * DISCONNECT, y avisa a los usuarios de su sala. Se ejecuta en el hilo del {@link LivenessMonitor}.
+     *
+     * @param session Usuario inactivo.
+     */
+    private void evictIdle(Session session) {
+        // Si el usuario se ha ido o se ha vuelto a conectar mientras tanto, no se toca su nueva sesion
+        InetSocketAddress source = session.address();
+        if (!registry.leave(source, session)) {
+            return;
+        }
+        closeLink(source);
+        images.release(source);
+        log.accept(session.nickname() + " desconectado por inactividad");
+        metrics.recordIdleEviction();
+        notifyPresence(Opcode.PRESENCE_LEAVE, session, " ha abandonado el chat!", session.room(), EMPTY);
+        replicateLeave(session);
+    }
+
+    /**
+     * Desconecta a un usuario que ha superado su límite de mensajes, igual que si hubiera enviado DISCONNECT,
+     * y avisa a los usuarios de su sala. Los datagramas que siga enviando se descartan por el límite mientras
+     * no baje el ritmo, y después se tratan como los de un usuario que no se ha conectado.
+     *
+     * @param source Dirección y puerto del cliente.
+     */
+    private void kick(InetSocketAddress source) {
+        Session session = registry.lookup(source);
+        if (session == null || !registry.leave(source, session)) {
+            return;
+        }
+        closeLink(source);
+        images.release(source);
+        log.accept(session.nickname() + " expulsado por enviar demasiados mensajes");
+        metrics.recordRateKick();
+        notifyPresence(Opcode.PRESENCE_LEAVE, session, " ha abandonado el chat!", session.room(), EMPTY);
+        replicateLeave(session);
+    }
+
+    /**
+     * Cambia a un usuario de sala, avisa a los miembros de la sala que deja y de la nueva y le confirma al
+     * cliente la sala en la que está.
+     *
+     * @param roomName Nombre de la sala de destino.
+     * @param source Dirección y puerto del cliente.
+     */
+    private void handleRoomChange(String roomName, InetSocketAddress source) {
+        Session session = registry.lookup(source);
+        if (session == null) {
+            return;
+        }
+        if (!RoomDirectory.isValidName(roomName)) {
+            log.accept("Nombre de sala no válido de " + session.nickname() + ": " + roomName);
+            roomName = session.room().name();
+        }
+
+        Room previous = session.room();
+        Room room = previous.name().equals(roomName) ? previous : registry.move(session, roomName);
+        if (room == null) {
+            return;
+        }
+        if (room != previous) {
+            notifyPresence(Opcode.PRESENCE_LEAVE, session, " ha abandonado la sala " + previous.name(), previous,
+                    previous.nameBytes());
+            notifyPresence(Opcode.PRESENCE_JOIN, session, " ha entrado en la sala " + room.name(), room,
+                    room.nameBytes());
+            log.accept(session.nickname() + " está en la sala " + room.name());
+            replicateJoin(session);
+        }
+        sendFrame(Opcode.ROOM, EMPTY, room.nameBytes(), source);
+    }
+
+    /**
+     * Reproduce al cliente los mensajes anteriores de su sala que pide, directamente desde los segmentos
+     * del historial y en el hilo del historial. Los mensajes se envían sin entrega fiable, como las imágenes:
+     * son cientos de tramas que desbordarían la ventana de reenvíos, y al cliente le basta con volver a pedir
+     * los que le falten.
+     *
+     * @param frame Trama HISTORY con el modo y el valor de la petición.
+     * @param source Dirección y puerto del cliente.
+     */
+    private void handleHistory(Frame frame, InetSocketAddress source) {
+        ChatJournal history = journal;
+        Session session = registry.lookup(source);
+        int mode = FrameCodec.historyMode(frame);
+        if (history == null || session == null || mode < 0) {
+            return;
+        }
+
+        Room room = session.room();
+        long value = FrameCodec.historyValue(frame);
+        replays.execute(() -> {
+            Consumer<ByteBuffer> replay = record -> sender.send(SharedPayload.mapped(record), source);
+            int replayed = mode == FrameCodec.HISTORY_SINCE
+                    ? history.replaySince(room.nameBytes(), value, replay)
+                    : history.replayLast(room.nameBytes(),
+                            (int) Math.min(Math.max(value, 0), ChatJournal.MAX_REPLAY), replay);
+            log.accept("Historial de la sala " + room.name() + " enviado a " + session.nickname() + ": "
+                    + replayed + " mensajes");
+        });
+    }
+
+    /**
+     * Reenvía un fragmento de imagen al resto de usuarios en cuanto llega, sin esperar al resto de la
+     * imagen. Solo se reenvían los fragmentos de usuarios conectados que llevan su propio nombre como
+     * remitente; los clientes del protocolo antiguo no reciben imágenes.
+     *
+     * @param frame Trama IMAGE recibida.
+     * @param source Dirección y puerto del remitente.
+     */
+    private void relayImage(Frame frame, InetSocketAddress source) {
+        Session session = registry.lookup(source);
+        if (session == null || !frame.senderEquals(session.nicknameBytes())) {
+            return;
+        }
+
+        seen(session);
+        ImageRelay.Outcome outcome = images.accept(source, frame);
+        if (outcome == ImageRelay.Outcome.DROPPED) {
+            return;
+        }
+
+        // La trama se reenvia tal cual a la sala; se copia porque el buffer de recepcion se reutiliza
+        SharedPayload chunk = SharedPayload.copyOf(frame.buffer(), frame.offset(), frame.length());
+        sender.broadcast(chunk, null, session.room().members(), source);
+
+        if (outcome == ImageRelay.Outcome.STARTED) {
+            log.accept(session.nickname() + " está enviando una imagen ("
+                    + ImageChunk.totalLength(frame) / 1024 + " KB)");
+        } else if (outcome == ImageRelay.Outcome.COMPLETED) {
+            log.accept("Imagen de " + session.nickname() + " reenviada");
+        }
+    }
+
+    /**
+     * Despacha un mensaje del protocolo de texto antiguo.
+     *
+     * @param data Array que contiene el mensaje.
+     * @param length Número de bytes válidos en data.
+     * @param source Dirección y puerto del cliente.
+     */
+    private void dispatchLegacy(byte[] data, int length, InetSocketAddress source) {
+        // Se clasifica comparando bytes: solo se convierte a String el nombre de usuario, si lo hay
+
+        // Si el mensaje comienza con validate; valida que el nombre de usuario no esté registrado en el chat
+        if (startsWith(data, length, LEGACY_VALIDATE)) {
+            handleValidation(legacyArgument(data, length, LEGACY_VALIDATE), source, true);
+        }
+
+        // Si el mensaje comienza con disconnect; el usuario abandona el chat
+        else if (startsWith(data, length, LEGACY_DISCONNECT)) {
+            String nickname = legacyArgument(data, length, LEGACY_DISCONNECT);
+            log.accept("Mensaje de desconexión recibido: disconnect;" + nickname);
+            handleLeave(nickname, source);
+        }
+
+        // Si el mensaje comienza con init; entra un nuevo usuario al chat
+        else if (startsWith(data, length, LEGACY_INIT)) {
+            handleJoin(legacyArgument(data, length, LEGACY_INIT), source, true);
+        }
+
+        // Si el mensaje comienza con heartbeat; el usuario sigue activo aunque no escriba
+        else if (startsWith(data, length, LEGACY_HEARTBEAT)) {
+            handleHeartbeat(source);
+        }
+
+        // Si el mensaje empieza con img; se asume que es una imagen
+        else if (startsWith(data, length, LEGACY_IMAGE)) {
+            log.accept("Mensaje de imagen recibido: " + new String(data, 0, length, StandardCharsets.UTF_8));
+        }
+
+        // Si no es ninguna de las anteriores se asume que es un mensaje de texto normal ("usuario: texto")
+        else {
+            Session session = registry.lookup(source);
+            int prefix = session == null ? 0 : legacyPrefixLength(session.nicknameBytes(), data, length);
+            byte[] nickname = prefix == 0 ? EMPTY : session.nicknameBytes();
+            if (session != null) {
+                liveness.seen(session);
+            }
+
+            // Si la linea completa es "usuario: STOP", con el nombre del usuario conectado, se para el servidor
+            if (prefix > 0 && Arrays.equals(data, prefix, length, LEGACY_STOP, 0, LEGACY_STOP.length)) {
+                handleStop(session);
+                return;
+            }
+
+            // Las lineas de quien no se ha conectado van a la sala general, donde estan los clientes antiguos
+            Room room = session != null ? session.room() : registry.rooms().lookup(RoomDirectory.DEFAULT_ROOM);
+            forwardTextMessage(nickname, data, prefix, length - prefix, room, source);
+        }
+    }
+
+    private static boolean startsWith(byte[] data, int length, byte[] prefix) {
+        return length >= prefix.length && Arrays.equals(data, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    /**
+     * Texto que sigue al prefijo de un mensaje de control del protocolo antiguo.
+     */
+    private static String legacyArgument(byte[] data, int length, byte[] prefix) {
+        return new String(data, prefix.length, length - prefix.length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Detiene el servidor a petición de un usuario conectado. Solo se obedece a los usuarios que se conectan
+     * desde la misma máquina que el servidor: cualquiera que pueda enviar un datagrama al puerto del chat
+     * podría pararlo si no.
+     *
+     * @param session Usuario que pide detener el servidor.
+     */
+    private void handleStop(Session session) {
+        if (!session.address().getAddress().isLoopbackAddress()) {
+            log.accept("Solicitud de detener el servidor ignorada: " + session.nickname() + " no se conecta desde "
+                    + "esta máquina (" + session.address() + ")");
+            return;
+        }
+
+        // Se registra el mensaje en el área de registro del servidor
+        log.accept("Servidor detenido por solicitud de " + session.nickname());
+
+        // Se para el servidor
+        stopRequest.run();
+    }
+
+    /**
+     * Valida un nombre de usuario solicitado por un cliente.
+     *
+     * @param requestedUsername El nombre de usuario a validar.
+     * @param source La dirección IP y el puerto del cliente.
+     * @param legacy true si el cliente usa el protocolo de texto antiguo.
+     */
+    private void handleValidation(String requestedUsername, InetSocketAddress source, boolean legacy) {
+
+        // Si el nombre de usuario ya esta reservado, aqui o en otro nodo, envía que no es válido
+        Session session = requestedUsername.isEmpty() || isRemote(requestedUsername) ? null
+                : registry.reserve(requestedUsername, source, legacy);
+        if (session == null) {
+            // Enviar mensaje al cliente indicando que el Nick no es válido
+            reply(legacy, Opcode.INVALID, "invalid", source);
+
+            log.accept("Nick de usuario en uso: " + requestedUsername +
+                    "\nSe solicita a cliente que introduzca nick alternativo");
+        }
+
+        // Si el nombre de usuario estaba libre queda reservado para este cliente y se envía que es válido
+        else {
+            session.attach(handshake(source));
+
+            // Enviar mensaje al cliente indicando que el Nick es válido, con su identificador de sesion
+            if (legacy) {
+                reply(true, Opcode.VALID, "valid", source);
+            } else {
+                sendFrame(Opcode.VALID, EMPTY, FrameCodec.idBytes(session.id()), source);
+            }
+
+            // Solo imprimir el mensaje en el servidor si el Nick es válido
+            log.accept("Usuario conectado correctamente: " + requestedUsername);
+
+            // Si el cliente desaparece sin llegar a conectarse, su nombre se libera pasado el plazo
+            Session reserved = session;
+            liveness.afterTimeout(() -> {
+                if (registry.lookup(requestedUsername) == reserved && registry.lookup(source) != reserved
+                        && registry.release(requestedUsername, source)) {
+                    log.accept("Reserva caducada: " + requestedUsername);
+                }
+            });
+        }
+    }
+
+    /**
+     * Añade un usuario a la lista de conectados y avisa al resto.
+     *
+     * @param nickname Nombre de usuario validado.
+     * @param source Dirección y puerto del cliente.
+     * @param legacy true si el cliente usa el protocolo de texto antiguo.
+     */
+    private void handleJoin(String nickname, InetSocketAddress source, boolean legacy) {
+        log.accept(nickname + " está activo");
+
+        // Se añade el usuario a la lista de conectados, si el nombre no lo tiene un usuario de otro nodo
+        Session session = isRemote(nickname) ? null : registry.join(nickname, source, legacy);
+        if (session == null) {
+            log.accept("Nick de usuario en uso por otro cliente: " + nickname);
+            return;
+        }
+        if (!legacy) {
+            session.attach(handshake(source));
+            watchIfBeating(session);
+        }
+
+        // Reenvia el mensaje de inicialización a los usuarios de su sala y a los demas nodos
+        notifyPresence(Opcode.PRESENCE_JOIN, session, " ha entrado al chat!", session.room(), EMPTY);
+        replicateJoin(session);
+    }
+
+    /**
+     * Valida un nombre de usuario y, si está libre, conecta al cliente con él en el mismo paso: se le responde
+     * JOINED con su identificador y su testigo de sesión y se avisa a su sala. Si el cliente repite la
+     * petición porque no le llegó la respuesta, se le vuelve a enviar la misma.
+     *
+     * @param nickname Nombre de usuario solicitado.
+     * @param source Dirección y puerto del cliente.
+     */
+    private void handleJoinRequest(String nickname, InetSocketAddress source) {
+        Session current = registry.lookup(source);
+        if (current != null && current.nickname().equals(nickname) && current.token() != 0) {
+            sendFrame(Opcode.JOINED, current.nicknameBytes(), FrameCodec.joinedPayload(current.id(), current.token()),
+                    source);
+            return;
+        }
+
+        // Si el nombre de usuario ya esta en uso, aqui o en otro nodo, envía que no es válido
+        Session session = nickname.isEmpty() || isRemote(nickname) ? null : registry.join(nickname, source, false);
+        if (session == null) {
+            sendFrame(Opcode.INVALID, EMPTY, EMPTY, source);
+            log.accept("Nick de usuario en uso: " + nickname +
+                    "\nSe solicita a cliente que introduzca nick alternativo");
+            return;
+        }
+        session.attach(handshake(source));
+        watchIfBeating(session);
+        markHistory(session);
+
+        long token = registry.issueToken(session);
+        sendFrame(Opcode.JOINED, session.nicknameBytes(), FrameCodec.joinedPayload(session.id(), token), source);
+        log.accept("Usuario conectado correctamente: " + nickname);
+
+        notifyPresence(Opcode.PRESENCE_JOIN, session, " ha entrado al chat!", session.room(), EMPTY);
+        replicateJoin(session);
+    }
+
+    /**
+     * Reanuda la sesión de un cliente que presenta su testigo desde otra dirección. La sesión conserva su
+     * nombre y su sala, y se cierra el enlace de la dirección anterior. El resto de la sala no se entera: para
+     * ellos el usuario no se ha ido. Se le responde JOINED y ROOM, y se le reproducen los mensajes de la sala
+     * posteriores al último datagrama que se recibió de él. Si el testigo no es válido se responde INVALID y
+     * el cliente debe entrar con JOIN.
+     *
+     * @param frame Trama RESUME con el testigo.
+     * @param source Dirección y puerto desde los que se reanuda.
+     */
+    private void handleResume(Frame frame, InetSocketAddress source) {
+        long token = FrameCodec.resumeToken(frame);
+        Session previous = registry.lookup(token);
+        Session session = previous != null && frame.senderEquals(previous.nicknameBytes())
+                ? registry.resume(token, source) : null;
+        if (session == null) {
+            sendFrame(Opcode.INVALID, EMPTY, EMPTY, source);
+            log.accept("Sesión no válida para reanudar desde " + source);
+            return;
+        }
+        if (session != previous) {
+            closeLink(previous.address());
+            images.release(previous.address());
+            session.attach(handshake(source));
+            log.accept(session.nickname() + " ha vuelto desde " + source);
+        }
+        liveness.seen(session);
+        watchIfBeating(session);
+
+        Room room = session.room();
+        sendFrame(Opcode.JOINED, session.nicknameBytes(), FrameCodec.joinedPayload(session.id(), token), source);
+        sendFrame(Opcode.ROOM, EMPTY, room.nameBytes(), source);
+
+        // Lo que se ha dicho en la sala desde la ultima vez que se supo del cliente
+        ChatJournal history = journal;
+        if (history != null) {
+            long since = session.historyMark();
+            markHistory(session);
+            replays.execute(() -> {
+                int replayed = history.replaySince(room.nameBytes(), since,
+                        record -> sender.send(SharedPayload.mapped(record), source));
+                log.accept("Historial de la sala " + room.name() + " enviado a " + session.nickname() + ": "
+                        + replayed + " mensajes");
+            });
+        }
+    }
+
+    /**
+     * Elimina a un usuario de la lista de conectados y avisa al resto.
+     *
+     * @param nickname Nombre de usuario que indica el cliente.
+     * @param source Dirección y puerto del cliente.
+     */
+    private void handleLeave(String nickname, InetSocketAddress source) {
+        // El cliente se va: se cancelan los reenvios pendientes hacia el y sus imagenes a medias
+        closeLink(source);
+        images.release(source);
+
+        // Elimina al usuario desconectado del registro. Si nunca llego a conectarse solo se libera su nombre
+        Session session = registry.leave(source);
+        if (session == null) {
+            registry.release(nickname, source);
+            return;
+        }
+
+        // Reenvia el aviso de salida a los usuarios que siguen en la sala que ha dejado y a los demas nodos
+        notifyPresence(Opcode.PRESENCE_LEAVE, session, " ha abandonado el chat!", session.room(), EMPTY);
+        replicateLeave(session);
+    }
+
+    private boolean isRemote(String nickname) {
+        return federation != null && federation.isRemote(nickname);
+    }
+
+    private void replicateJoin(Session session) {
+        if (federation != null) {
+            federation.joined(session);
+        }
+    }
+
+    private void replicateLeave(Session session) {
+        if (federation != null) {
+            federation.left(session);
+        }
+    }
+
+    /**
+     * Avisa a los usuarios locales de una sala de que un usuario de otro nodo ha entrado o salido.
+     *
+     * @param opcode PRESENCE_JOIN o PRESENCE_LEAVE.
+     * @param nickname Nombre del usuario remoto en UTF-8.
+     * @param roomName Sala en la que entra o de la que sale.
+     * @param roomChange true si cambia de sala; false si entra o sale del chat.
+     */
+    private void remotePresence(byte opcode, byte[] nickname, String roomName, boolean roomChange) {
+        Room room = registry.rooms().lookup(roomName);
+        if (room == null) {
+            return;
+        }
+        String name = new String(nickname, StandardCharsets.UTF_8);
+        String legacySuffix = opcode == Opcode.PRESENCE_JOIN
+                ? roomChange ? " ha entrado en la sala " + roomName : " ha entrado al chat!"
+                : roomChange ? " ha abandonado la sala " + roomName : " ha abandonado el chat!";
+        notifyPresence(opcode, nickname, name + legacySuffix, room, roomChange ? room.nameBytes() : EMPTY, null);
+    }
+
+    /**
+     * Envía un aviso de entrada o salida a los usuarios de una sala menos al que lo provoca.
+     *
+     * @param opcode PRESENCE_JOIN o PRESENCE_LEAVE.
+     * @param session Usuario que entra o sale.
+     * @param legacySuffix Texto que sigue al nombre en el aviso del protocolo antiguo.
+     * @param room Sala en la que entra o de la que sale el usuario.
+     * @param roomName Nombre de la sala si el usuario cambia de sala, o vacío si entra o sale del chat.
+     */
+    private void notifyPresence(byte opcode, Session session, String legacySuffix, Room room, byte[] roomName) {
+        if (room != null) {
+            notifyPresence(opcode, session.nicknameBytes(), session.nickname() + legacySuffix, room, roomName,
+                    session.address());
+        }
+    }
+
+    /**
+     * Envía un aviso de entrada o salida a los usuarios de una sala. Se codifica una sola vez por protocolo
+     * para todos los destinatarios.
+     *
+     * @param opcode PRESENCE_JOIN o PRESENCE_LEAVE.
+     * @param nickname Nombre del usuario que entra o sale, en UTF-8.
+     * @param legacyText Aviso completo en el protocolo antiguo.
+     * @param room Sala en la que entra o de la que sale el usuario.
+     * @param roomName Nombre de la sala si el usuario cambia de sala, o vacío si entra o sale del chat.
+     * @param excluded Dirección del usuario que lo provoca, o null si no es un usuario local.
+     */
+    private void notifyPresence(byte opcode, byte[] nickname, String legacyText, Room room, byte[] roomName,
+                                InetSocketAddress excluded) {
+        SharedPayload frame = SharedPayload.wrap(FrameCodec.encode(opcode, (byte) 0, sequence.incrementAndGet(),
+                nickname, roomName, 0, roomName.length));
+        SharedPayload legacy = room.hasLegacyMembers() ? SharedPayload.of(legacyText) : null;
+
+        sender.broadcast(frame, legacy, room.members(), excluded);
+    }
+
+    /**
+     * Reenvía la línea de chat de un usuario local a su sala y a los demás nodos de la federación. Las líneas
+     * que no caben en un datagrama una vez codificadas con el nombre del remitente se descartan.
+     *
+     * @param nickname Nombre del remitente en UTF-8, o vacío si no se conoce.
+     * @param text Array que contiene el texto del mensaje.
+     * @param offset Posición del primer byte del texto.
+     * @param length Número de bytes del texto.
+     * @param room Sala del remitente, o null si está vacía.
+     * @param source Dirección y puerto del remitente.
+     */
+    private void forwardTextMessage(byte[] nickname, byte[] text, int offset, int length, Room room,
+                                    InetSocketAddress source) {
+        // Una linea comprimida, o que llega con el identificador del remitente, puede no caber en un datagrama al
+        // codificarla de nuevo con el nombre y sin comprimir
+        if (FrameCodec.encodedLength(nickname.length, length) > FrameCodec.MAX_DATAGRAM_SIZE) {
+            log.accept("Línea demasiado larga de " + (nickname.length == 0 ? source.toString()
+                    : new String(nickname, StandardCharsets.UTF_8)) + ": " + length + " bytes");
+            return;
+        }
+        deliverTextMessage(nickname, text, offset, length, room, source);
+        if (federation != null && room != null) {
+            federation.forward(nickname, room.nameBytes(), text, offset, length);
+        }
+    }
+
+    /**
+     * Reenvía una línea de chat a los miembros de una sala excepto al remitente. Se codifica una sola vez
+     * por protocolo y todos los destinatarios comparten los mismos bytes. Si algún miembro acepta la
+     * compresión y la línea la merece, también se comprime una sola vez.
+     *
+     * @param nickname Nombre del remitente en UTF-8, o vacío si no se conoce.
+     * @param text Array que contiene el texto del mensaje.
+     * @param offset Posición del primer byte del texto.
+     * @param length Número de bytes del texto.
+     * @param room Sala del remitente, o null si está vacía.
+     * @param source Dirección y puerto del remitente, o del nodo del que llega la línea.
+     * @return Miembros de la sala a los que se ha enviado.
+     */
+    private int deliverTextMessage(byte[] nickname, byte[] text, int offset, int length, Room room,
+                                   InetSocketAddress source) {
+        int recipients = 0;
+        if (room != null) {
+            int number = sequence.incrementAndGet();
+            SharedPayload frame = SharedPayload.wrap(FrameCodec.encode(Opcode.CHAT, FrameCodec.FLAG_RELIABLE,
+                    number, nickname, text, offset, length));
+            SharedPayload legacy = room.hasLegacyMembers() ? legacyChatLine(nickname, text, offset, length) : null;
+
+            Session[] members = room.members();
+            SharedPayload compressed = length >= PayloadCompressor.MIN_LENGTH && acceptsCompressed(members)
+                    ? compressedChatLine(number, nickname, text, offset, length) : null;
+            sender.broadcast(frame, compressed, legacy, members, source);
+            recipients = members.length;
+
+            ChatJournal history = journal;
+            if (history != null) {
+                history.append(room.nameBytes(), frame.data);
+            }
+        }
+
+        String line = new String(text, offset, length, StandardCharsets.UTF_8);
+        log.accept(nickname.length == 0 ? line : new String(nickname, StandardCharsets.UTF_8) + ": " + line);
+        return recipients;
+    }
+
+    /**
+     * Indica si algún miembro de la sala acepta la compresión. Se detiene en el primero, que en una sala de
+     * clientes actuales suele ser el primer miembro.
+     */
+    private static boolean acceptsCompressed(Session[] members) {
+        for (Session member : members) {
+            if (member.acceptsCompressed()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Codifica una línea de chat con el texto comprimido.
+     *
+     * @return La trama, o null si comprimida no ocupa menos.
+     */
+    private SharedPayload compressedChatLine(int number, byte[] nickname, byte[] text, int offset, int length) {
+        PayloadCompressor compressor = acquireCompressor();
+        try {
+            byte[] data = compressor.encode(Opcode.CHAT, FrameCodec.FLAG_RELIABLE, number, nickname, text, offset,
+                    length);
+            return data != null ? SharedPayload.wrap(data) : null;
+        } finally {
+            compressors.offer(compressor);
+        }
+    }
+
+    /**
+     * Construye la línea "usuario: texto" del protocolo antiguo.
+     */
+    private static SharedPayload legacyChatLine(byte[] nickname, byte[] text, int offset, int length) {
+        if (nickname.length == 0) {
+            return SharedPayload.copyOf(text, offset, length);
+        }
+        byte[] line = new byte[nickname.length + LEGACY_SEPARATOR.length + length];
+        System.arraycopy(nickname, 0, line, 0, nickname.length);
+        System.arraycopy(LEGACY_SEPARATOR, 0, line, nickname.length, LEGACY_SEPARATOR.length);
+        System.arraycopy(text, offset, line, nickname.length + LEGACY_SEPARATOR.length, length);
+        return SharedPayload.wrap(line);
+    }
+
+    /**
+     * Longitud del prefijo "usuario: " de una línea del protocolo antiguo.
+     *
+     * @return Longitud del prefijo, o 0 si la línea no empieza por el nombre del usuario.
+     */
+    private static int legacyPrefixLength(byte[] nickname, byte[] data, int length) {
+        int prefix = nickname.length + LEGACY_SEPARATOR.length;
+        if (length < prefix) {
+            return 0;
+        }
+        for (int i = 0; i < nickname.length; i++) {
+            if (data[i] != nickname[i]) {
+                return 0;
+            }
+        }
+        for (int i = 0; i < LEGACY_SEPARATOR.length; i++) {
+            if (data[nickname.length + i] != LEGACY_SEPARATOR[i]) {
+                return 0;
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * Responde a un cliente en el protocolo que usa.
+     *
+     * @param legacy true si el cliente usa el protocolo de texto antiguo.
+     * @param opcode Código de operación de la respuesta binaria.
+     * @param legacyText Texto de la respuesta en el protocolo antiguo.
+     * @param target Dirección y puerto del cliente.
+     */
+    private void reply(boolean legacy, byte opcode, String legacyText, InetSocketAddress target) {
+        if (legacy) {
+            sender.send(SharedPayload.of(legacyText), target);
+        } else {
+            sendFrame(opcode, EMPTY, EMPTY, target);
+        }
+    }
+
+    /**
+     * Envía una trama a un cliente específico. Si es de una clase fiable y el cliente tiene enlace,
+     * se numera con la secuencia del enlace y se reenvía hasta que se confirme.
+     */
+    private void sendFrame(byte opcode, byte[] senderName, byte[] payload, InetSocketAddress target) {
+        ReliableLink<SharedPayload> link = Opcode.isReliable(opcode) ? handshake(target).link() : null;
+        byte flags = link != null ? FrameCodec.FLAG_RELIABLE : 0;
+        SharedPayload frame = SharedPayload.wrap(FrameCodec.encode(opcode, flags, sequence.incrementAndGet(),
+                senderName, payload, 0, payload.length));
+
+        sender.send(frame, link != null ? link.sender().register(frame) : 0, target);
+    }
+
+    /**
+     * Entrada de los datagramas de uno de los hilos que reciben. Resuelve la dirección del remitente y aplica
+     * el límite de mensajes antes de procesar el datagrama o dejarlo en la cola de su usuario. No es segura
+     * entre hilos: cada hilo que recibe usa la suya, y los datagramas de un mismo cliente deben llegar siempre
+     * por la misma para que se procesen en orden.
+     */
+    public final class Inlet {
+
+        // Direcciones de los remitentes, para no crear una por datagrama
+        private final AddressCache addresses = new AddressCache(AddressCache.DEFAULT_SLOTS);
+
+        // Limite de mensajes de esta entrada, o null si no hay limite
+        private RateLimiter limiter;
+
+        private Inlet(RateLimiter limiter) {
+            this.limiter = limiter;
+        }
+
+        /**
+         * Procesa un datagrama recibido por un motor, en el hilo que llama o en la cola del usuario según el
+         * modo de despacho. Debe llamarse siempre desde el mismo hilo.
+         *
+         * @param packet Paquete tomado de {@link MessageDispatcher#packets()} con el datagrama y su remitente.
+         *               El dispatcher lo devuelve a la reserva; quien llama no debe reutilizarlo.
+         */
+        public void dispatch(DatagramPacket packet) {
+            if (packet.getLength() == 0) {
+                packets.release(packet);
+                return;
+            }
+            InetSocketAddress source = addresses.resolve(packet.getAddress(), packet.getPort());
+            long notBefore = 0;
+            if (limiter != null && !isPeer(source)) {
+                notBefore = admit(packet.getData(), packet.getLength(), packet.getAddress(), packet.getPort(),
+                        source);
+                if (notBefore < 0) {
+                    packets.release(packet);
+                    return;
+                }
+            }
+
+            // La cola del usuario se queda con el paquete y lo devuelve cuando lo ha procesado
+            if (sessions != null) {
+                sessions.submit(packet, source, notBefore);
+                return;
+            }
+            try {
+                process(packet.getData(), packet.getLength(), source);
+            } finally {
+                packets.release(packet);
+            }
+        }
+
+        /**
+         * Procesa un datagrama recibido de un cliente, en el hilo que llama o en la cola del usuario según
+         * el modo de despacho.
+         *
+         * @param data Array que contiene los bytes recibidos. Se puede reutilizar al volver.
+         * @param length Número de bytes válidos en data.
+         * @param source Dirección y puerto del cliente que envió el datagrama.
+         */
+        public void dispatch(byte[] data, int length, InetSocketAddress source) {
+            if (length == 0) {
+                return;
+            }
+            long notBefore = 0;
+            if (limiter != null && !isPeer(source)) {
+                notBefore = admit(data, length, source.getAddress(), source.getPort(), source);
+                if (notBefore < 0) {
+                    return;
+                }
+            }
+
+            // Quien llama puede reutilizar data: la cola del usuario se queda con una copia en un paquete de la
+            // reserva
+            if (sessions != null) {
+                DatagramPacket packet = length <= packets.bufferSize()
+                        ? packets.acquire() : new DatagramPacket(new byte[length], length);
+                System.arraycopy(data, 0, packet.getData(), 0, length);
+                packet.setLength(length);
+                sessions.submit(packet, source, notBefore);
+            } else {
+                process(data, length, source);
+            }
+        }
+
+        /**
+         * Indica si un datagrama viene de otro nodo de la federación. El tráfico de un nodo ya ha pasado por
+         * el límite de cada usuario en su origen.
+         */
+        private boolean isPeer(InetSocketAddress source) {
+            return federation != null && federation.isPeer(source);
+        }
+
+        /**
+         * Pasa un datagrama por el límite de mensajes, antes de leerlo.
+         *
+         * @param data Array que contiene los bytes recibidos.
+         * @param length Número de bytes válidos en data.
+         * @param address Dirección del cliente.
+         * @param port Puerto del cliente.
+         * @param source Dirección y puerto del cliente, para desconectarlo.
+         * @return 0 si se procesa ya, el instante de {@link System#nanoTime()} hasta el que debe esperar, o -1
+         *         si se descarta.
+         */
+        private long admit(byte[] data, int length, InetAddress address, int port, InetSocketAddress source) {
+            // Los ACK de un cliente con enlace llegan en rafagas que el usuario no controla y cuyo coste ya esta
+            // acotado por la ventana: solo cuentan para el limite del servidor. Para no dejar pasar basura que
+            // se haga pasar por un ACK, solo se exime una trama con la longitud exacta de un ACK de quien tiene
+            // enlace. Los trozos de imagen tienen su propio cubo, mas grande, las peticiones de historial otro,
+            // mucho menor, y todo lo demas cuenta como mensaje
+            int bucket = RateLimiter.MESSAGE;
+            if (Frame.isFrame(data[0]) && length > 1) {
+                if (data[1] == Opcode.ACK && length == FrameCodec.ACK_FRAME_LENGTH
+                        && handshake(source).link() != null) {
+                    bucket = RateLimiter.GLOBAL;
+                } else if (data[1] == Opcode.IMAGE) {
+                    bucket = RateLimiter.IMAGE;
+                } else if (data[1] == Opcode.HISTORY) {
+                    bucket = RateLimiter.HISTORY;
+                }
+            }
+            long now = System.nanoTime();
+            long verdict = limiter.acquire(RateLimiter.key(address, port), bucket, now);
+            if (verdict == RateLimiter.PASS) {
+                return 0;
+            }
+            if (verdict > 0) {
+                if (sessions != null) {
+                    metrics.recordRateDelayed();
+                    return now + verdict;
+                }
+                metrics.recordRateLimited(length);
+            } else if (verdict == RateLimiter.REJECT_GLOBAL) {
+                metrics.recordGlobalRateLimited(length);
+            } else {
+                metrics.recordRateLimited(length);
+                if (limiter.policy() == RatePolicy.KICK) {
+                    kick(source);
+                }
+            }
+            return -1;
+        }
+    }
+}
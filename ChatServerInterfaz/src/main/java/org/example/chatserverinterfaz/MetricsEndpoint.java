@@ -0,0 +1,66 @@
+package org.example.chatserverinterfaz;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Punto de consulta de las métricas en texto plano. Sirve {@link ServerMetrics#format()} por HTTP en
+ * "http://127.0.0.1:&lt;puerto&gt;/metrics", de modo que se puede leer con curl o recoger con Prometheus.
+ *
+ * Solo escucha en la interfaz local: quien quiera exponerlo fuera de la máquina debe hacerlo a propósito,
+ * por ejemplo con un proxy.
+ *
+ * @author Alejandro Ramírez
+ */
+public class MetricsEndpoint {
+
+    private final ServerMetrics metrics;
+
+    private HttpServer server;
+
+    /**
+     * Constructor de la clase MetricsEndpoint.
+     *
+     * @param metrics Métricas que se sirven.
+     */
+    public MetricsEndpoint(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Abre el puerto y atiende las consultas en un hilo propio.
+     *
+     * @param port Puerto local en el que se sirven las métricas.
+     * @throws IOException Si no se puede abrir el puerto.
+     */
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::handle);
+        server.start();
+    }
+
+    /**
+     * Cierra el puerto. Puede llamarse aunque no se haya arrancado.
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = metrics.format().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package org.example.chatserverinterfaz;
+
+import org.example.chatprotocol.FrameCodec;
+import org.example.chatprotocol.PacketPool;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Motor no bloqueante del servidor basado en {@link DatagramChannel} y {@link Selector}.
+ *
+ * El trabajo se reparte en tres etapas para que un envío lento no frene la recepción:
+ * <ul>
+ *     <li>Recepción: el hilo del selector vacía el socket en un ByteBuffer directo reutilizado y deja
+ *     cada datagrama en la cola de despacho, copiado en un paquete de la reserva del dispatcher.</li>
+ *     <li>Despacho: un hilo propio saca los datagramas de la cola y ejecuta el {@link MessageDispatcher}.</li>
+ *     <li>Envío: la {@link SendPipeline} escribe las respuestas en el canal desde sus propios hilos,
+ *     copiándolas a un ByteBuffer directo reutilizado por cada hilo.</li>
+ * </ul>
+ *
+ * En régimen estable, recibir y encolar un datagrama no reserva memoria en los hilos del motor: el selector
+ * entrega la clave lista a una acción en lugar de llenar su conjunto de claves seleccionadas, y el hilo de
+ * despacho se aparca cuando la cola se vacía en lugar de esperar en ella, lo que crearía un nodo de espera
+ * cada vez. La única excepción es la del {@link DatagramChannel} del JDK, que crea una dirección nueva cada
+ * vez que cambia el remitente. Con el API de Java no se puede evitar; el resto del servidor usa la misma
+ * dirección de la {@link AddressCache} para cada cliente, así que la del JDK se descarta enseguida.
+ *
+ * @author Alejandro Ramírez
+ */
+public class NioServerEngine implements ServerEngine {
+
+    // Tamaño maximo de un datagrama recibido
+    static final int MAX_DATAGRAM_SIZE = FrameCodec.MAX_DATAGRAM_SIZE;
+
+    // Tamaño del buffer de recepcion del socket en el sistema operativo
+    static final int SOCKET_RECEIVE_BUFFER = 4 * 1024 * 1024;
+
+    // Numero maximo de datagramas esperando a ser despachados
+    static final int DISPATCH_QUEUE_CAPACITY = 8192;
+
+    // Intentos de envio cuando el buffer de envio del sistema esta lleno antes de dar el datagrama por perdido
+    static final int SEND_RETRIES = 8;
+
+    // Canal UDP no bloqueante por el que el servidor recibe y envia
+    private DatagramChannel channel;
+
+    // Notifica al hilo de recepcion cuando el canal es legible
+    private Selector selector;
+
+    // Datagramas recibidos que esperan a la etapa de despacho
+    private final BlockingQueue<DatagramPacket> dispatchQueue;
+
+    // Tamaño del buffer de recepcion del socket y de la cola de la etapa de envio
+    private final int receiveBufferSize;
+    private final int sendQueueCapacity;
+
+    // Etapa de envio que escribe las respuestas en el canal
+    private SendPipeline pipeline;
+
+    // Logica del chat recibida en start, que tambien lleva el registro del servidor
+    private MessageDispatcher dispatcher;
+
+    // Buffer directo reutilizado para recibir
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+
+    // Buffer directo reutilizado por cada hilo de envio
+    private final ThreadLocal<ByteBuffer> sendBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE));
+
+    // Datagramas descartados porque la cola de despacho estaba llena
+    private final LongAdder droppedInbound = new LongAdder();
+
+    private volatile boolean running;
+
+    private Thread ioThread;
+
+    private Thread dispatchThread;
+
+    // Indica si el hilo de despacho esta aparcado esperando datagramas
+    private volatile boolean dispatcherIdle;
+
+    /**
+     * Constructor de la clase NioServerEngine con los tamaños por defecto.
+     */
+    public NioServerEngine() {
+        this(SOCKET_RECEIVE_BUFFER, DISPATCH_QUEUE_CAPACITY, SendPipeline.QUEUE_CAPACITY);
+    }
+
+    /**
+     * Constructor de la clase NioServerEngine.
+     *
+     * @param receiveBufferSize Buffer de recepción del socket en el sistema operativo, en bytes.
+     * @param dispatchQueueCapacity Datagramas que pueden esperar a la etapa de despacho.
+     * @param sendQueueCapacity Trabajos que pueden esperar a la etapa de envío.
+     */
+    public NioServerEngine(int receiveBufferSize, int dispatchQueueCapacity, int sendQueueCapacity) {
+        this.receiveBufferSize = receiveBufferSize;
+        this.dispatchQueue = new ArrayBlockingQueue<>(dispatchQueueCapacity);
+        this.sendQueueCapacity = sendQueueCapacity;
+    }
+
+    /**
+     * Abre el canal, lo registra en el selector y arranca los hilos de recepción, despacho y envío.
+     *
+     * @param port Puerto en el que escucha el servidor.
+     * @param dispatcher Lógica del chat que procesa cada datagrama recibido.
+     * @throws IOException Si no se puede abrir el canal.
+     */
+    @Override
+    public void start(int port, MessageDispatcher dispatcher) throws IOException {
+        this.dispatcher = dispatcher;
+        selector = Selector.open();
+        channel = DatagramChannel.open();
+
+        // Un buffer de recepcion grande absorbe las rafagas mientras la etapa de despacho se pone al dia
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+
+        // Las respuestas del dispatcher se encolan para la etapa de envio
+        pipeline = new SendPipeline(this::send, sendQueueCapacity, 1);
+        dispatcher.attach(pipeline);
+        pipeline.start();
+        dispatcher.metrics().bindDispatchQueue(dispatchQueue::size, droppedInbound::sum);
+
+        running = true;
+
+        PacketPool packets = dispatcher.packets();
+        ioThread = new Thread(() -> runSelector(dispatcher, packets), "chat-nio-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+
+        dispatchThread = new Thread(() -> runDispatcher(dispatcher), "chat-nio-dispatch");
+        dispatchThread.setDaemon(true);
+        dispatchThread.start();
+    }
+
+    /**
+     * Detiene los hilos y cierra el canal y el selector.
+     */
+    @Override
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        dispatchThread.interrupt();
+        pipeline.stop();
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            dispatcher.log("Error al cerrar el canal del servidor: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Número de datagramas descartados porque la etapa de despacho no daba abasto.
+     *
+     * @return Total de datagramas descartados desde el arranque.
+     */
+    public long droppedInbound() {
+        return droppedInbound.sum();
+    }
+
+    /**
+     * Escribe un datagrama en el canal desde un hilo de envío. El contenido se copia al buffer directo
+     * del hilo con operaciones absolutas, para no mover la vista compartida del mensaje. El número de
+     * secuencia, si lo hay, se escribe en esa copia. Los mensajes del historial se escriben directamente
+     * desde el segmento proyectado en memoria, sin pasar por el buffer del hilo.
+     *
+     * @param payload Contenido del datagrama.
+     * @param sequence Número de secuencia del enlace fiable, o 0 si no lleva.
+     * @param target Dirección y puerto del destinatario.
+     * @throws IOException Si el canal falla o sigue sin admitir datos tras varios intentos.
+     */
+    private void send(SharedPayload payload, int sequence, InetSocketAddress target) throws IOException {
+        ByteBuffer buffer;
+        if (payload.data == null) {
+            buffer = payload.view().duplicate();
+        } else {
+            buffer = sendBuffer.get();
+            buffer.clear();
+            buffer.put(0, payload.data).limit(payload.data.length);
+            if (sequence != 0) {
+                buffer.putInt(FrameCodec.SEQUENCE_OFFSET, sequence);
+            }
+        }
+
+        // En modo no bloqueante send devuelve 0 si el buffer de envio del sistema esta lleno
+        for (int attempt = 0; attempt < SEND_RETRIES; attempt++) {
+            if (channel.send(buffer, target) > 0) {
+                return;
+            }
+            LockSupport.parkNanos(50_000L << attempt);
+        }
+        throw new IOException("Buffer de envío lleno");
+    }
+
+    /**
+     * Bucle del hilo de recepción. Solo hay un canal registrado, así que cada clave lista es la suya.
+     */
+    private void runSelector(MessageDispatcher dispatcher, PacketPool packets) {
+        Consumer<SelectionKey> readable = key -> {
+            try {
+                receiveAll(packets);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        try {
+            while (running) {
+                selector.select(readable);
+            }
+        } catch (ClosedSelectorException e) {
+            // El servidor se esta deteniendo
+        } catch (IOException | UncheckedIOException e) {
+            if (running) {
+                dispatcher.log("Error en el canal del servidor: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Vacía el socket de datagramas hasta que no quede ninguno pendiente.
+     *
+     * @param packets Reserva de la que salen los paquetes que se encolan.
+     */
+    private void receiveAll(PacketPool packets) throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress source = channel.receive(receiveBuffer);
+            if (source == null) {
+                return;
+            }
+            receiveBuffer.flip();
+
+            // El datagrama se copia en un paquete de la reserva, que el dispatcher devuelve al terminar
+            DatagramPacket packet = packets.acquire();
+            int length = receiveBuffer.remaining();
+            receiveBuffer.get(packet.getData(), 0, length);
+            packet.setLength(length);
+            InetSocketAddress address = (InetSocketAddress) source;
+            packet.setAddress(address.getAddress());
+            packet.setPort(address.getPort());
+
+            // Si el despacho va por detras se descarta el datagrama en lugar de bloquear la recepcion
+            if (!dispatchQueue.offer(packet)) {
+                packets.release(packet);
+                droppedInbound.increment();
+            } else if (dispatcherIdle) {
+                LockSupport.unpark(dispatchThread);
+            }
+        }
+    }
+
+    /**
+     * Bucle de la etapa de despacho. Con la cola vacía se aparca hasta que el hilo de recepción encola otro
+     * datagrama. Se anuncia que se va a aparcar antes de mirar la cola por última vez: o se ve el datagrama
+     * nuevo, o el hilo de recepción ve el aviso y lo despierta.
+     */
+    private void runDispatcher(MessageDispatcher dispatcher) {
+        while (running) {
+            DatagramPacket packet = dispatchQueue.poll();
+            if (packet == null) {
+                dispatcherIdle = true;
+                packet = dispatchQueue.poll();
+                if (packet == null) {
+                    // Al detenerse el servidor interrumpe el hilo, lo que tambien lo despierta
+                    LockSupport.park(this);
+                }
+                dispatcherIdle = false;
+            }
+            if (packet != null) {
+                dispatcher.dispatch(packet);
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.example.chatserverinterfaz;
+
+import org.example.chatprotocol.FrameCodec;
+import org.example.chatprotocol.Opcode;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Agrupa las tramas que van al mismo cliente en un único datagrama BATCH. En una sala con mucho tráfico
+ * cada línea de chat es un datagrama por miembro, así que los datagramas por segundo crecen con los mensajes
+ * por los miembros; agrupando, cada miembro recibe un datagrama por ventana con todas las líneas de ella.
+ *
+ * La primera trama para un cliente abre su lote, que se envía cuando pasa la ventana desde que se abrió. Si
+ * antes se llena hasta el tamaño de datagrama que acordó el cliente, lo que lleva se envía ya y se sigue
+ * llenando hasta que vence la ventana. Cada trama se copia en el lote con su número de secuencia del enlace
+ * fiable, así que el cliente la procesa igual que si hubiera llegado sola; los reenvíos van por separado.
+ * Un lote con una sola trama se envía como esa trama, sin cabecera BATCH.
+ *
+ * Las tramas que no caben en un lote vacío y las que se envían a un único destinatario (respuestas, reenvíos,
+ * historial) no se agrupan, pero antes se envía el lote pendiente de su cliente para no adelantarlo.
+ *
+ * Los buffers de los lotes se reutilizan. No es seguro entre hilos: cada hilo de envío tiene el suyo.
+ *
+ * @author Alejandro Ramírez
+ */
+final class OutboundBatcher {
+
+    /**
+     * Escribe un datagrama en el socket.
+     */
+    @FunctionalInterface
+    interface Writer {
+        void write(SharedPayload payload, InetSocketAddress target);
+    }
+
+    // Cabecera de un datagrama BATCH: una trama sin remitente cuya carga son las tramas agrupadas
+    static final int HEADER_LENGTH = FrameCodec.OVERHEAD;
+
+    // Posicion de la longitud de la carga en la cabecera, tras la longitud del remitente (0)
+    private static final int PAYLOAD_LENGTH_OFFSET = 8;
+
+    // Lotes vacios que se guardan para reutilizarlos
+    static final int POOL_CAPACITY = 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final long windowNanos;
+
+    private final Writer writer;
+
+    private final ServerMetrics metrics;
+
+    // Lotes abiertos, indexados por su destinatario
+    private final HashMap<InetSocketAddress, Batch> open = new HashMap<>();
+
+    // Los mismos lotes en el orden en que se abrieron, que es el orden en que vencen
+    private final ArrayDeque<Batch> deadlines = new ArrayDeque<>();
+
+    private final ArrayDeque<Batch> free = new ArrayDeque<>();
+
+    /**
+     * Constructor de la clase OutboundBatcher.
+     *
+     * @param windowNanos Tiempo que un lote espera más tramas desde que se abre.
+     * @param writer Operación que escribe cada datagrama.
+     * @param metrics Métricas donde se registran los lotes enviados.
+     */
+    OutboundBatcher(long windowNanos, Writer writer, ServerMetrics metrics) {
+        this.windowNanos = windowNanos;
+        this.writer = writer;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Añade una trama al lote de su destinatario.
+     *
+     * @param payload Trama a enviar.
+     * @param sequence Número de secuencia del enlace fiable, o 0 si no lleva.
+     * @param session Destinatario, que debe aceptar los lotes ({@link Session#batchLimit()} mayor que 0).
+     * @return true si la trama se ha añadido; false si no se agrupa y hay que enviarla sola.
+     */
+    boolean add(SharedPayload payload, int sequence, Session session) {
+        InetSocketAddress target = session.address();
+        int length = payload.length();
+        int limit = Math.min(session.batchLimit(), FrameCodec.MAX_DATAGRAM_SIZE);
+        if (payload.data == null || HEADER_LENGTH + length > limit) {
+            flush(target);
+            return false;
+        }
+
+        Batch batch = open.get(target);
+        if (batch == null) {
+            batch = open(target, limit);
+        } else if (batch.length + length > batch.limit) {
+            send(batch);
+        }
+        System.arraycopy(payload.data, 0, batch.buffer, batch.length, length);
+        if (sequence != 0) {
+            FrameCodec.putSequence(batch.buffer, batch.length, sequence);
+        }
+        batch.length += length;
+        batch.count++;
+        return true;
+    }
+
+    /**
+     * Envía lo que lleve el lote de un cliente, antes de escribirle algo fuera de lote.
+     *
+     * @param target Dirección y puerto del cliente.
+     */
+    void flush(InetSocketAddress target) {
+        if (!open.isEmpty()) {
+            Batch batch = open.get(target);
+            if (batch != null) {
+                send(batch);
+            }
+        }
+    }
+
+    /**
+     * Envía y cierra los lotes cuya ventana ha vencido.
+     *
+     * @param now Instante actual de {@link System#nanoTime()}.
+     * @return Nanosegundos hasta que vence el siguiente lote, o -1 si no queda ninguno abierto.
+     */
+    long flushExpired(long now) {
+        Batch batch;
+        while ((batch = deadlines.peek()) != null) {
+            long remaining = batch.deadline - now;
+            if (remaining > 0) {
+                return remaining;
+            }
+            deadlines.poll();
+            open.remove(batch.target);
+            send(batch);
+            batch.target = null;
+            if (free.size() < POOL_CAPACITY) {
+                free.push(batch);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Número de lotes abiertos.
+     *
+     * @return Clientes con un lote pendiente.
+     */
+    int openBatches() {
+        return open.size();
+    }
+
+    private Batch open(InetSocketAddress target, int limit) {
+        Batch batch = free.poll();
+        if (batch == null) {
+            batch = new Batch();
+        }
+        batch.target = target;
+        batch.limit = limit;
+        batch.deadline = System.nanoTime() + windowNanos;
+        open.put(target, batch);
+        deadlines.add(batch);
+        return batch;
+    }
+
+    /**
+     * Escribe lo que lleva un lote y lo deja vacío, sin cerrarlo.
+     */
+    private void send(Batch batch) {
+        if (batch.count == 0) {
+            return;
+        }
+        if (batch.count == 1) {
+            writer.write(SharedPayload.slice(batch.buffer, HEADER_LENGTH, batch.length - HEADER_LENGTH),
+                    batch.target);
+        } else {
+            int payloadLength = batch.length - HEADER_LENGTH;
+            batch.buffer[PAYLOAD_LENGTH_OFFSET] = (byte) (payloadLength >>> 8);
+            batch.buffer[PAYLOAD_LENGTH_OFFSET + 1] = (byte) payloadLength;
+            writer.write(SharedPayload.slice(batch.buffer, 0, batch.length), batch.target);
+            metrics.recordBatch(batch.count);
+        }
+        batch.length = HEADER_LENGTH;
+        batch.count = 0;
+    }
+
+    /**
+     * Lote de un cliente: la cabecera BATCH, que se escribe una sola vez, y las tramas a continuación.
+     */
+    private static final class Batch {
+
+        private final byte[] buffer = new byte[FrameCodec.MAX_DATAGRAM_SIZE];
+
+        private InetSocketAddress target;
+
+        // Tamaño maximo del datagrama para este cliente
+        private int limit;
+
+        // Bytes ocupados, incluida la cabecera, y tramas que lleva
+        private int length = HEADER_LENGTH;
+        private int count;
+
+        // Instante de System.nanoTime() en el que vence la ventana
+        private long deadline;
+
+        private Batch() {
+            FrameCodec.encode(buffer, 0, Opcode.BATCH, (byte) 0, 0, EMPTY, EMPTY, 0, 0);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.example.chatserverinterfaz;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Operación de envío que cada motor pone a disposición del {@link MessageDispatcher}.
+ *
+ * @author Alejandro Ramírez
+ */
+@FunctionalInterface
+public interface PacketSender {
+
+    /**
+     * Envía un datagrama a un cliente. El mismo contenido puede enviarse a muchos destinatarios, por lo
+     * que las implementaciones no deben modificarlo.
+     *
+     * Las tramas de un enlace fiable llevan un número de secuencia distinto para cada destinatario. En
+     * ese caso la implementación lo escribe en la copia que envía, nunca en el contenido compartido.
+     *
+     * @param payload Contenido del datagrama, codificado una sola vez.
+     * @param sequence Número de secuencia del enlace fiable, o 0 para enviar el contenido tal cual.
+     * @param target Dirección y puerto del destinatario.
+     * @throws IOException Si el socket no puede enviar el datagrama.
+     */
+    void send(SharedPayload payload, int sequence, InetSocketAddress target) throws IOException;
+}
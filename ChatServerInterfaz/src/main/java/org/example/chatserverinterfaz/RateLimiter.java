@@ -0,0 +1,307 @@
+package org.example.chatserverinterfaz;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Límite de datagramas por segundo de cada cliente y del servidor en total. Un cliente que inunda el
+ * servidor no solo gasta su parte: cada línea se decodifica, se registra y se reenvía a toda la sala, así
+ * que su coste se multiplica por el tamaño de la sala. El límite se comprueba antes de todo eso, con el
+ * datagrama recién recibido y solo su dirección.
+ *
+ * Cada cliente tiene un cubo de fichas: se rellena a {@code rate} fichas por segundo hasta {@code burst} y
+ * cada datagrama gasta una. El cubo se guarda como un único long, el instante en el que volvería a estar
+ * lleno (el algoritmo GCRA, equivalente al cubo de fichas), en una tabla hash de claves long con
+ * direccionamiento abierto: sin objetos por cliente ni por datagrama. La clave es la dirección IPv4 y el
+ * puerto; para IPv6 se usa el hash de la dirección, así que dos clientes IPv6 pueden compartir cubo.
+ *
+ * Los fragmentos de imagen llegan en ráfagas mucho más largas que las líneas de chat, así que gastan de un
+ * segundo cubo del cliente, más grande ({@link #IMAGE_RATE}, {@link #IMAGE_BURST}), en la misma tabla. Una
+ * imagen no agota las fichas de las líneas de chat, pero un cliente tampoco puede reenviar a su sala
+ * fragmentos sin límite.
+ *
+ * Las peticiones de historial ({@link #HISTORY}) tienen un tercer cubo, mucho más pequeño
+ * ({@link #HISTORY_RATE}, {@link #HISTORY_BURST}): cada una recorre el diario de la sala, que puede costar
+ * mucho más que reenviar una línea.
+ *
+ * Las entradas de los clientes con el cubo lleno no aportan nada y se retiran cuando la tabla se llena,
+ * antes de agrandarla, así que la tabla crece con los clientes que envían a la vez y no con los que han
+ * pasado por el servidor.
+ *
+ * Todos los métodos deben llamarse desde el mismo hilo, el que entrega los datagramas al dispatcher. Los
+ * motores que reciben en varios hilos usan una copia por hilo ({@link #share(int)}): cada cliente llega
+ * siempre por el mismo hilo, así que su cubo está en una sola copia, y el límite total se reparte entre ellas.
+ *
+ * @author Alejandro Ramírez
+ */
+public class RateLimiter {
+
+    // Datagramas por segundo de cada cliente y rafaga que se le permite, por defecto
+    public static final int DEFAULT_RATE = 50;
+    public static final int DEFAULT_BURST = 100;
+
+    // Fragmentos de imagen por segundo de cada cliente y rafaga que se le permite
+    public static final int IMAGE_RATE = 2000;
+    public static final int IMAGE_BURST = 2000;
+
+    // Peticiones de historial por segundo de cada cliente y rafaga que se le permite
+    public static final int HISTORY_RATE = 1;
+    public static final int HISTORY_BURST = 5;
+
+    // Datagramas por segundo de todo el servidor, por defecto
+    public static final int DEFAULT_GLOBAL_RATE = 100_000;
+
+    // Espera maxima de un datagrama retrasado; si le tocaria esperar mas se descarta
+    static final long MAX_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    // Capacidad inicial de la tabla, potencia de dos
+    static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Cubo de {@link #acquire}: el datagrama solo cuenta para el límite total.
+     */
+    public static final int GLOBAL = 0;
+
+    /**
+     * Cubo de {@link #acquire}: el datagrama cuenta para el límite de mensajes del cliente.
+     */
+    public static final int MESSAGE = 1;
+
+    /**
+     * Cubo de {@link #acquire}: el datagrama cuenta para el límite de fragmentos de imagen del cliente.
+     */
+    public static final int IMAGE = 2;
+
+    /**
+     * Cubo de {@link #acquire}: el datagrama cuenta para el límite de peticiones de historial del cliente.
+     */
+    public static final int HISTORY = 3;
+
+    // Bits que distinguen en la tabla los cubos de imagenes y de historial de un cliente del de sus mensajes
+    private static final long IMAGE_KEY = 1L << 49;
+    private static final long HISTORY_KEY = 1L << 50;
+
+    /**
+     * Resultado de {@link #acquire}: el datagrama se procesa ya.
+     */
+    public static final long PASS = 0;
+
+    /**
+     * Resultado de {@link #acquire}: el cliente ha superado su límite.
+     */
+    public static final long REJECT_SESSION = -1;
+
+    /**
+     * Resultado de {@link #acquire}: el servidor ha superado el límite total.
+     */
+    public static final long REJECT_GLOBAL = -2;
+
+    private final RatePolicy policy;
+
+    // Parametros con los que se creo, para las copias de otros hilos
+    private final int rate;
+    private final int burst;
+    private final int globalRate;
+
+    // Nanosegundos que cuesta cada datagrama y margen de rafaga de cada cliente
+    private final long emission;
+    private final long tolerance;
+
+    // Lo mismo para los fragmentos de imagen y las peticiones de historial
+    private final long imageEmission;
+    private final long imageTolerance;
+    private final long historyEmission;
+    private final long historyTolerance;
+
+    // Lo mismo para el limite total. La rafaga total es una decima de segundo de trafico
+    private final long globalEmission;
+    private final long globalTolerance;
+
+    // Instante en el que el cubo total volveria a estar lleno
+    private long globalFull;
+
+    // Claves (0 = libre) e instante en el que el cubo de cada cliente volveria a estar lleno
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private long[] full = new long[INITIAL_CAPACITY];
+
+    // Tablas del mismo tamaño en las que se reconstruye al retirar los cubos llenos, para no reservar
+    // memoria cada vez que la tabla se llena de clientes que ya no envian
+    private long[] spareKeys = new long[INITIAL_CAPACITY];
+    private long[] spareFull = new long[INITIAL_CAPACITY];
+
+    // Entradas ocupadas
+    private int size;
+
+    /**
+     * Constructor de la clase RateLimiter.
+     *
+     * @param rate Datagramas por segundo de cada cliente.
+     * @param burst Datagramas seguidos que se permiten a un cliente con el cubo lleno.
+     * @param globalRate Datagramas por segundo de todo el servidor.
+     * @param policy Qué hacer con los datagramas por encima del límite de un cliente.
+     */
+    public RateLimiter(int rate, int burst, int globalRate, RatePolicy policy) {
+        this.policy = policy;
+        this.rate = rate;
+        this.burst = burst;
+        this.globalRate = globalRate;
+        this.emission = TimeUnit.SECONDS.toNanos(1) / rate;
+        this.tolerance = emission * Math.max(burst, 1);
+        this.imageEmission = TimeUnit.SECONDS.toNanos(1) / IMAGE_RATE;
+        this.imageTolerance = imageEmission * IMAGE_BURST;
+        this.historyEmission = TimeUnit.SECONDS.toNanos(1) / HISTORY_RATE;
+        this.historyTolerance = historyEmission * HISTORY_BURST;
+        this.globalEmission = TimeUnit.SECONDS.toNanos(1) / globalRate;
+        this.globalTolerance = TimeUnit.MILLISECONDS.toNanos(100);
+    }
+
+    public RatePolicy policy() {
+        return policy;
+    }
+
+    /**
+     * Crea un límite vacío con los mismos parámetros para uno de los hilos que reciben.
+     *
+     * @param receivers Hilos que reciben, entre los que se reparte el límite total.
+     * @return Un límite nuevo, sin clientes.
+     */
+    public RateLimiter share(int receivers) {
+        return new RateLimiter(rate, burst, Math.max(globalRate / Math.max(receivers, 1), 1), policy);
+    }
+
+    /**
+     * Clave de un cliente en la tabla, sin crear objetos.
+     *
+     * @param address Dirección IP del cliente.
+     * @param port Puerto del cliente.
+     * @return Clave distinta de 0.
+     */
+    public static long key(InetAddress address, int port) {
+        // El hash de una direccion IPv4 es la propia direccion
+        return 1L << 48 | (address.hashCode() & 0xFFFFFFFFL) << 16 | port & 0xFFFF;
+    }
+
+    /**
+     * Gasta una ficha del cubo total y, si el datagrama cuenta para el límite de los clientes, otra del
+     * cubo del cliente que le corresponde. Solo se gasta si el datagrama pasa: un datagrama que se descarta
+     * por el límite de su cliente no cuenta para el total.
+     *
+     * @param key Clave del cliente ({@link #key}).
+     * @param bucket {@link #GLOBAL}, {@link #MESSAGE}, {@link #IMAGE} o {@link #HISTORY}.
+     * @param now Instante actual de {@link System#nanoTime()}.
+     * @return {@link #PASS}; los nanosegundos que debe esperar el datagrama si la política es
+     *         {@link RatePolicy#DELAY}; o {@link #REJECT_SESSION} o {@link #REJECT_GLOBAL}.
+     */
+    public long acquire(long key, int bucket, long now) {
+        // El limite total no se puede atribuir a nadie: lo que lo supera se descarta siempre
+        long globalStart = Math.max(globalFull, now);
+        if (globalStart + globalEmission - now > globalTolerance) {
+            return REJECT_GLOBAL;
+        }
+        if (bucket == GLOBAL) {
+            globalFull = globalStart + globalEmission;
+            return PASS;
+        }
+        long cost = emission;
+        long margin = tolerance;
+        if (bucket == IMAGE) {
+            key |= IMAGE_KEY;
+            cost = imageEmission;
+            margin = imageTolerance;
+        } else if (bucket == HISTORY) {
+            key |= HISTORY_KEY;
+            cost = historyEmission;
+            margin = historyTolerance;
+        }
+
+        // Lo que supera el limite del cliente no gasta del total: quien inunda el servidor no quita su parte a
+        // los demas
+        int slot = find(key);
+        long start = keys[slot] == 0 ? now : Math.max(full[slot], now);
+        long wait = start + cost - margin - now;
+        if (wait > 0 && (policy != RatePolicy.DELAY || wait > MAX_DELAY_NANOS)) {
+            return REJECT_SESSION;
+        }
+        globalFull = globalStart + globalEmission;
+        if (keys[slot] == 0) {
+            slot = insert(key, now);
+        }
+        full[slot] = start + cost;
+        return Math.max(wait, PASS);
+    }
+
+    /**
+     * Número de clientes con el cubo a medias.
+     *
+     * @return Entradas de la tabla.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Busca la casilla de una clave con sondeo lineal.
+     *
+     * @return La casilla de la clave, o la casilla libre donde iría.
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Añade una clave. Si la tabla se llena por encima de la mitad, antes se retiran los cubos llenos y,
+     * si aun así hace falta, se duplica.
+     */
+    private int insert(long key, long now) {
+        if (size + 1 > keys.length / 2) {
+            rebuild(now);
+        }
+        int slot = find(key);
+        keys[slot] = key;
+        size++;
+        return slot;
+    }
+
+    private void rebuild(long now) {
+        long[] oldKeys = keys;
+        long[] oldFull = full;
+        int live = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0 && oldFull[i] > now) {
+                live++;
+            }
+        }
+
+        int capacity = oldKeys.length;
+        while (live + 1 > capacity / 4 && capacity < Integer.MAX_VALUE / 2) {
+            capacity *= 2;
+        }
+        if (capacity == oldKeys.length) {
+            Arrays.fill(spareKeys, 0);
+            keys = spareKeys;
+            full = spareFull;
+            spareKeys = oldKeys;
+            spareFull = oldFull;
+        } else {
+            keys = new long[capacity];
+            full = new long[capacity];
+            spareKeys = new long[capacity];
+            spareFull = new long[capacity];
+        }
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0 && oldFull[i] > now) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                full[slot] = oldFull[i];
+                size++;
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.example.chatserverinterfaz;
+
+import java.util.Locale;
+
+/**
+ * Qué hace el servidor con los datagramas de un usuario que supera su límite de mensajes por segundo
+ * ({@link RateLimiter}).
+ *
+ * @author Alejandro Ramírez
+ */
+public enum RatePolicy {
+
+    // Sin limite: se procesan todos los datagramas
+    OFF,
+
+    // Los datagramas por encima del limite se descartan
+    DROP,
+
+    // Los datagramas por encima del limite esperan su turno en la cola del usuario, si la espera es corta
+    DELAY,
+
+    // El usuario que supera el limite se desconecta
+    KICK;
+
+    /**
+     * Obtiene la política a partir de su nombre, sin distinguir mayúsculas.
+     *
+     * @param name Nombre de la política ("off", "drop", "delay" o "kick"). Si es null se descarta.
+     * @return La política.
+     * @throws IllegalArgumentException Si el nombre no corresponde a ninguna política.
+     */
+    public static RatePolicy parse(String name) {
+        if (name == null || name.isBlank()) {
+            return DROP;
+        }
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+}
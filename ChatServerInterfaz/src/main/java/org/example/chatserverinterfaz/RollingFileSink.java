@@ -0,0 +1,113 @@
+package org.example.chatserverinterfaz;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Destino del registro que escribe las líneas en un fichero y lo rota al alcanzar un tamaño máximo:
+ * "server.log" pasa a "server.log.1", este a "server.log.2", y así hasta el número de ficheros que se
+ * conservan. Cada lote se escribe de una vez y se vuelca al disco al terminar.
+ *
+ * @author Alejandro Ramírez
+ */
+public class RollingFileSink implements ServerLog.Sink {
+
+    // Tamaño maximo de cada fichero y ficheros antiguos que se conservan por defecto
+    static final long DEFAULT_MAX_BYTES = 10L * 1024 * 1024;
+    static final int DEFAULT_MAX_FILES = 5;
+
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS ");
+
+    private final Path path;
+    private final long maxBytes;
+    private final int maxFiles;
+
+    private Writer writer;
+
+    // Bytes escritos en el fichero actual, aproximados con la longitud de las lineas
+    private long written;
+
+    /**
+     * Constructor de la clase RollingFileSink.
+     *
+     * @param path Fichero del registro.
+     * @param maxBytes Tamaño a partir del cual se rota el fichero.
+     * @param maxFiles Ficheros antiguos que se conservan.
+     * @throws IOException Si no se puede abrir el fichero.
+     */
+    public RollingFileSink(Path path, long maxBytes, int maxFiles) throws IOException {
+        this.path = path;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        open();
+    }
+
+    @Override
+    public void write(String[] batch, int count) {
+        try {
+            // Todas las lineas de un lote llevan la hora en que se escriben
+            String timestamp = LocalDateTime.now().format(TIMESTAMP);
+            for (int i = 0; i < count; i++) {
+                if (written >= maxBytes) {
+                    rotate();
+                }
+                writer.write(timestamp);
+                writer.write(batch[i]);
+                writer.write('\n');
+                written += timestamp.length() + batch[i].length() + 1;
+            }
+            writer.flush();
+        } catch (IOException e) {
+            System.out.println("Error al escribir el registro en " + path + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            // El fichero ya no se va a usar
+        }
+    }
+
+    private void open() throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        written = Files.size(path);
+    }
+
+    /**
+     * Cierra el fichero actual, desplaza los antiguos y abre uno nuevo.
+     */
+    private void rotate() throws IOException {
+        writer.close();
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path older = numbered(i);
+            if (Files.exists(older)) {
+                Files.move(older, numbered(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 0) {
+            Files.move(path, numbered(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(path);
+        }
+        open();
+    }
+
+    private Path numbered(int index) {
+        return path.resolveSibling(path.getFileName() + "." + index);
+    }
+}
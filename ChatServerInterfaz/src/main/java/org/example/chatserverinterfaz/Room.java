@@ -0,0 +1,107 @@
+package org.example.chatserverinterfaz;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sala del chat: un nombre y los usuarios que están en ella. Cada línea de chat, aviso de presencia o
+ * imagen se reenvía solo a los miembros de la sala del remitente, así que el coste de un reenvío depende
+ * del tamaño de la sala y no del número total de usuarios conectados.
+ *
+ * Los miembros se guardan en un array que se sustituye entero en cada alta o baja. Reenviar un mensaje
+ * solo lee el array actual, sin bloqueos ni copias; las altas y bajas, mucho menos frecuentes, son las
+ * que pagan la copia. Solo las hace el {@link RoomDirectory}, de una en una por sala.
+ *
+ * @author Alejandro Ramírez
+ */
+public final class Room {
+
+    private static final Session[] EMPTY = new Session[0];
+
+    private final String name;
+
+    // Nombre codificado en UTF-8, para escribirlo en las tramas sin volver a codificarlo
+    private final byte[] nameBytes;
+
+    // Miembros de la sala. El array nunca se modifica: cada cambio publica uno nuevo
+    private volatile Session[] members = EMPTY;
+
+    // Miembros que usan el protocolo de texto antiguo
+    private volatile int legacyMembers;
+
+    Room(String name) {
+        this.name = name;
+        this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public byte[] nameBytes() {
+        return nameBytes;
+    }
+
+    /**
+     * Miembros actuales de la sala, en un array que no debe modificarse.
+     *
+     * @return Array con los miembros de la sala.
+     */
+    public Session[] members() {
+        return members;
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    /**
+     * Indica si algún miembro usa el protocolo de texto antiguo, para no codificar los mensajes en texto
+     * cuando nadie de la sala los va a recibir así.
+     *
+     * @return true si hay al menos un miembro con el protocolo antiguo.
+     */
+    public boolean hasLegacyMembers() {
+        return legacyMembers > 0;
+    }
+
+    /**
+     * Añade un miembro. Solo lo llama el directorio con la sala bloqueada.
+     */
+    void add(Session session) {
+        Session[] current = members;
+        Session[] updated = new Session[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = session;
+        members = updated;
+        if (session.isLegacy()) {
+            legacyMembers++;
+        }
+    }
+
+    /**
+     * Quita un miembro. Solo lo llama el directorio con la sala bloqueada.
+     *
+     * @return true si el usuario estaba en la sala.
+     */
+    boolean remove(Session session) {
+        Session[] current = members;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == session) {
+                Session[] updated = new Session[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                members = updated;
+                if (session.isLegacy()) {
+                    legacyMembers--;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + members.length + " usuarios)";
+    }
+}
@@ -0,0 +1,100 @@
+package org.example.chatserverinterfaz;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Directorio de las salas del chat, indexadas por su nombre.
+ *
+ * Las salas se crean al entrar el primer usuario y se retiran en cuanto sale el último, así que solo
+ * ocupan memoria las salas con alguien dentro. Las altas y bajas de cada sala se hacen dentro de
+ * {@link ConcurrentHashMap#compute}, que bloquea solo esa sala: un usuario no puede entrar en una sala
+ * mientras se está retirando, y las salas distintas no se esperan entre sí.
+ *
+ * Todos los usuarios empiezan en la sala {@link #DEFAULT_ROOM}, que es la única que conocen los clientes
+ * del protocolo de texto antiguo.
+ *
+ * @author Alejandro Ramírez
+ */
+public class RoomDirectory {
+
+    // Sala en la que entran los usuarios al conectarse
+    public static final String DEFAULT_ROOM = "general";
+
+    // Longitud maxima del nombre de una sala en UTF-8
+    public static final int MAX_NAME_LENGTH = 64;
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * Indica si un nombre de sala es válido: no vacío, sin espacios en los extremos y de como mucho
+     * {@link #MAX_NAME_LENGTH} bytes.
+     *
+     * @param name Nombre de la sala.
+     * @return true si se puede usar como nombre de sala.
+     */
+    public static boolean isValidName(String name) {
+        return !name.isEmpty() && name.equals(name.strip())
+                && name.getBytes(StandardCharsets.UTF_8).length <= MAX_NAME_LENGTH;
+    }
+
+    /**
+     * Mete a un usuario en una sala, creándola si no existe, y la guarda como su sala actual. Quien llama
+     * debe sacarlo antes de la sala en la que estuviera.
+     *
+     * @param name Nombre de la sala.
+     * @param session Usuario que entra.
+     * @return La sala en la que ha entrado.
+     */
+    Room join(String name, Session session) {
+        Room room = rooms.compute(name, (key, existing) -> {
+            Room target = existing != null ? existing : new Room(key);
+            target.add(session);
+            return target;
+        });
+        session.moveTo(room);
+        return room;
+    }
+
+    /**
+     * Saca a un usuario de su sala actual y retira la sala si se queda vacía. La sesión conserva la sala
+     * como la última en la que estuvo, para avisar a sus miembros de la salida; repetir la llamada no
+     * tiene efecto.
+     *
+     * @param session Usuario que sale.
+     * @return La sala de la que ha salido, o null si no estaba en ninguna.
+     */
+    Room leave(Session session) {
+        Room room = session.room();
+        if (room == null) {
+            return null;
+        }
+        rooms.computeIfPresent(room.name(), (key, existing) -> {
+            if (existing != room) {
+                return existing;
+            }
+            room.remove(session);
+            return room.size() == 0 ? null : room;
+        });
+        return room;
+    }
+
+    /**
+     * Obtiene una sala por su nombre.
+     *
+     * @param name Nombre de la sala.
+     * @return La sala, o null si no hay nadie en ella.
+     */
+    public Room lookup(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * Número de salas con algún usuario.
+     *
+     * @return Número de salas.
+     */
+    public int size() {
+        return rooms.size();
+    }
+}
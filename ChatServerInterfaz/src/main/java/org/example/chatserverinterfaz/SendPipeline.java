@@ -0,0 +1,331 @@
+package org.example.chatserverinterfaz;
+
+import org.example.chatprotocol.ReliableLink;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Etapa de envío del servidor. Los mensajes se dejan en una cola acotada y uno o varios hilos propios
+ * los sacan por lotes y los escriben en el socket.
+ *
+ * Un reenvío a toda la sala se encola como un único trabajo que lleva la lista de destinatarios; es el
+ * hilo de envío el que lo expande. Así el hilo que recibe solo hace una operación por mensaje, sea cual
+ * sea el tamaño de la sala.
+ *
+ * A los usuarios que negociaron la entrega fiable, las tramas fiables se les envían con un número de
+ * secuencia de su enlace, que se asigna en el hilo de envío justo antes de escribir el datagrama.
+ *
+ * Un reenvío puede llevar además la trama con la carga comprimida, que reciben en su lugar los clientes que
+ * aceptaron la compresión en el saludo. Se comprime una vez por mensaje, no por destinatario.
+ *
+ * Con {@link #batch(long)}, cada hilo de envío agrupa en un {@link OutboundBatcher} las tramas de los
+ * reenvíos a la sala que van a los clientes que aceptan datagramas BATCH, y espera trabajos solo hasta que
+ * vence el siguiente lote.
+ *
+ * Si la cola está llena, quien encola espera como mucho {@link #OFFER_TIMEOUT_MICROS} microsegundos.
+ * Pasado ese tiempo el mensaje se descarta y se contabiliza, en lugar de lanzar una excepción que
+ * detendría el hilo que recibe.
+ *
+ * @author Alejandro Ramírez
+ */
+public class SendPipeline {
+
+    // Numero maximo de trabajos esperando en la cola
+    static final int QUEUE_CAPACITY = 16384;
+
+    // Numero maximo de trabajos que un hilo de envio saca de la cola de una vez
+    static final int BATCH_SIZE = 64;
+
+    // Tiempo maximo que se espera a que haya sitio en la cola antes de descartar un mensaje
+    static final long OFFER_TIMEOUT_MICROS = 1000;
+
+    // Escribe cada datagrama en el socket del motor
+    private final PacketSender transport;
+
+    // Trabajos pendientes de envio
+    private final BlockingQueue<SendJob> queue;
+
+    // Hilos que vacian la cola. Si es 0 los envios se hacen en el hilo que los solicita
+    private final int senderThreads;
+
+    private final List<Thread> threads = new ArrayList<>();
+
+    // Datagramas enviados, descartados por cola llena y fallidos al escribir en el socket
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    // Metricas del servidor donde se registran los envios y sus tiempos
+    private ServerMetrics metrics = new ServerMetrics();
+
+    // Ventana de los lotes por destinatario en nanosegundos, o 0 si no se agrupa
+    private long batchWindowNanos;
+
+    private volatile boolean running;
+
+    /**
+     * Constructor de la clase SendPipeline con los valores por defecto: un hilo de envío y una cola de
+     * {@link #QUEUE_CAPACITY} trabajos.
+     *
+     * @param transport Operación que escribe un datagrama en el socket.
+     */
+    public SendPipeline(PacketSender transport) {
+        this(transport, QUEUE_CAPACITY, 1);
+    }
+
+    /**
+     * Constructor de la clase SendPipeline.
+     *
+     * @param transport Operación que escribe un datagrama en el socket.
+     * @param capacity Número máximo de trabajos en la cola.
+     * @param senderThreads Hilos de envío. Con 0 los envíos se hacen directamente en el hilo que los
+     *                      solicita, lo que sirve para medir el coste completo de un reenvío. Con más de
+     *                      uno, dos mensajes seguidos al mismo destinatario pueden llegar desordenados.
+     */
+    public SendPipeline(PacketSender transport, int capacity, int senderThreads) {
+        this.transport = transport;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.senderThreads = senderThreads;
+    }
+
+    /**
+     * Registra los envíos en las métricas del servidor. Debe llamarse antes de {@link #start()}.
+     *
+     * @param metrics Métricas del servidor.
+     */
+    void instrument(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Agrupa las tramas de cada destinatario que acepte los lotes durante una ventana. Debe llamarse antes
+     * de {@link #start()}; sin hilos de envío no se agrupa.
+     *
+     * @param windowNanos Tiempo que un lote espera más tramas desde que se abre, o 0 para no agrupar.
+     */
+    void batch(long windowNanos) {
+        this.batchWindowNanos = windowNanos;
+    }
+
+    /**
+     * Arranca los hilos de envío.
+     */
+    public void start() {
+        running = true;
+        for (int i = 0; i < senderThreads; i++) {
+            Thread thread = new Thread(this::drain, "chat-send-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    /**
+     * Detiene los hilos de envío. Los trabajos que quedan en la cola se descartan.
+     */
+    public void stop() {
+        running = false;
+        threads.forEach(Thread::interrupt);
+        threads.clear();
+    }
+
+    /**
+     * Encola un datagrama para un único destinatario.
+     *
+     * @param payload Contenido del datagrama.
+     * @param target Dirección y puerto del destinatario.
+     */
+    public void send(SharedPayload payload, InetSocketAddress target) {
+        submit(new SendJob(payload, null, null, null, target, 0, metrics.enqueueSend()));
+    }
+
+    /**
+     * Encola una trama de un enlace fiable con el número de secuencia que se le ha asignado. Se usa
+     * para el primer envío de las respuestas y para los reenvíos.
+     *
+     * @param payload Trama a enviar.
+     * @param sequence Número de secuencia de la trama en el enlace del destinatario, o 0 si no lleva.
+     * @param target Dirección y puerto del destinatario.
+     */
+    public void send(SharedPayload payload, int sequence, InetSocketAddress target) {
+        submit(new SendJob(payload, null, null, null, target, sequence, metrics.enqueueSend()));
+    }
+
+    /**
+     * Encola el mismo datagrama para varios destinatarios.
+     *
+     * @param payload Trama binaria que reciben los clientes actuales.
+     * @param legacyPayload Texto que reciben los clientes con el protocolo antiguo, o null si no hay.
+     * @param recipients Destinatarios. El array no debe modificarse después de llamar a este método.
+     * @param excluded Dirección que no debe recibir el datagrama, o null para enviarlo a todos.
+     */
+    public void broadcast(SharedPayload payload, SharedPayload legacyPayload,
+                          Session[] recipients, InetSocketAddress excluded) {
+        broadcast(payload, null, legacyPayload, recipients, excluded);
+    }
+
+    /**
+     * Encola el mismo datagrama para varios destinatarios, con una versión comprimida para los que la aceptan.
+     *
+     * @param payload Trama binaria que reciben los clientes actuales.
+     * @param compressedPayload La misma trama con la carga comprimida, o null si no compensa.
+     * @param legacyPayload Texto que reciben los clientes con el protocolo antiguo, o null si no hay.
+     * @param recipients Destinatarios. El array no debe modificarse después de llamar a este método.
+     * @param excluded Dirección que no debe recibir el datagrama, o null para enviarlo a todos.
+     */
+    public void broadcast(SharedPayload payload, SharedPayload compressedPayload, SharedPayload legacyPayload,
+                          Session[] recipients, InetSocketAddress excluded) {
+        if (recipients.length > 0) {
+            metrics.recordFanout(recipients.length);
+            submit(new SendJob(payload, compressedPayload, legacyPayload, recipients, excluded, 0,
+                    metrics.enqueueSend()));
+        }
+    }
+
+    public long sentDatagrams() {
+        return sent.sum();
+    }
+
+    public long droppedDatagrams() {
+        return dropped.sum();
+    }
+
+    public long failedDatagrams() {
+        return failed.sum();
+    }
+
+    /**
+     * Número de trabajos esperando en la cola.
+     *
+     * @return Profundidad actual de la cola.
+     */
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Encola un trabajo esperando un tiempo acotado si la cola está llena.
+     */
+    private void submit(SendJob job) {
+        if (senderThreads == 0) {
+            deliver(job, null);
+            return;
+        }
+        try {
+            if (!queue.offer(job, OFFER_TIMEOUT_MICROS, TimeUnit.MICROSECONDS)) {
+                dropped.add(job.datagrams());
+            }
+        } catch (InterruptedException e) {
+            dropped.add(job.datagrams());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Bucle de un hilo de envío: espera a que haya trabajo y lo saca de la cola por lotes. Si agrupa por
+     * destinatario, espera como mucho hasta que vence el siguiente lote y lo envía.
+     */
+    private void drain() {
+        List<SendJob> batch = new ArrayList<>(BATCH_SIZE);
+        OutboundBatcher batcher = batchWindowNanos > 0
+                ? new OutboundBatcher(batchWindowNanos, (payload, target) -> write(payload, 0, target), metrics)
+                : null;
+        try {
+            while (running) {
+                // Se bloquea hasta que llega el primer trabajo y se recogen los que ya esten esperando
+                long wait = batcher != null ? batcher.flushExpired(System.nanoTime()) : -1;
+                SendJob first = wait < 0 ? queue.take() : queue.poll(wait, TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+
+                for (SendJob job : batch) {
+                    deliver(job, batcher);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // El servidor se esta deteniendo
+        }
+    }
+
+    /**
+     * Escribe en el socket todos los datagramas de un trabajo.
+     *
+     * @param batcher Lotes del hilo de envío, o null si no se agrupa.
+     */
+    private void deliver(SendJob job, OutboundBatcher batcher) {
+        long start = metrics.startSend(job.enqueued());
+        if (job.recipients() == null) {
+            // Lo que se envia a un solo destinatario no debe adelantar a su lote
+            if (batcher != null) {
+                batcher.flush(job.target());
+            }
+            write(job.payload(), job.sequence(), job.target());
+        } else {
+            deliverAll(job, batcher);
+        }
+        metrics.endSend(start);
+    }
+
+    /**
+     * Escribe un trabajo de reenvío a toda la sala, cada destinatario en su protocolo.
+     */
+    private void deliverAll(SendJob job, OutboundBatcher batcher) {
+        for (Session session : job.recipients()) {
+            // Cada destinatario recibe la version codificada en su protocolo, comprimida si la acepta
+            SharedPayload compressed = job.compressedPayload();
+            SharedPayload payload = session.isLegacy() ? job.legacyPayload()
+                    : compressed != null && session.acceptsCompressed() ? compressed : job.payload();
+
+            // Evita reenviar el mensaje al remitente original
+            if (payload == null || session.address().equals(job.target())) {
+                continue;
+            }
+
+            // Las tramas fiables se numeran con la secuencia del enlace de cada destinatario
+            ReliableLink<SharedPayload> link = session.link();
+            int sequence = link != null && payload.isReliable() ? link.sender().register(payload) : 0;
+            if (batcher == null || session.batchLimit() == 0 || !batcher.add(payload, sequence, session)) {
+                write(payload, sequence, session.address());
+            }
+            if (payload == compressed) {
+                metrics.recordCompressed(job.payload().length() - compressed.length());
+            }
+        }
+    }
+
+    private void write(SharedPayload payload, int sequence, InetSocketAddress target) {
+        try {
+            transport.send(payload, sequence, target);
+            sent.increment();
+            metrics.recordOutbound(payload);
+        } catch (IOException | RuntimeException e) {
+            // Un destinatario que falla, o un contenido que el motor no puede enviar, no impide el envio al
+            // resto ni detiene el hilo de envio
+            failed.increment();
+        }
+    }
+
+    /**
+     * Trabajo de envío. Si recipients es null, target es el destinatario y sequence el número de
+     * secuencia con el que se reenvía (0 si no lleva); si no, target es la dirección excluida del reenvío.
+     * enqueued es el instante en que se encoló si se cronometra, o 0 (véase {@link ServerMetrics#enqueueSend()}).
+     */
+    private record SendJob(SharedPayload payload, SharedPayload compressedPayload, SharedPayload legacyPayload,
+                           Session[] recipients, InetSocketAddress target, int sequence, long enqueued) {
+
+        int datagrams() {
+            return recipients == null ? 1 : recipients.length;
+        }
+    }
+}
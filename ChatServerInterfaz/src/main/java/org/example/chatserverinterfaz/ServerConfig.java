@@ -0,0 +1,142 @@
+package org.example.chatserverinterfaz;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Configuración del servidor. Cada opción se puede indicar en la línea de comandos como "--nombre=valor"
+ * o con la propiedad del sistema "chat.nombre", con puntos en lugar de guiones ("log-file" es
+ * "chat.log.file"); la línea de comandos tiene prioridad.
+ *
+ * <ul>
+ *     <li>{@code port}: puerto en el que escucha el servidor (5010).</li>
+ *     <li>{@code engine}: motor de entrada/salida, "classic", "nio" o "sharded" (nio).</li>
+ *     <li>{@code shards}: sockets que reciben en el mismo puerto con el motor "sharded" (uno por núcleo).</li>
+ *     <li>{@code dispatch}: modo de despacho, "single" o "virtual" (single).</li>
+ *     <li>{@code legacy}: aceptar el protocolo de texto antiguo (true).</li>
+ *     <li>{@code reliable}: ofrecer la entrega fiable (true).</li>
+ *     <li>{@code compress}: ofrecer la compresión de las líneas de chat con el diccionario compartido (true).</li>
+ *     <li>{@code receive-buffer}: buffer de recepción del socket en bytes (4 MB).</li>
+ *     <li>{@code dispatch-queue}: datagramas que esperan al despacho en el motor NIO (8192).</li>
+ *     <li>{@code send-queue}: trabajos que esperan a la etapa de envío (16384).</li>
+ *     <li>{@code log-lines}: líneas que conserva la ventana del servidor (5000).</li>
+ *     <li>{@code log-file}: fichero rotativo donde se escribe también el registro (ninguno).</li>
+ *     <li>{@code metrics-port}: puerto local donde se sirven las métricas en texto (ninguno).</li>
+ *     <li>{@code idle-timeout}: segundos sin latidos tras los que se desconecta a un usuario (30).</li>
+ *     <li>{@code journal-dir}: directorio donde se guarda el historial de mensajes (ninguno).</li>
+ *     <li>{@code journal-segment}: tamaño de cada segmento del historial en bytes (16 MB).</li>
+ *     <li>{@code journal-max-bytes}: tamaño máximo del historial en bytes (256 MB).</li>
+ *     <li>{@code journal-max-age}: segundos que se conserva el historial (una semana).</li>
+ *     <li>{@code rate-policy}: qué hacer con quien supera su límite de mensajes, "off", "drop", "delay" o
+ *     "kick" (drop).</li>
+ *     <li>{@code rate-limit}: datagramas por segundo de cada usuario (50).</li>
+ *     <li>{@code rate-burst}: datagramas seguidos que se permiten a un usuario (100).</li>
+ *     <li>{@code global-rate}: datagramas por segundo de todo el servidor (100000).</li>
+ *     <li>{@code batch-window}: milisegundos que se agrupan las tramas de cada cliente en un datagrama
+ *     (ninguno: no se agrupan).</li>
+ *     <li>{@code peers}: otros nodos de la federación, "host:puerto" separados por comas (ninguno).</li>
+ *     <li>{@code peer-timeout}: segundos sin oír a un nodo tras los que se le da por caído (5).</li>
+ * </ul>
+ *
+ * @author Alejandro Ramírez
+ */
+public record ServerConfig(int port, EngineType engine, DispatchMode dispatch, boolean legacy, boolean reliable,
+                           boolean compress, int receiveBuffer, int dispatchQueue, int sendQueue, int logLines,
+                           String logFile, int metricsPort, int idleTimeout, String journalDir, int journalSegment,
+                           int journalMaxBytes, int journalMaxAge, RatePolicy ratePolicy, int rateLimit,
+                           int rateBurst, int globalRate, int batchWindow, int shards,
+                           List<InetSocketAddress> peers, int peerTimeout) {
+
+    // Puerto en el cual el servidor escucha por defecto
+    public static final int DEFAULT_PORT = 5010;
+
+    // Lineas que conserva la ventana del servidor por defecto
+    public static final int DEFAULT_LOG_LINES = 5000;
+
+    /**
+     * Configuración por defecto, sin argumentos ni propiedades.
+     *
+     * @return La configuración por defecto.
+     */
+    public static ServerConfig defaults() {
+        return parse(new String[0]);
+    }
+
+    /**
+     * Lee la configuración de los argumentos de la línea de comandos y de las propiedades del sistema.
+     *
+     * @param args Argumentos con la forma "--nombre=valor". Los que no la tienen se ignoran.
+     * @return La configuración resultante.
+     * @throws IllegalArgumentException Si algún valor no es válido.
+     */
+    public static ServerConfig parse(String[] args) {
+        Map<String, String> named = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (arg.startsWith("--") && equals > 2) {
+                named.put(arg.substring(2, equals), arg.substring(equals + 1));
+            }
+        }
+
+        return new ServerConfig(
+                intOption(named, "port", DEFAULT_PORT),
+                EngineType.parse(option(named, "engine", null)),
+                DispatchMode.parse(option(named, "dispatch", null)),
+                Boolean.parseBoolean(option(named, "legacy", "true")),
+                Boolean.parseBoolean(option(named, "reliable", "true")),
+                Boolean.parseBoolean(option(named, "compress", "true")),
+                intOption(named, "receive-buffer", NioServerEngine.SOCKET_RECEIVE_BUFFER),
+                intOption(named, "dispatch-queue", NioServerEngine.DISPATCH_QUEUE_CAPACITY),
+                intOption(named, "send-queue", SendPipeline.QUEUE_CAPACITY),
+                intOption(named, "log-lines", DEFAULT_LOG_LINES),
+                option(named, "log-file", null),
+                intOption(named, "metrics-port", 0, 0),
+                intOption(named, "idle-timeout", LivenessMonitor.DEFAULT_TIMEOUT_SECONDS),
+                option(named, "journal-dir", null),
+                intOption(named, "journal-segment", ChatJournal.DEFAULT_SEGMENT_SIZE),
+                intOption(named, "journal-max-bytes", ChatJournal.DEFAULT_MAX_BYTES),
+                intOption(named, "journal-max-age", ChatJournal.DEFAULT_MAX_AGE_SECONDS),
+                RatePolicy.parse(option(named, "rate-policy", null)),
+                intOption(named, "rate-limit", RateLimiter.DEFAULT_RATE),
+                intOption(named, "rate-burst", RateLimiter.DEFAULT_BURST),
+                intOption(named, "global-rate", RateLimiter.DEFAULT_GLOBAL_RATE),
+                intOption(named, "batch-window", 0, 0),
+                intOption(named, "shards", ShardedServerEngine.DEFAULT_SHARDS),
+                Federation.parsePeers(option(named, "peers", null)),
+                intOption(named, "peer-timeout", Federation.DEFAULT_PEER_TIMEOUT_SECONDS));
+    }
+
+    /**
+     * Obtiene una opción de los argumentos o, si no está, de las propiedades del sistema.
+     */
+    private static String option(Map<String, String> named, String name, String defaultValue) {
+        return named.getOrDefault(name, System.getProperty("chat." + name.replace('-', '.'), defaultValue));
+    }
+
+    private static int intOption(Map<String, String> named, String name, int defaultValue) {
+        return intOption(named, name, defaultValue, 1);
+    }
+
+    /**
+     * Obtiene una opción numérica que no puede ser menor que un mínimo. Las opciones en las que 0 significa
+     * desactivado, como {@code metrics-port} o {@code batch-window}, usan 0 como mínimo.
+     */
+    private static int intOption(Map<String, String> named, String name, int defaultValue, int min) {
+        String value = option(named, name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed < min) {
+                throw new IllegalArgumentException("La opción " + name + " no puede ser menor que " + min + ": "
+                        + value);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("La opción " + name + " no es un número: " + value, e);
+        }
+    }
+}
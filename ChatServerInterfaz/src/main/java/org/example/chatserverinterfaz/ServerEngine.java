@@ -0,0 +1,34 @@
+package org.example.chatserverinterfaz;
+
+import java.io.IOException;
+
+/**
+ * Motor de entrada/salida del servidor de chat. Cada implementación decide cómo se reciben los
+ * datagramas del socket y cómo se envían las respuestas, pero todas delegan la lógica del chat
+ * en un {@link MessageDispatcher}.
+ *
+ * @author Alejandro Ramírez
+ */
+public interface ServerEngine {
+
+    /**
+     * Abre el socket en el puerto indicado y arranca los hilos del motor.
+     *
+     * @param port Puerto en el que escucha el servidor.
+     * @param dispatcher Lógica del chat que procesa cada datagrama recibido.
+     * @throws IOException Si no se puede abrir el socket.
+     */
+    void start(int port, MessageDispatcher dispatcher) throws IOException;
+
+    /**
+     * Detiene los hilos del motor y cierra el socket. Puede llamarse varias veces.
+     */
+    void stop();
+
+    /**
+     * Indica si el motor sigue aceptando datagramas.
+     *
+     * @return true si el socket sigue abierto.
+     */
+    boolean isRunning();
+}
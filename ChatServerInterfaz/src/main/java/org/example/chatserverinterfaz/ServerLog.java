@@ -0,0 +1,170 @@
+package org.example.chatserverinterfaz;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Registro asíncrono del servidor. Los hilos del servidor escriben las líneas en un {@link LogRing} sin
+ * bloquearse, y un hilo propio las saca por lotes y las entrega a los destinos registrados (la ventana del
+ * servidor, un fichero rotativo...). Cada destino recibe los lotes en el hilo del registro y decide cómo
+ * agruparlos: la ventana, por ejemplo, solo se actualiza una vez por fotograma.
+ *
+ * @author Alejandro Ramírez
+ */
+public class ServerLog implements Consumer<String> {
+
+    // Entradas que caben en la cola antes de empezar a descartar
+    static final int DEFAULT_CAPACITY = 65536;
+
+    // Entradas que se sacan de la cola de una vez
+    static final int BATCH_SIZE = 1024;
+
+    // Espera del hilo del registro cuando la cola esta vacia
+    static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * Destino de las líneas del registro.
+     */
+    public interface Sink {
+
+        /**
+         * Recibe un lote de líneas, en orden. Se llama siempre desde el hilo del registro.
+         *
+         * @param batch Array con las líneas. Solo son válidas durante la llamada.
+         * @param count Número de líneas del lote.
+         */
+        void write(String[] batch, int count);
+
+        /**
+         * Libera los recursos del destino al detener el registro.
+         */
+        default void close() {
+        }
+    }
+
+    private final LogRing ring;
+
+    private final List<Sink> sinks = new CopyOnWriteArrayList<>();
+
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    // Descartes ya notificados en el propio registro
+    private long reportedDrops;
+
+    /**
+     * Constructor de la clase ServerLog con la capacidad por defecto.
+     */
+    public ServerLog() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor de la clase ServerLog.
+     *
+     * @param capacity Entradas de la cola, potencia de dos.
+     */
+    public ServerLog(int capacity) {
+        this.ring = new LogRing(capacity);
+        this.thread = new Thread(this::run, "chat-log");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Añade un destino. Debe hacerse antes de {@link #start()} para no perder las primeras líneas.
+     *
+     * @param sink Destino de las líneas.
+     */
+    public void addSink(Sink sink) {
+        sinks.add(sink);
+    }
+
+    /**
+     * Arranca el hilo del registro.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Escribe una línea en el registro sin bloquear. Si la cola está llena la línea se descarta. No se
+     * despierta al hilo del registro: lo hace él mismo cada pocos milisegundos.
+     *
+     * @param message El mensaje a registrar.
+     */
+    @Override
+    public void accept(String message) {
+        ring.offer(message);
+    }
+
+    /**
+     * Número de líneas descartadas porque la cola estaba llena.
+     *
+     * @return Líneas descartadas desde el arranque.
+     */
+    public long dropped() {
+        return ring.dropped();
+    }
+
+    /**
+     * Detiene el hilo después de entregar las líneas pendientes y cierra los destinos.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sinks.forEach(Sink::close);
+    }
+
+    /**
+     * Bucle del hilo del registro.
+     */
+    private void run() {
+        String[] batch = new String[BATCH_SIZE];
+        while (true) {
+            int count = ring.drain(batch);
+            if (count > 0) {
+                deliver(batch, count);
+                continue;
+            }
+            if (!running) {
+                return;
+            }
+            reportDrops(batch);
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    private void deliver(String[] batch, int count) {
+        for (Sink sink : sinks) {
+            try {
+                sink.write(batch, count);
+            } catch (RuntimeException e) {
+                // Un destino que falla no debe impedir que el resto reciba las lineas
+                e.printStackTrace();
+            }
+        }
+        Arrays.fill(batch, 0, count, null);
+    }
+
+    /**
+     * Deja constancia en el propio registro de las líneas que se han perdido por cola llena.
+     */
+    private void reportDrops(String[] batch) {
+        long drops = ring.dropped();
+        if (drops != reportedDrops) {
+            batch[0] = "Registro saturado: " + (drops - reportedDrops) + " líneas descartadas";
+            reportedDrops = drops;
+            deliver(batch, 1);
+        }
+    }
+}
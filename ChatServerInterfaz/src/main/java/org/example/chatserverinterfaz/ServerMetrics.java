@@ -0,0 +1,629 @@
+package org.example.chatserverinterfaz;
+
+import org.example.chatprotocol.Frame;
+import org.example.chatprotocol.FrameCodec;
+import org.example.chatprotocol.LatencyHistogram;
+import org.example.chatprotocol.Opcode;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Métricas del servidor en marcha: datagramas y bytes recibidos y enviados por código de operación,
+ * descartes, fallos de envío, usuarios conectados, salas, profundidad de las colas, tamaño de cada difusión y
+ * latencia de cada etapa.
+ *
+ * Los contadores que se actualizan por datagrama son {@link LongAdder} y las latencias se registran en
+ * {@link LatencyHistogram}, así que registrar no bloquea ni reserva memoria aunque varios hilos lo hagan
+ * a la vez. Leer el reloj cuesta más que registrar, así que las latencias se miden en uno de cada
+ * {@link #SAMPLE_INTERVAL} datagramas y trabajos de envío; los contadores son exactos. Lo que ya cuenta otra clase (usuarios, colas, descartes de la etapa de envío) no se duplica:
+ * se lee de su dueño solo cuando se consultan las métricas.
+ *
+ * Se consultan por JMX ({@link ServerMetricsMXBean}) y en texto plano con {@link #format()}, que es lo
+ * que sirve {@link MetricsEndpoint}.
+ *
+ * @author Alejandro Ramírez
+ */
+public final class ServerMetrics implements ServerMetricsMXBean {
+
+    // Contadores por codigo de operacion. Los codigos desconocidos comparten el contador 0
+    private static final int OPCODE_SLOTS = 32;
+
+    // Se cronometra uno de cada SAMPLE_INTERVAL datagramas y trabajos de envio, potencia de dos
+    public static final int SAMPLE_INTERVAL = 16;
+
+    // Percentiles de cada histograma en JMX y en el texto
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_LABELS = {"p50", "p90", "p99", "p999"};
+    private static final String[] QUANTILE_LABELS = {"0.5", "0.9", "0.99", "0.999"};
+
+    private static final IntSupplier NONE = () -> 0;
+
+    // Tramas recibidas y enviadas por codigo de operacion, y mensajes del protocolo antiguo
+    private final LongAdder[] inbound = adders();
+    private final LongAdder[] outbound = adders();
+    private final LongAdder legacyInbound = new LongAdder();
+    private final LongAdder legacyOutbound = new LongAdder();
+
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    // Tramas binarias que no se pudieron leer
+    private final LongAdder invalidFrames = new LongAdder();
+
+    // Usuarios desconectados por no dar señales de vida
+    private final LongAdder idleEvictions = new LongAdder();
+
+    // Datagramas descartados por superar el limite de su usuario o el del servidor, retrasados, y usuarios
+    // desconectados por superar su limite
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder globalRateLimited = new LongAdder();
+    private final LongAdder rateDelayed = new LongAdder();
+    private final LongAdder rateKicks = new LongAdder();
+
+    // Datagramas BATCH enviados y tramas que llevaban
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedFrames = new LongAdder();
+
+    // Tramas enviadas con la carga comprimida y bytes que se han ahorrado con ello
+    private final LongAdder compressedFrames = new LongAdder();
+    private final LongAdder compressionSavedBytes = new LongAdder();
+
+    // Usuarios de la sala en cada difusion, incluido el remitente que se salta
+    private final LatencyHistogram fanout = new LatencyHistogram();
+
+    // Nanosegundos que tarda el dispatcher en procesar un datagrama
+    private final LatencyHistogram dispatchNanos = new LatencyHistogram();
+
+    // Nanosegundos que un trabajo espera en la cola de envio y que se tarda en escribirlo en el socket
+    private final LatencyHistogram sendQueueWaitNanos = new LatencyHistogram();
+    private final LatencyHistogram sendNanos = new LatencyHistogram();
+
+    // Cuentan los datagramas y trabajos para elegir los que se cronometran. Se incrementan sin
+    // sincronizar: si dos hilos se pisan solo cambia cual se mide
+    private int dispatchTicks;
+    private int sendTicks;
+
+    // Valores que mantienen otras clases y se leen al consultar
+    private volatile IntSupplier sessions = NONE;
+    private volatile IntSupplier rooms = NONE;
+    private volatile IntSupplier dispatchQueueDepth = NONE;
+    private volatile IntSupplier sendQueueDepth = NONE;
+    private volatile LongSupplier inboundDropped = () -> 0;
+    private volatile LongSupplier sendDropped = () -> 0;
+    private volatile LongSupplier sendFailures = () -> 0;
+
+    // Datagramas recibidos por cada socket del motor con varios, o vacio con los demas motores
+    private volatile LongAdder[] shardsIn = new LongAdder[0];
+
+    // Nodos de la federacion, o null si el servidor va solo
+    private volatile Federation federation;
+
+    private static LongAdder[] adders() {
+        LongAdder[] adders = new LongAdder[OPCODE_SLOTS];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static int slot(byte opcode) {
+        return opcode > 0 && opcode < OPCODE_SLOTS ? opcode : 0;
+    }
+
+    /**
+     * Registra una trama binaria recibida.
+     *
+     * @param opcode Código de operación de la trama.
+     * @param length Bytes del datagrama.
+     */
+    public void recordInbound(byte opcode, int length) {
+        inbound[slot(opcode)].increment();
+        bytesIn.add(length);
+    }
+
+    /**
+     * Registra un mensaje recibido con el protocolo de texto antiguo.
+     *
+     * @param length Bytes del datagrama.
+     */
+    public void recordLegacyInbound(int length) {
+        legacyInbound.increment();
+        bytesIn.add(length);
+    }
+
+    /**
+     * Registra una trama binaria recibida que no se ha podido leer.
+     *
+     * @param length Bytes del datagrama.
+     */
+    public void recordInvalid(int length) {
+        invalidFrames.increment();
+        bytesIn.add(length);
+    }
+
+    /**
+     * Registra un usuario desconectado por inactividad.
+     */
+    public void recordIdleEviction() {
+        idleEvictions.increment();
+    }
+
+    /**
+     * Registra un datagrama descartado por superar el límite de mensajes de su usuario.
+     *
+     * @param length Bytes del datagrama.
+     */
+    public void recordRateLimited(int length) {
+        rateLimited.increment();
+        bytesIn.add(length);
+    }
+
+    /**
+     * Registra un datagrama descartado por superar el límite de mensajes de todo el servidor.
+     *
+     * @param length Bytes del datagrama.
+     */
+    public void recordGlobalRateLimited(int length) {
+        globalRateLimited.increment();
+        bytesIn.add(length);
+    }
+
+    /**
+     * Registra un datagrama retrasado hasta que su usuario vuelve a estar dentro del límite.
+     */
+    public void recordRateDelayed() {
+        rateDelayed.increment();
+    }
+
+    /**
+     * Registra un usuario desconectado por superar su límite de mensajes.
+     */
+    public void recordRateKick() {
+        rateKicks.increment();
+    }
+
+    /**
+     * Registra un datagrama BATCH escrito en el socket, además de como datagrama enviado.
+     *
+     * @param frames Tramas agrupadas en el datagrama.
+     */
+    public void recordBatch(int frames) {
+        batches.increment();
+        batchedFrames.add(frames);
+    }
+
+    /**
+     * Registra una trama enviada con la carga comprimida en lugar de la original.
+     *
+     * @param savedBytes Bytes de menos respecto a la trama sin comprimir.
+     */
+    public void recordCompressed(int savedBytes) {
+        compressedFrames.increment();
+        compressionSavedBytes.add(savedBytes);
+    }
+
+    /**
+     * Registra un datagrama escrito en el socket.
+     *
+     * @param data Bytes del datagrama: una trama o un mensaje del protocolo antiguo.
+     */
+    public void recordOutbound(byte[] data) {
+        if (data.length >= FrameCodec.OVERHEAD && Frame.isFrame(data[0])) {
+            outbound[slot(data[1])].increment();
+        } else {
+            legacyOutbound.increment();
+        }
+        bytesOut.add(data.length);
+    }
+
+    /**
+     * Registra un datagrama escrito en el socket, también si es una porción del historial.
+     *
+     * @param payload Contenido del datagrama.
+     */
+    public void recordOutbound(SharedPayload payload) {
+        if (payload.data != null) {
+            recordOutbound(payload.data);
+        } else {
+            // El historial solo guarda tramas CHAT
+            outbound[slot(payload.view().get(1))].increment();
+            bytesOut.add(payload.length());
+        }
+    }
+
+    public void recordFanout(int recipients) {
+        fanout.record(recipients);
+    }
+
+    /**
+     * Empieza a cronometrar el despacho de un datagrama, si le toca.
+     *
+     * @return Instante de inicio, o 0 si este datagrama no se cronometra.
+     */
+    public long startDispatch() {
+        return (++dispatchTicks & (SAMPLE_INTERVAL - 1)) == 0 ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Termina de cronometrar el despacho de un datagrama.
+     *
+     * @param start Valor devuelto por {@link #startDispatch()}.
+     */
+    public void endDispatch(long start) {
+        if (start != 0) {
+            dispatchNanos.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Marca un trabajo que entra en la cola de envío, si le toca cronometrarlo.
+     *
+     * @return Instante de encolado, o 0 si este trabajo no se cronometra.
+     */
+    public long enqueueSend() {
+        return (++sendTicks & (SAMPLE_INTERVAL - 1)) == 0 ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Registra la espera en la cola de un trabajo que empieza a enviarse.
+     *
+     * @param enqueued Valor devuelto por {@link #enqueueSend()} al encolarlo.
+     * @return Instante de inicio del envío, o 0 si el trabajo no se cronometra.
+     */
+    public long startSend(long enqueued) {
+        if (enqueued == 0) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        sendQueueWaitNanos.record(start - enqueued);
+        return start;
+    }
+
+    /**
+     * Termina de cronometrar el envío de un trabajo.
+     *
+     * @param start Valor devuelto por {@link #startSend(long)}.
+     */
+    public void endSend(long start) {
+        if (start != 0) {
+            sendNanos.record(System.nanoTime() - start);
+        }
+    }
+
+    void bindSessions(IntSupplier sessions, IntSupplier rooms) {
+        this.sessions = sessions;
+        this.rooms = rooms;
+    }
+
+    void bindDispatchQueue(IntSupplier depth, LongSupplier dropped) {
+        this.dispatchQueueDepth = depth;
+        this.inboundDropped = dropped;
+    }
+
+    void bindShards(LongAdder[] received) {
+        this.shardsIn = received;
+    }
+
+    void bindFederation(Federation federation) {
+        this.federation = federation;
+    }
+
+    void bindSendPipeline(SendPipeline pipeline) {
+        this.sendQueueDepth = pipeline::queueDepth;
+        this.sendDropped = pipeline::droppedDatagrams;
+        this.sendFailures = pipeline::failedDatagrams;
+    }
+
+    @Override
+    public int getSessions() {
+        return sessions.getAsInt();
+    }
+
+    @Override
+    public int getRooms() {
+        return rooms.getAsInt();
+    }
+
+    @Override
+    public long getDatagramsIn() {
+        return sum(inbound) + legacyInbound.sum() + invalidFrames.sum();
+    }
+
+    @Override
+    public long getDatagramsOut() {
+        return sum(outbound) + legacyOutbound.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getLegacyDatagramsIn() {
+        return legacyInbound.sum();
+    }
+
+    @Override
+    public long getLegacyDatagramsOut() {
+        return legacyOutbound.sum();
+    }
+
+    @Override
+    public long getInvalidFrames() {
+        return invalidFrames.sum();
+    }
+
+    @Override
+    public long getIdleEvictions() {
+        return idleEvictions.sum();
+    }
+
+    @Override
+    public long getRateLimited() {
+        return rateLimited.sum();
+    }
+
+    @Override
+    public long getGlobalRateLimited() {
+        return globalRateLimited.sum();
+    }
+
+    @Override
+    public long getRateDelayed() {
+        return rateDelayed.sum();
+    }
+
+    @Override
+    public long getRateKicks() {
+        return rateKicks.sum();
+    }
+
+    @Override
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    @Override
+    public long getBatchedFrames() {
+        return batchedFrames.sum();
+    }
+
+    @Override
+    public long getCompressedFrames() {
+        return compressedFrames.sum();
+    }
+
+    @Override
+    public long getCompressionSavedBytes() {
+        return compressionSavedBytes.sum();
+    }
+
+    @Override
+    public long[] getShardDatagramsIn() {
+        LongAdder[] received = shardsIn;
+        long[] totals = new long[received.length];
+        for (int i = 0; i < received.length; i++) {
+            totals[i] = received[i].sum();
+        }
+        return totals;
+    }
+
+    @Override
+    public int getFederationPeersUp() {
+        Federation nodes = federation;
+        int up = 0;
+        if (nodes != null) {
+            for (Federation.Peer peer : nodes.peers()) {
+                up += peer.isUp() ? 1 : 0;
+            }
+        }
+        return up;
+    }
+
+    @Override
+    public int getRemoteUsers() {
+        Federation nodes = federation;
+        return nodes != null ? nodes.remoteUsers() : 0;
+    }
+
+    @Override
+    public Map<String, Long> getFederationLinesOut() {
+        Map<String, Long> lines = new LinkedHashMap<>();
+        Federation nodes = federation;
+        if (nodes != null) {
+            for (Federation.Peer peer : nodes.peers()) {
+                lines.put(peer.label(), peer.linesOut());
+            }
+        }
+        return lines;
+    }
+
+    @Override
+    public Map<String, Long> getFederationFanout() {
+        Map<String, Long> deliveries = new LinkedHashMap<>();
+        Federation nodes = federation;
+        if (nodes != null) {
+            for (Federation.Peer peer : nodes.peers()) {
+                deliveries.put(peer.label(), peer.deliveries());
+            }
+        }
+        return deliveries;
+    }
+
+    @Override
+    public long getInboundDropped() {
+        return inboundDropped.getAsLong();
+    }
+
+    @Override
+    public long getSendDropped() {
+        return sendDropped.getAsLong();
+    }
+
+    @Override
+    public long getSendFailures() {
+        return sendFailures.getAsLong();
+    }
+
+    @Override
+    public int getDispatchQueueDepth() {
+        return dispatchQueueDepth.getAsInt();
+    }
+
+    @Override
+    public int getSendQueueDepth() {
+        return sendQueueDepth.getAsInt();
+    }
+
+    @Override
+    public Map<String, Long> getDatagramsInByOpcode() {
+        return byOpcode(inbound);
+    }
+
+    @Override
+    public Map<String, Long> getDatagramsOutByOpcode() {
+        return byOpcode(outbound);
+    }
+
+    @Override
+    public Map<String, Long> getFanout() {
+        return summary(fanout);
+    }
+
+    @Override
+    public Map<String, Long> getDispatchNanos() {
+        return summary(dispatchNanos);
+    }
+
+    @Override
+    public Map<String, Long> getSendQueueWaitNanos() {
+        return summary(sendQueueWaitNanos);
+    }
+
+    @Override
+    public Map<String, Long> getSendNanos() {
+        return summary(sendNanos);
+    }
+
+    /**
+     * Escribe todas las métricas en texto plano, una por línea con la forma "nombre{etiqueta} valor", el
+     * formato de exposición de Prometheus.
+     *
+     * @return Las métricas en texto.
+     */
+    public String format() {
+        StringBuilder text = new StringBuilder(4096);
+        line(text, "chat_sessions", "", getSessions());
+        line(text, "chat_rooms", "", getRooms());
+        counters(text, "chat_datagrams_in_total", inbound, legacyInbound);
+        line(text, "chat_datagrams_in_total", "{opcode=\"INVALID_FRAME\"}", invalidFrames.sum());
+        counters(text, "chat_datagrams_out_total", outbound, legacyOutbound);
+        long[] shards = getShardDatagramsIn();
+        for (int i = 0; i < shards.length; i++) {
+            line(text, "chat_shard_datagrams_in_total", "{shard=\"" + i + "\"}", shards[i]);
+        }
+        line(text, "chat_bytes_in_total", "", getBytesIn());
+        line(text, "chat_bytes_out_total", "", getBytesOut());
+        line(text, "chat_dropped_total", "{stage=\"dispatch\"}", getInboundDropped());
+        line(text, "chat_dropped_total", "{stage=\"send\"}", getSendDropped());
+        line(text, "chat_send_failures_total", "", getSendFailures());
+        line(text, "chat_idle_evictions_total", "", getIdleEvictions());
+        line(text, "chat_rate_limited_total", "{scope=\"session\"}", getRateLimited());
+        line(text, "chat_rate_limited_total", "{scope=\"global\"}", getGlobalRateLimited());
+        line(text, "chat_rate_delayed_total", "", getRateDelayed());
+        line(text, "chat_rate_kicks_total", "", getRateKicks());
+        line(text, "chat_batches_total", "", getBatches());
+        line(text, "chat_batched_frames_total", "", getBatchedFrames());
+        line(text, "chat_compressed_frames_total", "", getCompressedFrames());
+        line(text, "chat_compression_saved_bytes_total", "", getCompressionSavedBytes());
+        federation(text);
+        line(text, "chat_queue_depth", "{stage=\"dispatch\"}", getDispatchQueueDepth());
+        line(text, "chat_queue_depth", "{stage=\"send\"}", getSendQueueDepth());
+        histogram(text, "chat_fanout_recipients", fanout);
+        histogram(text, "chat_dispatch_nanos", dispatchNanos);
+        histogram(text, "chat_send_queue_wait_nanos", sendQueueWaitNanos);
+        histogram(text, "chat_send_nanos", sendNanos);
+        return text.toString();
+    }
+
+    /**
+     * Estado y tráfico de cada nodo de la federación: las líneas que se le envían (una por línea local, sean
+     * cuantos sean sus usuarios), las que llegan de él y a cuántos usuarios locales se han repartido.
+     */
+    private void federation(StringBuilder text) {
+        Federation nodes = federation;
+        if (nodes == null) {
+            return;
+        }
+        for (Federation.Peer peer : nodes.peers()) {
+            String labels = "{peer=\"" + peer.label() + "\"}";
+            line(text, "chat_federation_peer_up", labels, peer.isUp() ? 1 : 0);
+            line(text, "chat_federation_peer_failures_total", labels, peer.failures());
+            line(text, "chat_federation_remote_users", labels, peer.users());
+            line(text, "chat_federation_lines_out_total", labels, peer.linesOut());
+            line(text, "chat_federation_lines_in_total", labels, peer.linesIn());
+            line(text, "chat_federation_fanout_total", labels, peer.deliveries());
+        }
+    }
+
+    private static void counters(StringBuilder text, String name, LongAdder[] byOpcode, LongAdder legacy) {
+        for (Map.Entry<String, Long> entry : byOpcode(byOpcode).entrySet()) {
+            line(text, name, "{opcode=\"" + entry.getKey() + "\"}", entry.getValue());
+        }
+        line(text, name, "{opcode=\"LEGACY\"}", legacy.sum());
+    }
+
+    private static void histogram(StringBuilder text, String name, LatencyHistogram histogram) {
+        line(text, name + "_count", "", histogram.count());
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            line(text, name, "{quantile=\"" + QUANTILE_LABELS[i] + "\"}", histogram.valueAtPercentile(PERCENTILES[i]));
+        }
+        line(text, name + "_max", "", histogram.max());
+    }
+
+    private static void line(StringBuilder text, String name, String labels, long value) {
+        text.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Contadores por nombre de código de operación, sin los que siguen a 0.
+     */
+    private static Map<String, Long> byOpcode(LongAdder[] adders) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int i = 0; i < adders.length; i++) {
+            long count = adders[i].sum();
+            if (count != 0) {
+                counts.put(i == 0 ? "UNKNOWN" : Opcode.name((byte) i), count);
+            }
+        }
+        return counts;
+    }
+
+    private static Map<String, Long> summary(LatencyHistogram histogram) {
+        Map<String, Long> summary = new LinkedHashMap<>();
+        summary.put("count", histogram.count());
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            summary.put(PERCENTILE_LABELS[i], histogram.valueAtPercentile(PERCENTILES[i]));
+        }
+        summary.put("max", histogram.max());
+        return summary;
+    }
+
+    private static long sum(LongAdder[] adders) {
+        long total = 0;
+        for (LongAdder adder : adders) {
+            total += adder.sum();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,83 @@
+package org.example.chatserverinterfaz;
+
+import java.util.Map;
+
+/**
+ * Vista JMX de las métricas del servidor ({@link ServerMetrics}). Se registra como
+ * "org.example.chat:type=ServerMetrics,port=&lt;puerto&gt;" y se puede consultar con jconsole o VisualVM.
+ *
+ * Los contadores son totales desde el arranque. Los histogramas se muestran como un mapa con el número de
+ * muestras, los percentiles p50, p90, p99 y p999 y el máximo.
+ *
+ * @author Alejandro Ramírez
+ */
+public interface ServerMetricsMXBean {
+
+    int getSessions();
+
+    int getRooms();
+
+    long getDatagramsIn();
+
+    long getDatagramsOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getLegacyDatagramsIn();
+
+    long getLegacyDatagramsOut();
+
+    long getInvalidFrames();
+
+    long getIdleEvictions();
+
+    long getRateLimited();
+
+    long getGlobalRateLimited();
+
+    long getRateDelayed();
+
+    long getRateKicks();
+
+    long getBatches();
+
+    long getBatchedFrames();
+
+    long getCompressedFrames();
+
+    long getCompressionSavedBytes();
+
+    long[] getShardDatagramsIn();
+
+    int getFederationPeersUp();
+
+    int getRemoteUsers();
+
+    Map<String, Long> getFederationLinesOut();
+
+    Map<String, Long> getFederationFanout();
+
+    long getInboundDropped();
+
+    long getSendDropped();
+
+    long getSendFailures();
+
+    int getDispatchQueueDepth();
+
+    int getSendQueueDepth();
+
+    Map<String, Long> getDatagramsInByOpcode();
+
+    Map<String, Long> getDatagramsOutByOpcode();
+
+    Map<String, Long> getFanout();
+
+    Map<String, Long> getDispatchNanos();
+
+    Map<String, Long> getSendQueueWaitNanos();
+
+    Map<String, Long> getSendNanos();
+}
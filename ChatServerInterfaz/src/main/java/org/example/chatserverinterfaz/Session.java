@@ -0,0 +1,208 @@
+package org.example.chatserverinterfaz;
+
+import org.example.chatprotocol.ReliableLink;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Representa a un usuario del chat: su nombre de usuario y la dirección desde la que se comunica.
+ *
+ * @author Alejandro Ramírez
+ */
+public class Session {
+
+    // Identificador que el servidor le da en VALID, para que el cliente lo use como remitente en lugar del nombre
+    private final int id;
+
+    // Direccion IP y puerto del cliente
+    private final InetSocketAddress address;
+
+    // Nombre de usuario con el que se ha registrado
+    private final String nickname;
+
+    // Nombre de usuario codificado en UTF-8, para escribirlo en las tramas sin volver a codificarlo
+    private final byte[] nicknameBytes;
+
+    // Indica si el cliente usa el protocolo de texto antiguo en lugar de las tramas binarias
+    private final boolean legacy;
+
+    // Momento en el que se registro el nombre de usuario, en milisegundos
+    private final long createdAt;
+
+    // Lo que el cliente acordo en el saludo: enlace fiable, lotes, compresion y latidos
+    private volatile Handshake handshake = Handshake.NONE;
+
+    // Sala en la que esta el usuario o, si ya se ha ido, la ultima en la que estuvo. null si no se ha conectado
+    private volatile Room room;
+
+    // Ultima vez que se recibio algo del usuario, en el reloj del LivenessMonitor
+    private volatile long lastSeen;
+
+    // Indica si el LivenessMonitor vigila al usuario, desde su primer latido
+    private volatile boolean watched;
+
+    // Testigo con el que el cliente puede reanudar la sesion, o 0 si entro sin JOIN
+    private volatile long token;
+
+    // Ultima secuencia del historial cuando se recibio algo del usuario: al reanudar se le envia lo posterior
+    private volatile long historyMark;
+
+    /**
+     * Constructor de la clase Session.
+     *
+     * @param id Identificador de la sesión, positivo y único en el servidor.
+     * @param address Dirección IP y puerto del cliente.
+     * @param nickname Nombre de usuario.
+     * @param legacy true si el cliente usa el protocolo de texto antiguo.
+     */
+    public Session(int id, InetSocketAddress address, String nickname, boolean legacy) {
+        this.id = id;
+        this.address = address;
+        this.nickname = nickname;
+        this.nicknameBytes = nickname.getBytes(StandardCharsets.UTF_8);
+        this.legacy = legacy;
+        this.createdAt = System.currentTimeMillis();
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public InetSocketAddress address() {
+        return address;
+    }
+
+    public String nickname() {
+        return nickname;
+    }
+
+    public byte[] nicknameBytes() {
+        return nicknameBytes;
+    }
+
+    public boolean isLegacy() {
+        return legacy;
+    }
+
+    public long createdAt() {
+        return createdAt;
+    }
+
+    /**
+     * Enlace fiable con el cliente.
+     *
+     * @return El enlace, o null si el cliente no lo negoció en el saludo.
+     */
+    public ReliableLink<SharedPayload> link() {
+        return handshake.link();
+    }
+
+    /**
+     * Tamaño máximo de los datagramas BATCH que acepta el cliente.
+     *
+     * @return El tamaño, o 0 si no acepta varias tramas en un datagrama.
+     */
+    public int batchLimit() {
+        return handshake.batchLimit();
+    }
+
+    /**
+     * Indica si el cliente acepta las cargas comprimidas con el diccionario compartido.
+     *
+     * @return true si lo aceptó en el saludo.
+     */
+    public boolean acceptsCompressed() {
+        return handshake.compressed();
+    }
+
+    Handshake handshake() {
+        return handshake;
+    }
+
+    /**
+     * Asocia la sesión con lo que el cliente acordó en el saludo. Solo lo llama el {@link MessageDispatcher}.
+     *
+     * @param handshake Lo acordado, o {@link Handshake#NONE} si el cliente no saludó.
+     */
+    void attach(Handshake handshake) {
+        this.handshake = handshake;
+    }
+
+    public long token() {
+        return token;
+    }
+
+    /**
+     * Asigna el testigo de la sesión. Solo lo llama el {@link SessionRegistry}.
+     *
+     * @param token Testigo distinto de 0.
+     */
+    void issue(long token) {
+        this.token = token;
+    }
+
+    public long historyMark() {
+        return historyMark;
+    }
+
+    /**
+     * Anota hasta dónde llegaba el historial cuando se recibió algo del usuario. Como {@link #touch(long)},
+     * solo escribe si ha cambiado.
+     *
+     * @param sequence Última secuencia del historial.
+     */
+    public void markHistory(long sequence) {
+        if (historyMark != sequence) {
+            historyMark = sequence;
+        }
+    }
+
+    public Room room() {
+        return room;
+    }
+
+    /**
+     * Cambia la sala actual del usuario. Solo lo llama el {@link RoomDirectory}.
+     *
+     * @param room Nueva sala.
+     */
+    void moveTo(Room room) {
+        this.room = room;
+    }
+
+    public long lastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Anota que se ha recibido algo del usuario. Solo escribe si el reloj ha avanzado, para no invalidar
+     * la línea de caché de la sesión en cada datagrama.
+     *
+     * @param now Momento actual en el reloj del {@link LivenessMonitor}.
+     */
+    void touch(long now) {
+        if (lastSeen != now) {
+            lastSeen = now;
+        }
+    }
+
+    /**
+     * Marca al usuario como vigilado. Los datagramas de un usuario se procesan de uno en uno, así que
+     * no hace falta una operación atómica.
+     *
+     * @return true si no se le vigilaba todavía.
+     */
+    boolean startWatching() {
+        if (watched) {
+            return false;
+        }
+        watched = true;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return nickname + "@" + address;
+    }
+}
@@ -0,0 +1,247 @@
+package org.example.chatserverinterfaz;
+
+import org.example.chatprotocol.PacketPool;
+
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Despacho en paralelo con un ejecutor serie por usuario sobre hilos virtuales.
+ *
+ * Cada dirección de cliente tiene su propia cola de datagramas. Cuando llega un datagrama a una cola
+ * vacía se arranca un hilo virtual que la vacía en orden y termina; mientras tanto, los datagramas de
+ * ese usuario se añaden a la misma cola. Así los mensajes de un usuario se procesan de uno en uno y en el
+ * orden en que llegaron, y los de usuarios distintos se procesan a la vez en todos los núcleos.
+ *
+ * Una cola que se queda vacía se retira del mapa, de modo que solo ocupan memoria los usuarios que tienen
+ * datagramas pendientes. La cola se retira con su bloqueo tomado, así que nunca hay dos hilos procesando
+ * datagramas de la misma dirección.
+ *
+ * Los datagramas llegan en paquetes de una {@link PacketPool}: cada paquete se devuelve a la reserva en
+ * cuanto se ha procesado, sin copiar su contenido.
+ *
+ * Un datagrama puede llevar un instante antes del cual no debe procesarse (el {@link RateLimiter} retrasa
+ * así los mensajes de un usuario que envía demasiado deprisa). El hilo virtual de la cola se aparca hasta
+ * entonces, lo que retrasa también los datagramas que vienen detrás del mismo usuario sin ocupar un hilo de
+ * plataforma ni afectar a los demás usuarios.
+ *
+ * @author Alejandro Ramírez
+ */
+public class SessionExecutor {
+
+    /**
+     * Lógica que procesa cada datagrama en el hilo virtual del usuario.
+     */
+    @FunctionalInterface
+    public interface Handler {
+
+        /**
+         * Procesa un datagrama.
+         *
+         * @param data Bytes recibidos; el array se devuelve a la reserva al volver.
+         * @param length Número de bytes válidos en data.
+         * @param source Dirección y puerto del cliente.
+         */
+        void handle(byte[] data, int length, InetSocketAddress source);
+    }
+
+    private final Handler handler;
+
+    // Registro del servidor, donde se anotan los errores de la logica del chat
+    private final Consumer<String> log;
+
+    // Reserva a la que vuelven los paquetes procesados
+    private final PacketPool packets;
+
+    // Un hilo virtual nuevo por cada rafaga de datagramas de un usuario
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Colas de los usuarios con datagramas pendientes, indexadas por su direccion
+    private final ConcurrentHashMap<InetSocketAddress, Lane> lanes = new ConcurrentHashMap<>();
+
+    // Datagramas procesados y errores de la logica del chat
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * Constructor de la clase SessionExecutor.
+     *
+     * @param handler Lógica que procesa cada datagrama.
+     * @param packets Reserva de la que vienen los paquetes.
+     * @param log Registro del servidor, donde se anotan los datagramas que fallan.
+     */
+    public SessionExecutor(Handler handler, PacketPool packets, Consumer<String> log) {
+        this.handler = handler;
+        this.log = log;
+        this.packets = packets;
+    }
+
+    /**
+     * Encola un datagrama en la cola de su usuario y, si estaba parada, arranca el hilo que la vacía.
+     *
+     * @param packet Paquete recibido. El ejecutor lo devuelve a la reserva; quien llama no debe reutilizarlo.
+     * @param source Dirección y puerto del cliente.
+     */
+    public void submit(DatagramPacket packet, InetSocketAddress source) {
+        submit(packet, source, 0);
+    }
+
+    /**
+     * Encola un datagrama que no debe procesarse antes de un instante.
+     *
+     * @param packet Paquete recibido. El ejecutor lo devuelve a la reserva; quien llama no debe reutilizarlo.
+     * @param source Dirección y puerto del cliente.
+     * @param notBefore Instante de {@link System#nanoTime()} a partir del cual se procesa, o 0 para procesarlo
+     *                  en cuanto le toque.
+     */
+    public void submit(DatagramPacket packet, InetSocketAddress source, long notBefore) {
+        Inbound inbound = new Inbound(packet, source, notBefore);
+        while (true) {
+            Lane lane = lanes.computeIfAbsent(source, Lane::new);
+            switch (lane.offer(inbound)) {
+                case QUEUED -> {
+                    return;
+                }
+                case START -> {
+                    start(lane);
+                    return;
+                }
+                case RETIRED -> {
+                    // La cola se acaba de retirar y ya no esta en el mapa: se crea otra en la siguiente vuelta
+                }
+            }
+        }
+    }
+
+    /**
+     * Deja de aceptar datagramas. Las colas que se están vaciando terminan por su cuenta.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Número de usuarios con datagramas pendientes.
+     *
+     * @return Colas activas.
+     */
+    public int activeLanes() {
+        return lanes.size();
+    }
+
+    public long processed() {
+        return processed.sum();
+    }
+
+    public long failed() {
+        return failed.sum();
+    }
+
+    private void start(Lane lane) {
+        try {
+            executor.execute(() -> drain(lane));
+        } catch (RejectedExecutionException e) {
+            // El servidor se esta deteniendo: los datagramas pendientes se descartan
+            Inbound inbound;
+            while ((inbound = lane.poll()) != null) {
+                packets.release(inbound.packet());
+            }
+        }
+    }
+
+    /**
+     * Vacía la cola de un usuario en el hilo virtual hasta que no quedan datagramas.
+     */
+    private void drain(Lane lane) {
+        Inbound inbound;
+        while ((inbound = lane.poll()) != null) {
+            DatagramPacket packet = inbound.packet();
+            if (inbound.notBefore() != 0) {
+                // Aparcar un hilo virtual solo libera su hilo portador
+                long wait;
+                while ((wait = inbound.notBefore() - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            try {
+                handler.handle(packet.getData(), packet.getLength(), inbound.source());
+                processed.increment();
+            } catch (RuntimeException e) {
+                // Un error con un usuario no debe dejar su cola parada para siempre
+                failed.increment();
+                log.accept("Error al procesar un mensaje de " + inbound.source() + ": " + e);
+            } finally {
+                packets.release(packet);
+            }
+        }
+    }
+
+    /**
+     * Resultado de añadir un datagrama a una cola.
+     */
+    private enum Offer {
+        // La cola ya tenia un hilo vaciandola
+        QUEUED,
+        // La cola estaba parada: quien ha añadido el datagrama debe arrancar el hilo
+        START,
+        // La cola se ha retirado: hay que usar otra
+        RETIRED
+    }
+
+    /**
+     * Cola de datagramas de un usuario. Se bloquea solo para añadir y sacar, nunca mientras se procesa.
+     */
+    private final class Lane {
+
+        private final InetSocketAddress source;
+
+        private final ArrayDeque<Inbound> queue = new ArrayDeque<>();
+
+        // Indica si hay un hilo vaciando la cola
+        private boolean running;
+
+        // Indica si la cola ya no esta en el mapa
+        private boolean retired;
+
+        private Lane(InetSocketAddress source) {
+            this.source = source;
+        }
+
+        private synchronized Offer offer(Inbound inbound) {
+            if (retired) {
+                return Offer.RETIRED;
+            }
+            queue.add(inbound);
+            if (running) {
+                return Offer.QUEUED;
+            }
+            running = true;
+            return Offer.START;
+        }
+
+        /**
+         * Saca el siguiente datagrama. Si no queda ninguno, la cola se retira y el hilo termina.
+         */
+        private synchronized Inbound poll() {
+            Inbound next = queue.poll();
+            if (next == null) {
+                running = false;
+                retired = true;
+                lanes.remove(source, this);
+            }
+            return next;
+        }
+    }
+
+    // Datagrama recibido pendiente de procesar
+    private record Inbound(DatagramPacket packet, InetSocketAddress source, long notBefore) {
+    }
+}
@@ -0,0 +1,344 @@
+package org.example.chatserverinterfaz;
+
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registro de los usuarios del chat. Sustituye a las listas de puertos, direcciones y nombres que
+ * el servidor mantenía por separado.
+ *
+ * Las sesiones se indexan por dirección (para identificar al remitente de cada datagrama) y por nombre
+ * de usuario (para la validación), y ambas operaciones son O(1). Todas las operaciones son seguras
+ * aunque varios hilos despachen mensajes a la vez.
+ *
+ * Para el reenvío se ofrece {@link #snapshot()}: un array inmutable con los usuarios conectados que
+ * solo se reconstruye cuando cambia la lista de miembros, de modo que recorrerlo no requiere bloqueos
+ * ni crea iteradores.
+ *
+ * Cada usuario conectado está además en una sala de su {@link RoomDirectory}: al conectarse entra en la
+ * sala general, con {@link #move(Session, String)} cambia de sala y al desconectarse sale de la suya.
+ *
+ * Las sesiones que entran con JOIN reciben un testigo aleatorio ({@link #issueToken(Session)}). Con él, el
+ * cliente recupera su sesión desde otra dirección ({@link #resume(long, InetSocketAddress)}) mientras siga
+ * conectado; el testigo deja de valer cuando la sesión se va.
+ *
+ * @author Alejandro Ramírez
+ */
+public class SessionRegistry {
+
+    private static final Session[] EMPTY = new Session[0];
+
+    // Usuarios conectados, indexados por su direccion IP y puerto
+    private final ConcurrentHashMap<InetSocketAddress, Session> byAddress = new ConcurrentHashMap<>();
+
+    // Nombres de usuario reservados, tanto validados como conectados
+    private final ConcurrentHashMap<String, Session> byNickname = new ConcurrentHashMap<>();
+
+    // Usuarios conectados que usan el protocolo de texto antiguo
+    private final AtomicInteger legacySessions = new AtomicInteger();
+
+    // Ultimo identificador de sesion asignado
+    private final AtomicInteger ids = new AtomicInteger();
+
+    // Sesiones que se pueden reanudar, indexadas por su testigo
+    private final ConcurrentHashMap<Long, Session> byToken = new ConcurrentHashMap<>();
+
+    // Los testigos no deben poder adivinarse: con uno se suplanta al usuario
+    private final SecureRandom random = new SecureRandom();
+
+    // Se incrementa cada vez que cambia la lista de usuarios conectados
+    private final AtomicLong version = new AtomicLong();
+
+    // Ultima foto de los usuarios conectados y la version a la que corresponde
+    private volatile Snapshot snapshot = new Snapshot(0, EMPTY);
+
+    // Salas de los usuarios conectados
+    private final RoomDirectory rooms = new RoomDirectory();
+
+    /**
+     * Reserva un nombre de usuario para el cliente que lo solicita. La comprobación y la reserva
+     * son atómicas, por lo que dos clientes no pueden obtener el mismo nombre.
+     *
+     * @param nickname Nombre de usuario solicitado.
+     * @param address Dirección del cliente que lo solicita.
+     * @param legacy true si el cliente usa el protocolo de texto antiguo.
+     * @return La sesión reservada, o null si el nombre ya está en uso.
+     */
+    public Session reserve(String nickname, InetSocketAddress address, boolean legacy) {
+        Session session = new Session(ids.incrementAndGet(), address, nickname, legacy);
+        return byNickname.putIfAbsent(nickname, session) == null ? session : null;
+    }
+
+    /**
+     * Añade un usuario a la lista de conectados. Si el nombre no se validó antes, se reserva ahora.
+     *
+     * @param nickname Nombre de usuario.
+     * @param address Dirección desde la que se conecta.
+     * @param legacy true si el cliente usa el protocolo de texto antiguo.
+     * @return La sesión del usuario conectado, o null si el nombre lo tiene reservado otro cliente.
+     */
+    public Session join(String nickname, InetSocketAddress address, boolean legacy) {
+        Session session = byNickname.computeIfAbsent(nickname,
+                name -> new Session(ids.incrementAndGet(), address, name, legacy));
+        if (!session.address().equals(address)) {
+            return null;
+        }
+
+        // Si la direccion tenia otra sesion, se sustituye y se libera su nombre
+        Session previous = byAddress.put(address, session);
+        if (previous != null && previous != session) {
+            byNickname.remove(previous.nickname(), previous);
+            byToken.remove(previous.token(), previous);
+            countLegacy(previous, -1);
+            leaveRoom(previous);
+        }
+        if (previous != session) {
+            countLegacy(session, 1);
+            synchronized (session) {
+                rooms.join(RoomDirectory.DEFAULT_ROOM, session);
+            }
+        }
+        version.incrementAndGet();
+        return session;
+    }
+
+    /**
+     * Da a una sesión conectada un testigo para reanudarla. Si ya tiene uno, lo devuelve sin cambiarlo,
+     * para que repetir JOIN dé siempre la misma respuesta.
+     *
+     * @param session Sesión conectada.
+     * @return El testigo, distinto de 0.
+     */
+    public long issueToken(Session session) {
+        synchronized (session) {
+            if (session.token() == 0) {
+                long token;
+                do {
+                    token = random.nextLong();
+                } while (token == 0 || byToken.putIfAbsent(token, session) != null);
+                session.issue(token);
+            }
+            return session.token();
+        }
+    }
+
+    /**
+     * Obtiene la sesión a la que corresponde un testigo.
+     *
+     * @param token Testigo presentado por el cliente.
+     * @return La sesión, o null si el testigo no es válido o la sesión ya se ha ido.
+     */
+    public Session lookup(long token) {
+        return token == 0 ? null : byToken.get(token);
+    }
+
+    /**
+     * Traslada una sesión conectada a otra dirección: la sesión nueva conserva el identificador, el nombre, el
+     * testigo y la sala de la anterior, que deja de estar conectada sin pasar por la salida. Lo que hubiera en
+     * la nueva dirección se sustituye, como en {@link #join(String, InetSocketAddress, boolean)}.
+     *
+     * @param token Testigo presentado por el cliente.
+     * @param address Dirección desde la que se reanuda.
+     * @return La sesión en la nueva dirección, la misma si no ha cambiado, o null si el testigo no es válido.
+     */
+    public Session resume(long token, InetSocketAddress address) {
+        Session previous = lookup(token);
+        if (previous == null || previous.address().equals(address)) {
+            return previous;
+        }
+
+        Session session = new Session(previous.id(), address, previous.nickname(), false);
+        session.issue(token);
+        Room room;
+        synchronized (previous) {
+            // Si entretanto se ha ido o ha vuelto desde otra direccion, el testigo ya no sirve
+            if (!byAddress.remove(previous.address(), previous)) {
+                return null;
+            }
+            byNickname.replace(previous.nickname(), previous, session);
+            byToken.replace(token, previous, session);
+            room = previous.room();
+            rooms.leave(previous);
+        }
+
+        Session displaced = byAddress.put(address, session);
+        if (displaced != null) {
+            forget(displaced);
+        }
+        synchronized (session) {
+            rooms.join(room != null ? room.name() : RoomDirectory.DEFAULT_ROOM, session);
+        }
+        session.markHistory(previous.historyMark());
+        version.incrementAndGet();
+        return session;
+    }
+
+    /**
+     * Elimina al usuario conectado desde una dirección y libera su nombre.
+     *
+     * @param address Dirección del usuario que se desconecta.
+     * @return La sesión eliminada, o null si no había ningún usuario en esa dirección.
+     */
+    public Session leave(InetSocketAddress address) {
+        Session session = byAddress.remove(address);
+        if (session != null) {
+            forget(session);
+        }
+        return session;
+    }
+
+    /**
+     * Elimina a un usuario conectado solo si la dirección sigue siendo suya, para no echar a quien se haya
+     * conectado después desde la misma dirección.
+     *
+     * @param address Dirección del usuario.
+     * @param session Sesión que se quiere eliminar.
+     * @return true si se ha eliminado.
+     */
+    public boolean leave(InetSocketAddress address, Session session) {
+        if (!byAddress.remove(address, session)) {
+            return false;
+        }
+        forget(session);
+        return true;
+    }
+
+    /**
+     * Libera el nombre y la sala de un usuario que ya se ha quitado de las direcciones.
+     */
+    private void forget(Session session) {
+        byNickname.remove(session.nickname(), session);
+        byToken.remove(session.token(), session);
+        countLegacy(session, -1);
+        leaveRoom(session);
+        version.incrementAndGet();
+    }
+
+    /**
+     * Cambia a un usuario conectado de sala. Sale de la sala en la que estaba, que se retira si se queda
+     * vacía, y entra en la nueva, que se crea si no existe.
+     *
+     * @param session Usuario conectado.
+     * @param roomName Nombre de la sala de destino.
+     * @return La sala de destino, o null si el usuario ya no está conectado.
+     */
+    public Room move(Session session, String roomName) {
+        synchronized (session) {
+            if (byAddress.get(session.address()) != session) {
+                return null;
+            }
+            rooms.leave(session);
+            return rooms.join(roomName, session);
+        }
+    }
+
+    /**
+     * Directorio de las salas de los usuarios conectados.
+     *
+     * @return El directorio de salas.
+     */
+    public RoomDirectory rooms() {
+        return rooms;
+    }
+
+    private void leaveRoom(Session session) {
+        synchronized (session) {
+            rooms.leave(session);
+        }
+    }
+
+    /**
+     * Libera un nombre de usuario reservado que nunca llegó a conectarse.
+     *
+     * @param nickname Nombre de usuario.
+     * @param address Dirección del cliente que lo reservó.
+     * @return true si se ha liberado el nombre.
+     */
+    public boolean release(String nickname, InetSocketAddress address) {
+        Session reserved = byNickname.get(nickname);
+        return reserved != null && reserved.address().equals(address)
+                && !byAddress.containsKey(address) && byNickname.remove(nickname, reserved);
+    }
+
+    /**
+     * Obtiene el usuario conectado desde una dirección.
+     *
+     * @param address Dirección del cliente.
+     * @return La sesión, o null si no hay ningún usuario conectado desde esa dirección.
+     */
+    public Session lookup(InetSocketAddress address) {
+        return byAddress.get(address);
+    }
+
+    /**
+     * Obtiene la sesión que tiene reservado un nombre de usuario.
+     *
+     * @param nickname Nombre de usuario.
+     * @return La sesión, o null si el nombre está libre.
+     */
+    public Session lookup(String nickname) {
+        return byNickname.get(nickname);
+    }
+
+    /**
+     * Indica si un nombre de usuario está reservado o en uso.
+     *
+     * @param nickname Nombre de usuario.
+     * @return true si el nombre no está disponible.
+     */
+    public boolean isTaken(String nickname) {
+        return byNickname.containsKey(nickname);
+    }
+
+    /**
+     * Número de usuarios conectados.
+     *
+     * @return Número de usuarios conectados.
+     */
+    public int size() {
+        return byAddress.size();
+    }
+
+    /**
+     * Indica si hay algún usuario conectado con el protocolo de texto antiguo. Permite no codificar los
+     * mensajes en texto cuando nadie los va a recibir así.
+     *
+     * @return true si hay al menos un usuario con el protocolo antiguo.
+     */
+    public boolean hasLegacySessions() {
+        return legacySessions.get() > 0;
+    }
+
+    private void countLegacy(Session session, int delta) {
+        if (session.isLegacy()) {
+            legacySessions.addAndGet(delta);
+        }
+    }
+
+    /**
+     * Devuelve los usuarios conectados en un array que no debe modificarse. Mientras no cambie la
+     * lista de miembros se devuelve siempre el mismo array, por lo que el coste de cada reenvío no
+     * depende de las altas y bajas.
+     *
+     * @return Array con los usuarios conectados.
+     */
+    public Session[] snapshot() {
+        long current = version.get();
+        Snapshot cached = snapshot;
+        if (cached.version() == current) {
+            return cached.sessions();
+        }
+
+        // Si otra alta o baja ocurre mientras se copia, la version ya no coincidira y se volvera a copiar
+        Session[] sessions = byAddress.values().toArray(EMPTY);
+        snapshot = new Snapshot(current, sessions);
+        return sessions;
+    }
+
+    // Lista de usuarios conectados asociada a la version del registro en la que se obtuvo
+    private record Snapshot(long version, Session[] sessions) {
+    }
+}
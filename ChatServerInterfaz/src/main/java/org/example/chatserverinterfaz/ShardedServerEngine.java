@@ -0,0 +1,156 @@
+package org.example.chatserverinterfaz;
+
+import org.example.chatprotocol.PacketPool;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Motor del servidor que reparte la recepción entre varios núcleos. Abre varios sockets en el mismo puerto
+ * con SO_REUSEPORT y el sistema operativo reparte entre ellos los datagramas que llegan, cada socket con su
+ * propia cola en el núcleo. Cada socket tiene un hilo que recibe en él y entrega los datagramas al
+ * dispatcher por su propia {@link MessageDispatcher.Inlet}, sin nada compartido por datagrama salvo la
+ * reserva de paquetes, que no usa bloqueos.
+ *
+ * El sistema elige el socket con un hash de las direcciones y puertos de origen y destino, así que todos los
+ * datagramas de un cliente llegan por el mismo hilo mientras no cambie el número de sockets y se procesan en
+ * el orden en que llegaron. Los de clientes distintos se procesan en paralelo: con
+ * {@link DispatchMode#SINGLE} cada hilo los procesa él mismo y con {@link DispatchMode#VIRTUAL} los pasa a
+ * la cola de cada usuario. El registro y las salas ya están en estructuras concurrentes sin un bloqueo global.
+ *
+ * Las respuestas se escriben desde la {@link SendPipeline} por el primer socket; como todos comparten el
+ * puerto, el cliente las recibe del mismo origen.
+ *
+ * @author Alejandro Ramírez
+ */
+public class ShardedServerEngine implements ServerEngine {
+
+    // Sockets por defecto: uno por nucleo
+    public static final int DEFAULT_SHARDS = Runtime.getRuntime().availableProcessors();
+
+    // Sockets abiertos en el puerto, uno por hilo de recepcion
+    private final List<DatagramSocket> sockets = new ArrayList<>();
+
+    // Etapa de envio que escribe las respuestas en el primer socket
+    private SendPipeline pipeline;
+
+    // Numero de sockets, tamaño del buffer de recepcion de cada uno y de la cola de la etapa de envio
+    private final int shards;
+    private final int receiveBufferSize;
+    private final int sendQueueCapacity;
+
+    private volatile boolean running;
+
+    /**
+     * Constructor de la clase ShardedServerEngine con los tamaños por defecto y un socket por núcleo.
+     */
+    public ShardedServerEngine() {
+        this(NioServerEngine.SOCKET_RECEIVE_BUFFER, SendPipeline.QUEUE_CAPACITY, DEFAULT_SHARDS);
+    }
+
+    /**
+     * Constructor de la clase ShardedServerEngine.
+     *
+     * @param receiveBufferSize Buffer de recepción de cada socket en el sistema operativo, en bytes.
+     * @param sendQueueCapacity Trabajos que pueden esperar a la etapa de envío.
+     * @param shards Sockets abiertos en el puerto, cada uno con su hilo de recepción.
+     */
+    public ShardedServerEngine(int receiveBufferSize, int sendQueueCapacity, int shards) {
+        this.receiveBufferSize = receiveBufferSize;
+        this.sendQueueCapacity = sendQueueCapacity;
+        this.shards = shards;
+    }
+
+    /**
+     * Abre los sockets en el puerto y arranca un hilo de recepción por cada uno.
+     *
+     * @param port Puerto en el que escucha el servidor.
+     * @param dispatcher Lógica del chat que procesa cada datagrama recibido.
+     * @throws IOException Si el sistema no admite SO_REUSEPORT o no se puede abrir algún socket.
+     */
+    @Override
+    public void start(int port, MessageDispatcher dispatcher) throws IOException {
+        try {
+            for (int i = 0; i < shards; i++) {
+                // La opcion debe activarse antes de enlazar el socket, y en todos los que comparten el puerto
+                DatagramSocket socket = new DatagramSocket(null);
+                sockets.add(socket);
+                if (!socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new IOException("El sistema no admite SO_REUSEPORT");
+                }
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                socket.setReceiveBufferSize(receiveBufferSize);
+                socket.bind(new InetSocketAddress(port));
+            }
+        } catch (IOException e) {
+            sockets.forEach(DatagramSocket::close);
+            sockets.clear();
+            throw e;
+        }
+
+        // Las respuestas se encolan y las escribe en el socket el hilo de envio
+        pipeline = new SendPipeline(new SocketSender(sockets.get(0)), sendQueueCapacity, 1);
+        dispatcher.attach(pipeline);
+        pipeline.start();
+
+        running = true;
+        LongAdder[] received = new LongAdder[shards];
+        for (int i = 0; i < shards; i++) {
+            DatagramSocket socket = sockets.get(i);
+            MessageDispatcher.Inlet inlet = dispatcher.inlet(shards);
+            LongAdder counter = received[i] = new LongAdder();
+            Thread thread = new Thread(() -> runShard(socket, inlet, counter, dispatcher), "chat-shard-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        dispatcher.metrics().bindShards(received);
+    }
+
+    /**
+     * Cierra los sockets, lo que desbloquea los hilos que están esperando datagramas.
+     */
+    @Override
+    public void stop() {
+        running = false;
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+        sockets.forEach(DatagramSocket::close);
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running && !sockets.isEmpty() && !sockets.get(0).isClosed();
+    }
+
+    /**
+     * Bucle de un hilo de recepción: recibe en su socket y entrega cada datagrama por su entrada.
+     */
+    private void runShard(DatagramSocket socket, MessageDispatcher.Inlet inlet, LongAdder received,
+                          MessageDispatcher dispatcher) {
+        PacketPool packets = dispatcher.packets();
+        while (!socket.isClosed()) {
+            DatagramPacket packet = packets.acquire();
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                packets.release(packet);
+
+                // Si el socket se ha cerrado el servidor se esta deteniendo
+                if (socket.isClosed()) {
+                    return;
+                }
+                dispatcher.log("Error al recibir datos: " + e.getMessage());
+                continue;
+            }
+            received.increment();
+            inlet.dispatch(packet);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.example.chatserverinterfaz;
+
+import org.example.chatprotocol.FrameCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Contenido de un datagrama que se envía a varios destinatarios. Se codifica una única vez y todos los
+ * envíos comparten los mismos bytes, que nadie debe modificar después de crearlo.
+ *
+ * Los motores de este paquete leen directamente el array; el resto del código solo tiene acceso a una
+ * vista de solo lectura.
+ *
+ * Los mensajes del historial no tienen array: son una porción del segmento proyectado en memoria del
+ * {@link ChatJournal}, que el motor NIO escribe en el socket sin copiarla. Los datagramas BATCH del
+ * {@link OutboundBatcher} tampoco: son una porción de su buffer, que se escribe en cuanto se crea.
+ *
+ * @author Alejandro Ramírez
+ */
+public final class SharedPayload {
+
+    // Bytes del mensaje. Nunca se modifican una vez creado el objeto. null si es una porcion del historial
+    final byte[] data;
+
+    // Vista de solo lectura de los bytes del mensaje
+    private final ByteBuffer view;
+
+    // Indica si es una trama que debe enviarse con entrega fiable a los clientes que la negociaron
+    private final boolean reliable;
+
+    private SharedPayload(byte[] data) {
+        this.data = data;
+        this.view = ByteBuffer.wrap(data).asReadOnlyBuffer();
+        this.reliable = data.length >= FrameCodec.OVERHEAD && data[0] == FrameCodec.versionByte()
+                && (data[FrameCodec.FLAGS_OFFSET] & FrameCodec.FLAG_RELIABLE) != 0;
+    }
+
+    private SharedPayload(ByteBuffer mapped) {
+        this.data = null;
+        this.view = mapped.isReadOnly() ? mapped : mapped.asReadOnlyBuffer();
+        this.reliable = false;
+    }
+
+    /**
+     * Codifica un texto en UTF-8.
+     *
+     * @param text Texto del mensaje.
+     * @return El contenido listo para enviarse.
+     */
+    public static SharedPayload of(String text) {
+        return new SharedPayload(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Usa un array recién codificado sin copiarlo. Quien lo llama no debe volver a modificarlo.
+     *
+     * @param data Bytes del mensaje.
+     * @return El contenido listo para enviarse.
+     */
+    public static SharedPayload wrap(byte[] data) {
+        return new SharedPayload(data);
+    }
+
+    /**
+     * Usa una porción de un fichero proyectado en memoria sin copiarla. No es fiable: los mensajes del
+     * historial no se numeran en los enlaces.
+     *
+     * @param mapped Porción con el datagrama entre su posición y su límite. No debe modificarse.
+     * @return El contenido listo para enviarse.
+     */
+    static SharedPayload mapped(ByteBuffer mapped) {
+        return new SharedPayload(mapped);
+    }
+
+    /**
+     * Usa una porción de un array sin copiarla, para un datagrama que se escribe en el socket en cuanto se
+     * crea. No es fiable: si lleva tramas fiables ya van numeradas.
+     *
+     * @param data Array que contiene el datagrama. No debe modificarse hasta que se haya enviado.
+     * @param offset Posición del primer byte.
+     * @param length Número de bytes del datagrama.
+     * @return El contenido listo para enviarse.
+     */
+    static SharedPayload slice(byte[] data, int offset, int length) {
+        return new SharedPayload(ByteBuffer.wrap(data, offset, length).slice());
+    }
+
+    /**
+     * Copia una porción de un array, por ejemplo el buffer de recepción que se va a reutilizar.
+     *
+     * @param data Array de origen.
+     * @param offset Posición del primer byte.
+     * @param length Número de bytes a copiar.
+     * @return El contenido listo para enviarse.
+     */
+    public static SharedPayload copyOf(byte[] data, int offset, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        return new SharedPayload(copy);
+    }
+
+    /**
+     * Número de bytes del mensaje.
+     *
+     * @return Longitud del mensaje en bytes.
+     */
+    public int length() {
+        return view.limit();
+    }
+
+    /**
+     * Indica si el contenido es una trama con el indicador de entrega fiable.
+     *
+     * @return true si debe numerarse y confirmarse en los enlaces fiables.
+     */
+    public boolean isReliable() {
+        return reliable;
+    }
+
+    /**
+     * Vista de solo lectura del mensaje. La posición de la vista es compartida, por lo que quien
+     * necesite moverla debe trabajar sobre un {@link ByteBuffer#duplicate()}.
+     *
+     * @return Vista de solo lectura de los bytes.
+     */
+    public ByteBuffer view() {
+        return view;
+    }
+}
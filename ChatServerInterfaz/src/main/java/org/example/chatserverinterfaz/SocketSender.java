@@ -0,0 +1,57 @@
+package org.example.chatserverinterfaz;
+
+import org.example.chatprotocol.FrameCodec;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+
+/**
+ * Envío de los motores que escriben con un {@link DatagramSocket} bloqueante. Cada hilo de envío reutiliza su
+ * propio paquete y, si hay que escribir un número de secuencia, su propia copia del contenido; los mensajes
+ * del historial también se copian, porque DatagramSocket solo envía desde un array.
+ *
+ * @author Alejandro Ramírez
+ */
+class SocketSender implements PacketSender {
+
+    private final DatagramSocket socket;
+
+    // Paquete de envio reutilizado por cada hilo. Solo cambian los datos y el destinatario
+    private final ThreadLocal<DatagramPacket> sendPacket =
+            ThreadLocal.withInitial(() -> new DatagramPacket(new byte[0], 0));
+
+    // Copia de cada hilo donde se escribe el numero de secuencia de las tramas fiables
+    private final ThreadLocal<byte[]> sequencedBuffer = ThreadLocal.withInitial(
+            () -> new byte[FrameCodec.encodedLength(FrameCodec.MAX_SENDER_LENGTH, FrameCodec.MAX_PAYLOAD_LENGTH)]);
+
+    /**
+     * Constructor de la clase SocketSender.
+     *
+     * @param socket Socket por el que salen los datagramas.
+     */
+    SocketSender(DatagramSocket socket) {
+        this.socket = socket;
+    }
+
+    @Override
+    public void send(SharedPayload payload, int sequence, InetSocketAddress target) throws IOException {
+        DatagramPacket packet = sendPacket.get();
+        if (payload.data == null) {
+            byte[] copy = sequencedBuffer.get();
+            int length = payload.length();
+            payload.view().get(0, copy, 0, length);
+            packet.setData(copy, 0, length);
+        } else if (sequence == 0) {
+            packet.setData(payload.data, 0, payload.data.length);
+        } else {
+            byte[] copy = sequencedBuffer.get();
+            System.arraycopy(payload.data, 0, copy, 0, payload.data.length);
+            FrameCodec.putSequence(copy, 0, sequence);
+            packet.setData(copy, 0, payload.data.length);
+        }
+        packet.setSocketAddress(target);
+        socket.send(packet);
+    }
+}
@@ -0,0 +1,201 @@
+package org.example.chatserverinterfaz;
+
+import org.example.chatprotocol.Frame;
+import org.example.chatprotocol.FrameCodec;
+import org.example.chatprotocol.Opcode;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Pruebas del historial: reproducción por sala, recuperación tras una escritura a medias y retención por
+ * tamaño y por edad.
+ *
+ * @author Alejandro Ramírez
+ */
+class ChatJournalTest {
+
+    // El segmento mas pequeño que admite el historial: cabe una trama de tamaño maximo
+    static final int SEGMENT_SIZE = ChatJournal.HEADER_LENGTH + RoomDirectory.MAX_NAME_LENGTH
+            + FrameCodec.encodedLength(FrameCodec.MAX_SENDER_LENGTH, FrameCodec.MAX_PAYLOAD_LENGTH);
+
+    private static final byte[] GENERAL = "general".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] JAVA = "java".getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysTheLastMessagesOfARoomInOrder() throws IOException {
+        try (ChatJournal journal = open(Long.MAX_VALUE, 3600)) {
+            for (int i = 1; i <= 10; i++) {
+                journal.append(i % 2 == 0 ? JAVA : GENERAL, chat("mensaje " + i));
+            }
+
+            List<Frame> replayed = replayLast(journal, JAVA, 3);
+            assertEquals(List.of("mensaje 6", "mensaje 8", "mensaje 10"), texts(replayed));
+            assertEquals(List.of(6, 8, 10), replayed.stream().map(Frame::sequence).toList());
+            assertTrue(replayed.stream().allMatch(frame -> (frame.flags() & FrameCodec.FLAG_HISTORY) != 0));
+        }
+    }
+
+    @Test
+    void replaysTheMessagesOfARoomAfterASequence() throws IOException {
+        try (ChatJournal journal = open(Long.MAX_VALUE, 3600)) {
+            for (int i = 1; i <= 10; i++) {
+                journal.append(i % 2 == 0 ? JAVA : GENERAL, chat("mensaje " + i));
+            }
+
+            assertEquals(List.of("mensaje 7", "mensaje 9"), texts(replaySince(journal, GENERAL, 5)));
+            assertEquals(List.of(), texts(replaySince(journal, GENERAL, journal.lastSequence())));
+        }
+    }
+
+    @Test
+    void recoversUpToTheLastCompleteRecordAfterATornWrite() throws IOException {
+        int end = 0;
+        try (ChatJournal journal = open(Long.MAX_VALUE, 3600)) {
+            for (int i = 1; i <= 3; i++) {
+                byte[] frame = chat("mensaje " + i);
+                journal.append(GENERAL, frame);
+                end += ChatJournal.HEADER_LENGTH + GENERAL.length + frame.length;
+            }
+        }
+
+        // El servidor se cae a mitad del cuarto registro: esta todo menos la longitud, que va la ultima
+        try (FileChannel channel = FileChannel.open(segments().get(0), StandardOpenOption.WRITE)) {
+            ByteBuffer torn = ByteBuffer.allocate(ChatJournal.HEADER_LENGTH + GENERAL.length)
+                    .putInt(0)
+                    .putLong(4)
+                    .putLong(System.currentTimeMillis())
+                    .put((byte) GENERAL.length)
+                    .put(GENERAL)
+                    .flip();
+            channel.write(torn, end);
+        }
+
+        try (ChatJournal journal = open(Long.MAX_VALUE, 3600)) {
+            assertEquals(3, journal.lastSequence());
+            assertEquals(List.of("mensaje 1", "mensaje 2", "mensaje 3"), texts(replayLast(journal, GENERAL, 10)));
+
+            // El siguiente registro ocupa el sitio del que quedo a medias
+            assertEquals(4, journal.append(GENERAL, chat("mensaje 4")));
+        }
+        try (ChatJournal journal = open(Long.MAX_VALUE, 3600)) {
+            assertEquals(4, journal.lastSequence());
+            assertEquals(List.of("mensaje 3", "mensaje 4"), texts(replayLast(journal, GENERAL, 2)));
+        }
+    }
+
+    @Test
+    void recoversTheNumberingAcrossSegments() throws IOException {
+        long last;
+        try (ChatJournal journal = open(Long.MAX_VALUE, 3600)) {
+            fill(journal, 2);
+            last = journal.lastSequence();
+        }
+        try (ChatJournal journal = open(Long.MAX_VALUE, 3600)) {
+            assertEquals(3, journal.segmentCount());
+            assertEquals(last, journal.lastSequence());
+            assertEquals(last + 1, journal.append(GENERAL, chat("otro")));
+        }
+    }
+
+    @Test
+    void dropsTheOldestSegmentsAboveTheMaximumSize() throws IOException {
+        try (ChatJournal journal = open(2L * SEGMENT_SIZE, 3600)) {
+            fill(journal, 4);
+            assertEquals(2, journal.segmentCount());
+            assertEquals(2, segments().size());
+
+            // Lo borrado ya no se reproduce, y lo que queda sigue disponible
+            List<Frame> replayed = replaySince(journal, GENERAL, 0);
+            assertTrue(replayed.get(0).sequence() > 1);
+            assertEquals(journal.lastSequence(), replayed.get(replayed.size() - 1).sequence());
+            assertEquals(replayed.size(), replayLast(journal, GENERAL, ChatJournal.MAX_REPLAY).size());
+        }
+    }
+
+    @Test
+    void dropsSegmentsOlderThanTheMaximumAge() throws IOException, InterruptedException {
+        try (ChatJournal journal = open(Long.MAX_VALUE, 0)) {
+            journal.append(GENERAL, big());
+            Thread.sleep(5);
+
+            // Al pasar al segundo segmento el primero ya es mas viejo que la edad maxima; el activo se queda
+            fill(journal, 1);
+            assertEquals(1, journal.segmentCount());
+            assertEquals(1, segments().size());
+        }
+    }
+
+    private ChatJournal open(long maxBytes, long maxAgeSeconds) throws IOException {
+        return new ChatJournal(directory, SEGMENT_SIZE, maxBytes, maxAgeSeconds, message -> { });
+    }
+
+    /**
+     * Añade líneas largas hasta llenar los segmentos indicados y empezar el siguiente, contando desde un
+     * historial vacío.
+     */
+    private static void fill(ChatJournal journal, int segments) {
+        int perSegment = SEGMENT_SIZE / (ChatJournal.HEADER_LENGTH + GENERAL.length + big().length);
+        for (int i = 0; i < segments * perSegment + 1; i++) {
+            journal.append(GENERAL, big());
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().toList();
+        }
+    }
+
+    private static List<Frame> replayLast(ChatJournal journal, byte[] room, int count) {
+        List<Frame> frames = new ArrayList<>();
+        journal.replayLast(room, count, record -> frames.add(copy(record)));
+        return frames;
+    }
+
+    private static List<Frame> replaySince(ChatJournal journal, byte[] room, long since) {
+        List<Frame> frames = new ArrayList<>();
+        journal.replaySince(room, since, record -> frames.add(copy(record)));
+        return frames;
+    }
+
+    private static Frame copy(ByteBuffer record) {
+        byte[] data = new byte[record.remaining()];
+        record.get(data);
+        Frame frame = new Frame();
+        assertTrue(frame.wrap(data, 0, data.length));
+        return frame;
+    }
+
+    private static List<String> texts(List<Frame> frames) {
+        return frames.stream().map(Frame::text).toList();
+    }
+
+    private static byte[] chat(String text) {
+        return FrameCodec.encode(Opcode.CHAT, 0, "ana", text);
+    }
+
+    /**
+     * Línea de una décima de segmento, para llenar segmentos con pocas líneas.
+     */
+    private static byte[] big() {
+        return chat("x".repeat(SEGMENT_SIZE / 10));
+    }
+}
@@ -0,0 +1,150 @@
+package org.example.chatserverinterfaz;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Pruebas del límite de mensajes: los bordes del GCRA (ráfaga, recarga, retraso y descarte), el límite
+ * total y los cubos aparte de las confirmaciones, las imágenes y el historial. El instante se pasa a mano,
+ * así que no dependen del reloj.
+ *
+ * @author Alejandro Ramírez
+ */
+class RateLimiterTest {
+
+    // 10 datagramas por segundo con rafagas de 3: cada datagrama cuesta 100 ms y el margen es de 300 ms
+    static final int RATE = 10;
+    static final int BURST = 3;
+
+    // Un datagrama de cada cliente cada 100 ms, en nanosegundos
+    static final long EMISSION = TimeUnit.SECONDS.toNanos(1) / RATE;
+
+    // Instante de partida; cualquiera vale
+    static final long T0 = TimeUnit.SECONDS.toNanos(1000);
+
+    private static final long ANA = RateLimiter.key(InetAddress.getLoopbackAddress(), 5001);
+
+    private static final long BEA = RateLimiter.key(InetAddress.getLoopbackAddress(), 5002);
+
+    @Test
+    void passesTheBurstAndRejectsTheNext() {
+        RateLimiter limiter = new RateLimiter(RATE, BURST, 100_000, RatePolicy.DROP);
+        for (int i = 0; i < BURST; i++) {
+            assertEquals(RateLimiter.PASS, limiter.acquire(ANA, RateLimiter.MESSAGE, T0));
+        }
+        assertEquals(RateLimiter.REJECT_SESSION, limiter.acquire(ANA, RateLimiter.MESSAGE, T0));
+    }
+
+    @Test
+    void refillsOneDatagramPerEmissionInterval() {
+        RateLimiter limiter = new RateLimiter(RATE, BURST, 100_000, RatePolicy.DROP);
+        exhaust(limiter, ANA, RateLimiter.MESSAGE, T0);
+
+        // Un nanosegundo antes de recuperar la ficha aun no pasa; en el instante justo, si
+        assertEquals(RateLimiter.REJECT_SESSION, limiter.acquire(ANA, RateLimiter.MESSAGE, T0 + EMISSION - 1));
+        assertEquals(RateLimiter.PASS, limiter.acquire(ANA, RateLimiter.MESSAGE, T0 + EMISSION));
+        assertEquals(RateLimiter.REJECT_SESSION, limiter.acquire(ANA, RateLimiter.MESSAGE, T0 + EMISSION));
+
+        // Con el cubo lleno otra vez vuelve a pasar la rafaga entera
+        long later = T0 + TimeUnit.SECONDS.toNanos(10);
+        for (int i = 0; i < BURST; i++) {
+            assertEquals(RateLimiter.PASS, limiter.acquire(ANA, RateLimiter.MESSAGE, later));
+        }
+    }
+
+    @Test
+    void delaysUpToTheMaximumWaitAndThenRejects() {
+        RateLimiter limiter = new RateLimiter(RATE, BURST, 100_000, RatePolicy.DELAY);
+        exhaust(limiter, ANA, RateLimiter.MESSAGE, T0);
+
+        // Cada datagrama por encima de la rafaga espera un intervalo mas que el anterior
+        long maxDelayed = RateLimiter.MAX_DELAY_NANOS / EMISSION;
+        for (int i = 1; i <= maxDelayed; i++) {
+            assertEquals(i * EMISSION, limiter.acquire(ANA, RateLimiter.MESSAGE, T0));
+        }
+        assertEquals(RateLimiter.REJECT_SESSION, limiter.acquire(ANA, RateLimiter.MESSAGE, T0));
+    }
+
+    @Test
+    void clientsHaveSeparateBuckets() {
+        RateLimiter limiter = new RateLimiter(RATE, BURST, 100_000, RatePolicy.DROP);
+        exhaust(limiter, ANA, RateLimiter.MESSAGE, T0);
+        assertEquals(RateLimiter.PASS, limiter.acquire(BEA, RateLimiter.MESSAGE, T0));
+        assertNotEquals(ANA, BEA);
+    }
+
+    @Test
+    void rejectsAboveTheGlobalLimitForEveryone() {
+        // 1000 por segundo en total con una rafaga de una decima de segundo: 100 datagramas
+        RateLimiter limiter = new RateLimiter(1000, 1000, 1000, RatePolicy.DROP);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(RateLimiter.PASS, limiter.acquire(ANA, RateLimiter.MESSAGE, T0));
+        }
+        assertEquals(RateLimiter.REJECT_GLOBAL, limiter.acquire(BEA, RateLimiter.MESSAGE, T0));
+        assertEquals(RateLimiter.REJECT_GLOBAL, limiter.acquire(BEA, RateLimiter.GLOBAL, T0));
+    }
+
+    @Test
+    void datagramsRejectedByTheirClientDoNotChargeTheGlobalLimit() {
+        RateLimiter limiter = new RateLimiter(RATE, BURST, 1000, RatePolicy.DROP);
+        exhaust(limiter, ANA, RateLimiter.MESSAGE, T0);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(RateLimiter.REJECT_SESSION, limiter.acquire(ANA, RateLimiter.MESSAGE, T0));
+        }
+        assertEquals(RateLimiter.PASS, limiter.acquire(BEA, RateLimiter.MESSAGE, T0));
+    }
+
+    @Test
+    void acknowledgementsOnlyCountForTheGlobalLimit() {
+        RateLimiter limiter = new RateLimiter(RATE, BURST, 100_000, RatePolicy.DROP);
+        exhaust(limiter, ANA, RateLimiter.MESSAGE, T0);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(RateLimiter.PASS, limiter.acquire(ANA, RateLimiter.GLOBAL, T0));
+        }
+    }
+
+    @Test
+    void imagesAndHistoryHaveTheirOwnBuckets() {
+        RateLimiter limiter = new RateLimiter(RATE, BURST, 100_000, RatePolicy.DROP);
+        exhaust(limiter, ANA, RateLimiter.MESSAGE, T0);
+
+        // Con los mensajes agotados, las imagenes y el historial siguen con su propia rafaga
+        for (int i = 0; i < RateLimiter.IMAGE_BURST; i++) {
+            assertEquals(RateLimiter.PASS, limiter.acquire(ANA, RateLimiter.IMAGE, T0));
+        }
+        assertEquals(RateLimiter.REJECT_SESSION, limiter.acquire(ANA, RateLimiter.IMAGE, T0));
+
+        for (int i = 0; i < RateLimiter.HISTORY_BURST; i++) {
+            assertEquals(RateLimiter.PASS, limiter.acquire(ANA, RateLimiter.HISTORY, T0));
+        }
+        assertEquals(RateLimiter.REJECT_SESSION, limiter.acquire(ANA, RateLimiter.HISTORY, T0));
+        assertEquals(RateLimiter.PASS,
+                limiter.acquire(ANA, RateLimiter.HISTORY, T0 + TimeUnit.SECONDS.toNanos(1) / RateLimiter.HISTORY_RATE));
+    }
+
+    @Test
+    void retiresFullBucketsBeforeGrowing() {
+        RateLimiter limiter = new RateLimiter(RATE, BURST, Integer.MAX_VALUE, RatePolicy.DROP);
+        int clients = RateLimiter.INITIAL_CAPACITY / 2;
+        for (int port = 1; port <= clients; port++) {
+            limiter.acquire(RateLimiter.key(InetAddress.getLoopbackAddress(), port), RateLimiter.MESSAGE, T0);
+        }
+        assertEquals(clients, limiter.size());
+
+        // Un segundo despues todos tienen el cubo lleno: al llenarse la tabla se retiran en lugar de crecer
+        long later = T0 + TimeUnit.SECONDS.toNanos(1);
+        limiter.acquire(RateLimiter.key(InetAddress.getLoopbackAddress(), clients + 1), RateLimiter.MESSAGE, later);
+        assertEquals(1, limiter.size());
+    }
+
+    private static void exhaust(RateLimiter limiter, long key, int bucket, long now) {
+        for (int i = 0; i < BURST; i++) {
+            assertEquals(RateLimiter.PASS, limiter.acquire(key, bucket, now));
+        }
+    }
+}
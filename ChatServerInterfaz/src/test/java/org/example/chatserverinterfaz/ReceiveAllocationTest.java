@@ -0,0 +1,283 @@
+package org.example.chatserverinterfaz;
+
+import org.example.chatprotocol.Frame;
+import org.example.chatprotocol.FrameCodec;
+import org.example.chatprotocol.Opcode;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Comprueba los bytes que reservan los hilos del motor NIO por cada datagrama recibido, con el motor de
+ * verdad escuchando en la interfaz local y clientes conectados con entrega fiable.
+ *
+ * Se mide con la operación {@code getThreadAllocatedBytes} del MBean de hilos de la plataforma en cada hilo
+ * del motor por separado, porque lo que reserva el cliente que envía no cuenta:
+ *
+ * <ul>
+ *     <li>{@code chat-nio-io}: el hilo que vacía el socket ({@code receiveAll}).</li>
+ *     <li>{@code chat-nio-dispatch}: el hilo que resuelve el remitente y procesa el datagrama
+ *     ({@code Inlet.dispatch}).</li>
+ * </ul>
+ *
+ * Recibir y procesar una confirmación no debe reservar nada en el motor. La única excepción es el
+ * {@link DatagramChannel} del JDK: cada vez que cambia el remitente crea otra dirección, y eso no se puede
+ * evitar con el API de Java. Por eso, con dos clientes intercalados, el hilo que recibe reserva esa
+ * dirección y nada más. Una línea de chat se reenvía a la sala, y reenviar sí crea la trama de salida: de
+ * ella se comprueba que el hilo que recibe no reserva nada y que el despacho no reserva más de lo que cuesta
+ * el reenvío.
+ *
+ * @author Alejandro Ramírez
+ */
+class ReceiveAllocationTest {
+
+    // Datagramas que se envian antes de medir, para que el compilador y las reservas se estabilicen
+    static final int WARMUP = 50_000;
+
+    // Datagramas medidos en cada caso
+    static final int MEASURED = 100_000;
+
+    // Medidas de cada caso como mucho: vale la primera dentro del limite. Una recompilacion del JIT en mitad
+    // de una medida puede hacer que el codigo reserve durante un momento, y eso no es lo que se comprueba
+    static final int ATTEMPTS = 3;
+
+    // Datagramas que se envian seguidos antes de esperar al dispatcher, muy por debajo del buffer del socket
+    static final int BURST = 64;
+
+    // Lo que reserva el JDK al cambiar el remitente: la InetSocketAddress y la InetAddress con sus contenedores
+    static final long JDK_ADDRESS_BYTES = 128;
+
+    // Lo que reserva el despacho al reenviar una linea: la trama de salida, su envio y la linea del registro
+    static final long CHAT_FORWARD_BYTES = 640;
+
+    private static MessageDispatcher dispatcher;
+
+    private static NioServerEngine engine;
+
+    private static long ioThread;
+
+    private static long dispatchThread;
+
+    private static Client ana;
+
+    private static Client bea;
+
+    @BeforeAll
+    static void start() throws IOException {
+        int port;
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        dispatcher = new MessageDispatcher(new SessionRegistry(), message -> { }, () -> { });
+        engine = new NioServerEngine();
+        engine.start(port, dispatcher);
+        ioThread = threadId("chat-nio-io");
+        dispatchThread = threadId("chat-nio-dispatch");
+
+        InetSocketAddress server = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        ana = connect(server, "ana");
+        bea = connect(server, "bea");
+        ana.settle();
+        bea.settle();
+    }
+
+    @AfterAll
+    static void stop() throws IOException {
+        ana.close();
+        bea.close();
+        engine.stop();
+        dispatcher.close();
+    }
+
+    @Test
+    void ackFromOneClientAllocatesNothing() throws IOException {
+        measure(0, 0, ana.ack, ana);
+    }
+
+    @Test
+    void interleavedAcksAllocateOnlyTheJdkAddress() throws IOException {
+        measure(JDK_ADDRESS_BYTES, 0, ana.ack, ana, bea.ack, bea);
+    }
+
+    @Test
+    void chatAllocatesOnlyTheForward() throws IOException {
+        measure(0, CHAT_FORWARD_BYTES, ana.chat, ana);
+    }
+
+    /**
+     * Envía los datagramas de un caso, alternando entre los clientes, y compara lo reservado por datagrama
+     * en cada hilo con su límite. Si una medida lo supera se repite, hasta {@link #ATTEMPTS} veces.
+     *
+     * @param ioLimit Bytes por datagrama que puede reservar el hilo que recibe.
+     * @param dispatchLimit Bytes por datagrama que puede reservar el hilo de despacho.
+     * @param rounds Pares de datagrama y cliente que lo envía.
+     */
+    private static void measure(long ioLimit, long dispatchLimit, Object... rounds) throws IOException {
+        send(WARMUP, rounds);
+        double ioPerDatagram;
+        double dispatchPerDatagram;
+        boolean passed;
+        int attempt = 0;
+        do {
+            long io = allocatedBytes(ioThread);
+            long dispatch = allocatedBytes(dispatchThread);
+            send(MEASURED, rounds);
+            ioPerDatagram = (allocatedBytes(ioThread) - io) / (double) MEASURED;
+            dispatchPerDatagram = (allocatedBytes(dispatchThread) - dispatch) / (double) MEASURED;
+
+            // Las medidas tienen algo de ruido (el propio ThreadMXBean, el selector): se admite menos de 1 B
+            passed = ioPerDatagram < ioLimit + 1 && dispatchPerDatagram < dispatchLimit + 1;
+        } while (!passed && ++attempt < ATTEMPTS);
+
+        assertTrue(ioPerDatagram < ioLimit + 1,
+                String.format("Recepción: %.1f B/datagrama, límite %d", ioPerDatagram, ioLimit));
+        assertTrue(dispatchPerDatagram < dispatchLimit + 1,
+                String.format("Despacho: %.1f B/datagrama, límite %d", dispatchPerDatagram, dispatchLimit));
+    }
+
+    /**
+     * Envía datagramas y espera a que el dispatcher los haya procesado todos. Se envían en ráfagas de
+     * {@link #BURST} para no desbordar el buffer del socket, que descartaría los que no caben.
+     */
+    private static void send(int count, Object... rounds) throws IOException {
+        long start = dispatcher.metrics().getDatagramsIn();
+        int pairs = rounds.length / 2;
+        for (int sent = 0; sent < count; sent++) {
+            int round = sent % pairs * 2;
+            ((Client) rounds[round + 1]).send((ByteBuffer) rounds[round]);
+            if ((sent + 1) % BURST == 0) {
+                await(start + sent + 1);
+            }
+        }
+        await(start + count);
+    }
+
+    private static void await(long processed) {
+        while (dispatcher.metrics().getDatagramsIn() < processed) {
+            LockSupport.parkNanos(10_000);
+        }
+    }
+
+    /**
+     * Conecta un cliente con entrega fiable y JOIN, y prepara la línea de chat que enviará.
+     */
+    private static Client connect(InetSocketAddress server, String nickname) throws IOException {
+        Client client = new Client(server);
+        byte[] features = FrameCodec.helloPayload(FrameCodec.VERSION,
+                FrameCodec.FEATURE_RELIABLE | FrameCodec.FEATURE_RESUME, FrameCodec.MAX_DATAGRAM_SIZE);
+        client.send(FrameCodec.encode(Opcode.HELLO, (byte) 0, 1, new byte[0], features, 0, features.length));
+        byte[] name = nickname.getBytes(StandardCharsets.UTF_8);
+        client.send(FrameCodec.encode(Opcode.JOIN, FrameCodec.FLAG_RELIABLE, 1, name, new byte[0], 0, 0));
+
+        byte[] text = "hola a todos, ¿qué tal va el día?".getBytes(StandardCharsets.UTF_8);
+        byte[] chat = FrameCodec.encode(Opcode.CHAT, (byte) 0, 0, name, text, 0, text.length);
+        client.chat = ByteBuffer.allocateDirect(chat.length).put(chat);
+        return client;
+    }
+
+    /**
+     * Bytes reservados por un hilo desde que arrancó. Se piden por JMX y no con
+     * {@code com.sun.management.ThreadMXBean}, que está en un módulo que el del servidor no lee.
+     */
+    private static long allocatedBytes(long thread) {
+        try {
+            return (Long) ManagementFactory.getPlatformMBeanServer().invoke(
+                    new ObjectName(ManagementFactory.THREAD_MXBEAN_NAME), "getThreadAllocatedBytes",
+                    new Object[] {thread}, new String[] {long.class.getName()});
+        } catch (JMException e) {
+            throw new IllegalStateException("No se pueden medir las reservas del hilo " + thread, e);
+        }
+    }
+
+    private static long threadId(String name) {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals(name))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("No se encuentra el hilo " + name))
+                .threadId();
+    }
+
+    /**
+     * Cliente que envía desde su propio canal, conectado al servidor, con buffers directos que se reutilizan.
+     */
+    private static final class Client implements AutoCloseable {
+
+        private final DatagramChannel channel;
+
+        private final ByteBuffer received = ByteBuffer.allocateDirect(FrameCodec.MAX_DATAGRAM_SIZE);
+
+        // Confirmacion y linea de chat que envia el cliente en cada caso
+        private ByteBuffer ack;
+        private ByteBuffer chat;
+
+        private Client(InetSocketAddress server) throws IOException {
+            channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            channel.connect(server);
+        }
+
+        private void send(byte[] datagram) throws IOException {
+            channel.write(ByteBuffer.wrap(datagram));
+        }
+
+        private void send(ByteBuffer datagram) throws IOException {
+            channel.write(datagram.clear());
+        }
+
+        /**
+         * Confirma lo que ha enviado el servidor (HELLO, JOINED y los avisos de entrada), para que no siga
+         * reenviándolo mientras se mide. La misma confirmación es la que se envía después en cada caso.
+         */
+        private void settle() throws IOException {
+            byte[] ackFrame = FrameCodec.encodeAck(drain(500), 0);
+            send(ackFrame);
+            ack = ByteBuffer.allocateDirect(ackFrame.length).put(ackFrame);
+        }
+
+        /**
+         * Lee lo que envíe el servidor durante un tiempo.
+         *
+         * @return La secuencia fiable más alta recibida, o 0 si no ha llegado ninguna.
+         */
+        private int drain(long millis) throws IOException {
+            channel.configureBlocking(false);
+            Frame frame = new Frame();
+            byte[] data = new byte[FrameCodec.MAX_DATAGRAM_SIZE];
+            int highest = 0;
+            long deadline = System.nanoTime() + millis * 1_000_000;
+            while (System.nanoTime() < deadline) {
+                received.clear();
+                if (channel.read(received) <= 0) {
+                    LockSupport.parkNanos(1_000_000);
+                    continue;
+                }
+                received.flip();
+                int length = received.remaining();
+                received.get(data, 0, length);
+                if (frame.wrap(data, 0, length) && frame.isReliable()) {
+                    highest = Math.max(highest, frame.sequence());
+                }
+            }
+            return highest;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
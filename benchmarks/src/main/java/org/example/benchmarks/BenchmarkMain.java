@@ -0,0 +1,50 @@
+package org.example.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Punto de entrada de target/benchmarks.jar. Ejecuta JMH con las opciones de la línea de comandos y añade
+ * las que faltan para que cada ejecución se pueda comparar con las anteriores:
+ * <ul>
+ *     <li>{@code -rf json -rff jmh-result.json}: resultados en JSON, con la puntuación y sus intervalos.</li>
+ *     <li>{@code -prof gc}: bytes reservados por operación ("gc.alloc.rate.norm") junto a cada resultado.</li>
+ * </ul>
+ *
+ * Para comparar dos commits basta con guardar cada ejecución en su propio fichero, por ejemplo
+ * {@code -rff results-$(git rev-parse --short HEAD).json}.
+ *
+ * @author Alejandro Ramírez
+ */
+public class BenchmarkMain {
+
+    // Fichero de resultados por defecto, en el directorio desde el que se ejecuta
+    static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    /**
+     * Método principal que lanza JMH.
+     *
+     * @param args Opciones de JMH; las que no se indiquen toman los valores descritos arriba.
+     * @throws Exception Si JMH falla.
+     */
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+
+        // Las opciones de ayuda y de listado no ejecutan benchmarks: se pasan tal cual
+        boolean informational = options.stream().anyMatch(option -> option.equals("-h") || option.startsWith("-l"));
+        if (!informational) {
+            if (!options.contains("-rf")) {
+                options.addAll(List.of("-rf", "json"));
+            }
+            if (!options.contains("-rff")) {
+                options.addAll(List.of("-rff", DEFAULT_RESULT_FILE));
+            }
+            if (!options.contains("-prof")) {
+                options.addAll(List.of("-prof", "gc"));
+            }
+        }
+
+        org.openjdk.jmh.Main.main(options.toArray(String[]::new));
+    }
+}
@@ -0,0 +1,80 @@
+package org.example.benchmarks;
+
+import org.example.chatprotocol.FrameCodec;
+import org.example.chatprotocol.Opcode;
+import org.example.chatserverinterfaz.MessageDispatcher;
+import org.example.chatserverinterfaz.SendPipeline;
+import org.example.chatserverinterfaz.Session;
+import org.example.chatserverinterfaz.SessionRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mide el coste de reenviar una línea de chat a toda la sala en función del número de usuarios.
+ *
+ * Con "otherUsers" hay además usuarios conectados en otra sala: el coste debe depender solo del tamaño de
+ * la sala del remitente, no del número total de usuarios.
+ *
+ * Los envíos se sustituyen por un contador, así que solo se mide el trabajo del servidor. Para ver los
+ * bytes reservados por cada reenvío hay que activar el perfilador de memoria y mirar la métrica
+ * "gc.alloc.rate.norm":
+ * <pre>
+ *     java -jar target/benchmarks.jar BroadcastBenchmark -prof gc
+ * </pre>
+ *
+ * @author Alejandro Ramírez
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    // Numero de usuarios conectados a la sala
+    @Param({"10", "100", "1000", "10000"})
+    public int roomSize;
+
+    // Usuarios conectados en otra sala, que no deben recibir la linea
+    @Param({"0", "10000"})
+    public int otherUsers;
+
+    private MessageDispatcher dispatcher;
+
+    private byte[] chatLine;
+
+    private InetSocketAddress sender;
+
+    // Numero de datagramas "enviados", para que el compilador no elimine el reenvio
+    private long sent;
+
+    @Setup
+    public void setUp() {
+        SessionRegistry registry = new SessionRegistry();
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        for (int i = 0; i < roomSize; i++) {
+            registry.join("user" + i, new InetSocketAddress(loopback, 10000 + i), false);
+        }
+        for (int i = 0; i < otherUsers; i++) {
+            Session other = registry.join("other" + i, new InetSocketAddress(loopback, 30000 + i), false);
+            registry.move(other, "otra");
+        }
+
+        dispatcher = new MessageDispatcher(registry, message -> { }, () -> { });
+        // Sin hilos de envio, los "envios" se hacen en el hilo del benchmark y se mide el reenvio completo
+        dispatcher.attach(new SendPipeline((payload, sequence, target) -> sent += payload.length(), 1, 0));
+
+        sender = new InetSocketAddress(loopback, 10000);
+        chatLine = FrameCodec.encode(Opcode.CHAT, 1, "user0", "hola a todos, ¿qué tal va el día?");
+    }
+
+    @Benchmark
+    public long broadcastChatLine() {
+        dispatcher.dispatch(chatLine, chatLine.length, sender);
+        return sent;
+    }
+}
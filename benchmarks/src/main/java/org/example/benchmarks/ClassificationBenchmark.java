@@ -0,0 +1,97 @@
+package org.example.benchmarks;
+
+import org.example.chatprotocol.FrameCodec;
+import org.example.chatprotocol.Opcode;
+import org.example.chatprotocol.PacketPool;
+import org.example.chatserverinterfaz.MessageDispatcher;
+import org.example.chatserverinterfaz.SendPipeline;
+import org.example.chatserverinterfaz.SessionRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mide la clasificación de los datagramas que recibe el servidor: desde que el motor entrega el paquete
+ * hasta que el dispatcher decide qué hacer con él, para cada tipo de mensaje.
+ *
+ * Los mensajes elegidos no cambian el estado del servidor, así que cada operación clasifica el mismo
+ * datagrama en las mismas condiciones:
+ * <ul>
+ *     <li>{@code frame-ack}: confirmación de un cliente con enlace fiable.</li>
+ *     <li>{@code frame-chat}: línea de chat binaria de una dirección sin sesión, que se descarta.</li>
+ *     <li>{@code legacy-image}: aviso "img;" del protocolo de texto, que solo se registra.</li>
+ *     <li>{@code legacy-chat}: línea de texto de una dirección sin sesión en una sala vacía.</li>
+ * </ul>
+ *
+ * @author Alejandro Ramírez
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassificationBenchmark {
+
+    @Param({"frame-ack", "frame-chat", "legacy-image", "legacy-chat"})
+    public String message;
+
+    private MessageDispatcher dispatcher;
+
+    private PacketPool pool;
+
+    private InetAddress loopback;
+
+    private InetSocketAddress client;
+
+    private byte[] datagram;
+
+    // Numero de datagramas "enviados", para que el compilador no elimine los envios
+    private long sent;
+
+    @Setup
+    public void setUp() {
+        loopback = InetAddress.getLoopbackAddress();
+        client = new InetSocketAddress(loopback, 10000);
+
+        dispatcher = new MessageDispatcher(new SessionRegistry(), line -> { }, () -> { });
+        dispatcher.attach(new SendPipeline((payload, sequence, target) -> sent++, 1, 0));
+        pool = dispatcher.packets();
+
+        // El cliente negocia la entrega fiable para que sus confirmaciones lleguen a su enlace
+        byte[] features = FrameCodec.helloPayload(FrameCodec.VERSION, FrameCodec.FEATURE_RELIABLE,
+                FrameCodec.MAX_DATAGRAM_SIZE);
+        byte[] hello = FrameCodec.encode(Opcode.HELLO, (byte) 0, 1, new byte[0], features, 0, features.length);
+        dispatcher.dispatch(hello, hello.length, client);
+
+        datagram = switch (message) {
+            case "frame-ack" -> FrameCodec.encodeAck(0, 0);
+            case "frame-chat" -> FrameCodec.encode(Opcode.CHAT, 1, "nadie", "hola, ¿hay alguien?");
+            case "legacy-image" -> "img;foto.png".getBytes(StandardCharsets.UTF_8);
+            case "legacy-chat" -> "nadie: hola, ¿hay alguien?".getBytes(StandardCharsets.UTF_8);
+            default -> throw new IllegalArgumentException("Mensaje desconocido: " + message);
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.close();
+    }
+
+    @Benchmark
+    public long classify() {
+        // Se copia el datagrama en un paquete de la reserva como lo hacen los motores
+        DatagramPacket packet = pool.acquire();
+        System.arraycopy(datagram, 0, packet.getData(), 0, datagram.length);
+        packet.setLength(datagram.length);
+        packet.setAddress(loopback);
+        packet.setPort(client.getPort());
+
+        dispatcher.dispatch(packet);
+        return sent;
+    }
+}
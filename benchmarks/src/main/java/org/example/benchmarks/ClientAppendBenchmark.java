@@ -0,0 +1,96 @@
+package org.example.benchmarks;
+
+import javafx.scene.image.Image;
+import org.example.chatclient.Client.ClientThread;
+import org.example.chatclient.Client.ImageReceiver;
+import org.example.chatclient.Client.MessageView;
+import org.example.chatclient.Client.ServerConnection;
+import org.example.chatprotocol.FrameCodec;
+import org.example.chatprotocol.Opcode;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mide el camino del cliente desde que recibe una línea de chat hasta que la añade al historial: la
+ * conexión procesa el datagrama, el hilo del cliente construye la línea y la deja en la {@link MessageView},
+ * y cada {@link #PULSE} líneas se simula un pulso de JavaFX que las pasa al historial.
+ *
+ * No hace falta arrancar JavaFX: el historial es una lista observable sin ventana. El historial está
+ * lleno desde el principio, así que cada pulso también descarta las líneas más antiguas.
+ *
+ * @author Alejandro Ramírez
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientAppendBenchmark {
+
+    // Lineas que llegan entre dos pulsos de JavaFX
+    static final int PULSE = 64;
+
+    // Lineas que conserva el historial
+    @Param({"5000"})
+    public int history;
+
+    private DatagramSocket socket;
+
+    private ServerConnection connection;
+
+    private MessageView view;
+
+    private ClientThread client;
+
+    private DatagramPacket packet;
+
+    private int received;
+
+    @Setup
+    public void setUp() throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+
+        // Sin saludo la conexion no tiene enlace fiable y no envia confirmaciones
+        socket = new DatagramSocket(0, loopback);
+        connection = new ServerConnection(socket, loopback, socket.getLocalPort());
+        view = new MessageView(history);
+        client = new ClientThread(connection, view, new ImageReceiver(new ImageReceiver.Listener() {
+            @Override
+            public void imageReceived(String sender, Image image) {
+            }
+
+            @Override
+            public void imageFailed(String sender) {
+            }
+        }));
+
+        byte[] line = FrameCodec.encode(Opcode.CHAT, 1, "user0", "hola a todos, ¿qué tal va el día?");
+        packet = new DatagramPacket(line, line.length);
+
+        // Se llena el historial antes de medir
+        for (int i = 0; i < history; i++) {
+            view.append("línea " + i);
+        }
+        view.flush();
+    }
+
+    @TearDown
+    public void tearDown() {
+        socket.close();
+    }
+
+    @Benchmark
+    public int receiveAndAppend() throws IOException {
+        connection.process(packet, client::deliver);
+        if (++received % PULSE == 0) {
+            view.flush();
+        }
+        return view.history().size();
+    }
+}
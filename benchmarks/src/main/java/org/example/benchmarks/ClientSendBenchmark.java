@@ -0,0 +1,100 @@
+package org.example.benchmarks;
+
+import org.example.chatclient.Client.ServerConnection;
+import org.example.chatprotocol.FrameCodec;
+import org.example.chatprotocol.Opcode;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mide lo que tarda el hilo de JavaFX en enviar una línea de chat al pulsar Enter:
+ *
+ * <ul>
+ *     <li>{@code enqueueLine}: dejarla en la cola de la {@link ServerConnection}, que la envía desde su propio
+ *     hilo. Es lo que paga ahora la interfaz.</li>
+ *     <li>{@code socketSendLine}: codificarla y escribirla en el socket, como se hacía antes en el hilo de
+ *     JavaFX.</li>
+ * </ul>
+ *
+ * El servidor es un socket local que nadie lee: el sistema descarta los datagramas cuando se llena su buffer,
+ * igual que los perdería la red. Cada {@link #PAUSE} líneas se deja al hilo de envío vaciar la cola, porque
+ * nadie escribe tan rápido y con la cola llena solo se mediría el rechazo.
+ *
+ * Se muestrea cada envío para ver los percentiles además de la media. Dejar la línea en la cola cuesta
+ * poco, pero la primera de una ráfaga despierta al hilo de envío, y con un solo núcleo el tiempo de ese hilo
+ * también se cuenta.
+ *
+ * @author Alejandro Ramírez
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientSendBenchmark {
+
+    // Lineas que se envian seguidas antes de dejar que el hilo de envio se ponga al dia
+    static final int PAUSE = 64;
+
+    private static final String LINE = "alguien sabe si la reunión de mañana sigue siendo a las diez?";
+
+    private DatagramSocket server;
+
+    private DatagramSocket socket;
+
+    private ServerConnection connection;
+
+    private DatagramPacket packet;
+
+    private byte[] nickname;
+
+    private byte[] text;
+
+    private int sent;
+
+    @Setup
+    public void setUp() throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        server = new DatagramSocket(0, loopback);
+
+        // Sin saludo la conexion no tiene enlace fiable ni compresion: se mide solo el envio
+        socket = new DatagramSocket(0, loopback);
+        connection = new ServerConnection(new DatagramSocket(0, loopback), loopback, server.getLocalPort());
+        connection.enter("alejandro_r");
+
+        nickname = "alejandro_r".getBytes(StandardCharsets.UTF_8);
+        text = LINE.getBytes(StandardCharsets.UTF_8);
+        packet = new DatagramPacket(new byte[0], 0, loopback, server.getLocalPort());
+    }
+
+    @TearDown
+    public void tearDown() {
+        connection.close();
+        socket.close();
+        server.close();
+    }
+
+    @Benchmark
+    public boolean enqueueLine() {
+        boolean queued = connection.send(Opcode.CHAT, "alejandro_r", LINE, null);
+        if (++sent % PAUSE == 0) {
+            Thread.yield();
+        }
+        return queued;
+    }
+
+    @Benchmark
+    public DatagramPacket socketSendLine() throws IOException {
+        byte[] data = FrameCodec.encode(Opcode.CHAT, (byte) 0, ++sent, nickname, text, 0, text.length);
+        packet.setData(data);
+        socket.send(packet);
+        return packet;
+    }
+}
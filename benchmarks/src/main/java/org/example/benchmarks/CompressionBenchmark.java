@@ -0,0 +1,182 @@
+package org.example.benchmarks;
+
+import org.example.chatprotocol.Frame;
+import org.example.chatprotocol.FrameCodec;
+import org.example.chatprotocol.Opcode;
+import org.example.chatprotocol.PayloadCompressor;
+import org.example.chatserverinterfaz.MessageDispatcher;
+import org.example.chatserverinterfaz.SendPipeline;
+import org.example.chatserverinterfaz.SessionRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mide lo que cuesta y lo que ahorra la compresión de las líneas de chat con el diccionario compartido, para
+ * tres líneas típicas: un saludo corto que no se comprime, una frase y un párrafo.
+ *
+ * <ul>
+ *     <li>{@code clientLine} y {@code clientLineById}: trama CHAT que envía el cliente, con su nombre y sin
+ *     comprimir o con su identificador de sesión y comprimida.</li>
+ *     <li>{@code inflateLine}: descomprimir una línea recibida, lo que paga cada cliente.</li>
+ *     <li>{@code broadcastLine}: reenviar la línea a una sala de 100 usuarios, con y sin compresión. El tiempo
+ *     incluye comprimir una vez por línea.</li>
+ * </ul>
+ *
+ * Los bytes no son un tiempo y JMH sumaría los de todas las iteraciones, así que cada prueba los escribe en
+ * la salida al terminar, como "bytes en la red: ...":
+ * <pre>
+ *     java -jar target/benchmarks.jar CompressionBenchmark
+ * </pre>
+ *
+ * @author Alejandro Ramírez
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    // Usuarios de la sala en broadcastLine
+    static final int ROOM_SIZE = 100;
+
+    // Linea que se envia
+    @Param({"saludo", "frase", "parrafo"})
+    public String line;
+
+    private byte[] text;
+
+    private byte[] nickname;
+
+    private byte[] senderId;
+
+    private final PayloadCompressor compressor = new PayloadCompressor();
+
+    // Linea recibida comprimida, y el lector y el buffer donde se descomprime
+    private final Frame received = new Frame();
+    private final byte[] expanded = new byte[FrameCodec.MAX_DATAGRAM_SIZE];
+
+    @Setup
+    public void setUp() {
+        String value = switch (line) {
+            case "saludo" -> "hola! qué tal?";
+            case "frase" -> "alguien sabe si la reunión de mañana sigue siendo a las diez?";
+            default -> "vale, pues entonces lo dejamos para el fin de semana: yo puedo el sábado por la tarde "
+                    + "y si no os viene bien el domingo por la mañana, pero avisadme antes del viernes";
+        };
+        text = value.getBytes(StandardCharsets.UTF_8);
+        nickname = "alejandro_r".getBytes(StandardCharsets.UTF_8);
+        senderId = FrameCodec.idBytes(1234);
+
+        byte[] frame = compressor.encode(Opcode.CHAT, FrameCodec.FLAG_RELIABLE, 1, nickname, text, 0, text.length);
+        if (frame == null) {
+            frame = FrameCodec.encode(Opcode.CHAT, FrameCodec.FLAG_RELIABLE, 1, nickname, text, 0, text.length);
+        }
+        received.wrap(frame, 0, frame.length);
+    }
+
+    /**
+     * Bytes de la última operación, que son los mismos en todas.
+     */
+    @State(Scope.Thread)
+    public static class Wire {
+
+        private long upstreamBytes;
+
+        private long wireBytes;
+
+        @TearDown
+        public void report() {
+            if (upstreamBytes > 0) {
+                System.out.println("bytes en la red: " + upstreamBytes + " del cliente al servidor");
+            }
+            if (wireBytes > 0) {
+                System.out.println("bytes en la red: " + wireBytes + " del servidor a la sala ("
+                        + wireBytes / (ROOM_SIZE - 1) + " por destinatario)");
+            }
+        }
+    }
+
+    /**
+     * Sala de usuarios que aceptan o no la compresión, con el dispatcher que les reenvía la línea.
+     */
+    @State(Scope.Thread)
+    public static class Room {
+
+        @Param({"false", "true"})
+        public boolean compress;
+
+        private MessageDispatcher dispatcher;
+
+        private InetSocketAddress sender;
+
+        private byte[] chatLine;
+
+        // Bytes "enviados" por la sala en la linea en curso
+        private long sent;
+
+        @Setup
+        public void setUp(CompressionBenchmark benchmark) {
+            SessionRegistry registry = new SessionRegistry();
+            dispatcher = new MessageDispatcher(registry, message -> { }, () -> { });
+            // Sin hilos de envio, los "envios" se hacen en el hilo del benchmark y se mide el reenvio completo
+            dispatcher.attach(new SendPipeline((payload, sequence, target) -> sent += payload.length(), 1, 0));
+
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+            int features = compress ? FrameCodec.FEATURE_COMPRESS : 0;
+            byte[] payload = FrameCodec.helloPayload(FrameCodec.VERSION, features, FrameCodec.MAX_DATAGRAM_SIZE);
+            byte[] hello = FrameCodec.encode(Opcode.HELLO, (byte) 0, 1, new byte[0], payload, 0, payload.length);
+            for (int i = 0; i < ROOM_SIZE; i++) {
+                InetSocketAddress address = new InetSocketAddress(loopback, 10000 + i);
+                registry.join("user" + i, address, false);
+                dispatcher.dispatch(hello, hello.length, address);
+            }
+
+            // Sin enlaces fiables, para medir solo el reenvio
+            sender = new InetSocketAddress(loopback, 10000);
+            chatLine = FrameCodec.encode(Opcode.CHAT, (byte) 0, 1, new byte[0], benchmark.text, 0,
+                    benchmark.text.length);
+        }
+
+        @TearDown
+        public void tearDown() {
+            dispatcher.close();
+        }
+    }
+
+    @Benchmark
+    public byte[] clientLine(Wire wire) {
+        byte[] frame = FrameCodec.encode(Opcode.CHAT, FrameCodec.FLAG_RELIABLE, 0, nickname, text, 0, text.length);
+        wire.upstreamBytes = frame.length;
+        return frame;
+    }
+
+    @Benchmark
+    public byte[] clientLineById(Wire wire) {
+        byte flags = FrameCodec.FLAG_RELIABLE | FrameCodec.FLAG_SENDER_ID;
+        byte[] frame = compressor.encode(Opcode.CHAT, flags, 0, senderId, text, 0, text.length);
+        if (frame == null) {
+            frame = FrameCodec.encode(Opcode.CHAT, flags, 0, senderId, text, 0, text.length);
+        }
+        wire.upstreamBytes = frame.length;
+        return frame;
+    }
+
+    @Benchmark
+    public int inflateLine() {
+        return (received.flags() & FrameCodec.FLAG_COMPRESSED) != 0 ? compressor.expand(received, expanded) : 0;
+    }
+
+    @Benchmark
+    public long broadcastLine(Room room, Wire wire) {
+        room.sent = 0;
+        room.dispatcher.dispatch(room.chatLine, room.chatLine.length, room.sender);
+        wire.wireBytes = room.sent;
+        return room.sent;
+    }
+}
@@ -0,0 +1,89 @@
+package org.example.benchmarks;
+
+import org.example.chatprotocol.FrameCodec;
+import org.example.chatprotocol.Opcode;
+import org.example.chatserverinterfaz.ChatJournal;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Mide el historial de mensajes:
+ * <ul>
+ *     <li>{@code append}: guardar una línea de chat, que se hace en el hilo que despacha por cada línea
+ *     reenviada. Es una copia al segmento proyectado en memoria; el forzado a disco va en otro hilo.</li>
+ *     <li>{@code replayLast}: localizar los últimos 20 mensajes de una sala entre mensajes de cuatro salas
+ *     y entregarlos como porciones del segmento, sin copiarlos.</li>
+ * </ul>
+ *
+ * El diario se crea en un directorio temporal que se borra al terminar.
+ *
+ * @author Alejandro Ramírez
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalBenchmark {
+
+    private static final byte[][] ROOMS = {
+            bytes("general"), bytes("deportes"), bytes("música"), bytes("trabajo")
+    };
+
+    private Path directory;
+
+    private ChatJournal journal;
+
+    private byte[] frame;
+
+    private Consumer<ByteBuffer> sink;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws IOException {
+        directory = Files.createTempDirectory("chat-journal");
+        journal = new ChatJournal(directory, ChatJournal.DEFAULT_SEGMENT_SIZE, ChatJournal.DEFAULT_MAX_BYTES,
+                ChatJournal.DEFAULT_MAX_AGE_SECONDS, line -> { });
+        frame = FrameCodec.encode(Opcode.CHAT, 1, "ana", "una línea de chat de longitud habitual, unos 60 bytes");
+        sink = blackhole::consume;
+
+        // Mensajes de las cuatro salas intercalados, para que la reproduccion tenga que saltarse los ajenos
+        for (int i = 0; i < 10_000; i++) {
+            journal.append(ROOMS[i & 3], frame);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        journal.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public long append() {
+        return journal.append(ROOMS[0], frame);
+    }
+
+    @Benchmark
+    public int replayLast() {
+        return journal.replayLast(ROOMS[1], 20, sink);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
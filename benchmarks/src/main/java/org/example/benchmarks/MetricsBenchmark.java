@@ -0,0 +1,68 @@
+package org.example.benchmarks;
+
+import org.example.chatprotocol.FrameCodec;
+import org.example.chatprotocol.Opcode;
+import org.example.chatserverinterfaz.ServerMetrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mide lo que añaden las métricas a cada datagrama, con las mismas llamadas que hacen el dispatcher y la
+ * etapa de envío:
+ * <ul>
+ *     <li>{@code inbound}: por cada datagrama recibido, el contador de su código de operación y de bytes y,
+ *     en uno de cada {@link ServerMetrics#SAMPLE_INTERVAL}, la latencia del despacho.</li>
+ *     <li>{@code outbound}: por cada datagrama escrito en el socket, el contador de su código de operación
+ *     y de bytes.</li>
+ *     <li>{@code sendJob}: por cada trabajo de la etapa de envío, la espera en la cola y la duración del
+ *     envío en uno de cada {@link ServerMetrics#SAMPLE_INTERVAL}.</li>
+ *     <li>{@code clock}: una lectura de {@link System#nanoTime()}, como referencia de lo que cuesta
+ *     cronometrar cada datagrama sin muestreo.</li>
+ * </ul>
+ *
+ * Los tres primeros casos deben quedar por debajo de 50 ns y en 0 B/op.
+ *
+ * @author Alejandro Ramírez
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+    private ServerMetrics metrics;
+
+    private byte[] frame;
+
+    @Setup
+    public void setUp() {
+        metrics = new ServerMetrics();
+        frame = FrameCodec.encode(Opcode.CHAT, 1, "ana", "hola a todos");
+    }
+
+    @Benchmark
+    public void inbound() {
+        long start = metrics.startDispatch();
+        metrics.recordInbound(Opcode.CHAT, 64);
+        metrics.endDispatch(start);
+    }
+
+    @Benchmark
+    public void outbound() {
+        metrics.recordOutbound(frame);
+    }
+
+    @Benchmark
+    public void sendJob() {
+        long start = metrics.startSend(metrics.enqueueSend());
+        metrics.endSend(start);
+    }
+
+    @Benchmark
+    public long clock() {
+        return System.nanoTime();
+    }
+}
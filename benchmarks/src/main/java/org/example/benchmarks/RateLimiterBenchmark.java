@@ -0,0 +1,73 @@
+package org.example.benchmarks;
+
+import org.example.chatserverinterfaz.RateLimiter;
+import org.example.chatserverinterfaz.RatePolicy;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mide el límite de mensajes que se comprueba por cada datagrama recibido, antes de leerlo:
+ * <ul>
+ *     <li>{@code pass}: datagramas de 10000 clientes por turno, todos dentro de su límite. Cada uno busca
+ *     el cubo de su cliente en la tabla y lo actualiza.</li>
+ *     <li>{@code flood}: datagramas de un único cliente muy por encima de su límite, que se descartan.</li>
+ *     <li>{@code key}: la clave de un cliente a partir de su dirección y puerto.</li>
+ * </ul>
+ *
+ * Los tres casos deben quedar en 0 B/op.
+ *
+ * @author Alejandro Ramírez
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RateLimiterBenchmark {
+
+    private static final int CLIENTS = 10_000;
+
+    private RateLimiter limiter;
+
+    private RateLimiter flooded;
+
+    private long[] keys;
+
+    private InetAddress address;
+
+    private int next;
+
+    @Setup
+    public void setUp() throws UnknownHostException {
+        // Limites tan altos que ningun cliente los supera, y un limite total que tampoco se alcanza
+        limiter = new RateLimiter(1_000_000_000, 100, 1_000_000_000, RatePolicy.DROP);
+        flooded = new RateLimiter(1, 1, 1_000_000_000, RatePolicy.DROP);
+        keys = new long[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            keys[i] = RateLimiter.key(InetAddress.getByAddress(new byte[]{10, 0, (byte) (i >> 8), (byte) i}),
+                    40_000 + i);
+        }
+        address = InetAddress.getByAddress(new byte[]{10, 0, 0, 1});
+    }
+
+    @Benchmark
+    public long pass() {
+        int i = next;
+        next = i + 1 == CLIENTS ? 0 : i + 1;
+        return limiter.acquire(keys[i], RateLimiter.MESSAGE, System.nanoTime());
+    }
+
+    @Benchmark
+    public long flood() {
+        return flooded.acquire(keys[0], RateLimiter.MESSAGE, System.nanoTime());
+    }
+
+    @Benchmark
+    public long key() {
+        return RateLimiter.key(address, 40_000);
+    }
+}
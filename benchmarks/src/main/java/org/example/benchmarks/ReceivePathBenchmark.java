@@ -0,0 +1,173 @@
+package org.example.benchmarks;
+
+import org.example.chatprotocol.Frame;
+import org.example.chatprotocol.FrameCodec;
+import org.example.chatprotocol.Opcode;
+import org.example.chatprotocol.PacketPool;
+import org.example.chatprotocol.ReceiveWindow;
+import org.example.chatprotocol.ReliabilityStats;
+import org.example.chatserverinterfaz.MessageDispatcher;
+import org.example.chatserverinterfaz.SendPipeline;
+import org.example.chatserverinterfaz.SessionRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mide el camino de recepción en régimen estable, sin el socket: tomar un paquete de la reserva, copiar
+ * el datagrama como lo haría el motor, clasificarlo y devolver el paquete.
+ *
+ * El objetivo es que ninguno de estos casos reserve memoria. Se comprueba con el perfilador de memoria,
+ * que debe dar un "gc.alloc.rate.norm" de prácticamente 0 B/op:
+ * <pre>
+ *     java -jar target/benchmarks.jar ReceivePathBenchmark -prof gc
+ * </pre>
+ *
+ * Aquí no hay socket ni hilos del motor. El motor NIO real, con clientes conectados que envían
+ * confirmaciones y líneas de chat, se comprueba con la prueba {@code ReceiveAllocationTest} del servidor.
+ *
+ * @author Alejandro Ramírez
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceivePathBenchmark {
+
+    private PacketPool pool;
+
+    private MessageDispatcher dispatcher;
+
+    private InetAddress loopback;
+
+    // Clientes con enlace fiable que confirman tramas del servidor
+    private InetSocketAddress client;
+    private InetSocketAddress other;
+
+    // Confirmacion del cliente y linea de chat de alguien que no se ha conectado
+    private byte[] ack;
+    private byte[] strangerChat;
+
+    // Lado del cliente: lector de tramas, ventana de recepcion y buffer de confirmaciones
+    private final Frame frame = new Frame();
+    private ReceiveWindow window;
+    private byte[] reliableChat;
+    private final byte[] ackBuffer = new byte[FrameCodec.ACK_FRAME_LENGTH];
+    private int nextSequence;
+
+    // Numero de datagramas "enviados", para que el compilador no elimine los envios
+    private long sent;
+
+    @Setup
+    public void setUp() {
+        loopback = InetAddress.getLoopbackAddress();
+        client = new InetSocketAddress(loopback, 10000);
+        other = new InetSocketAddress(loopback, 10001);
+
+        dispatcher = new MessageDispatcher(new SessionRegistry(), message -> { }, () -> { });
+        // Sin hilos de envio, los "envios" se hacen en el hilo del benchmark
+        dispatcher.attach(new SendPipeline((payload, sequence, target) -> sent++, 1, 0));
+        pool = dispatcher.packets();
+
+        // El cliente negocia la entrega fiable, como haria al arrancar
+        byte[] features = FrameCodec.helloPayload(FrameCodec.VERSION, FrameCodec.FEATURE_RELIABLE,
+                FrameCodec.MAX_DATAGRAM_SIZE);
+        byte[] hello = FrameCodec.encode(Opcode.HELLO, (byte) 0, 1, new byte[0], features, 0, features.length);
+        dispatcher.dispatch(hello, hello.length, client);
+        dispatcher.dispatch(hello, hello.length, other);
+
+        ack = FrameCodec.encodeAck(0, 0);
+        strangerChat = FrameCodec.encode(Opcode.CHAT, 1, "nadie", "hola, ¿hay alguien?");
+
+        window = new ReceiveWindow(new ReliabilityStats());
+        byte[] text = "hola a todos, ¿qué tal va el día?".getBytes(StandardCharsets.UTF_8);
+        reliableChat = FrameCodec.encode(Opcode.CHAT, FrameCodec.FLAG_RELIABLE, 0,
+                "user0".getBytes(StandardCharsets.UTF_8), text, 0, text.length);
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.close();
+    }
+
+    /**
+     * Toma y devuelve un paquete de la reserva.
+     */
+    @Benchmark
+    public DatagramPacket poolCycle() {
+        DatagramPacket packet = pool.acquire();
+        pool.release(packet);
+        return packet;
+    }
+
+    /**
+     * El servidor recibe la confirmación de un cliente con enlace fiable.
+     */
+    @Benchmark
+    public long serverAck() {
+        dispatcher.dispatch(received(ack));
+        return sent;
+    }
+
+    /**
+     * El servidor recibe las confirmaciones de dos clientes intercalados, así que el remitente cambia en cada
+     * datagrama.
+     */
+    @Benchmark
+    public long serverInterleavedAck() {
+        dispatcher.dispatch(received(ack, client));
+        dispatcher.dispatch(received(ack, other));
+        return sent;
+    }
+
+    /**
+     * El servidor recibe una línea de chat de una dirección sin sesión y la descarta.
+     */
+    @Benchmark
+    public long serverUnknownChat() {
+        dispatcher.dispatch(received(strangerChat));
+        return sent;
+    }
+
+    /**
+     * El cliente recibe una trama fiable en orden, la entrega y escribe la confirmación.
+     */
+    @Benchmark
+    public int clientReliableFrame() {
+        DatagramPacket packet = pool.acquire();
+        FrameCodec.putSequence(reliableChat, 0, ++nextSequence);
+        System.arraycopy(reliableChat, 0, packet.getData(), 0, reliableChat.length);
+        packet.setLength(reliableChat.length);
+
+        int delivered = 0;
+        if (frame.wrap(packet.getData(), 0, packet.getLength())
+                && window.accept(frame) == ReceiveWindow.Verdict.DELIVER) {
+            delivered = frame.payloadLength();
+        }
+        delivered += window.ack(ackBuffer, 0);
+        pool.release(packet);
+        return delivered;
+    }
+
+    /**
+     * Copia un datagrama en un paquete de la reserva como lo hace el motor NIO.
+     */
+    private DatagramPacket received(byte[] datagram) {
+        return received(datagram, client);
+    }
+
+    private DatagramPacket received(byte[] datagram, InetSocketAddress source) {
+        DatagramPacket packet = pool.acquire();
+        System.arraycopy(datagram, 0, packet.getData(), 0, datagram.length);
+        packet.setLength(datagram.length);
+        packet.setAddress(source.getAddress());
+        packet.setPort(source.getPort());
+        return packet;
+    }
+}
@@ -0,0 +1,81 @@
+package org.example.benchmarks;
+
+import org.example.chatprotocol.FrameCodec;
+import org.example.chatprotocol.Opcode;
+import org.example.chatserverinterfaz.MessageDispatcher;
+import org.example.chatserverinterfaz.SendPipeline;
+import org.example.chatserverinterfaz.SessionRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mide la validación de nombres de usuario en función del número de usuarios conectados.
+ *
+ * {@code freeName} valida un nombre libre y lo libera a continuación con una desconexión, como haría un
+ * cliente que se va antes de entrar; {@code takenName} pide el nombre de un usuario ya conectado y recibe
+ * la respuesta de nombre no válido.
+ *
+ * @author Alejandro Ramírez
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidationBenchmark {
+
+    // Numero de usuarios conectados
+    @Param({"10", "1000", "10000"})
+    public int users;
+
+    private MessageDispatcher dispatcher;
+
+    // Cliente que pide un nombre
+    private InetSocketAddress client;
+
+    private byte[] validateFree;
+    private byte[] disconnectFree;
+    private byte[] validateTaken;
+
+    // Numero de respuestas "enviadas", para que el compilador no elimine los envios
+    private long sent;
+
+    @Setup
+    public void setUp() {
+        SessionRegistry registry = new SessionRegistry();
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        for (int i = 0; i < users; i++) {
+            registry.join("user" + i, new InetSocketAddress(loopback, 10000 + i), false);
+        }
+
+        dispatcher = new MessageDispatcher(registry, line -> { }, () -> { });
+        dispatcher.attach(new SendPipeline((payload, sequence, target) -> sent++, 1, 0));
+
+        client = new InetSocketAddress(loopback, 9000);
+        validateFree = FrameCodec.encode(Opcode.VALIDATE, 1, "nuevo", null);
+        disconnectFree = FrameCodec.encode(Opcode.DISCONNECT, 2, "nuevo", null);
+        validateTaken = FrameCodec.encode(Opcode.VALIDATE, 3, "user" + (users / 2), null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.close();
+    }
+
+    @Benchmark
+    public long freeName() {
+        dispatcher.dispatch(validateFree, validateFree.length, client);
+        dispatcher.dispatch(disconnectFree, disconnectFree.length, client);
+        return sent;
+    }
+
+    @Benchmark
+    public long takenName() {
+        dispatcher.dispatch(validateTaken, validateTaken.length, client);
+        return sent;
+    }
+}
@@ -0,0 +1,84 @@
+package org.example.loadgen;
+
+import org.example.chatprotocol.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sigue la difusión de cada mensaje a toda la sala: cuenta los destinatarios que faltan por recibirlo y,
+ * cuando llega al último, registra el tiempo desde el envío en el histograma de difusión.
+ *
+ * Los mensajes en vuelo ocupan una casilla de una ventana circular indexada por su identificador. Si un
+ * mensaje sigue sin completarse cuando su casilla se reutiliza, se da por incompleto.
+ *
+ * @author Alejandro Ramírez
+ */
+final class FanoutTracker {
+
+    // Mensajes que pueden estar en vuelo a la vez, potencia de dos
+    static final int WINDOW = 1 << 16;
+
+    private final long[] sentNanos = new long[WINDOW];
+
+    // Identificador del mensaje de cada casilla y destinatarios que aun no lo han recibido
+    private final AtomicLongArray ids = new AtomicLongArray(WINDOW);
+    private final AtomicIntegerArray remaining = new AtomicIntegerArray(WINDOW);
+
+    private final LatencyHistogram fanout = new LatencyHistogram();
+
+    private final LongAdder completed = new LongAdder();
+
+    FanoutTracker() {
+        for (int i = 0; i < WINDOW; i++) {
+            ids.set(i, -1);
+        }
+    }
+
+    /**
+     * Registra un mensaje antes de enviarlo. Solo lo llama el hilo que envía.
+     *
+     * @param id Identificador del mensaje.
+     * @param nanos Instante del envío.
+     * @param recipients Destinatarios que deben recibirlo.
+     */
+    void sent(long id, long nanos, int recipients) {
+        int slot = (int) id & (WINDOW - 1);
+        sentNanos[slot] = nanos;
+        remaining.set(slot, recipients);
+
+        // La escritura del identificador publica el instante y los destinatarios
+        ids.set(slot, id);
+    }
+
+    /**
+     * Registra que un destinatario ha recibido un mensaje.
+     *
+     * @param id Identificador del mensaje.
+     * @param nanos Instante de la recepción.
+     */
+    void delivered(long id, long nanos) {
+        int slot = (int) id & (WINDOW - 1);
+        if (ids.get(slot) != id) {
+            return;
+        }
+        if (remaining.decrementAndGet(slot) == 0) {
+            fanout.record(nanos - sentNanos[slot]);
+            completed.increment();
+        }
+    }
+
+    LatencyHistogram histogram() {
+        return fanout;
+    }
+
+    /**
+     * Mensajes que han llegado a todos sus destinatarios.
+     *
+     * @return Difusiones completas.
+     */
+    long completed() {
+        return completed.sum();
+    }
+}
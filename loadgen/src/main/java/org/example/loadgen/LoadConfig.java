@@ -0,0 +1,74 @@
+package org.example.loadgen;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Configuración del generador de carga. Cada opción se puede indicar en la línea de comandos como
+ * "--nombre=valor" o con la propiedad del sistema "loadgen.nombre"; la línea de comandos tiene prioridad.
+ *
+ * <ul>
+ *     <li>{@code host}: dirección del servidor (localhost).</li>
+ *     <li>{@code port}: puerto del servidor (5010).</li>
+ *     <li>{@code users}: usuarios virtuales que se conectan (100).</li>
+ *     <li>{@code ramp}: segundos en los que se conectan todos los usuarios (5).</li>
+ *     <li>{@code rate}: líneas de chat por segundo entre toda la sala (100).</li>
+ *     <li>{@code duration}: segundos que dura la fase de mensajes (30).</li>
+ *     <li>{@code size}: bytes de texto de cada línea, sin contar la marca de tiempo (64).</li>
+ *     <li>{@code drain}: segundos que se espera a los mensajes en vuelo al terminar (2).</li>
+ * </ul>
+ *
+ * @author Alejandro Ramírez
+ */
+public record LoadConfig(String host, int port, int users, int ramp, int rate, int duration, int size, int drain) {
+
+    /**
+     * Lee la configuración de los argumentos de la línea de comandos y de las propiedades del sistema.
+     *
+     * @param args Argumentos con la forma "--nombre=valor". Los que no la tienen se ignoran.
+     * @return La configuración resultante.
+     * @throws IllegalArgumentException Si algún valor no es válido.
+     */
+    public static LoadConfig parse(String[] args) {
+        Map<String, String> named = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (arg.startsWith("--") && equals > 2) {
+                named.put(arg.substring(2, equals), arg.substring(equals + 1));
+            }
+        }
+
+        return new LoadConfig(
+                option(named, "host", "localhost"),
+                intOption(named, "port", 5010, 1),
+                intOption(named, "users", 100, 2),
+                intOption(named, "ramp", 5, 0),
+                intOption(named, "rate", 100, 1),
+                intOption(named, "duration", 30, 1),
+                intOption(named, "size", 64, 0),
+                intOption(named, "drain", 2, 0));
+    }
+
+    /**
+     * Obtiene una opción de los argumentos o, si no está, de las propiedades del sistema.
+     */
+    private static String option(Map<String, String> named, String name, String defaultValue) {
+        return named.getOrDefault(name, System.getProperty("loadgen." + name, defaultValue));
+    }
+
+    private static int intOption(Map<String, String> named, String name, int defaultValue, int minimum) {
+        String value = option(named, name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed < minimum) {
+                throw new IllegalArgumentException("La opción " + name + " debe ser al menos " + minimum + ": " + value);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("La opción " + name + " no es un número: " + value, e);
+        }
+    }
+}
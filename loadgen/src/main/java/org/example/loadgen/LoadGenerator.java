@@ -0,0 +1,292 @@
+package org.example.loadgen;
+
+import org.example.chatprotocol.LatencyHistogram;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generador de carga sin interfaz gráfica para dimensionar el servidor. Simula muchos {@code ChatClient}
+ * con usuarios virtuales ({@link VirtualUser}) que hablan el protocolo de texto por la interfaz local.
+ *
+ * La prueba tiene tres fases:
+ * <ol>
+ *     <li>Rampa: los usuarios se validan y entran al chat repartidos a lo largo de "--ramp" segundos.</li>
+ *     <li>Mensajes: durante "--duration" segundos se envían "--rate" líneas por segundo entre toda la
+ *     sala, por turnos, y el servidor reenvía cada una al resto de usuarios.</li>
+ *     <li>Vaciado: se espera "--drain" segundos a los mensajes en vuelo y los usuarios salen del chat.</li>
+ * </ol>
+ *
+ * Cada línea lleva su identificador y el instante del envío ({@link Probe}). Con ellos se miden el
+ * rendimiento, la pérdida, la latencia de un sentido (del envío a cada recepción) y la latencia de
+ * difusión (del envío a la recepción del último destinatario), que se muestran con sus percentiles.
+ *
+ * @author Alejandro Ramírez
+ */
+public class LoadGenerator {
+
+    // Percentiles que se muestran en el informe
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+    private static final String[] PERCENTILE_LABELS = {"p50", "p90", "p99", "p999", "p9999"};
+
+    private final LoadConfig config;
+
+    // Origen de los instantes que viajan en las lineas
+    private final long origin = System.nanoTime();
+
+    private final LatencyHistogram oneWay = new LatencyHistogram();
+
+    private final FanoutTracker fanout = new FanoutTracker();
+
+    // Lineas enviadas, recepciones esperadas y recepciones de lineas del generador
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong expected = new AtomicLong();
+    private final LongAdder delivered = new LongAdder();
+
+    // Usuarios que han entrado al chat
+    private final ConcurrentLinkedQueue<VirtualUser> users = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructor de la clase LoadGenerator.
+     *
+     * @param config Configuración de la prueba.
+     */
+    public LoadGenerator(LoadConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Método principal que ejecuta la prueba y muestra el informe.
+     *
+     * @param args Opciones "--nombre=valor" de {@link LoadConfig}.
+     * @throws InterruptedException Si se interrumpe la prueba.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        LoadConfig config;
+        try {
+            config = LoadConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        new LoadGenerator(config).run();
+    }
+
+    /**
+     * Ejecuta las tres fases de la prueba.
+     *
+     * @throws InterruptedException Si se interrumpe la prueba.
+     */
+    public void run() throws InterruptedException {
+        InetSocketAddress server = new InetSocketAddress(config.host(), config.port());
+        System.out.println("Servidor " + server + ": " + config.users() + " usuarios en " + config.ramp()
+                + " s, " + config.rate() + " mensajes/s durante " + config.duration() + " s");
+
+        ramp(server);
+        if (users.size() < 2) {
+            System.out.println("Hacen falta al menos dos usuarios conectados para enviar mensajes");
+            leaveAll();
+            return;
+        }
+
+        long elapsed = drive();
+        Thread.sleep(config.drain() * 1000L);
+        report(elapsed);
+        leaveAll();
+    }
+
+    /**
+     * Conecta a los usuarios repartidos a lo largo de la rampa, cada uno en su propio hilo virtual.
+     */
+    private void ramp(InetSocketAddress server) throws InterruptedException {
+        // Un prefijo por ejecucion evita chocar con los nombres de una prueba anterior que no salio
+        String run = Integer.toString(ThreadLocalRandom.current().nextInt(36 * 36 * 36), 36);
+        long spacing = config.ramp() * 1_000_000_000L / config.users();
+        CountDownLatch finished = new CountDownLatch(config.users());
+        LongAdder failed = new LongAdder();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < config.users(); i++) {
+            parkUntil(start + i * spacing);
+            String nickname = "lg" + run + "-" + i;
+            Thread.ofVirtual().start(() -> {
+                try {
+                    VirtualUser user = new VirtualUser(nickname, server);
+                    if (user.join()) {
+                        user.startReceiving(this::received);
+                        users.add(user);
+                    } else {
+                        user.leave();
+                        failed.increment();
+                    }
+                } catch (IOException e) {
+                    // Normalmente el limite de descriptores abiertos del sistema ("ulimit -n")
+                    failed.increment();
+                } finally {
+                    finished.countDown();
+                }
+            });
+        }
+        finished.await();
+
+        System.out.printf("Conectados %d de %d usuarios en %.1f s (%d fallidos)%n", users.size(), config.users(),
+                (System.nanoTime() - start) / 1e9, failed.sum());
+
+        // Los avisos de entrada de los ultimos usuarios terminan de llegar antes de medir
+        Thread.sleep(500);
+    }
+
+    /**
+     * Envía las líneas de chat al ritmo configurado, por turnos entre los usuarios.
+     *
+     * @return Duración real de la fase, en nanosegundos.
+     */
+    private long drive() {
+        List<VirtualUser> senders = new ArrayList<>(users);
+        int recipients = senders.size() - 1;
+
+        int bufferSize = 0;
+        for (VirtualUser user : senders) {
+            bufferSize = Math.max(bufferSize, Probe.maxLength(user.nicknameBytes(), config.size()));
+        }
+        byte[] line = new byte[bufferSize];
+
+        long interval = 1_000_000_000L / config.rate();
+        long start = System.nanoTime();
+        long end = start + config.duration() * 1_000_000_000L;
+        Thread progress = startProgress(start);
+
+        // Los envios siguen un calendario fijo: si uno se retrasa, los siguientes no se desplazan
+        for (long id = 0; ; id++) {
+            long due = start + id * interval;
+            if (due >= end) {
+                break;
+            }
+            parkUntil(due);
+
+            VirtualUser user = senders.get((int) (id % senders.size()));
+            long now = System.nanoTime() - origin;
+            fanout.sent(id, now, recipients);
+            int length = Probe.encode(line, user.nicknameBytes(), id, now, config.size());
+            try {
+                user.sendLine(line, length);
+                sent.incrementAndGet();
+                expected.addAndGet(recipients);
+            } catch (IOException e) {
+                System.out.println("Error al enviar desde " + user.nickname() + ": " + e.getMessage());
+            }
+        }
+
+        progress.interrupt();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Procesa un datagrama recibido por un usuario. Solo se miden las líneas del generador; los avisos de
+     * entrada y salida se ignoran.
+     */
+    private void received(byte[] data, int length, long nanos) {
+        int position = Probe.find(data, length);
+        if (position < 0) {
+            return;
+        }
+        long id = Probe.readDecimal(data, position, length);
+        long sentAt = Probe.readDecimal(data, Probe.skipDecimal(data, position, length), length);
+        if (id < 0 || sentAt < 0) {
+            return;
+        }
+
+        long now = nanos - origin;
+        oneWay.record(now - sentAt);
+        fanout.delivered(id, now);
+        delivered.increment();
+    }
+
+    /**
+     * Muestra cada segundo los mensajes enviados y recibidos durante la fase de mensajes.
+     */
+    private Thread startProgress(long start) {
+        Thread thread = new Thread(() -> {
+            long lastSent = 0;
+            long lastDelivered = 0;
+            try {
+                while (true) {
+                    Thread.sleep(1000);
+                    long nowSent = sent.get();
+                    long nowDelivered = delivered.sum();
+                    System.out.printf("[%3d s] enviados %d/s, recibidos %d/s, un sentido p99 %s%n",
+                            (System.nanoTime() - start) / 1_000_000_000L, nowSent - lastSent,
+                            nowDelivered - lastDelivered, micros(oneWay.valueAtPercentile(99)));
+                    lastSent = nowSent;
+                    lastDelivered = nowDelivered;
+                }
+            } catch (InterruptedException e) {
+                // La fase de mensajes ha terminado
+            }
+        }, "loadgen-progress");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Muestra el informe final.
+     *
+     * @param elapsed Duración de la fase de mensajes, en nanosegundos.
+     */
+    private void report(long elapsed) {
+        double seconds = elapsed / 1e9;
+        long totalSent = sent.get();
+        long totalExpected = expected.get();
+        long totalDelivered = delivered.sum();
+        double loss = totalExpected == 0 ? 0 : 100.0 * (totalExpected - Math.min(totalDelivered, totalExpected)) / totalExpected;
+
+        System.out.println();
+        System.out.println("== Resultados ==");
+        System.out.println("Usuarios conectados:   " + users.size());
+        System.out.printf("Mensajes enviados:     %d (%.0f/s)%n", totalSent, totalSent / seconds);
+        System.out.printf("Recepciones:           %d de %d esperadas (%.0f/s)%n", totalDelivered, totalExpected,
+                totalDelivered / seconds);
+        System.out.printf("Pérdida:               %.3f %%%n", loss);
+        System.out.printf("Difusiones completas:  %d de %d%n", fanout.completed(), totalSent);
+        System.out.println("Latencia de un sentido: " + summary(oneWay));
+        System.out.println("Latencia de difusión:   " + summary(fanout.histogram()));
+    }
+
+    private static String summary(LatencyHistogram histogram) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            line.append(PERCENTILE_LABELS[i]).append('=')
+                    .append(micros(histogram.valueAtPercentile(PERCENTILES[i]))).append("  ");
+        }
+        return line.append("max=").append(micros(histogram.max()))
+                .append("  (").append(histogram.count()).append(" muestras)").toString();
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1f us", nanos / 1000.0);
+    }
+
+    private void leaveAll() {
+        for (VirtualUser user : users) {
+            user.leave();
+        }
+    }
+
+    private static void parkUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.example.loadgen;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Formato de las líneas de chat que envía el generador: "usuario: ~id instante relleno".
+ *
+ * El identificador numera los mensajes de toda la prueba y el instante son los nanosegundos del envío
+ * desde el inicio de la prueba, según {@link System#nanoTime()}. Como todos los usuarios virtuales viven
+ * en el mismo proceso, quien recibe la línea puede restar ese instante al de la recepción y obtener la
+ * latencia de un sentido sin sincronizar relojes.
+ * El carácter '~' tras ": " distingue estas líneas de los avisos del servidor.
+ *
+ * Se codifican y se leen directamente sobre bytes para que el generador no sea el cuello de botella.
+ *
+ * @author Alejandro Ramírez
+ */
+final class Probe {
+
+    private static final byte MARKER = '~';
+
+    private static final byte[] SEPARATOR = ": ~".getBytes(StandardCharsets.UTF_8);
+
+    // Digitos de un long en decimal, como maximo
+    private static final int MAX_DIGITS = 19;
+
+    private Probe() {
+    }
+
+    /**
+     * Bytes que ocupa como máximo una línea.
+     *
+     * @param nickname Nombre del remitente en UTF-8.
+     * @param padding Bytes de relleno.
+     * @return Tamaño del buffer necesario.
+     */
+    static int maxLength(byte[] nickname, int padding) {
+        return nickname.length + SEPARATOR.length + 2 * MAX_DIGITS + 2 + padding;
+    }
+
+    /**
+     * Escribe una línea en un buffer.
+     *
+     * @param dst Buffer de destino, de al menos {@link #maxLength(byte[], int)} bytes.
+     * @param nickname Nombre del remitente en UTF-8.
+     * @param id Identificador del mensaje.
+     * @param nanos Instante del envío, en nanosegundos desde el inicio de la prueba.
+     * @param padding Bytes de relleno.
+     * @return Número de bytes escritos.
+     */
+    static int encode(byte[] dst, byte[] nickname, long id, long nanos, int padding) {
+        System.arraycopy(nickname, 0, dst, 0, nickname.length);
+        int position = nickname.length;
+        System.arraycopy(SEPARATOR, 0, dst, position, SEPARATOR.length);
+        position += SEPARATOR.length;
+        position = writeDecimal(dst, position, id);
+        dst[position++] = ' ';
+        position = writeDecimal(dst, position, nanos);
+        dst[position++] = ' ';
+        for (int i = 0; i < padding; i++) {
+            dst[position++] = 'x';
+        }
+        return position;
+    }
+
+    /**
+     * Posición donde empiezan los números de una línea recibida.
+     *
+     * @return Posición del identificador, o -1 si la línea no la ha enviado el generador.
+     */
+    static int find(byte[] data, int length) {
+        for (int i = 0; i + SEPARATOR.length <= length; i++) {
+            if (data[i] == ':' && data[i + 1] == ' ' && data[i + 2] == MARKER) {
+                return i + SEPARATOR.length;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Lee un número decimal.
+     *
+     * @param data Bytes de la línea.
+     * @param position Posición del primer dígito.
+     * @param length Número de bytes válidos en data.
+     * @return El valor leído, o -1 si no hay dígitos.
+     */
+    static long readDecimal(byte[] data, int position, int length) {
+        long value = 0;
+        int start = position;
+        while (position < length && data[position] >= '0' && data[position] <= '9') {
+            value = value * 10 + (data[position++] - '0');
+        }
+        return position == start ? -1 : value;
+    }
+
+    /**
+     * Posición siguiente al número que empieza en position y al espacio que lo sigue.
+     */
+    static int skipDecimal(byte[] data, int position, int length) {
+        while (position < length && data[position] != ' ') {
+            position++;
+        }
+        return position + 1;
+    }
+
+    private static int writeDecimal(byte[] dst, int position, long value) {
+        if (value == 0) {
+            dst[position] = '0';
+            return position + 1;
+        }
+        int digits = 0;
+        for (long rest = value; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = position + digits - 1; i >= position; i--) {
+            dst[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return position + digits;
+    }
+}
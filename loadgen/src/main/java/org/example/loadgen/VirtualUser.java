@@ -0,0 +1,177 @@
+package org.example.loadgen;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Usuario virtual del generador de carga. Habla el protocolo de texto del servidor igual que un
+ * {@code ChatClient} sin interfaz: "validate;", "init;", líneas "usuario: texto" y "disconnect;".
+ *
+ * Cada usuario tiene su propio socket, como un cliente real, y un hilo virtual que recibe lo que le
+ * reenvía el servidor.
+ *
+ * @author Alejandro Ramírez
+ */
+final class VirtualUser {
+
+    /**
+     * Acción que procesa cada datagrama recibido en el hilo del usuario.
+     */
+    @FunctionalInterface
+    interface Receiver {
+
+        /**
+         * Procesa un datagrama.
+         *
+         * @param data Bytes recibidos; el array se reutiliza al volver.
+         * @param length Número de bytes válidos en data.
+         * @param nanos Instante de la recepción, de {@link System#nanoTime()}.
+         */
+        void received(byte[] data, int length, long nanos);
+    }
+
+    // Espera de la respuesta a la validacion, en milisegundos, e intentos antes de rendirse
+    private static final int VALIDATE_TIMEOUT = 2000;
+    private static final int VALIDATE_ATTEMPTS = 3;
+
+    // Tamaño del buffer de recepcion: el datagrama mas grande que envia el servidor
+    private static final int RECEIVE_BUFFER = 1472;
+
+    private final String nickname;
+
+    private final byte[] nicknameBytes;
+
+    private final InetSocketAddress server;
+
+    private final DatagramSocket socket;
+
+    // Paquete de envio reutilizado. Solo envia lineas el hilo que marca el ritmo
+    private final DatagramPacket sendPacket;
+
+    private volatile boolean connected;
+
+    /**
+     * Constructor de la clase VirtualUser. Abre el socket del usuario.
+     *
+     * @param nickname Nombre de usuario.
+     * @param server Dirección y puerto del servidor.
+     * @throws SocketException Si no se puede abrir el socket.
+     */
+    VirtualUser(String nickname, InetSocketAddress server) throws SocketException {
+        this.nickname = nickname;
+        this.nicknameBytes = nickname.getBytes(StandardCharsets.UTF_8);
+        this.server = server;
+        this.socket = new DatagramSocket();
+        this.sendPacket = new DatagramPacket(new byte[0], 0, server);
+    }
+
+    String nickname() {
+        return nickname;
+    }
+
+    byte[] nicknameBytes() {
+        return nicknameBytes;
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Valida el nombre de usuario y entra al chat. Si se pierde la respuesta a la validación, se repite;
+     * un "invalid" tras un reintento puede ser la reserva del intento anterior, así que se entra igualmente.
+     *
+     * @return true si el usuario ha entrado al chat.
+     * @throws IOException Si el socket falla.
+     */
+    boolean join() throws IOException {
+        byte[] buffer = new byte[RECEIVE_BUFFER];
+        DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+        socket.setSoTimeout(VALIDATE_TIMEOUT);
+
+        boolean valid = false;
+        for (int attempt = 0; attempt < VALIDATE_ATTEMPTS && !valid; attempt++) {
+            send("validate;" + nickname);
+            try {
+                socket.receive(response);
+            } catch (SocketTimeoutException e) {
+                continue;
+            }
+            String reply = new String(buffer, 0, response.getLength(), StandardCharsets.UTF_8);
+            if (reply.equals("valid")) {
+                valid = true;
+            } else if (reply.equals("invalid")) {
+                if (attempt == 0) {
+                    return false;
+                }
+                valid = true;
+            }
+        }
+        socket.setSoTimeout(0);
+        if (!valid) {
+            return false;
+        }
+
+        send("init;" + nickname);
+        connected = true;
+        return true;
+    }
+
+    /**
+     * Arranca el hilo virtual que recibe los datagramas del servidor hasta que se cierra el socket.
+     *
+     * @param receiver Acción que procesa cada datagrama.
+     */
+    void startReceiving(Receiver receiver) {
+        Thread.ofVirtual().name("loadgen-" + nickname).start(() -> {
+            byte[] buffer = new byte[RECEIVE_BUFFER];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            while (!socket.isClosed()) {
+                try {
+                    packet.setLength(buffer.length);
+                    socket.receive(packet);
+                    receiver.received(buffer, packet.getLength(), System.nanoTime());
+                } catch (IOException e) {
+                    // El socket se ha cerrado al terminar la prueba
+                }
+            }
+        });
+    }
+
+    /**
+     * Envía una línea de chat ya codificada. Solo debe llamarse desde un hilo a la vez.
+     *
+     * @param line Array que contiene la línea "usuario: texto".
+     * @param length Número de bytes de la línea.
+     * @throws IOException Si el socket no puede enviarla.
+     */
+    void sendLine(byte[] line, int length) throws IOException {
+        sendPacket.setData(line, 0, length);
+        socket.send(sendPacket);
+    }
+
+    /**
+     * Sale del chat y cierra el socket.
+     */
+    void leave() {
+        try {
+            if (connected) {
+                send("disconnect;" + nickname);
+            }
+        } catch (IOException e) {
+            // El servidor dara al usuario por desconectado igualmente
+        }
+        connected = false;
+        socket.close();
+    }
+
+    private void send(String message) throws IOException {
+        byte[] data = message.getBytes(StandardCharsets.UTF_8);
+        socket.send(new DatagramPacket(data, data.length, server));
+    }
+}